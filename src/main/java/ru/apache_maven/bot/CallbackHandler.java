@@ -7,6 +7,10 @@ import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import ru.apache_maven.db.DatabaseManager;
+import ru.apache_maven.db.MarketFilter;
+import ru.apache_maven.db.PackOpening;
+import ru.apache_maven.db.Page;
+import ru.apache_maven.db.PageCursor;
 import ru.apache_maven.model.*;
 
 import java.sql.SQLException;
@@ -18,6 +22,10 @@ import static ru.apache_maven.bot.Utils.sendMessage;
 
 public class CallbackHandler {
     private static final Logger logger = LoggerFactory.getLogger(CallbackHandler.class);
+    // Условия фильтров рынка: категории, которые можно продавать, позиции и пороги цены
+    private static final List<String> MARKET_CATEGORIES = List.of("Gold", "Diamond", "Legend", "GOAT", "TOTY");
+    private static final List<String> MARKET_POSITIONS = List.of("GK", "CB", "MID", "FRW");
+    private static final int[] MARKET_PRICE_CAPS = {500, 1000, 5000};
     private final DatabaseManager db;
     private final TelegramBot bot;
 
@@ -64,11 +72,11 @@ public class CallbackHandler {
             answer.setCallbackQueryId(callbackQuery.getId());
             answer.setText("Эта кнопка не для вас!");
             answer.setShowAlert(true);
-            try {
-                bot.execute(answer);
-            } catch (Exception e) {
-                logger.error("Failed to send alert to {}: {}", userId, e.getMessage(), e);
-            }
+            bot.getOutbox().execute(userId, answer, OutboundQueue.Priority.HIGH).whenComplete((sent, e) -> {
+                if (e != null) {
+                    logger.error("Failed to send alert to {}: {}", userId, e.getMessage(), e);
+                }
+            });
             return;
         }
 
@@ -102,14 +110,32 @@ public class CallbackHandler {
                     case "market":
                         if (parts.length > 2 && parts[2].equals("page")) {
                             try {
-                                int page = Integer.parseInt(parts[3]);
-                                handleGlobalMarket(chatId, messageId, userId, page);
-                            } catch (NumberFormatException e) {
-                                logger.error("Invalid page number: {}", data, e);
+                                handleGlobalMarket(chatId, messageId, userId, MarketFilter.ALL, PageCursor.decode(parts, 3));
+                            } catch (IllegalArgumentException e) {
+                                logger.error("Invalid page cursor: {}", data, e);
                                 editMessage(bot, chatId, messageId, "Ошибка: Неверный номер страницы.", null);
                             }
                         } else {
-                            handleGlobalMarket(chatId, messageId, userId, 1);
+                            handleGlobalMarket(chatId, messageId, userId, MarketFilter.ALL, null);
+                        }
+                        break;
+                    case "find":
+                        // trade_find_<фильтр>_<userId> или trade_find_<фильтр>_<курсор>_<userId>
+                        try {
+                            MarketFilter filter = MarketFilter.decode(parts[2]);
+                            PageCursor cursor = parts.length > 4 ? PageCursor.decode(parts, 3) : null;
+                            handleGlobalMarket(chatId, messageId, userId, filter, cursor);
+                        } catch (IllegalArgumentException e) {
+                            logger.error("Invalid market filter: {}", data, e);
+                            editMessage(bot, chatId, messageId, "Ошибка: Неверный фильтр рынка.", null);
+                        }
+                        break;
+                    case "filter":
+                        try {
+                            handleMarketFilters(chatId, messageId, userId, MarketFilter.decode(parts[2]));
+                        } catch (IllegalArgumentException e) {
+                            logger.error("Invalid market filter: {}", data, e);
+                            editMessage(bot, chatId, messageId, "Ошибка: Неверный фильтр рынка.", null);
                         }
                         break;
                     case "sell":
@@ -228,14 +254,13 @@ public class CallbackHandler {
                     case "list":
                         if (parts.length > 2 && parts[2].equals("page")) {
                             try {
-                                int page = Integer.parseInt(parts[3]);
-                                handleFriendsList(chatId, messageId, userId, page);
-                            } catch (NumberFormatException e) {
-                                logger.error("Invalid page number: {}", data, e);
+                                handleFriendsList(chatId, messageId, userId, PageCursor.decode(parts, 3));
+                            } catch (IllegalArgumentException e) {
+                                logger.error("Invalid page cursor: {}", data, e);
                                 editMessage(bot, chatId, messageId, "Ошибка: Неверный номер страницы.", null);
                             }
                         } else {
-                            handleFriendsList(chatId, messageId, userId, 1);
+                            handleFriendsList(chatId, messageId, userId, null);
                         }
                         break;
                     case "remove":
@@ -280,33 +305,21 @@ public class CallbackHandler {
     }
 
     private void handleOpenPack(long chatId, int messageId, long userId, int packId) throws SQLException {
-        Pack pack = db.getPackById(packId);
-        if (pack == null || pack.getId() == 0) {
-            logger.error("Pack not found: packId={}", packId);
-            editMessage(bot, chatId, messageId, "Ошибка: Пак не найден.", null);
-            return;
-        }
-
-        int packQuantity = db.getUserPackQuantity(userId, packId);
-        if (packQuantity <= 0) {
+        PackOpening opening = db.openPack(userId, packId);
+        if (opening == null) {
             logger.warn("User {} does not have packId={}", userId, packId);
             editMessage(bot, chatId, messageId, "У вас нет этого пака.", null);
             return;
         }
 
-        db.decrementUserPackQuantity(userId, packId);
+        Pack pack = opening.getPack();
         String packName = pack.getName() != null ? pack.getName() : "Неизвестный пак";
         StringBuilder text = new StringBuilder("🎉 Вы открыли пак " + packName + "!\nПолученные игроки:\n");
-        for (int i = 0; i < pack.getPlayerCount(); i++) {
-            Player player = pack.getCategory() != null ? db.getRandomPlayerByCategory(pack.getCategory()) : db.getRandomPlayer();
-            if (player != null) {
-                db.addPlayerToUser(userId, player);
-                text.append(String.format("- %s (%s, %d)\n", player.getName(), player.getPosition(), player.getRating()));
-            }
-        }
+        Utils.appendOpenedPlayers(text, opening);
 
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(List.of(List.of(createButton("Назад", "packs_my_" + userId))));
         editMessage(bot, chatId, messageId, text.toString(), keyboard);
+        Utils.sendPackCards(bot, db, chatId, opening);
     }
 
     private void handlePacksMenu(long chatId, int messageId, long userId) {
@@ -376,55 +389,120 @@ public class CallbackHandler {
         editMessage(bot, chatId, messageId, "✅ Куплен пак " + packName + "!", keyboard);
     }
 
-    private void handleGlobalMarket(long chatId, int messageId, long userId, int page) throws SQLException {
+    private void handleGlobalMarket(long chatId, int messageId, long userId, MarketFilter filter, PageCursor cursor) throws SQLException {
         int pageSize = 10; // 10 игроков на страницу
-        List<MarketEntry> marketEntries = db.getMarketPlayers(page, pageSize);
-        StringBuilder text = new StringBuilder("🏪 Глобальный рынок игроков:\n\n");
-        if (marketEntries.isEmpty()) {
-            text.append("На рынке нет игроков.");
-        } else {
-            for (MarketEntry entry : marketEntries) {
-                Player player = db.getPlayerById(entry.playerId);
-                if (player == null) continue;
-                boolean hasPlayer = db.checkUserHasPlayer(userId, player.getId());
-                text.append(String.format("🃏 %s (%s %s, %d) - %d $\nПродавец: %s%s\n\n",
-                        player.getName(),
-                        player.getCategory().getName(),
-                        player.getCategory().getEmoji(),
-                        player.getRating(),
-                        entry.price,
-                        entry.sellerUsername,
-                        hasPlayer ? " (У вас уже есть)" : ""));
-            }
-        }
-
+        Page<MarketListing> listings = db.searchMarket(userId, filter, cursor, pageSize);
+        StringBuilder text = new StringBuilder("🏪 Глобальный рынок игроков:\n");
+        text.append(describeMarketFilter(filter)).append("\n\n");
         List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        for (MarketEntry entry : marketEntries) {
-            Player player = db.getPlayerById(entry.playerId);
-            if (player == null) continue;
+        if (listings.isEmpty()) {
+            text.append(!filter.hasConditions() ? "На рынке нет игроков." : "Нет игроков по этому фильтру.");
+        }
+        for (MarketListing listing : listings.getItems()) {
+            Player player = listing.player;
+            text.append(String.format("🃏 %s (%s %s, %s, %d) - %d $\nПродавец: %s%s\n\n",
+                    player.getName(),
+                    player.getCategory().getName(),
+                    player.getCategory().getEmoji(),
+                    player.getPosition(),
+                    player.getRating(),
+                    listing.price,
+                    listing.sellerUsername,
+                    listing.ownedByViewer ? " (У вас уже есть)" : ""));
             rows.add(List.of(createButton(
-                    String.format("Купить %s (%d $)", player.getName(), entry.price),
-                    "trade_buy_" + entry.marketId + "_" + userId
+                    String.format("Купить %s (%d $)", player.getName(), listing.price),
+                    "trade_buy_" + listing.marketId + "_" + userId
             )));
         }
 
         // Кнопки пагинации
+        String findPrefix = "trade_find_" + filter.encode() + "_";
         List<InlineKeyboardButton> paginationRow = new ArrayList<>();
-        if (page > 1) {
-            paginationRow.add(createButton("⬅ Назад", "trade_market_page_" + (page - 1) + "_" + userId));
+        if (!listings.isEmpty() && listings.hasPrevious()) {
+            MarketListing first = listings.first();
+            paginationRow.add(createButton("⬅ Назад", findPrefix + PageCursor.before(first.price, first.marketId).encode() + "_" + userId));
         }
-        if (marketEntries.size() == pageSize) {
-            paginationRow.add(createButton("Вперёд ➡", "trade_market_page_" + (page + 1) + "_" + userId));
+        if (!listings.isEmpty() && listings.hasNext()) {
+            MarketListing last = listings.last();
+            paginationRow.add(createButton("Вперёд ➡", findPrefix + PageCursor.after(last.price, last.marketId).encode() + "_" + userId));
         }
         if (!paginationRow.isEmpty()) {
             rows.add(paginationRow);
         }
 
+        rows.add(List.of(
+                createButton("🔍 Фильтры", "trade_filter_" + filter.encode() + "_" + userId),
+                createButton(filter.isDescending() ? "Сначала дешёвые" : "Сначала дорогие",
+                        "trade_find_" + filter.withDescending(!filter.isDescending()).encode() + "_" + userId)
+        ));
         rows.add(List.of(createButton("Назад", "start_game_" + userId)));
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup(rows);
         editMessage(bot, chatId, messageId, text.toString(), keyboard);
     }
 
+    private void handleMarketFilters(long chatId, int messageId, long userId, MarketFilter filter) throws SQLException {
+        String text = "🔍 Фильтры рынка\n" + describeMarketFilter(filter) + "\n\nВыберите условие:";
+        List<List<InlineKeyboardButton>> rows = new ArrayList<>();
+
+        List<InlineKeyboardButton> categoryRow = new ArrayList<>();
+        for (PlayerCategory category : db.getPlayerCategories()) {
+            if (MARKET_CATEGORIES.contains(category.getName())) {
+                categoryRow.add(createButton(category.getName() + " " + category.getEmoji(),
+                        "trade_find_" + filter.withCategory(category.getId()).encode() + "_" + userId));
+            }
+        }
+        if (!categoryRow.isEmpty()) {
+            rows.add(categoryRow);
+        }
+
+        List<InlineKeyboardButton> positionRow = new ArrayList<>();
+        for (String position : MARKET_POSITIONS) {
+            positionRow.add(createButton(position, "trade_find_" + filter.withPosition(position).encode() + "_" + userId));
+        }
+        rows.add(positionRow);
+
+        List<InlineKeyboardButton> ratingRow = new ArrayList<>();
+        for (int band = 7; band <= 9; band++) {
+            ratingRow.add(createButton(ratingBandLabel(band), "trade_find_" + filter.withRatingBand(band).encode() + "_" + userId));
+        }
+        rows.add(ratingRow);
+
+        List<InlineKeyboardButton> priceRow = new ArrayList<>();
+        for (int maxPrice : MARKET_PRICE_CAPS) {
+            priceRow.add(createButton("до " + maxPrice + " $", "trade_find_" + filter.withMaxPrice(maxPrice).encode() + "_" + userId));
+        }
+        rows.add(priceRow);
+
+        rows.add(List.of(
+                createButton("Сбросить", "trade_find_" + MarketFilter.ALL.encode() + "_" + userId),
+                createButton("Назад", "trade_find_" + filter.encode() + "_" + userId)
+        ));
+        editMessage(bot, chatId, messageId, text, new InlineKeyboardMarkup(rows));
+    }
+
+    private String describeMarketFilter(MarketFilter filter) throws SQLException {
+        List<String> conditions = new ArrayList<>();
+        if (filter.getCategoryId() != 0) {
+            PlayerCategory category = db.getPlayerCategoryById(filter.getCategoryId());
+            conditions.add(category != null ? category.getName() : "категория " + filter.getCategoryId());
+        }
+        if (filter.getPosition() != null) {
+            conditions.add(filter.getPosition());
+        }
+        if (filter.getRatingBand() >= 0) {
+            conditions.add("рейтинг " + ratingBandLabel(filter.getRatingBand()));
+        }
+        if (filter.getMaxPrice() > 0) {
+            conditions.add("до " + filter.getMaxPrice() + " $");
+        }
+        String order = filter.isDescending() ? "сначала дорогие" : "сначала дешёвые";
+        return conditions.isEmpty() ? "Все игроки; " + order : "Фильтр: " + String.join(", ", conditions) + "; " + order;
+    }
+
+    private static String ratingBandLabel(int band) {
+        return (band * 10) + "–" + (band * 10 + 9);
+    }
+
     private void handleSellPlayers(long chatId, int messageId, long userId) throws SQLException {
         List<Player> userPlayers = db.getUserPlayers(userId).stream()
                 .filter(p -> List.of("Gold", "Diamond", "Legend", "GOAT").contains(p.getCategory().getName()))
@@ -777,34 +855,28 @@ public class CallbackHandler {
         sendMessage(bot, targetUserId, String.format("🎁 Вам подарили игрока %s от %s!", player.getName(), db.getUserById(userId).getUsername()), null);
     }
 
-    private void handleFriendsList(long chatId, int messageId, long userId, int page) throws SQLException {
+    private void handleFriendsList(long chatId, int messageId, long userId, PageCursor cursor) throws SQLException {
         int pageSize = 10; // 10 друзей на страницу
-        List<User> friends = db.getUserFriends(userId, page, pageSize);
+        Page<Friend> friends = db.getFriendsList(userId, cursor, pageSize);
         StringBuilder text = new StringBuilder("👥 Ваши друзья:\n\n");
         if (friends.isEmpty()) {
             text.append("У вас пока нет друзей.");
         } else {
-            for (User friend : friends) {
+            for (Friend friend : friends.getItems()) {
                 text.append(String.format("- %s\n", friend.getUsername()));
             }
         }
 
         List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        for (User friend : friends) {
+        for (Friend friend : friends.getItems()) {
             rows.add(List.of(createButton(
                     String.format("Удалить %s", friend.getUsername()),
-                    "friends_remove_" + friend.getId() + "_" + userId
+                    "friends_remove_" + friend.getUserId() + "_" + userId
             )));
         }
 
         // Кнопки пагинации
-        List<InlineKeyboardButton> paginationRow = new ArrayList<>();
-        if (page > 1) {
-            paginationRow.add(createButton("⬅ Назад", "friends_list_page_" + (page - 1) + "_" + userId));
-        }
-        if (friends.size() == pageSize) {
-            paginationRow.add(createButton("Вперёд ➡", "friends_list_page_" + (page + 1) + "_" + userId));
-        }
+        List<InlineKeyboardButton> paginationRow = Utils.createFriendsPaginationRow(friends, userId);
         if (!paginationRow.isEmpty()) {
             rows.add(paginationRow);
         }
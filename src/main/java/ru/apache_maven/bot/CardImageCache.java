@@ -0,0 +1,160 @@
+package ru.apache_maven.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.apache_maven.model.Player;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Кэш готовых изображений карточек. Ключ — ID игрока и версия макета {@link CardRenderer#TEMPLATE_VERSION};
+ * запись хранит отпечаток содержимого и используется, только пока он совпадает. Объём ограничен
+ * суммарным размером изображений; при превышении вытесняются давно не отправленные карточки.
+ * <p>
+ * Рисование идёт без блокировки кэша. Одну карточку изредка могут нарисовать два потока сразу,
+ * тогда в кэше остаётся последняя. {@link #prerender} заранее рисует каталог в несколько потоков,
+ * начиная с самых частых категорий, чтобы популярные карточки не рисовались при отправке.
+ */
+final class CardImageCache {
+    private static final Logger logger = LoggerFactory.getLogger(CardImageCache.class);
+
+    private final long maxBytes;
+    private final Renderer renderer;
+    // Порядок доступа: первой идёт давно не отправленная карточка
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    CardImageCache(long maxBytes, Renderer renderer) {
+        this.maxBytes = maxBytes;
+        this.renderer = renderer;
+    }
+
+    /**
+     * Ключ карточки для кэша file_id.
+     */
+    static String fileIdKey(Player player) {
+        return "card/" + player.getId();
+    }
+
+    /**
+     * Изображение карточки из кэша или нарисованное заново.
+     * @throws IOException если карточку не удалось нарисовать
+     */
+    byte[] get(Player player, String teamName, PhotoPack.Photo photo) throws IOException {
+        long key = key(player.getId());
+        String fingerprint = CardRenderer.fingerprint(player, teamName, photo);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.fingerprint.equals(fingerprint)) {
+                return entry.image;
+            }
+        }
+        byte[] image = renderer.render(player, teamName, photo);
+        put(key, new Entry(fingerprint, image));
+        return image;
+    }
+
+    /**
+     * Рисует карточки каталога в {@code threads} потоков, пока кэш не заполнится.
+     * Карточки идут от самых частых категорий (наибольший вес) к редким.
+     * @return future с числом нарисованных карточек
+     */
+    CompletableFuture<Integer> prerender(List<Player> players, TeamNames teams, PhotoPack photos, int threads) {
+        List<Player> ordered = new ArrayList<>(players);
+        ordered.sort(Comparator.comparingInt((Player player) -> player.getCategory() != null ? player.getCategory().getWeight() : 0)
+                .reversed().thenComparingInt(Player::getId));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), Utils.daemonThreadFactory("card-render"));
+        AtomicInteger rendered = new AtomicInteger();
+        long start = System.nanoTime();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>(ordered.size());
+        for (Player player : ordered) {
+            tasks.add(CompletableFuture.runAsync(() -> {
+                if (isFull()) {
+                    return;
+                }
+                PhotoPack.Photo photo = photos.get(player.getPhoto());
+                if (photo == null) {
+                    return;
+                }
+                try {
+                    get(player, teams.teamName(player), photo);
+                    rendered.incrementAndGet();
+                } catch (IOException | SQLException | RuntimeException e) {
+                    logger.warn("Не удалось заранее нарисовать карточку игрока {}: {}", player.getId(), e.getMessage());
+                }
+            }, pool));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0]))
+                .handle((ignored, e) -> {
+                    pool.shutdown();
+                    logger.info("Заранее нарисовано {} карточек из {} за {} мс, в кэше {} КБ",
+                            rendered.get(), ordered.size(), (System.nanoTime() - start) / 1_000_000, cachedBytes() / 1024);
+                    return rendered.get();
+                });
+    }
+
+    synchronized long cachedBytes() {
+        return cachedBytes;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private synchronized boolean isFull() {
+        return cachedBytes >= maxBytes;
+    }
+
+    private synchronized void put(long key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            cachedBytes -= previous.image.length;
+        }
+        cachedBytes += entry.image.length;
+        evict();
+    }
+
+    // Последняя нарисованная карточка остаётся, даже если одна превышает лимит
+    private void evict() {
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            cachedBytes -= it.next().getValue().image.length;
+            it.remove();
+        }
+    }
+
+    private static long key(int playerId) {
+        return ((long) CardRenderer.TEMPLATE_VERSION << 32) | (playerId & 0xFFFFFFFFL);
+    }
+
+    @FunctionalInterface
+    interface Renderer {
+        byte[] render(Player player, String teamName, PhotoPack.Photo photo) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface TeamNames {
+        String teamName(Player player) throws SQLException;
+    }
+
+    private static final class Entry {
+        final String fingerprint;
+        final byte[] image;
+
+        Entry(String fingerprint, byte[] image) {
+            this.fingerprint = fingerprint;
+            this.image = image;
+        }
+    }
+}
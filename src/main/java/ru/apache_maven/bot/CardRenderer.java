@@ -0,0 +1,209 @@
+package ru.apache_maven.bot;
+
+import ru.apache_maven.model.Player;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Locale;
+
+/**
+ * Рисует карточку игрока одним изображением: фото, рейтинг, позиция, рамка цвета категории,
+ * имя, команда и название категории. Результат — JPEG.
+ * <p>
+ * Без состояния и потокобезопасен. При изменении макета увеличивается {@link #TEMPLATE_VERSION}:
+ * версия входит в ключ кэша готовых карточек и в их отпечаток, поэтому старые изображения
+ * и их file_id перестают использоваться.
+ */
+final class CardRenderer {
+    static final int TEMPLATE_VERSION = 1;
+    static final int WIDTH = 600;
+    static final int HEIGHT = 840;
+
+    private static final int BORDER = 18;
+    private static final int PHOTO_TOP = 150;
+    private static final int PHOTO_HEIGHT = 460;
+    private static final float JPEG_QUALITY = 0.88f;
+
+    private static final Font RATING_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 96);
+    private static final Font POSITION_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 40);
+    private static final Font NAME_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 46);
+    private static final Font TEAM_FONT = new Font(Font.SANS_SERIF, Font.PLAIN, 30);
+    private static final Font CATEGORY_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 26);
+
+    static {
+        // Бот работает на сервере без дисплея
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+    }
+
+    private CardRenderer() {
+    }
+
+    /**
+     * Отпечаток содержимого карточки: совпадает, пока не изменились макет, данные игрока,
+     * название команды и само фото.
+     */
+    static String fingerprint(Player player, String teamName, PhotoPack.Photo photo) {
+        String source = TEMPLATE_VERSION + "\n" + player.getId() + "\n" + player.getName() + "\n" + player.getRating()
+                + "\n" + player.getPosition() + "\n" + categoryName(player) + "\n" + teamName + "\n" + photo.getContentHash();
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+
+    /**
+     * Рисует карточку и кодирует её в JPEG.
+     * @throws IOException если фото не декодируется
+     */
+    static byte[] render(Player player, String teamName, PhotoPack.Photo photo) throws IOException {
+        BufferedImage picture;
+        try (InputStream in = photo.openStream()) {
+            picture = ImageIO.read(in);
+        }
+        if (picture == null) {
+            throw new IOException("Не удалось декодировать фото " + photo.getName());
+        }
+
+        Color frame = frameColor(categoryName(player));
+        BufferedImage card = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = card.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+
+            // Фон и рамка цвета категории
+            g.setColor(new Color(18, 18, 24));
+            g.fillRect(0, 0, WIDTH, HEIGHT);
+            g.setPaint(new GradientPaint(0, 0, frame.brighter(), 0, HEIGHT, frame.darker().darker()));
+            g.fill(new RoundRectangle2D.Float(BORDER, BORDER, WIDTH - 2 * BORDER, HEIGHT - 2 * BORDER, 48, 48));
+
+            // Фото: заполняет область целиком; лишнее обрезается по бокам и снизу, чтобы не срезать голову
+            int photoWidth = WIDTH - 4 * BORDER;
+            double scale = Math.max((double) photoWidth / picture.getWidth(), (double) PHOTO_HEIGHT / picture.getHeight());
+            int scaledWidth = (int) Math.ceil(picture.getWidth() * scale);
+            int scaledHeight = (int) Math.ceil(picture.getHeight() * scale);
+            Graphics2D photoArea = (Graphics2D) g.create(2 * BORDER, PHOTO_TOP, photoWidth, PHOTO_HEIGHT);
+            try {
+                photoArea.drawImage(picture, (photoWidth - scaledWidth) / 2, 0, scaledWidth, scaledHeight, null);
+            } finally {
+                photoArea.dispose();
+            }
+            g.setColor(new Color(0, 0, 0, 90));
+            g.setStroke(new BasicStroke(4));
+            g.drawRect(2 * BORDER, PHOTO_TOP, photoWidth, PHOTO_HEIGHT);
+
+            // Рейтинг слева вверху, позиция справа
+            g.setColor(Color.WHITE);
+            g.setFont(RATING_FONT);
+            g.drawString(String.valueOf(player.getRating()), 3 * BORDER, PHOTO_TOP - 40);
+            g.setFont(POSITION_FONT);
+            drawRight(g, nullToEmpty(player.getPosition()).toUpperCase(Locale.ROOT), WIDTH - 3 * BORDER, PHOTO_TOP - 50);
+
+            // Имя, команда и категория внизу
+            int textTop = PHOTO_TOP + PHOTO_HEIGHT;
+            g.setFont(fit(g, NAME_FONT, nullToEmpty(player.getName()), WIDTH - 4 * BORDER));
+            drawCentered(g, nullToEmpty(player.getName()), textTop + 70);
+            g.setColor(new Color(255, 255, 255, 220));
+            g.setFont(fit(g, TEAM_FONT, nullToEmpty(teamName), WIDTH - 4 * BORDER));
+            drawCentered(g, nullToEmpty(teamName), textTop + 120);
+            g.setFont(CATEGORY_FONT);
+            drawCentered(g, categoryName(player).toUpperCase(Locale.ROOT), textTop + 185);
+        } finally {
+            g.dispose();
+        }
+        return encodeJpeg(card);
+    }
+
+    /**
+     * Цвет рамки по названию категории; неизвестные категории — серые.
+     */
+    private static Color frameColor(String category) {
+        switch (category.toLowerCase(Locale.ROOT)) {
+            case "bronze":
+                return new Color(150, 95, 50);
+            case "silver":
+                return new Color(150, 155, 165);
+            case "gold":
+                return new Color(200, 160, 40);
+            case "diamond":
+                return new Color(70, 170, 220);
+            case "season":
+                return new Color(60, 140, 90);
+            case "greatest":
+                return new Color(140, 60, 170);
+            case "legend":
+                return new Color(190, 60, 50);
+            case "goat":
+                return new Color(40, 40, 40);
+            case "toty":
+                return new Color(30, 60, 150);
+            default:
+                return new Color(100, 100, 110);
+        }
+    }
+
+    private static String categoryName(Player player) {
+        return player.getCategory() != null && player.getCategory().getName() != null ? player.getCategory().getName() : "";
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+
+    // Уменьшает шрифт, пока строка не поместится в ширину
+    private static Font fit(Graphics2D g, Font font, String text, int width) {
+        Font fitted = font;
+        while (fitted.getSize() > 12 && g.getFontMetrics(fitted).stringWidth(text) > width) {
+            fitted = fitted.deriveFont((float) fitted.getSize() - 2);
+        }
+        return fitted;
+    }
+
+    private static void drawCentered(Graphics2D g, String text, int baseline) {
+        FontMetrics metrics = g.getFontMetrics();
+        g.drawString(text, (WIDTH - metrics.stringWidth(text)) / 2, baseline);
+    }
+
+    private static void drawRight(Graphics2D g, String text, int right, int baseline) {
+        g.drawString(text, right - g.getFontMetrics().stringWidth(text), baseline);
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128 * 1024);
+        try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
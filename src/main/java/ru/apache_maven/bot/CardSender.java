@@ -0,0 +1,24 @@
+package ru.apache_maven.bot;
+
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.Message;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * То, что нужно отправке изображений карточек: очередь исходящих запросов, кэши file_id
+ * и готовых карточек и сами запросы к Telegram. Реализуется {@link TelegramBot}.
+ */
+interface CardSender {
+    OutboundQueue getOutbox();
+
+    PhotoIdCache getPhotoIds();
+
+    CardImageCache getCardImages();
+
+    CompletableFuture<Message> executeAsync(SendPhoto sendPhoto);
+
+    CompletableFuture<List<Message>> executeAsync(SendMediaGroup sendMediaGroup);
+}
@@ -7,6 +7,7 @@ import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import ru.apache_maven.db.DatabaseManager;
+import ru.apache_maven.db.Page;
 import ru.apache_maven.model.*;
 
 import java.sql.SQLException;
@@ -80,7 +81,7 @@ public class CommandHandler {
         }
 
         int dollars = db.getUserDollars(userId);
-        int userCardsCount = db.getUserPlayers(userId).size();
+        int userCardsCount = db.getOwnedPlayerCount(userId);
         int totalCardsCount = db.getTotalCardsCount();
         Player favoriteCard = db.getFavoriteCard(userId);
         String favoriteCardText = favoriteCard != null ? favoriteCard.getName() + " #" + favoriteCard.getId() : "Не выбрана";
@@ -309,35 +310,28 @@ public class CommandHandler {
             return;
         }
 
-        int page = 1; // Начальная страница
         int pageSize = 10; // 10 друзей на страницу
-        List<User> friends = db.getUserFriends(userId, page, pageSize);
+        Page<Friend> friends = db.getFriendsList(userId, null, pageSize);
         StringBuilder text = new StringBuilder("👥 Ваши друзья:\n\n");
         if (friends.isEmpty()) {
             text.append("У вас пока нет друзей. Ответьте на сообщение пользователя командой .футдрузья, чтобы добавить его.");
         } else {
-            for (User friend : friends) {
+            for (Friend friend : friends.getItems()) {
                 text.append(String.format("- %s\n", friend.getUsername()));
             }
         }
 
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> rows = new ArrayList<>();
-        for (User friend : friends) {
+        for (Friend friend : friends.getItems()) {
             rows.add(List.of(createButton(
                     String.format("Удалить %s", friend.getUsername()),
-                    "friends_remove_" + friend.getId() + "_" + userId
+                    "friends_remove_" + friend.getUserId() + "_" + userId
             )));
         }
 
         // Кнопки пагинации
-        List<InlineKeyboardButton> paginationRow = new ArrayList<>();
-        if (page > 1) {
-            paginationRow.add(createButton("⬅ Назад", "friends_list_page_" + (page - 1) + "_" + userId));
-        }
-        if (friends.size() == pageSize) {
-            paginationRow.add(createButton("Вперёд ➡", "friends_list_page_" + (page + 1) + "_" + userId));
-        }
+        List<InlineKeyboardButton> paginationRow = Utils.createFriendsPaginationRow(friends, userId);
         if (!paginationRow.isEmpty()) {
             rows.add(paginationRow);
         }
@@ -0,0 +1,127 @@
+package ru.apache_maven.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.apache_maven.db.DatabaseManager;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кулдауны спина и подарочного пака в памяти. Время последнего использования читается
+ * из БД один раз на пользователя, дальше проверка не обращается к базе. Когда кулдаун,
+ * начатый в этом процессе, истекает, таймер бота может прислать напоминание — только
+ * в личный чат и только при {@code -Dbot.cooldowns.remind=true}: в группах бот сам не пишет.
+ */
+public class CooldownTracker implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CooldownTracker.class);
+    // Пользователь ещё ни разу не использовал действие
+    private static final long NEVER = 0L;
+
+    private final TelegramBot bot;
+    private final HashedWheelTimer timer;
+    private final boolean remindEnabled;
+    private final ExecutorService notifier;
+    private final Cooldown spin;
+    private final Cooldown gift;
+
+    public CooldownTracker(TelegramBot bot, DatabaseManager db, HashedWheelTimer timer) {
+        this.bot = bot;
+        this.timer = timer;
+        this.remindEnabled = Boolean.parseBoolean(System.getProperty("bot.cooldowns.remind", "false"));
+        this.notifier = Executors.newSingleThreadExecutor(Utils.daemonThreadFactory("cooldown-notifier"));
+        this.spin = new Cooldown("спин", db::getLastSpin, "🎰 Новый спин уже доступен!");
+        this.gift = new Cooldown("подарок", db::getLastGift, "🎁 Подарочный пак снова доступен!");
+    }
+
+    public Cooldown getSpin() {
+        return spin;
+    }
+
+    public Cooldown getGift() {
+        return gift;
+    }
+
+    @Override
+    public void close() {
+        notifier.shutdownNow();
+    }
+
+    @FunctionalInterface
+    interface LastUseLoader {
+        Timestamp load(long userId) throws SQLException;
+    }
+
+    /**
+     * Кулдаун одного действия для всех пользователей.
+     */
+    public final class Cooldown {
+        private final String name;
+        private final LastUseLoader loader;
+        private final String reminderText;
+        private final Map<Long, Long> lastUse = new ConcurrentHashMap<>();
+        private final Map<Long, HashedWheelTimer.Timeout> reminders = new ConcurrentHashMap<>();
+
+        private Cooldown(String name, LastUseLoader loader, String reminderText) {
+            this.name = name;
+            this.loader = loader;
+            this.reminderText = reminderText;
+        }
+
+        /**
+         * Сколько миллисекунд осталось до конца кулдауна; 0, если действие доступно.
+         */
+        public long remaining(long userId, long cooldownMillis) throws SQLException {
+            Long last = lastUse.get(userId);
+            if (last == null) {
+                Timestamp stored = loader.load(userId);
+                last = stored != null ? stored.getTime() : NEVER;
+                Long raced = lastUse.putIfAbsent(userId, last);
+                if (raced != null) {
+                    last = raced;
+                }
+            }
+            if (last == NEVER) {
+                return 0;
+            }
+            return Math.max(0, last + cooldownMillis - System.currentTimeMillis());
+        }
+
+        /**
+         * Отмечает использование действия (время в БД записывает вызывающий код)
+         * и, если напоминания включены и чат личный, планирует напоминание по окончании кулдауна.
+         */
+        public void start(long userId, long chatId, long cooldownMillis) {
+            markUsed(userId);
+            // У личных чатов Telegram положительный id, у групп и каналов — отрицательный
+            if (!remindEnabled || chatId <= 0) {
+                return;
+            }
+            HashedWheelTimer.Timeout reminder = timer.schedule(
+                    () -> notifier.execute(() -> remind(userId, chatId)), cooldownMillis, TimeUnit.MILLISECONDS);
+            HashedWheelTimer.Timeout previous = reminders.put(userId, reminder);
+            if (previous != null) {
+                previous.cancel();
+            }
+        }
+
+        /**
+         * Отмечает использование действия без напоминания.
+         */
+        public void markUsed(long userId) {
+            lastUse.put(userId, System.currentTimeMillis());
+        }
+
+        private void remind(long userId, long chatId) {
+            // Новое напоминание, поставленное после этого, ещё не сработало и остаётся
+            reminders.computeIfPresent(userId, (id, timeout) -> timeout.isExpired() ? null : timeout);
+            logger.info("Кулдаун '{}' истёк для пользователя {}, отправляется напоминание", name, userId);
+            Utils.sendMessage(bot, chatId, reminderText);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package ru.apache_maven.bot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
-import org.telegram.telegrambots.meta.api.objects.Message;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 import ru.apache_maven.db.DatabaseManager;
@@ -15,16 +14,33 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class FootballPvP {
+/**
+ * PvP-матчи в чатах. Все действия с матчем одного чата выполняются последовательно
+ * в очереди этого чата (без блокировок и выделенных потоков), таймауты вызова и пауза
+ * между ударами планируются на таймере бота и возвращаются в ту же очередь.
+ */
+public class FootballPvP implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(FootballPvP.class);
+    private static final int DEFAULT_WORKER_THREADS = 4;
+    private static final long ROUND_DELAY_MS = 1_000;
+
     private final TelegramBot bot;
     private final DatabaseManager db;
+    private final ExecutorService workers;
+    private final KeyedSerialExecutor chats;
+    private final HashedWheelTimer timer;
     private final Map<Long, FootballPvPMatch> activeMatches = new ConcurrentHashMap<>();
-    private final Map<Long, Integer> challengeMessageIds = new ConcurrentHashMap<>();
-    private final Map<Long, Integer> matchMessageIds = new ConcurrentHashMap<>();
+    // id сообщений вызова и матча; запись появляется сразу при постановке в очередь отправки,
+    // id становится известен, когда сообщение отправлено
+    private final Map<Long, CompletableFuture<Integer>> challengeMessageIds = new ConcurrentHashMap<>();
+    private final Map<Long, CompletableFuture<Integer>> matchMessageIds = new ConcurrentHashMap<>();
 
     private static final String CALLBACK_PVP_ACCEPT = "pvp_accept_";
     private static final String CALLBACK_PVP_DECLINE = "pvp_decline_";
@@ -35,358 +51,399 @@ public class FootballPvP {
     public FootballPvP(TelegramBot bot, DatabaseManager db) {
         this.bot = bot;
         this.db = db;
+        this.workers = Executors.newFixedThreadPool(Integer.getInteger("bot.pvp.threads", DEFAULT_WORKER_THREADS),
+                Utils.daemonThreadFactory("pvp-worker"));
+        this.chats = new KeyedSerialExecutor(workers, 8);
+        this.timer = bot.getTimer();
     }
 
-    // Твой метод initiatePvP — без изменений
-    public void initiatePvP(long chatId, long challengerId, long opponentId) {
-        logger.info("Инициируется PvP: chatId={}, challengerId={}, opponentId={}", chatId, challengerId, opponentId);
+    // Действие над матчем чата: ставится в очередь чата и выполняется после предыдущих
+    private void inChat(long chatId, Runnable action) {
+        chats.execute(chatId, action);
+    }
+
+    // Отложенное действие над матчем чата; таймер бота только ставит действие в очередь чата
+    private HashedWheelTimer.Timeout inChatAfter(long chatId, long delayMs, Runnable action) {
+        return timer.schedule(() -> inChat(chatId, action), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
 
-        synchronized (getLock(chatId)) {
-            if (activeMatches.containsKey(chatId)) {
-                logger.warn("PvP-матч уже идёт в чате chatId={}", chatId);
-                Utils.sendMessage(bot, chatId, "В этом чате уже идёт PvP-матч!", null);
+    // Сообщение матча уходит через очередь бота. Ожидание его id записывается сразу, чтобы
+    // нажатие кнопки до завершения отправки видело матч; ошибка отменяет матч уже в очереди
+    // чата, если матч за это время не сменился
+    private void sendMatchMessage(long chatId, FootballPvPMatch match, SendMessage message,
+                                  Map<Long, CompletableFuture<Integer>> messageIds, String failureText) {
+        CompletableFuture<Integer> messageId = new CompletableFuture<>();
+        messageIds.put(chatId, messageId);
+        bot.getOutbox().execute(chatId, message, OutboundQueue.Priority.NORMAL).whenComplete((sent, e) -> inChat(chatId, () -> {
+            if (e != null) {
+                messageId.completeExceptionally(e);
+            } else {
+                messageId.complete(sent.getMessageId());
+            }
+            if (activeMatches.get(chatId) != match) {
+                return;
+            }
+            if (e != null) {
+                logger.error("Ошибка при отправке сообщения PvP в chatId={}: {}", chatId, e.getMessage(), e);
+                Utils.sendMessage(bot, chatId, failureText, null);
+                cancelMatch(chatId);
                 return;
             }
+            logger.info("Сообщение PvP отправлено в chatId={}, messageId={}", chatId, sent.getMessageId());
+        }));
+    }
+
+    public void initiatePvP(long chatId, long challengerId, long opponentId) {
+        inChat(chatId, () -> doInitiatePvP(chatId, challengerId, opponentId));
+    }
 
-            if (challengerId == opponentId) {
-                logger.warn("Игрок и оппонент совпадают: userId={}", challengerId);
-                Utils.sendMessage(bot, chatId, "Нельзя бросить вызов самому себе!", null);
+    private void doInitiatePvP(long chatId, long challengerId, long opponentId) {
+        logger.info("Инициируется PvP: chatId={}, challengerId={}, opponentId={}", chatId, challengerId, opponentId);
+
+        if (activeMatches.containsKey(chatId)) {
+            logger.warn("PvP-матч уже идёт в чате chatId={}", chatId);
+            Utils.sendMessage(bot, chatId, "В этом чате уже идёт PvP-матч!", null);
+            return;
+        }
+
+        if (challengerId == opponentId) {
+            logger.warn("Игрок и оппонент совпадают: userId={}", challengerId);
+            Utils.sendMessage(bot, chatId, "Нельзя бросить вызов самому себе!", null);
+            return;
+        }
+
+        try {
+            User challenger = db.getUserById(challengerId);
+            User opponent = db.getUserById(opponentId);
+            if (challenger == null || opponent == null) {
+                logger.error("Пользователь не найден: challengerId={}, opponentId={}", challengerId, opponentId);
+                Utils.sendMessage(bot, chatId, "Один из пользователей не найден.", null);
                 return;
             }
 
-            try {
-                User challenger = db.getUserById(challengerId);
-                User opponent = db.getUserById(opponentId);
-                if (challenger == null || opponent == null) {
-                    logger.error("Пользователь не найден: challengerId={}, opponentId={}", challengerId, opponentId);
-                    Utils.sendMessage(bot, chatId, "Один из пользователей не найден.", null);
-                    return;
-                }
+            FootballPvPMatch match = new FootballPvPMatch(challengerId, opponentId, challenger.getUsername(), opponent.getUsername(), chatId, 0, 0, 1, false);
+            activeMatches.put(chatId, match);
 
-                FootballPvPMatch match = new FootballPvPMatch(challengerId, opponentId, challenger.getUsername(), opponent.getUsername(), chatId, 0, 0, 1, false);
-                activeMatches.put(chatId, match);
+            String text = String.format("*%s*, вы вызваны на PvP-матч пользователем *%s*! Принять? ⏳ (60 сек)", opponent.getUsername(), challenger.getUsername());
+            InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
+            List<InlineKeyboardButton> row = new ArrayList<>();
 
-                String text = String.format("*%s*, вы вызваны на PvP-матч пользователем *%s*! Принять? ⏳ (60 сек)", opponent.getUsername(), challenger.getUsername());
-                InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
-                List<InlineKeyboardButton> row = new ArrayList<>();
+            InlineKeyboardButton acceptButton = new InlineKeyboardButton();
+            acceptButton.setText("✅ Принять");
+            acceptButton.setCallbackData(CALLBACK_PVP_ACCEPT + challengerId + "_" + opponentId);
 
-                InlineKeyboardButton acceptButton = new InlineKeyboardButton();
-                acceptButton.setText("✅ Принять");
-                acceptButton.setCallbackData(CALLBACK_PVP_ACCEPT + challengerId + "_" + opponentId);
+            InlineKeyboardButton declineButton = new InlineKeyboardButton();
+            declineButton.setText("❌ Отказать");
+            declineButton.setCallbackData(CALLBACK_PVP_DECLINE + challengerId + "_" + opponentId);
 
-                InlineKeyboardButton declineButton = new InlineKeyboardButton();
-                declineButton.setText("❌ Отказать");
-                declineButton.setCallbackData(CALLBACK_PVP_DECLINE + challengerId + "_" + opponentId);
+            row.add(acceptButton);
+            row.add(declineButton);
+            keyboard.setKeyboard(List.of(row));
 
-                row.add(acceptButton);
-                row.add(declineButton);
-                keyboard.setKeyboard(List.of(row));
+            SendMessage sendMessage = new SendMessage();
+            sendMessage.setChatId(String.valueOf(chatId));
+            sendMessage.setText(text);
+            sendMessage.setReplyMarkup(keyboard);
+            sendMessage.enableMarkdown(true);
 
-                SendMessage sendMessage = new SendMessage();
-                sendMessage.setChatId(String.valueOf(chatId));
-                sendMessage.setText(text);
-                sendMessage.setReplyMarkup(keyboard);
-                sendMessage.enableMarkdown(true);
+            logger.info("Отправляется сообщение с вызовом PvP в чат chatId={}", chatId);
+            sendMatchMessage(chatId, match, sendMessage, challengeMessageIds, "Ошибка при запуске PvP.");
 
-                logger.info("Отправляется сообщение с вызовом PvP в чат chatId={}", chatId);
-                Message sentMessage = bot.execute(sendMessage);
-                challengeMessageIds.put(chatId, sentMessage.getMessageId());
-                logger.info("Сообщение с вызовом PvP отправлено, challengeMessageId={}", sentMessage.getMessageId());
+            match.challengeTimeout = inChatAfter(chatId, CHALLENGE_TIMEOUT_MS, () -> expireChallenge(chatId, match));
+        } catch (SQLException e) {
+            logger.error("Ошибка SQL при инициации PvP: {}", e.getMessage(), e);
+            Utils.sendMessage(bot, chatId, "Ошибка при запуске PvP (база данных).", null);
+            cancelMatch(chatId);
+        } catch (Exception e) {
+            logger.error("Ошибка при отправке сообщения вызова PvP: {}", e.getMessage(), e);
+            Utils.sendMessage(bot, chatId, "Ошибка при запуске PvP.", null);
+            cancelMatch(chatId);
+        }
+    }
 
-                new Thread(() -> {
-                    try {
-                        Thread.sleep(CHALLENGE_TIMEOUT_MS);
-                        synchronized (getLock(chatId)) {
-                            FootballPvPMatch currentMatch = activeMatches.get(chatId);
-                            if (currentMatch != null && !currentMatch.isStarted.get()) {
-                                logger.info("Таймер истёк, матч не начат, отменяется для chatId={}", chatId);
-                                Utils.sendMessage(bot, chatId, "Вызов на PvP отклонён из-за таймаута.", null);
-                                cancelMatch(chatId);
-                            } else {
-                                logger.info("Матч уже начат или завершён для chatId={}, отмена не требуется", chatId);
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        logger.error("Таймер вызова прерван для chatId={}: {}", chatId, e.getMessage(), e);
-                    }
-                }).start();
-            } catch (SQLException e) {
-                logger.error("Ошибка SQL при инициации PvP: {}", e.getMessage(), e);
-                Utils.sendMessage(bot, chatId, "Ошибка при запуске PvP (база данных).", null);
-                cancelMatch(chatId);
-            } catch (Exception e) {
-                logger.error("Ошибка при отправке сообщения вызова PvP: {}", e.getMessage(), e);
-                Utils.sendMessage(bot, chatId, "Ошибка при запуске PvP.", null);
-                cancelMatch(chatId);
-            }
+    // Отмена вызова, который не приняли за отведённое время
+    private void expireChallenge(long chatId, FootballPvPMatch match) {
+        if (activeMatches.get(chatId) == match && !match.isStarted.get()) {
+            logger.info("Таймер истёк, матч не начат, отменяется для chatId={}", chatId);
+            Utils.sendMessage(bot, chatId, "Вызов на PvP отклонён из-за таймаута.", null);
+            cancelMatch(chatId);
+        } else {
+            logger.info("Матч уже начат или завершён для chatId={}, отмена не требуется", chatId);
         }
     }
 
-    // Новый метод для PvP с ИИ
+    // PvP с ИИ
     public void initiatePvPWithAI(long chatId, long userId, String difficulty) {
+        inChat(chatId, () -> doInitiatePvPWithAI(chatId, userId, difficulty));
+    }
+
+    private void doInitiatePvPWithAI(long chatId, long userId, String difficulty) {
         logger.info("Инициируется PvP с ИИ: chatId={}, userId={}, difficulty={}", chatId, userId, difficulty);
 
-        synchronized (getLock(chatId)) {
-            if (activeMatches.containsKey(chatId)) {
-                logger.warn("PvP-матч уже идёт в чате chatId={}", chatId);
-                Utils.sendMessage(bot, chatId, "В этом чате уже идёт PvP-матч!", null);
+        if (activeMatches.containsKey(chatId)) {
+            logger.warn("PvP-матч уже идёт в чате chatId={}", chatId);
+            Utils.sendMessage(bot, chatId, "В этом чате уже идёт PvP-матч!", null);
+            return;
+        }
+
+        try {
+            User user = db.getUserById(userId);
+            if (user == null) {
+                logger.error("Пользователь не найден: userId={}", userId);
+                Utils.sendMessage(bot, chatId, "Пользователь не найден.", null);
                 return;
             }
 
-            try {
-                User user = db.getUserById(userId);
-                if (user == null) {
-                    logger.error("Пользователь не найден: userId={}", userId);
-                    Utils.sendMessage(bot, chatId, "Пользователь не найден.", null);
-                    return;
-                }
+            // Загружаем состав ИИ из базы данных
+            Map<String, Player> aiSquadMap = db.getRandomAISquad(difficulty);
+            if (aiSquadMap == null || aiSquadMap.isEmpty()) {
+                logger.error("Не удалось загрузить состав ИИ для сложности {}", difficulty);
+                Utils.sendMessage(bot, chatId, "Не удалось сформировать состав ИИ.", null);
+                return;
+            }
 
-                // Загружаем состав ИИ из базы данных
-                Map<String, Player> aiSquadMap = db.getRandomAISquad(difficulty);
-                if (aiSquadMap == null || aiSquadMap.isEmpty()) {
-                    logger.error("Не удалось загрузить состав ИИ для сложности {}", difficulty);
-                    Utils.sendMessage(bot, chatId, "Не удалось сформировать состав ИИ.", null);
-                    return;
-                }
+            Squad aiSquad = Squad.forAI(db, aiSquadMap);
 
-                Squad aiSquad = new Squad(db, -1); // ID -1 для ИИ
-                aiSquad.setPlayer("GK", aiSquadMap.get("GK"));
-                aiSquad.setPlayer("CB1", aiSquadMap.get("CB1"));
-                aiSquad.setPlayer("CB2", aiSquadMap.get("CB2"));
-                aiSquad.setPlayer("CB3", aiSquadMap.get("CB3"));
-                aiSquad.setPlayer("MID1", aiSquadMap.get("MID1"));
-                aiSquad.setPlayer("MID2", aiSquadMap.get("MID2"));
-                aiSquad.setPlayer("MID3", aiSquadMap.get("MID3"));
-                aiSquad.setPlayer("FRW1", aiSquadMap.get("FRW1"));
-                aiSquad.setPlayer("FRW2", aiSquadMap.get("FRW2"));
-                aiSquad.setPlayer("FRW3", aiSquadMap.get("FRW3"));
-                aiSquad.setPlayer("EXTRA", aiSquadMap.get("EXTRA"));
-
-                FootballPvPMatch match = new FootballPvPMatch(userId, -1, user.getUsername(), "ИИ (" + difficulty + ")", chatId, 0, 0, 1, true);
-                match.aiSquad = aiSquad;
-                activeMatches.put(chatId, match);
-
-                startMatchWithAI(chatId); // Сразу начинаем матч с ИИ
-            } catch (SQLException e) {
-                logger.error("Ошибка SQL при инициации PvP с ИИ: {}", e.getMessage(), e);
-                Utils.sendMessage(bot, chatId, "Ошибка базы данных при запуске PvP с ИИ.", null);
-            } catch (Exception e) {
-                logger.error("Ошибка при запуске PvP с ИИ: {}", e.getMessage(), e);
-                Utils.sendMessage(bot, chatId, "Ошибка при запуске PvP с ИИ.", null);
-            }
+            FootballPvPMatch match = new FootballPvPMatch(userId, -1, user.getUsername(), "ИИ (" + difficulty + ")", chatId, 0, 0, 1, true);
+            match.aiSquad = aiSquad;
+            activeMatches.put(chatId, match);
+
+            startMatchWithAI(chatId); // Сразу начинаем матч с ИИ
+        } catch (SQLException e) {
+            logger.error("Ошибка SQL при инициации PvP с ИИ: {}", e.getMessage(), e);
+            Utils.sendMessage(bot, chatId, "Ошибка базы данных при запуске PvP с ИИ.", null);
+        } catch (Exception e) {
+            logger.error("Ошибка при запуске PvP с ИИ: {}", e.getMessage(), e);
+            Utils.sendMessage(bot, chatId, "Ошибка при запуске PvP с ИИ.", null);
         }
     }
 
-    // Твой метод startMatch — без изменений
     public void startMatch(long chatId) {
-        synchronized (getLock(chatId)) {
-            FootballPvPMatch match = activeMatches.get(chatId);
-            if (match == null || !challengeMessageIds.containsKey(chatId)) {
-                logger.error("Матч или сообщение вызова не найдены для chatId={}", chatId);
-                Utils.sendMessage(bot, chatId, "Матч не найден или вызов не инициализирован!", null);
-                return;
-            }
+        inChat(chatId, () -> doStartMatch(chatId));
+    }
 
-            try {
-                match.isStarted.set(true);
-                Squad challengerSquad = bot.getUserSquad(match.challengerId);
-                Squad opponentSquad = bot.getUserSquad(match.opponentId);
-                String text = String.format(
-                        "⚽ *Матч между %s и %s*\n" +
-                                "📊 %s: рейтинг %d, %s\n" +
-                                "📊 %s: рейтинг %d, %s\n" +
-                                "🔢 Счёт: 0 : 0\n" +
-                                "⏱ Раунд 1 начинается! 🚀",
-                        match.challengerUsername, match.opponentUsername,
-                        match.challengerUsername, challengerSquad.calculateRating(), challengerSquad.getChemistryInfo(),
-                        match.opponentUsername, opponentSquad.calculateRating(), opponentSquad.getChemistryInfo()
-                );
-                InlineKeyboardMarkup keyboard = createRoundButton(1, match.challengerId, match.opponentId);
-
-                SendMessage sendMessage = new SendMessage();
-                sendMessage.setChatId(String.valueOf(chatId));
-                sendMessage.setText(text);
-                sendMessage.setReplyMarkup(keyboard);
-                sendMessage.enableMarkdown(true);
-
-                logger.info("Запускается PvP-матч, отправляется начальное сообщение в chatId={}", chatId);
-                Message sentMessage = bot.execute(sendMessage);
-                matchMessageIds.put(chatId, sentMessage.getMessageId());
-                logger.info("PvP-матч начат, matchMessageId={}", sentMessage.getMessageId());
-            } catch (Exception e) {
-                logger.error("Ошибка при запуске PvP-матча для chatId={}: {}", chatId, e.getMessage(), e);
-                Utils.sendMessage(bot, chatId, "Ошибка при запуске матча.", null);
-                cancelMatch(chatId);
+    private void doStartMatch(long chatId) {
+        FootballPvPMatch match = activeMatches.get(chatId);
+        if (match == null || !challengeMessageIds.containsKey(chatId)) {
+            logger.error("Матч или сообщение вызова не найдены для chatId={}", chatId);
+            Utils.sendMessage(bot, chatId, "Матч не найден или вызов не инициализирован!", null);
+            return;
+        }
+
+        try {
+            match.isStarted.set(true);
+            if (match.challengeTimeout != null) {
+                match.challengeTimeout.cancel();
             }
+            Squad challengerSquad = bot.getUserSquad(match.challengerId);
+            Squad opponentSquad = bot.getUserSquad(match.opponentId);
+            String text = String.format(
+                    "⚽ *Матч между %s и %s*\n" +
+                            "📊 %s: рейтинг %d, %s\n" +
+                            "📊 %s: рейтинг %d, %s\n" +
+                            "🔢 Счёт: 0 : 0\n" +
+                            "⏱ Раунд 1 начинается! 🚀",
+                    match.challengerUsername, match.opponentUsername,
+                    match.challengerUsername, challengerSquad.calculateRating(), challengerSquad.getChemistryInfo(),
+                    match.opponentUsername, opponentSquad.calculateRating(), opponentSquad.getChemistryInfo()
+            );
+            InlineKeyboardMarkup keyboard = createRoundButton(1, match.challengerId, match.opponentId);
+
+            SendMessage sendMessage = new SendMessage();
+            sendMessage.setChatId(String.valueOf(chatId));
+            sendMessage.setText(text);
+            sendMessage.setReplyMarkup(keyboard);
+            sendMessage.enableMarkdown(true);
+
+            logger.info("Запускается PvP-матч, отправляется начальное сообщение в chatId={}", chatId);
+            sendMatchMessage(chatId, match, sendMessage, matchMessageIds, "Ошибка при запуске матча.");
+        } catch (Exception e) {
+            logger.error("Ошибка при запуске PvP-матча для chatId={}: {}", chatId, e.getMessage(), e);
+            Utils.sendMessage(bot, chatId, "Ошибка при запуске матча.", null);
+            cancelMatch(chatId);
         }
     }
 
-    // Новый метод для старта матча с ИИ
+    // Старт матча с ИИ; вызывается из очереди чата
     private void startMatchWithAI(long chatId) {
-        synchronized (getLock(chatId)) {
-            FootballPvPMatch match = activeMatches.get(chatId);
-            if (match == null) {
-                logger.error("Матч не найден для chatId={}", chatId);
-                Utils.sendMessage(bot, chatId, "Матч не найден!", null);
-                return;
-            }
+        FootballPvPMatch match = activeMatches.get(chatId);
+        if (match == null) {
+            logger.error("Матч не найден для chatId={}", chatId);
+            Utils.sendMessage(bot, chatId, "Матч не найден!", null);
+            return;
+        }
 
-            try {
-                match.isStarted.set(true);
-                Squad userSquad = bot.getUserSquad(match.challengerId);
-                Squad aiSquad = match.aiSquad;
-
-                String text = String.format(
-                        "⚽ *Матч между %s и %s*\n" +
-                                "📊 %s: рейтинг %d, %s\n" +
-                                "📊 %s: рейтинг %d\n" +
-                                "🔢 Счёт: 0 : 0\n" +
-                                "⏱ Раунд 1 начинается! 🚀",
-                        match.challengerUsername, match.opponentUsername,
-                        match.challengerUsername, userSquad.calculateRating(), userSquad.getChemistryInfo(),
-                        match.opponentUsername, aiSquad.calculateRating()
-                );
-                InlineKeyboardMarkup keyboard = createRoundButton(1, match.challengerId, -1); // -1 для ИИ
-
-                SendMessage sendMessage = new SendMessage();
-                sendMessage.setChatId(String.valueOf(chatId));
-                sendMessage.setText(text);
-                sendMessage.setReplyMarkup(keyboard);
-                sendMessage.enableMarkdown(true);
-
-                logger.info("Запускается PvP-матч с ИИ в chatId={}", chatId);
-                Message sentMessage = bot.execute(sendMessage);
-                matchMessageIds.put(chatId, sentMessage.getMessageId());
-                logger.info("PvP-матч с ИИ начат, matchMessageId={}", sentMessage.getMessageId());
-            } catch (Exception e) {
-                logger.error("Ошибка при запуске PvP-матча с ИИ для chatId={}: {}", chatId, e.getMessage(), e);
-                Utils.sendMessage(bot, chatId, "Ошибка при запуске матча с ИИ.", null);
-                cancelMatch(chatId);
-            }
+        try {
+            match.isStarted.set(true);
+            Squad userSquad = bot.getUserSquad(match.challengerId);
+            Squad aiSquad = match.aiSquad;
+
+            String text = String.format(
+                    "⚽ *Матч между %s и %s*\n" +
+                            "📊 %s: рейтинг %d, %s\n" +
+                            "📊 %s: рейтинг %d\n" +
+                            "🔢 Счёт: 0 : 0\n" +
+                            "⏱ Раунд 1 начинается! 🚀",
+                    match.challengerUsername, match.opponentUsername,
+                    match.challengerUsername, userSquad.calculateRating(), userSquad.getChemistryInfo(),
+                    match.opponentUsername, aiSquad.calculateRating()
+            );
+            InlineKeyboardMarkup keyboard = createRoundButton(1, match.challengerId, -1); // -1 для ИИ
+
+            SendMessage sendMessage = new SendMessage();
+            sendMessage.setChatId(String.valueOf(chatId));
+            sendMessage.setText(text);
+            sendMessage.setReplyMarkup(keyboard);
+            sendMessage.enableMarkdown(true);
+
+            logger.info("Запускается PvP-матч с ИИ в chatId={}", chatId);
+            sendMatchMessage(chatId, match, sendMessage, matchMessageIds, "Ошибка при запуске матча с ИИ.");
+        } catch (Exception e) {
+            logger.error("Ошибка при запуске PvP-матча с ИИ для chatId={}: {}", chatId, e.getMessage(), e);
+            Utils.sendMessage(bot, chatId, "Ошибка при запуске матча с ИИ.", null);
+            cancelMatch(chatId);
         }
     }
 
-    // Твой метод simulateRound, адаптированный для ИИ
+    // Розыгрыш раунда; результат показывается после паузы, не занимая поток
     public void simulateRound(long chatId, int round, long userId) {
-        synchronized (getLock(chatId)) {
-            FootballPvPMatch match = activeMatches.get(chatId);
-            Integer matchMessageId = matchMessageIds.get(chatId);
-            if (match == null || matchMessageId == null) {
-                logger.error("Матч или matchMessageId не найдены для chatId={}", chatId);
-                Utils.sendMessage(bot, chatId, "Матч не найден или уже завершён!", null);
-                return;
-            }
+        inChat(chatId, () -> doSimulateRound(chatId, round, userId));
+    }
 
-            if (!match.isAI && (userId != match.challengerId && userId != match.opponentId)) {
-                logger.warn("Пользователь {} пытался взаимодействовать с матчем, не предназначенным для него", userId);
-                return;
-            }
+    private void doSimulateRound(long chatId, int round, long userId) {
+        FootballPvPMatch match = activeMatches.get(chatId);
+        CompletableFuture<Integer> sentMessage = matchMessageIds.get(chatId);
+        if (match != null && sentMessage != null && !sentMessage.isDone()) {
+            // Сообщение матча ещё отправляется: раунд разыгрывается, когда станет известен его id
+            sentMessage.whenComplete((id, e) -> inChat(chatId, () -> doSimulateRound(chatId, round, userId)));
+            return;
+        }
+        Integer matchMessageId = sentMessage != null && !sentMessage.isCompletedExceptionally() ? sentMessage.join() : null;
+        if (match == null || matchMessageId == null) {
+            logger.error("Матч или matchMessageId не найдены для chatId={}", chatId);
+            Utils.sendMessage(bot, chatId, "Матч не найден или уже завершён!", null);
+            return;
+        }
 
-            if (match.isProcessing.get()) {
-                logger.info("Раунд {} для chatId={} уже обрабатывается, игнорируем повторный callback", round, chatId);
-                return;
-            }
+        if (!match.isAI && (userId != match.challengerId && userId != match.opponentId)) {
+            logger.warn("Пользователь {} пытался взаимодействовать с матчем, не предназначенным для него", userId);
+            return;
+        }
 
-            match.isProcessing.set(true);
-            try {
-                Squad squadA = bot.getUserSquad(match.challengerId);
-                Squad squadB = match.isAI ? match.aiSquad : bot.getUserSquad(match.opponentId);
-
-                double attackA = squadA.calculateTotalAttack();
-                double defenseA = squadA.calculateTotalDefense();
-                double attackB = squadB.calculateTotalAttack();
-                double defenseB = squadB.calculateTotalDefense();
-
-                StringBuilder matchText = new StringBuilder(String.format(
-                        "⚽ *Матч между %s и %s*\n" +
-                                "🔢 Счёт: *%d : %d*\n" +
-                                "%s\n%s\n",
-                        match.challengerUsername, match.opponentUsername,
-                        match.goalsA, match.goalsB,
-                        squadA.getChemistryInfo(), match.isAI ? "ИИ не имеет химии" : squadB.getChemistryInfo()
-                ));
-
-                matchText.append("⏱ Раунд ").append(round).append(":\n");
-
-                double chanceA = (attackA / (attackA + defenseB)) * 100;
-                boolean goalA = Math.random() * 100 < chanceA && match.goalsA < 10;
-                if (goalA) {
-                    match.goalsA++;
-                    matchText.append("⚽ ").append(match.challengerUsername).append(" забивает гол!\n");
-                } else {
-                    matchText.append("🧤 ").append(match.opponentUsername).append(" блокирует удар!\n");
-                }
+        if (match.isProcessing.get()) {
+            logger.info("Раунд {} для chatId={} уже обрабатывается, игнорируем повторный callback", round, chatId);
+            return;
+        }
 
-                double chanceB = (attackB / (attackB + defenseA)) * 100;
-                boolean goalB = Math.random() * 100 < chanceB && match.goalsB < 10;
-                if (goalB) {
-                    match.goalsB++;
-                    matchText.append("⚽ ").append(match.opponentUsername).append(" забивает гол!\n");
-                } else {
-                    matchText.append("🧤 ").append(match.challengerUsername).append(" блокирует удар!\n");
-                }
+        match.isProcessing.set(true);
+        try {
+            Squad squadA = bot.getUserSquad(match.challengerId);
+            Squad squadB = match.isAI ? match.aiSquad : bot.getUserSquad(match.opponentId);
+
+            double attackA = squadA.calculateTotalAttack();
+            double defenseA = squadA.calculateTotalDefense();
+            double attackB = squadB.calculateTotalAttack();
+            double defenseB = squadB.calculateTotalDefense();
+
+            StringBuilder matchText = new StringBuilder(String.format(
+                    "⚽ *Матч между %s и %s*\n" +
+                            "🔢 Счёт: *%d : %d*\n" +
+                            "%s\n%s\n",
+                    match.challengerUsername, match.opponentUsername,
+                    match.goalsA, match.goalsB,
+                    squadA.getChemistryInfo(), match.isAI ? "ИИ не имеет химии" : squadB.getChemistryInfo()
+            ));
+
+            matchText.append("⏱ Раунд ").append(round).append(":\n");
+
+            double chanceA = (attackA / (attackA + defenseB)) * 100;
+            boolean goalA = Math.random() * 100 < chanceA && match.goalsA < 10;
+            if (goalA) {
+                match.goalsA++;
+                matchText.append("⚽ ").append(match.challengerUsername).append(" забивает гол!\n");
+            } else {
+                matchText.append("🧤 ").append(match.opponentUsername).append(" блокирует удар!\n");
+            }
 
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    logger.error("Задержка прервана для chatId={}: {}", chatId, e.getMessage(), e);
-                    Thread.currentThread().interrupt();
-                    Utils.sendMessage(bot, chatId, "Матч прерван.", null);
-                    cancelMatch(chatId);
-                    return;
-                }
+            double chanceB = (attackB / (attackB + defenseA)) * 100;
+            boolean goalB = Math.random() * 100 < chanceB && match.goalsB < 10;
+            if (goalB) {
+                match.goalsB++;
+                matchText.append("⚽ ").append(match.opponentUsername).append(" забивает гол!\n");
+            } else {
+                matchText.append("🧤 ").append(match.challengerUsername).append(" блокирует удар!\n");
+            }
 
-                InlineKeyboardMarkup keyboard;
-                if (round >= 5 || match.goalsA >= 10 || match.goalsB >= 10) {
-                    matchText.append("\n🏆 Матч окончен!\n");
-                    if (match.goalsA > match.goalsB) {
-                        matchText.append(match.challengerUsername).append(" победил! 🎉");
+            inChatAfter(chatId, ROUND_DELAY_MS, () -> finishRound(chatId, round, match, matchMessageId, matchText));
+        } catch (RuntimeException e) {
+            match.isProcessing.set(false);
+            throw e;
+        }
+    }
+
+    // Итог раунда: награды при завершении матча и обновление сообщения. Матч, отменённый или
+    // заменённый за время задержки раунда, не награждается
+    private void finishRound(long chatId, int round, FootballPvPMatch match, int matchMessageId, StringBuilder matchText) {
+        try {
+            if (activeMatches.get(chatId) != match) {
+                logger.info("Раунд {} пропущен: PvP-матч в chatId={} уже завершён или отменён", round, chatId);
+                return;
+            }
+            InlineKeyboardMarkup keyboard;
+            if (round >= 5 || match.goalsA >= 10 || match.goalsB >= 10) {
+                matchText.append("\n🏆 Матч окончен!\n");
+                if (match.goalsA > match.goalsB) {
+                    matchText.append(match.challengerUsername).append(" победил! 🎉");
+                    try {
+                        db.addPoints(match.challengerId, 100);
+                        db.addDollars(match.challengerId, 50);
+                        matchText.append("\n🏅 Награда: 100 очков, 50 долларов");
+                    } catch (SQLException e) {
+                        logger.error("Не удалось наградить победителя userId={}: {}", match.challengerId, e.getMessage(), e);
+                    }
+                } else if (match.goalsB > match.goalsA) {
+                    matchText.append(match.opponentUsername).append(" победил! 🎉");
+                    if (!match.isAI) {
                         try {
-                            db.addPoints(match.challengerId, 100);
-                            db.addDollars(match.challengerId, 50);
+                            db.addPoints(match.opponentId, 100);
+                            db.addDollars(match.opponentId, 50);
                             matchText.append("\n🏅 Награда: 100 очков, 50 долларов");
                         } catch (SQLException e) {
-                            logger.error("Не удалось наградить победителя userId={}: {}", match.challengerId, e.getMessage(), e);
-                        }
-                    } else if (match.goalsB > match.goalsA) {
-                        matchText.append(match.opponentUsername).append(" победил! 🎉");
-                        if (!match.isAI) {
-                            try {
-                                db.addPoints(match.opponentId, 100);
-                                db.addDollars(match.opponentId, 50);
-                                matchText.append("\n🏅 Награда: 100 очков, 50 долларов");
-                            } catch (SQLException e) {
-                                logger.error("Не удалось наградить победителя userId={}: {}", match.opponentId, e.getMessage(), e);
-                            }
-                        }
-                    } else {
-                        matchText.append("Ничья! 🤝");
-                        try {
-                            db.addPoints(match.challengerId, 50);
-                            if (!match.isAI) db.addPoints(match.opponentId, 50);
-                            matchText.append("\n🏅 Награда: по 50 очков каждому");
-                        } catch (SQLException e) {
-                            logger.error("Не удалось наградить за ничью для chatId={}: {}", chatId, e.getMessage(), e);
+                            logger.error("Не удалось наградить победителя userId={}: {}", match.opponentId, e.getMessage(), e);
                         }
                     }
-                    keyboard = null;
-                    cancelMatch(chatId);
-                    logger.info("PvP-матч завершён для chatId={}", chatId);
                 } else {
-                    matchText.append("\nНажмите для следующего раунда:");
-                    keyboard = createRoundButton(round + 1, match.challengerId, match.isAI ? -1 : match.opponentId);
+                    matchText.append("Ничья! 🤝");
+                    try {
+                        db.addPoints(match.challengerId, 50);
+                        if (!match.isAI) db.addPoints(match.opponentId, 50);
+                        matchText.append("\n🏅 Награда: по 50 очков каждому");
+                    } catch (SQLException e) {
+                        logger.error("Не удалось наградить за ничью для chatId={}: {}", chatId, e.getMessage(), e);
+                    }
                 }
+                keyboard = null;
+                cancelMatch(chatId);
+                logger.info("PvP-матч завершён для chatId={}", chatId);
+            } else {
+                matchText.append("\nНажмите для следующего раунда:");
+                keyboard = createRoundButton(round + 1, match.challengerId, match.isAI ? -1 : match.opponentId);
+            }
 
-                try {
-                    logger.info("Обновляется сообщение матча для раунда {} в chatId={}, messageId={}", round, chatId, matchMessageId);
-                    Utils.editMessage(bot, chatId, matchMessageId, matchText.toString(), keyboard);
-                } catch (Exception e) {
-                    logger.error("Ошибка обновления сообщения матча для chatId={} с messageId={}: {}", chatId, matchMessageId, e.getMessage(), e);
-                    Utils.sendMessage(bot, chatId, "Ошибка при обновлении матча.", null);
-                }
-            } finally {
-                match.isProcessing.set(false);
+            try {
+                logger.info("Обновляется сообщение матча для раунда {} в chatId={}, messageId={}", round, chatId, matchMessageId);
+                Utils.editMessage(bot, chatId, matchMessageId, matchText.toString(), keyboard);
+            } catch (Exception e) {
+                logger.error("Ошибка обновления сообщения матча для chatId={} с messageId={}: {}", chatId, matchMessageId, e.getMessage(), e);
+                Utils.sendMessage(bot, chatId, "Ошибка при обновлении матча.", null);
             }
+        } finally {
+            match.isProcessing.set(false);
         }
     }
 
@@ -430,7 +487,11 @@ public class FootballPvP {
             sendMessage.setChatId(String.valueOf(chatId));
             sendMessage.setText(text.toString());
             sendMessage.enableMarkdown(true);
-            bot.execute(sendMessage);
+            bot.getOutbox().execute(chatId, sendMessage, OutboundQueue.Priority.NORMAL).whenComplete((sent, e) -> {
+                if (e != null) {
+                    logger.error("Ошибка при отправке сообщения состава для userId {}: {}", targetUserId, e.getMessage(), e);
+                }
+            });
         } catch (SQLException e) {
             logger.error("Ошибка SQL при отображении состава для userId {}: {}", targetUserId, e.getMessage(), e);
             Utils.sendMessage(bot, chatId, "Ошибка при получении состава.", null);
@@ -445,26 +506,18 @@ public class FootballPvP {
         return player != null ? player.getName() + " " + player.getCategory().getEmoji() + " " + player.getRating() : "Пусто";
     }
 
-    // Твой метод cancelMatch — без изменений
     public void cancelMatch(long chatId) {
-        synchronized (getLock(chatId)) {
-            logger.info("Отмена PvP-матча для chatId={}", chatId);
-            activeMatches.remove(chatId);
-            challengeMessageIds.remove(chatId);
-            matchMessageIds.remove(chatId);
+        logger.info("Отмена PvP-матча для chatId={}", chatId);
+        FootballPvPMatch match = activeMatches.remove(chatId);
+        if (match != null && match.challengeTimeout != null) {
+            match.challengeTimeout.cancel();
         }
+        challengeMessageIds.remove(chatId);
+        matchMessageIds.remove(chatId);
     }
 
-    // Твой метод getCurrentMatch — без изменений
     public FootballPvPMatch getCurrentMatch(long chatId) {
-        synchronized (getLock(chatId)) {
-            return activeMatches.get(chatId);
-        }
-    }
-
-    // Твой метод getLock — без изменений
-    private Object getLock(long chatId) {
-        return ("lock_" + chatId).intern();
+        return activeMatches.get(chatId);
     }
 
     // Класс FootballPvPMatch, дополненный для ИИ
@@ -481,6 +534,7 @@ public class FootballPvP {
         AtomicBoolean isProcessing = new AtomicBoolean(false);
         boolean isAI; // Флаг для матчей с ИИ
         Squad aiSquad; // Состав ИИ
+        volatile HashedWheelTimer.Timeout challengeTimeout; // Таймер ожидания ответа на вызов
 
         FootballPvPMatch(long challengerId, long opponentId, String challengerUsername, String opponentUsername, long chatId, int goalsA, int goalsB, int currentRound, boolean isAI) {
             this.challengerId = challengerId;
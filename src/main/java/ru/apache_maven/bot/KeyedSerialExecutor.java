@@ -0,0 +1,116 @@
+package ru.apache_maven.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Последовательное выполнение задач по ключу поверх общего пула: задачи одного ключа
+ * (пользователя, чата) выполняются строго по очереди, задачи разных ключей — параллельно.
+ * Очередь ключа существует, только пока в ней есть задачи, и не занимает поток в ожидании.
+ */
+final class KeyedSerialExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(KeyedSerialExecutor.class);
+
+    private final Executor workers;
+    private final int batchSize;
+    private final Map<Long, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * @param workers   общий пул, в котором выполняются задачи
+     * @param batchSize сколько задач одного ключа выполнить подряд, прежде чем уступить поток другим
+     */
+    KeyedSerialExecutor(Executor workers, int batchSize) {
+        this.workers = workers;
+        this.batchSize = batchSize;
+    }
+
+    void execute(long key, Runnable task) {
+        boolean[] start = new boolean[1];
+        Lane lane = lanes.compute(key, (k, existing) -> {
+            Lane target = existing != null ? existing : new Lane(k);
+            target.queue.add(task);
+            if (!target.running) {
+                target.running = true;
+                start[0] = true;
+            }
+            return target;
+        });
+        if (start[0]) {
+            try {
+                workers.execute(lane);
+            } catch (RejectedExecutionException e) {
+                // Пул остановлен: очередь ключа выполняется в текущем потоке, иначе флаг running
+                // остался бы поднятым и ключ больше никогда бы не выполнялся
+                logger.warn("Пул отклонил очередь ключа {}, задачи выполняются в вызывающем потоке", key);
+                lane.run();
+            }
+        }
+    }
+
+    /**
+     * Количество ключей, у которых сейчас есть задачи.
+     */
+    int activeKeys() {
+        return lanes.size();
+    }
+
+    /**
+     * Очередь одного ключа. Выполняется не более чем в одном потоке одновременно:
+     * флаг running и содержимое очереди меняются только внутри lanes.compute.
+     */
+    private final class Lane implements Runnable {
+        final long key;
+        final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        boolean running;
+
+        Lane(long key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            int done = 0;
+            Runnable task;
+            while ((task = pollOrRelease()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Ошибка задачи для ключа {}: {}", key, e.getMessage(), e);
+                }
+                if (++done % batchSize == 0 && yieldToOthers()) {
+                    return;
+                }
+            }
+        }
+
+        // Пачка выполнена: уступаем поток другим ключам и продолжаем позже.
+        // При остановке пула дочитываем очередь в текущем потоке.
+        private boolean yieldToOthers() {
+            try {
+                workers.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        private Runnable pollOrRelease() {
+            Runnable[] next = new Runnable[1];
+            lanes.computeIfPresent(key, (k, lane) -> {
+                next[0] = lane.queue.poll();
+                if (next[0] == null) {
+                    lane.running = false;
+                    return null;
+                }
+                return lane;
+            });
+            return next[0];
+        }
+    }
+}
@@ -0,0 +1,412 @@
+package ru.apache_maven.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.bots.AbsSender;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Очередь исходящих запросов к Telegram. Обработчики ставят запрос в очередь и сразу
+ * возвращаются; отдельный поток отправляет запросы через executeAsync, не дожидаясь ответа.
+ * <p>
+ * Запросы одного чата уходят строго по порядку и по одному (следующий — после ответа на
+ * предыдущий), между чатами первым уходит запрос с более высоким приоритетом, при равном
+ * приоритете — более ранний. Скорость ограничена общей корзиной токенов (~30 запросов в
+ * секунду на бота) и корзиной каждого чата (~1 в секунду; личным чатам разрешён короткий
+ * всплеск, группам — нет). На ответ 429 запрос возвращается в начало очереди чата, и чат
+ * ждёт retry_after секунд.
+ * <p>
+ * Число ждущих запросов ограничено: при переполнении запросы с приоритетом ниже
+ * {@link Priority#HIGH} отклоняются, их future завершается {@link RejectedExecutionException}.
+ */
+public class OutboundQueue implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class);
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long METRICS_INTERVAL_SECONDS = 60;
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
+    /**
+     * Приоритет запроса: ответы на нажатия кнопок и правки меню — {@link #HIGH},
+     * обычные сообщения — {@link #NORMAL}, рассылки — {@link #LOW}.
+     */
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    private final AbsSender sender;
+    private final double chatRate;
+    private final int chatBurst;
+    private final int maxPending;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final TokenBucket global;
+    private final Map<Long, Lane> lanes = new HashMap<>();
+    // Чаты, запрос которых можно отправить сейчас, по приоритету и порядку первого запроса
+    private final PriorityQueue<Lane> ready = new PriorityQueue<>(
+            Comparator.<Lane>comparingInt(lane -> lane.jobs.peek().priority.ordinal())
+                    .thenComparingLong(lane -> lane.jobs.peek().seq));
+    // Чаты, ждущие токена или окончания retry_after, по времени готовности
+    private final PriorityQueue<Lane> waiting = new PriorityQueue<>(Comparator.comparingLong(lane -> lane.readyAt));
+    private final Thread scheduler;
+    private final ScheduledExecutorService metricsReporter;
+    private long nextSeq;
+    private int pending;
+    private long nextSweep;
+    private boolean closed;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile long reportedCompleted;
+
+    /**
+     * @param sender     бот, через которого уходят запросы
+     * @param globalRate запросов в секунду на весь бот
+     * @param chatRate   запросов в секунду на один чат
+     * @param chatBurst  сколько запросов подряд можно отправить в личный чат
+     * @param maxPending максимум ждущих запросов
+     */
+    public OutboundQueue(AbsSender sender, double globalRate, double chatRate, int chatBurst, int maxPending) {
+        this.sender = sender;
+        this.chatRate = chatRate;
+        this.chatBurst = chatBurst;
+        this.maxPending = maxPending;
+        long now = System.nanoTime();
+        this.global = new TokenBucket(globalRate, Math.max(1, (int) globalRate), now);
+        this.nextSweep = now + SWEEP_INTERVAL_NANOS;
+        this.scheduler = Utils.daemonThreadFactory("outbox").newThread(this::run);
+        scheduler.start();
+        this.metricsReporter = Executors.newSingleThreadScheduledExecutor(Utils.daemonThreadFactory("outbox-metrics"));
+        metricsReporter.scheduleAtFixedRate(this::reportMetrics, METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Ставит метод Bot API в очередь чата.
+     * @return future с ответом Telegram
+     */
+    public <T extends Serializable> CompletableFuture<T> execute(long chatId, BotApiMethod<T> method, Priority priority) {
+        return submit(chatId, priority, () -> sender.executeAsync(method));
+    }
+
+    /**
+     * Ставит отправку фото в очередь чата.
+     */
+    public CompletableFuture<Message> execute(long chatId, SendPhoto photo, Priority priority) {
+        return submit(chatId, priority, () -> sender.executeAsync(photo));
+    }
+
+    <T> CompletableFuture<T> submit(long chatId, Priority priority, Call<T> call) {
+        Job<T> job;
+        lock.lock();
+        try {
+            job = new Job<>(call, priority, nextSeq++, System.nanoTime());
+            if (closed || (pending >= maxPending && priority != Priority.HIGH)) {
+                dropped.increment();
+                logger.warn("Запрос в чат {} отклонён: {}", chatId, closed ? "очередь закрыта" : "очередь заполнена (" + maxPending + ")");
+                job.future.completeExceptionally(new RejectedExecutionException("Очередь отправки недоступна"));
+                return job.future;
+            }
+            pending++;
+            submitted.increment();
+            Lane lane = lanes.computeIfAbsent(chatId, this::newLane);
+            lane.jobs.add(job);
+            schedule(lane, job.enqueuedAt);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        return job.future;
+    }
+
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSentCount() {
+        return sent.sum();
+    }
+
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Перестаёт принимать запросы и ждёт отправки уже принятых; оставшиеся после таймаута
+     * отклоняются.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MS);
+            long left;
+            while (pending > 0 && (left = deadline - System.nanoTime()) > 0) {
+                changed.awaitNanos(left);
+            }
+            if (pending > 0) {
+                logger.warn("Не все исходящие запросы отправлены к остановке: осталось {}", pending);
+            }
+            changed.signalAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        scheduler.interrupt();
+        try {
+            scheduler.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejectQueued();
+        metricsReporter.shutdownNow();
+        reportMetrics();
+    }
+
+    private Lane newLane(long chatId) {
+        // Отрицательные id — группы и каналы: там всплески не допускаются
+        int burst = chatId < 0 ? 1 : chatBurst;
+        return new Lane(new TokenBucket(chatRate, burst, System.nanoTime()));
+    }
+
+    // Ставит чат в ready или waiting, если у него есть запрос и ничего не отправляется
+    private void schedule(Lane lane, long now) {
+        if (lane.queued || lane.inFlight || lane.jobs.isEmpty()) {
+            return;
+        }
+        long delay = Math.max(lane.blockedUntil - now, lane.bucket.delayNanos(now));
+        lane.queued = true;
+        if (delay > 0) {
+            lane.readyAt = now + delay;
+            waiting.add(lane);
+        } else {
+            ready.add(lane);
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Lane lane;
+            Job<?> job;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (closed && pending == 0) {
+                    return;
+                }
+                while (!waiting.isEmpty() && waiting.peek().readyAt - now <= 0) {
+                    Lane due = waiting.poll();
+                    due.queued = false;
+                    schedule(due, now);
+                }
+                if (now - nextSweep >= 0) {
+                    sweep(now);
+                }
+                if (ready.isEmpty()) {
+                    if (waiting.isEmpty()) {
+                        changed.await();
+                    } else {
+                        changed.awaitNanos(waiting.peek().readyAt - now);
+                    }
+                    continue;
+                }
+                long globalDelay = global.delayNanos(now);
+                if (globalDelay > 0) {
+                    changed.awaitNanos(globalDelay);
+                    continue;
+                }
+                lane = ready.poll();
+                lane.queued = false;
+                if (!lane.bucket.tryAcquire(now)) {
+                    schedule(lane, now);
+                    continue;
+                }
+                global.tryAcquire(now);
+                job = lane.jobs.poll();
+                lane.inFlight = true;
+            } catch (InterruptedException e) {
+                if (closed) {
+                    return;
+                }
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            start(lane, job);
+        }
+    }
+
+    private <T> void start(Lane lane, Job<T> job) {
+        job.attempts++;
+        CompletableFuture<T> call;
+        try {
+            call = job.call.start();
+        } catch (TelegramApiException | RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        call.whenComplete((result, error) -> finish(lane, job, result, error));
+    }
+
+    private <T> void finish(Lane lane, Job<T> job, T result, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        int retryAfter = retryAfterSeconds(cause);
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            lane.inFlight = false;
+            if (retryAfter > 0 && job.attempts < MAX_ATTEMPTS && !closed) {
+                rateLimited.increment();
+                lane.blockedUntil = now + TimeUnit.SECONDS.toNanos(retryAfter);
+                lane.jobs.addFirst(job);
+                schedule(lane, now);
+                changed.signalAll();
+                logger.warn("Telegram ограничил отправку (429), повтор через {} с", retryAfter);
+                return;
+            }
+            pending--;
+            schedule(lane, now);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long latency = System.nanoTime() - job.enqueuedAt;
+        latencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        if (cause == null) {
+            sent.increment();
+            job.future.complete(result);
+        } else {
+            failed.increment();
+            job.future.completeExceptionally(cause);
+        }
+    }
+
+    private static int retryAfterSeconds(Throwable error) {
+        if (error instanceof TelegramApiRequestException request
+                && request.getErrorCode() != null && request.getErrorCode() == 429) {
+            Integer retryAfter = request.getParameters() != null ? request.getParameters().getRetryAfter() : null;
+            return retryAfter != null && retryAfter > 0 ? retryAfter : 1;
+        }
+        return 0;
+    }
+
+    // Пустые чаты с полной корзиной удаляются: новая корзина будет такой же
+    private void sweep(long now) {
+        nextSweep = now + SWEEP_INTERVAL_NANOS;
+        Iterator<Lane> it = lanes.values().iterator();
+        while (it.hasNext()) {
+            Lane lane = it.next();
+            if (lane.jobs.isEmpty() && !lane.inFlight && !lane.queued
+                    && now - lane.blockedUntil >= 0 && lane.bucket.isFull(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    private void rejectQueued() {
+        lock.lock();
+        try {
+            for (Lane lane : lanes.values()) {
+                Job<?> job;
+                while ((job = lane.jobs.poll()) != null) {
+                    pending--;
+                    dropped.increment();
+                    job.future.completeExceptionally(new RejectedExecutionException("Очередь отправки закрыта"));
+                }
+            }
+            ready.clear();
+            waiting.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reportMetrics() {
+        long completed = sent.sum() + failed.sum();
+        long delta = completed - reportedCompleted;
+        int depth = getQueueDepth();
+        if (delta == 0 && depth == 0) {
+            return;
+        }
+        reportedCompleted = completed;
+        long total = Math.max(completed, 1);
+        logger.info("Исходящие: в очереди {}, принято {}, отправлено {}, ошибок {}, отклонено {}, ответов 429 {}, "
+                        + "задержка в среднем {} мс, максимум {} мс",
+                depth, submitted.sum(), sent.sum(), failed.sum(), dropped.sum(), rateLimited.sum(),
+                TimeUnit.NANOSECONDS.toMillis(latencyNanos.sum() / total),
+                TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.getAndSet(0)));
+    }
+
+    @FunctionalInterface
+    interface Call<T> {
+        CompletableFuture<T> start() throws TelegramApiException;
+    }
+
+    private static final class Job<T> {
+        final Call<T> call;
+        final Priority priority;
+        final long seq;
+        final long enqueuedAt;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        int attempts;
+
+        Job(Call<T> call, Priority priority, long seq, long enqueuedAt) {
+            this.call = call;
+            this.priority = priority;
+            this.seq = seq;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * Очередь одного чата. Все поля меняются под блокировкой очереди отправки.
+     */
+    private static final class Lane {
+        final ArrayDeque<Job<?>> jobs = new ArrayDeque<>();
+        final TokenBucket bucket;
+        boolean inFlight;
+        // Чат лежит в ready или waiting
+        boolean queued;
+        long readyAt;
+        long blockedUntil;
+
+        Lane(TokenBucket bucket) {
+            this.bucket = bucket;
+            this.blockedUntil = System.nanoTime();
+        }
+    }
+}
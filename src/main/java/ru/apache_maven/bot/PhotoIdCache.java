@@ -0,0 +1,119 @@
+package ru.apache_maven.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
+import ru.apache_maven.db.DatabaseManager;
+import ru.apache_maven.db.PhotoFileId;
+
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * file_id фото игроков, уже загруженных в Telegram. Первая отправка фото загружает файл,
+ * file_id из ответа сохраняется в таблицу photo_file_ids, и дальше карточка ссылается на него
+ * без повторной загрузки.
+ * <p>
+ * Ключ — готовая карточка ({@link CardImageCache#fileIdKey}) или имя фото в {@link PhotoPack};
+ * запись действительна, пока отпечаток содержимого совпадает с сохранённым, поэтому изменённая
+ * карточка или заменённое фото загрузятся заново.
+ */
+final class PhotoIdCache {
+    private static final Logger logger = LoggerFactory.getLogger(PhotoIdCache.class);
+
+    private final Store store;
+    private final Map<String, PhotoFileId> ids = new ConcurrentHashMap<>();
+
+    PhotoIdCache(DatabaseManager db) {
+        this(new Store() {
+            @Override
+            public List<PhotoFileId> load() throws SQLException {
+                return db.getPhotoFileIds();
+            }
+
+            @Override
+            public void save(PhotoFileId id) throws SQLException {
+                db.savePhotoFileId(id);
+            }
+
+            @Override
+            public void delete(String photo) throws SQLException {
+                db.deletePhotoFileId(photo);
+            }
+        });
+    }
+
+    PhotoIdCache(Store store) {
+        this.store = store;
+        try {
+            for (PhotoFileId id : store.load()) {
+                ids.put(id.getPhoto(), id);
+            }
+            logger.info("Загружено {} file_id фото игроков", ids.size());
+        } catch (SQLException e) {
+            // Без сохранённых file_id фото просто загрузятся заново
+            logger.warn("Не удалось загрузить file_id фото: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * file_id изображения с тем же содержимым или null, если фото нужно загрузить.
+     */
+    String fileId(String photo, String contentHash) {
+        PhotoFileId id = ids.get(photo);
+        return id != null && id.getContentHash().equals(contentHash) ? id.getFileId() : null;
+    }
+
+    /**
+     * Запоминает file_id самого крупного размера из ответа на загрузку фото.
+     */
+    void remember(String photo, String contentHash, Message sent) {
+        if (sent == null || sent.getPhoto() == null || sent.getPhoto().isEmpty()) {
+            return;
+        }
+        PhotoSize largest = sent.getPhoto().stream()
+                .max(Comparator.comparingLong(size -> (long) size.getWidth() * size.getHeight()))
+                .orElseThrow();
+        PhotoFileId id = new PhotoFileId(photo, contentHash, largest.getFileId());
+        PhotoFileId previous = ids.put(photo, id);
+        if (previous != null && previous.getFileId().equals(id.getFileId())
+                && previous.getContentHash().equals(contentHash)) {
+            return;
+        }
+        try {
+            store.save(id);
+        } catch (SQLException e) {
+            logger.warn("Не удалось сохранить file_id фото {}: {}", photo, e.getMessage());
+        }
+    }
+
+    /**
+     * Забывает file_id, который Telegram отклонил; следующая отправка загрузит файл.
+     */
+    void forget(String photo, String fileId) {
+        PhotoFileId id = ids.get(photo);
+        if (id == null || !id.getFileId().equals(fileId) || !ids.remove(photo, id)) {
+            return;
+        }
+        try {
+            store.delete(photo);
+        } catch (SQLException e) {
+            logger.warn("Не удалось удалить file_id фото {}: {}", photo, e.getMessage());
+        }
+    }
+
+    /**
+     * Хранилище file_id — таблица photo_file_ids.
+     */
+    interface Store {
+        List<PhotoFileId> load() throws SQLException;
+
+        void save(PhotoFileId id) throws SQLException;
+
+        void delete(String photo) throws SQLException;
+    }
+}
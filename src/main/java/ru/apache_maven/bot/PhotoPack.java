@@ -0,0 +1,358 @@
+package ru.apache_maven.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Фото карточек, упакованные в один файл. Файл отображается в память при запуске, фото
+ * отдаются срезами отображённого буфера без копирования и без обращений к диску и classpath.
+ * <p>
+ * Формат: магическое число {@code FCPH}, версия, число записей, затем оглавление — для каждой
+ * записи имя (длина и UTF-8), SHA-256 содержимого, смещение и длина данных, — и сами данные.
+ * Пак собирается из каталога фото методом {@link #main} на фазе prepare-package и кладётся в jar
+ * ресурсом {@code resources/photos.pack}; при запуске из исходников он пересобирается, если
+ * отсутствует или старше файлов каталога.
+ * <p>
+ * Фото, которого нет в паке, ищется среди изображений в classpath
+ * ({@link #withClasspathFallback}) — они по-прежнему входят в jar.
+ */
+public final class PhotoPack {
+    private static final Logger logger = LoggerFactory.getLogger(PhotoPack.class);
+    private static final int MAGIC = 0x46435048; // "FCPH"
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    static final PhotoPack EMPTY = new PhotoPack(Collections.emptyMap());
+
+    private final Map<String, Photo> photos;
+    // Каталог изображений в classpath для фото, которых нет в паке; null — без запасного пути
+    private final ClassLoader fallbackLoader;
+    private final String fallbackDir;
+    private final Map<String, Photo> fallbackPhotos = new ConcurrentHashMap<>();
+
+    private PhotoPack(Map<String, Photo> photos) {
+        this(photos, null, null);
+    }
+
+    private PhotoPack(Map<String, Photo> photos, ClassLoader fallbackLoader, String fallbackDir) {
+        this.photos = photos;
+        this.fallbackLoader = fallbackLoader;
+        this.fallbackDir = fallbackDir;
+    }
+
+    /**
+     * Сборка пака: {@code PhotoPack <каталог фото> <файл пака>}.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Использование: PhotoPack <каталог фото> <файл пака>");
+            System.exit(2);
+        }
+        int count = write(Path.of(args[0]), Path.of(args[1]));
+        logger.info("Собран пак фото {}: {} файлов", args[1], count);
+    }
+
+    /**
+     * Открывает пак, предварительно пересобрав его из {@code sourceDir}, если каталог есть,
+     * а пак отсутствует или старше какого-либо файла каталога.
+     */
+    static PhotoPack openOrBuild(Path pack, Path sourceDir) throws IOException {
+        if (Files.isDirectory(sourceDir) && isStale(pack, sourceDir)) {
+            int count = write(sourceDir, pack);
+            logger.info("Пак фото {} пересобран из {}: {} файлов", pack, sourceDir, count);
+        }
+        return open(pack);
+    }
+
+    /**
+     * Отображает пак в память.
+     * @throws IOException если файла нет или формат неверный
+     */
+    static PhotoPack open(Path pack) throws IOException {
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(pack, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Пак фото больше 2 ГБ: " + pack);
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return parse(data, pack.toString());
+    }
+
+    /**
+     * Читает пак из ресурса classpath (например, из jar) в память вне кучи.
+     * @return пак или null, если ресурса нет
+     * @throws IOException если формат неверный
+     */
+    static PhotoPack openResource(ClassLoader loader, String resource) throws IOException {
+        byte[] content;
+        try (InputStream in = loader.getResourceAsStream(resource)) {
+            if (in == null) {
+                return null;
+            }
+            content = in.readAllBytes();
+        }
+        ByteBuffer data = ByteBuffer.allocateDirect(content.length);
+        data.put(content).flip();
+        return parse(data, "classpath:" + resource);
+    }
+
+    /**
+     * Тот же пак, но фото, которых в нём нет, берутся из каталога {@code dir} в classpath.
+     */
+    PhotoPack withClasspathFallback(ClassLoader loader, String dir) {
+        return new PhotoPack(photos, loader, dir);
+    }
+
+    private static PhotoPack parse(ByteBuffer data, String pack) throws IOException {
+        try {
+            if (data.getInt() != MAGIC) {
+                throw new IOException("Файл не является паком фото: " + pack);
+            }
+            int version = data.getInt();
+            if (version != VERSION) {
+                throw new IOException("Неподдерживаемая версия пака фото " + version + ": " + pack);
+            }
+            int count = data.getInt();
+            Map<String, Photo> photos = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[data.getShort() & 0xFFFF];
+                data.get(name);
+                byte[] hash = new byte[HASH_LENGTH];
+                data.get(hash);
+                int offset = data.getInt();
+                int length = data.getInt();
+                String key = new String(name, StandardCharsets.UTF_8);
+                photos.put(key, new Photo(key, HexFormat.of().formatHex(hash), data.slice(offset, length)));
+            }
+            return new PhotoPack(photos);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException / IndexOutOfBoundsException на обрезанном файле
+            throw new IOException("Повреждённый пак фото " + pack + ": " + e, e);
+        }
+    }
+
+    /**
+     * Собирает пак из файлов каталога (имена — пути относительно каталога через '/').
+     * Пишет во временный файл и переименовывает, чтобы отображённый старый пак не менялся.
+     * @return число упакованных файлов
+     */
+    static int write(Path sourceDir, Path pack) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(sourceDir)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+        List<byte[]> names = new ArrayList<>(files.size());
+        int headerSize = 12;
+        for (Path file : files) {
+            byte[] name = sourceDir.relativize(file).toString().replace('\\', '/').getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new IOException("Слишком длинное имя фото: " + file);
+            }
+            names.add(name);
+            headerSize += 2 + name.length + HASH_LENGTH + 8;
+        }
+
+        Path parent = pack.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, pack.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(headerSize);
+                header.putInt(MAGIC).putInt(VERSION).putInt(files.size());
+                long offset = headerSize;
+                out.position(offset);
+                for (int i = 0; i < files.size(); i++) {
+                    byte[] content = Files.readAllBytes(files.get(i));
+                    if (offset + content.length > Integer.MAX_VALUE) {
+                        throw new IOException("Пак фото больше 2 ГБ");
+                    }
+                    header.putShort((short) names.get(i).length).put(names.get(i))
+                            .put(sha256(content)).putInt((int) offset).putInt(content.length);
+                    writeFully(out, ByteBuffer.wrap(content));
+                    offset += content.length;
+                }
+                header.flip();
+                out.position(0);
+                writeFully(out, header);
+                out.force(true);
+            }
+            Files.move(tmp, pack, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return files.size();
+    }
+
+    /**
+     * Фото по значению players.photo. Значения с каталогом (например,
+     * {@code resources/photos/Messi.png}) ищутся и по имени файла.
+     * @return фото или null, если его нет в паке
+     */
+    Photo get(String photo) {
+        if (photo == null) {
+            return null;
+        }
+        Photo found = photos.get(photo);
+        int slash = photo.lastIndexOf('/');
+        if (found == null && slash >= 0) {
+            found = photos.get(photo.substring(slash + 1));
+        }
+        if (found == null && fallbackLoader != null) {
+            found = fallbackPhotos.computeIfAbsent(photo.substring(slash + 1), this::loadFallback);
+        }
+        return found;
+    }
+
+    // null не кэшируется: изображение, которого нет, ищется при каждом обращении
+    private Photo loadFallback(String name) {
+        String resource = fallbackDir + "/" + name;
+        try (InputStream in = fallbackLoader.getResourceAsStream(resource)) {
+            if (in == null) {
+                return null;
+            }
+            byte[] content = in.readAllBytes();
+            logger.warn("Фото {} нет в паке, используется изображение из classpath {}", name, resource);
+            return new Photo(name, HexFormat.of().formatHex(sha256(content)), ByteBuffer.wrap(content));
+        } catch (IOException e) {
+            logger.warn("Не удалось прочитать изображение {} из classpath: {}", resource, e.getMessage());
+            return null;
+        }
+    }
+
+    int size() {
+        return photos.size();
+    }
+
+    private static boolean isStale(Path pack, Path sourceDir) throws IOException {
+        if (!Files.exists(pack)) {
+            return true;
+        }
+        long packModified = Files.getLastModifiedTime(pack).toMillis();
+        try (Stream<Path> walk = Files.walk(sourceDir)) {
+            return walk.anyMatch(file -> {
+                try {
+                    return Files.getLastModifiedTime(file).toMillis() > packModified;
+                } catch (IOException e) {
+                    return true;
+                }
+            });
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 недоступен", e);
+        }
+    }
+
+    /**
+     * Фото из пака: имя, SHA-256 содержимого и срез отображённого файла.
+     */
+    static final class Photo {
+        private final String name;
+        private final String contentHash;
+        private final ByteBuffer data;
+
+        Photo(String name, String contentHash, ByteBuffer data) {
+            this.name = name;
+            this.contentHash = contentHash;
+            this.data = data;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return SHA-256 содержимого в шестнадцатеричном виде
+         */
+        String getContentHash() {
+            return contentHash;
+        }
+
+        int getLength() {
+            return data.limit();
+        }
+
+        /**
+         * Собственный срез данных фото: позиция и граница не разделяются с другими читателями.
+         */
+        ByteBuffer slice() {
+            return data.slice();
+        }
+
+        /**
+         * Поток для загрузки фото в Telegram; каждый вызов читает данные с начала.
+         */
+        InputStream openStream() {
+            return new ByteBufferInputStream(slice());
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
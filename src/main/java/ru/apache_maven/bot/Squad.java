@@ -20,6 +20,8 @@ public class Squad {
     private final long userId;
     private String name;
 
+    private static final long AI_USER_ID = -1;
+
     private static final List<String> POSITIONS = Arrays.asList(
             "GK", "CB1", "CB2", "CB3", "MID1", "MID2", "MID3", "FRW1", "FRW2", "FRW3", "EXTRA"
     );
@@ -30,17 +32,26 @@ public class Squad {
     private static final int MIN_PLAYERS_FOR_CHEMISTRY = 6; // Минимальное количество игроков для частичного бонуса
 
     public Squad(DatabaseManager db, long userId) throws SQLException {
-        this.db = db;
-        this.userId = userId;
-        loadSquadFromDatabase();
-        validateSquad();
+        this(db, userId, db.getUserSquad(userId));
     }
 
-    private void loadSquadFromDatabase() throws SQLException {
-        Map<String, Player> savedSquad = db.getUserSquad(userId);
+    /**
+     * Состав из уже загруженных позиций (например, из {@link DatabaseManager#getUserSquad}) без повторного запроса.
+     */
+    public Squad(DatabaseManager db, long userId, Map<String, Player> savedSquad) throws SQLException {
+        this.db = db;
+        this.userId = userId;
         for (String position : POSITIONS) {
             players.put(position, savedSquad.getOrDefault(position, null));
         }
+        validateSquad();
+    }
+
+    /**
+     * Состав ИИ: не привязан к пользователю и не сохраняется в базе.
+     */
+    public static Squad forAI(DatabaseManager db, Map<String, Player> aiSquad) throws SQLException {
+        return new Squad(db, AI_USER_ID, aiSquad);
     }
 
     private void validateSquad() throws SQLException {
@@ -66,7 +77,9 @@ public class Squad {
             if (!isValid) {
                 logger.info("Removing player {} from position {}: invalid position {}", player.getName(), position, playerPosition);
                 players.put(position, null);
-                db.saveUserSquad(userId, position, null);
+                if (userId != AI_USER_ID) {
+                    db.saveUserSquad(userId, position, null);
+                }
             }
         }
     }
@@ -149,6 +162,9 @@ public class Squad {
         }
 
         players.put(position, player);
+        if (userId == AI_USER_ID) {
+            return;
+        }
         try {
             db.saveUserSquad(userId, position, player);
         } catch (SQLException e) {
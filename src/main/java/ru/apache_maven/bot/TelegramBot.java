@@ -7,33 +7,81 @@ import org.telegram.telegrambots.meta.api.objects.Update;
 import ru.apache_maven.db.DatabaseManager;
 import ru.apache_maven.model.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-public class TelegramBot extends TelegramLongPollingBot {
+public class TelegramBot extends TelegramLongPollingBot implements CardSender {
     private static final Logger logger = LoggerFactory.getLogger(TelegramBot.class);
     private static final long SPIN_COOLDOWN = 24 * 60 * 60 * 1000; // 24 часа в миллисекундах
+    // Параметры диспетчера обновлений, переопределяются -Dbot.dispatcher.threads / -Dbot.dispatcher.maxPending
+    private static final int DEFAULT_DISPATCHER_THREADS = 16;
+    private static final int DEFAULT_DISPATCHER_MAX_PENDING = 1000;
+    // Колесо таймера: тик 100 мс, 512 ячеек (оборот ~51 с, более долгие задержки считаются оборотами)
+    private static final long TIMER_TICK_MS = 100;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    // Ограничения исходящих запросов, переопределяются -Dbot.outbox.*
+    private static final double DEFAULT_OUTBOX_GLOBAL_RATE = 30;
+    private static final double DEFAULT_OUTBOX_CHAT_RATE = 1;
+    private static final int DEFAULT_OUTBOX_CHAT_BURST = 3;
+    private static final int DEFAULT_OUTBOX_MAX_PENDING = 10_000;
+    // Пак фото карточек: из jar (ресурс PHOTOS_PACK_RESOURCE, собирается при mvn package); при запуске
+    // из исходников или с -Dbot.photos.pack — файл, пересобираемый из каталога -Dbot.photos.dir
+    private static final String DEFAULT_PHOTOS_PACK = "target/photos.pack";
+    private static final String DEFAULT_PHOTOS_DIR = "src/main/java/resources/photos";
+    private static final String PHOTOS_PACK_RESOURCE = "resources/photos.pack";
+    private static final String PHOTOS_RESOURCE_DIR = "resources/photos";
+    // Кэш готовых карточек (-Dbot.cards.cacheBytes) и их предварительная отрисовка
+    // (-Dbot.cards.prerender, -Dbot.cards.renderThreads)
+    private static final long DEFAULT_CARDS_CACHE_BYTES = 64L * 1024 * 1024;
 
     private final DatabaseManager db;
     private final String botUsername;
     private final String botToken;
-    private PenaltyGame currentGame = null;
+    private volatile PenaltyGame currentGame = null;
     private final CommandHandler commandHandler;
     private final CallbackHandler callbackHandler;
-    private final Map<Long, Squad> userSquads = new HashMap<>();
+    private final Map<Long, Squad> userSquads = new ConcurrentHashMap<>();
     private final FootballPvP footballPvP;
+    private final UpdateDispatcher updateDispatcher;
+    private final HashedWheelTimer timer;
+    private final CooldownTracker cooldowns;
+    private final OutboundQueue outbox;
+    private final PhotoPack photos;
+    private final PhotoIdCache photoIds;
+    private final CardImageCache cardImages;
 
     public TelegramBot(String botToken, String botUsername, DatabaseManager db) {
         super(botToken);
         this.botToken = botToken;
         this.botUsername = botUsername;
         this.db = db;
+        this.outbox = new OutboundQueue(this,
+                Double.parseDouble(System.getProperty("bot.outbox.globalRate", String.valueOf(DEFAULT_OUTBOX_GLOBAL_RATE))),
+                Double.parseDouble(System.getProperty("bot.outbox.chatRate", String.valueOf(DEFAULT_OUTBOX_CHAT_RATE))),
+                Integer.getInteger("bot.outbox.chatBurst", DEFAULT_OUTBOX_CHAT_BURST),
+                Integer.getInteger("bot.outbox.maxPending", DEFAULT_OUTBOX_MAX_PENDING));
+        this.photos = openPhotos();
+        this.photoIds = new PhotoIdCache(db);
+        this.cardImages = new CardImageCache(Long.getLong("bot.cards.cacheBytes", DEFAULT_CARDS_CACHE_BYTES), CardRenderer::render);
+        this.timer = new HashedWheelTimer("bot-timer", TIMER_TICK_MS, TimeUnit.MILLISECONDS, TIMER_WHEEL_SIZE);
+        this.cooldowns = new CooldownTracker(this, db, timer);
         this.commandHandler = new CommandHandler(db, this);
         this.callbackHandler = new CallbackHandler(db, this);
         this.footballPvP = new FootballPvP(this, db);
+        this.updateDispatcher = new UpdateDispatcher(this::handleUpdate,
+                Integer.getInteger("bot.dispatcher.threads", DEFAULT_DISPATCHER_THREADS),
+                Integer.getInteger("bot.dispatcher.maxPending", DEFAULT_DISPATCHER_MAX_PENDING));
+        if (Boolean.parseBoolean(System.getProperty("bot.cards.prerender", "true"))) {
+            prerenderCards();
+        }
     }
 
     @Override
@@ -46,8 +94,61 @@ public class TelegramBot extends TelegramLongPollingBot {
         return botToken;
     }
 
+    // Вызывается в потоке long polling: только передаёт обновление диспетчеру
     @Override
     public void onUpdateReceived(Update update) {
+        updateDispatcher.dispatch(update);
+    }
+
+    @Override
+    public void onClosing() {
+        updateDispatcher.close();
+        footballPvP.close();
+        cooldowns.close();
+        timer.close();
+        outbox.close();
+        super.onClosing();
+    }
+
+    // Пак ищется в файле при запуске из исходников, иначе в jar; фото, которых нет в паке, берутся
+    // из изображений в classpath. Без пака и изображений карточки отправляются текстом
+    private static PhotoPack openPhotos() {
+        ClassLoader loader = TelegramBot.class.getClassLoader();
+        String packFile = System.getProperty("bot.photos.pack");
+        Path sourceDir = Path.of(System.getProperty("bot.photos.dir", DEFAULT_PHOTOS_DIR));
+        boolean fromFile = packFile != null || Files.isDirectory(sourceDir);
+        Path pack = Path.of(packFile != null ? packFile : DEFAULT_PHOTOS_PACK).toAbsolutePath();
+        String source = fromFile ? pack.toString() : "classpath:" + PHOTOS_PACK_RESOURCE;
+        PhotoPack photos = null;
+        try {
+            photos = fromFile ? PhotoPack.openOrBuild(pack, sourceDir) : PhotoPack.openResource(loader, PHOTOS_PACK_RESOURCE);
+        } catch (IOException e) {
+            logger.error("Не удалось открыть пак фото {}: {}", source, e.getMessage(), e);
+        }
+        if (photos == null || photos.size() == 0) {
+            logger.error("Пак фото {} не найден или пуст: фото карточек берутся из изображений в classpath ({})",
+                    source, PHOTOS_RESOURCE_DIR);
+            photos = PhotoPack.EMPTY;
+        } else {
+            logger.info("Пак фото {} открыт: {} фото", source, photos.size());
+        }
+        return photos.withClasspathFallback(loader, PHOTOS_RESOURCE_DIR);
+    }
+
+    // Рисует карточки каталога в фоне; бот отвечает, не дожидаясь окончания
+    private void prerenderCards() {
+        if (photos.size() == 0) {
+            return;
+        }
+        try {
+            cardImages.prerender(db.getCatalog().getPlayers(), player -> db.getTeamName(player.getTeamId()), photos,
+                    Integer.getInteger("bot.cards.renderThreads", Runtime.getRuntime().availableProcessors()));
+        } catch (SQLException e) {
+            logger.warn("Не удалось заранее нарисовать карточки: {}", e.getMessage());
+        }
+    }
+
+    private void handleUpdate(Update update) {
         if (update.hasMessage() && update.getMessage().hasText()) {
             long chatId = update.getMessage().getChatId();
             long userId = update.getMessage().getFrom().getId();
@@ -74,9 +175,7 @@ public class TelegramBot extends TelegramLongPollingBot {
 
             // Существующая логика обработки команд
             try {
-                if (!db.userExists(userId)) {
-                    db.addUser(userId, username);
-                }
+                db.ensureUser(userId, username);
 
                 String command = text.split(" ")[0];
                 if (command.contains("@")) {
@@ -105,14 +204,7 @@ public class TelegramBot extends TelegramLongPollingBot {
     public Squad getUserSquad(long userId) {
         return userSquads.computeIfAbsent(userId, id -> {
             try {
-                Map<String, Player> squadData = db.getUserSquad(id);
-                Squad squad = new Squad(db, id);
-                squadData.forEach((pos, player) -> {
-                    if (Squad.getPositions().contains(pos)) {
-                        squad.setPlayer(pos, player);
-                    }
-                });
-                return squad;
+                return new Squad(db, id, db.getUserSquad(id));
             } catch (SQLException e) {
                 logger.error("Failed to load squad: {}", e.getMessage());
                 try {
@@ -136,6 +228,33 @@ public class TelegramBot extends TelegramLongPollingBot {
         return footballPvP;
     }
 
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    public CooldownTracker getCooldowns() {
+        return cooldowns;
+    }
+
+    @Override
+    public OutboundQueue getOutbox() {
+        return outbox;
+    }
+
+    PhotoPack getPhotos() {
+        return photos;
+    }
+
+    @Override
+    public PhotoIdCache getPhotoIds() {
+        return photoIds;
+    }
+
+    @Override
+    public CardImageCache getCardImages() {
+        return cardImages;
+    }
+
     static class PenaltyGame {
         long challengerId;
         long opponentId;
@@ -203,7 +322,7 @@ public class TelegramBot extends TelegramLongPollingBot {
         return db;
     }
 
-    private final Map<Long, PendingSale> pendingSales = new HashMap<>();
+    private final Map<Long, PendingSale> pendingSales = new ConcurrentHashMap<>();
 
     public void addPendingSale(long userId, int playerId) {
         pendingSales.put(userId, new PendingSale(playerId));
@@ -0,0 +1,61 @@
+package ru.apache_maven.bot;
+
+/**
+ * Корзина токенов: пополняется со скоростью {@code ratePerSecond}, вмещает не больше
+ * {@code burst} токенов. Время передаётся вызывающим кодом (System.nanoTime()), поэтому
+ * корзина не зависит от часов и легко проверяется.
+ * <p>
+ * Не потокобезопасна: синхронизацию обеспечивает вызывающий код.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long updatedAt;
+
+    TokenBucket(double ratePerSecond, int burst, long now) {
+        if (ratePerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Скорость и ёмкость корзины должны быть положительными");
+        }
+        this.tokensPerNano = ratePerSecond / 1_000_000_000d;
+        this.burst = burst;
+        this.tokens = burst;
+        this.updatedAt = now;
+    }
+
+    /**
+     * Сколько наносекунд ждать следующего токена; 0, если токен есть сейчас.
+     * Токен при этом не забирается.
+     */
+    long delayNanos(long now) {
+        refill(now);
+        return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / tokensPerNano);
+    }
+
+    /**
+     * Забирает токен, если он есть.
+     */
+    boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Корзина полна: её можно выбросить и завести заново без потери ограничения.
+     */
+    boolean isFull(long now) {
+        refill(now);
+        return tokens >= burst;
+    }
+
+    private void refill(long now) {
+        if (now > updatedAt) {
+            tokens = Math.min(burst, tokens + (now - updatedAt) * tokensPerNano);
+            updatedAt = now;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package ru.apache_maven.bot;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Раздаёт входящие обновления рабочим потокам, чтобы медленная операция одного чата
+ * не задерживала остальных. Обновления одного пользователя обрабатываются строго по очереди
+ * (у каждого пользователя своя очередь), разные пользователи — параллельно.
+ * <p>
+ * Число принятых, но ещё не обработанных обновлений ограничено: когда лимит исчерпан,
+ * {@link #dispatch} блокирует поток long polling, и бот перестаёт забирать новые обновления,
+ * пока очередь не освободится.
+ * <p>
+ * На JDK 21+ обработчики выполняются в виртуальных потоках, на JDK 17 — в пуле
+ * платформенных потоков фиксированного размера.
+ */
+public class UpdateDispatcher implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(UpdateDispatcher.class);
+
+    // Сколько обновлений пользователя обрабатывается подряд, прежде чем уступить поток другим
+    private static final int LANE_BATCH = 16;
+    private static final long METRICS_INTERVAL_SECONDS = 60;
+
+    private final Consumer<Update> handler;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService metricsReporter;
+    private final Semaphore capacity;
+    private final int maxPending;
+    private final KeyedSerialExecutor lanes;
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder handleNanos = new LongAdder();
+    private final AtomicLong maxHandleNanos = new AtomicLong();
+    private volatile long reportedProcessed;
+
+    /**
+     * @param handler    обработчик одного обновления
+     * @param threads    размер пула платформенных потоков (если виртуальные потоки недоступны)
+     * @param maxPending максимум принятых и ещё не обработанных обновлений
+     */
+    public UpdateDispatcher(Consumer<Update> handler, int threads, int maxPending) {
+        this.handler = handler;
+        this.maxPending = maxPending;
+        this.capacity = new Semaphore(maxPending);
+        this.workers = createWorkers(threads);
+        this.lanes = new KeyedSerialExecutor(workers, LANE_BATCH);
+        this.metricsReporter = Executors.newSingleThreadScheduledExecutor(Utils.daemonThreadFactory("update-metrics"));
+        metricsReporter.scheduleAtFixedRate(this::reportMetrics, METRICS_INTERVAL_SECONDS, METRICS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Ставит обновление в очередь его пользователя. Блокирует вызывающий поток,
+     * если лимит необработанных обновлений исчерпан.
+     */
+    public void dispatch(Update update) {
+        if (!capacity.tryAcquire()) {
+            blocked.increment();
+            logger.warn("Очередь обновлений заполнена ({}), приём приостановлен", maxPending);
+            try {
+                capacity.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.error("Прерван при ожидании места в очереди, обновление {} пропущено", update.getUpdateId());
+                return;
+            }
+        }
+        pending.incrementAndGet();
+
+        Task task = new Task(update, System.nanoTime());
+        lanes.execute(laneKey(update), () -> handle(task));
+    }
+
+    public int getQueueDepth() {
+        return pending.get();
+    }
+
+    public long getProcessedCount() {
+        return processed.sum();
+    }
+
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    @Override
+    public void close() {
+        metricsReporter.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.warn("Не все обновления обработаны к остановке: осталось {}", pending.get());
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            workers.shutdownNow();
+        }
+        reportMetrics();
+    }
+
+    // Очередь упорядочивается по пользователю; обновления без отправителя — по чату
+    private static long laneKey(Update update) {
+        if (update.hasMessage()) {
+            return update.getMessage().getFrom() != null
+                    ? update.getMessage().getFrom().getId()
+                    : update.getMessage().getChatId();
+        }
+        if (update.hasCallbackQuery()) {
+            return update.getCallbackQuery().getFrom().getId();
+        }
+        return 0L;
+    }
+
+    private void handle(Task task) {
+        long started = System.nanoTime();
+        waitNanos.add(started - task.enqueuedAt);
+        try {
+            handler.accept(task.update);
+        } catch (RuntimeException e) {
+            failed.increment();
+            logger.error("Ошибка обработки обновления {}: {}", task.update.getUpdateId(), e.getMessage(), e);
+        } finally {
+            long elapsed = System.nanoTime() - started;
+            handleNanos.add(elapsed);
+            maxHandleNanos.accumulateAndGet(elapsed, Math::max);
+            processed.increment();
+            pending.decrementAndGet();
+            capacity.release();
+        }
+    }
+
+    private void reportMetrics() {
+        long total = processed.sum();
+        long delta = total - reportedProcessed;
+        if (delta == 0 && pending.get() == 0) {
+            return;
+        }
+        reportedProcessed = total;
+        long handled = Math.max(total, 1);
+        logger.info("Обновления: в очереди {}, очередей пользователей {}, обработано {}, ошибок {}, блокировок приёма {}, "
+                        + "ожидание в среднем {} мс, обработка в среднем {} мс, максимум {} мс",
+                pending.get(), lanes.activeKeys(), total, failed.sum(), blocked.sum(),
+                TimeUnit.NANOSECONDS.toMillis(waitNanos.sum() / handled),
+                TimeUnit.NANOSECONDS.toMillis(handleNanos.sum() / handled),
+                TimeUnit.NANOSECONDS.toMillis(maxHandleNanos.getAndSet(0)));
+    }
+
+    private static ExecutorService createWorkers(int threads) {
+        if (Boolean.parseBoolean(System.getProperty("bot.dispatcher.virtualThreads", "true"))) {
+            try {
+                ExecutorService virtual = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+                logger.info("Обработка обновлений в виртуальных потоках");
+                return virtual;
+            } catch (ReflectiveOperationException e) {
+                logger.info("Виртуальные потоки недоступны, используется пул из {} потоков", threads);
+            }
+        }
+        return Executors.newFixedThreadPool(threads, Utils.daemonThreadFactory("update-worker"));
+    }
+
+    private static final class Task {
+        final Update update;
+        final long enqueuedAt;
+
+        Task(Update update, long enqueuedAt) {
+            this.update = update;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
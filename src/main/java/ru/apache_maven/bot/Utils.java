@@ -3,33 +3,61 @@ package ru.apache_maven.bot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
 import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
 import org.telegram.telegrambots.meta.api.objects.InputFile;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.api.objects.media.InputMediaPhoto;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
 import ru.apache_maven.db.DatabaseManager;
+import ru.apache_maven.db.PackOpening;
+import ru.apache_maven.db.Page;
+import ru.apache_maven.db.PageCursor;
+import ru.apache_maven.db.UpdateOutcome;
 import ru.apache_maven.model.*;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class Utils {
     private static final Logger logger = LoggerFactory.getLogger(Utils.class);
     private static final long SPIN_COOLDOWN = 2 * 60 * 60 * 1000; // 2 часа
     private static final long GIFT_COOLDOWN = 24 * 60 * 60 * 1000; // 24 часа
+    // Наибольшее число фото в одном альбоме Telegram
+    private static final int MEDIA_GROUP_LIMIT = 10;
 
     // Отправка текстового сообщения
-    public static void sendMessage(TelegramBot bot, long chatId, String text, InlineKeyboardMarkup keyboard) {
+    // Фабрика фоновых потоков с понятными именами (name-1, name-2, ...)
+    public static ThreadFactory daemonThreadFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Сообщение ставится в очередь отправки; ошибка доставки только логируется
+    public static CompletableFuture<Message> sendMessage(TelegramBot bot, long chatId, String text, InlineKeyboardMarkup keyboard) {
         SendMessage message = new SendMessage();
         message.setChatId(String.valueOf(chatId));
         message.setText(text);
@@ -37,16 +65,18 @@ public class Utils {
             message.setReplyMarkup(keyboard);
         }
         message.setParseMode("HTML");
-        try {
-            bot.execute(message);
-        } catch (Exception e) {
-            logger.error("Failed to send message to chatId {}: {}", chatId, e.getMessage(), e);
-        }
+        CompletableFuture<Message> sent = bot.getOutbox().execute(chatId, message, OutboundQueue.Priority.NORMAL);
+        sent.whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error("Failed to send message to chatId {}: {}", chatId, e.getMessage(), e);
+            }
+        });
+        return sent;
     }
 
     // Перегруженный метод без клавиатуры
-    public static void sendMessage(TelegramBot bot, long chatId, String text) {
-        sendMessage(bot, chatId, text, null);
+    public static CompletableFuture<Message> sendMessage(TelegramBot bot, long chatId, String text) {
+        return sendMessage(bot, chatId, text, null);
     }
 
     // Редактирование существующего сообщения
@@ -59,17 +89,19 @@ public class Utils {
             editMessage.setReplyMarkup(keyboard);
         }
         editMessage.setParseMode("HTML");
-        try {
-            bot.execute(editMessage);
-        } catch (TelegramApiException e) {
-            logger.error("Failed to edit message with ID {} in chat {}: {}", messageId, chatId, e.getMessage(), e);
-            sendMessage(bot, chatId, "Не удалось отредактировать сообщение. Пожалуйста, попробуйте снова.");
-        }
+        // Правка меню — ответ на нажатие кнопки, поэтому уходит раньше обычных сообщений
+        bot.getOutbox().execute(chatId, editMessage, OutboundQueue.Priority.HIGH).whenComplete((result, e) -> {
+            if (e != null) {
+                logger.error("Failed to edit message with ID {} in chat {}: {}", messageId, chatId, e.getMessage(), e);
+                sendMessage(bot, chatId, "Не удалось отредактировать сообщение. Пожалуйста, попробуйте снова.");
+            }
+        });
     }
 
     // Отправка профиля пользователя
     public static void sendProfileMessage(TelegramBot bot, long userId, long chatId) {
-        try (DatabaseManager db = new DatabaseManager()) {
+        DatabaseManager db = bot.getDb();
+        try {
             User user = db.getUserById(userId);
             if (user == null) {
                 sendMessage(bot, chatId, "Пользователь не найден. Попробуйте зарегистрироваться с помощью команды /start.");
@@ -77,7 +109,7 @@ public class Utils {
             }
 
             long points = db.getUserPoints(userId);
-            int playerCount = db.getUserPlayers(userId).size();
+            int playerCount = db.getOwnedPlayerCount(userId);
             int dollars = db.getUserDollars(userId);
 
             StringBuilder profileText = new StringBuilder();
@@ -117,49 +149,131 @@ public class Utils {
                 cardText.append("Очки: +").append(pointsAwarded).append("\n");
             }
 
-            SendPhoto photoMessage = new SendPhoto();
-            photoMessage.setChatId(chatId);
+            sendCardPhoto(bot, chatId, player, teamName, cardText.toString());
+        } catch (SQLException e) {
+            logger.error("Ошибка при отправке карточки игрока: {}", e.getMessage(), e);
+            sendMessage(bot, chatId, "Произошла ошибка при отправке карточки игрока.");
+        }
+    }
 
-            String photoPath = "resources/photos/" + player.getPhoto();
-            logger.info("Попытка загрузить фото: {}. Полный путь в classpath: {}", player.getPhoto(), photoPath);
-            java.net.URL photoUrl = Utils.class.getClassLoader().getResource(photoPath);
-            if (photoUrl == null) {
-                logger.error("Ресурс фото {} не найден в classpath. Ожидаемый путь: {}. Текущая рабочая директория: {}",
-                        player.getPhoto(), photoPath, System.getProperty("user.dir"));
-                sendMessage(bot, chatId, cardText.toString());
+    // Отправка карточки, нарисованной CardRenderer. Отклонённый Telegram file_id забывается, и карточка
+    // загружается заново; если фото нет в паке или отправка не удалась — отправляется текст карточки
+    private static void sendCardPhoto(TelegramBot bot, long chatId, Player player, String teamName, String caption) {
+        PhotoPack.Photo photo = bot.getPhotos().get(player.getPhoto());
+        if (photo == null) {
+            logger.error("Фото {} игрока {} нет в паке фото ({} фото), карточка отправлена текстом",
+                    player.getPhoto(), player.getName(), bot.getPhotos().size());
+            sendMessage(bot, chatId, caption);
+            return;
+        }
+        CardUpload upload = cardUpload(bot, player, teamName, photo);
+        PhotoIdCache photoIds = bot.getPhotoIds();
+        SendPhoto photoMessage = new SendPhoto();
+        photoMessage.setChatId(chatId);
+        photoMessage.setCaption(caption);
+        photoMessage.setParseMode("HTML");
+
+        // Поток загрузки создаётся на каждую попытку: повтор после 429 читает изображение с начала
+        bot.getOutbox().<Message>submit(chatId, OutboundQueue.Priority.NORMAL, () -> {
+            photoMessage.setPhoto(upload.inputFile());
+            return bot.executeAsync(photoMessage);
+        }).whenComplete((sent, e) -> {
+            if (e == null) {
+                upload.remember(photoIds, sent);
                 return;
             }
-
-            File photoFile;
-            try {
-                logger.info("URL ресурса: {}", photoUrl);
-                photoFile = new File(photoUrl.toURI());
-            } catch (Exception e) {
-                logger.error("Ошибка преобразования URL ресурса в файл для {}: {}", photoPath, e.getMessage(), e);
-                sendMessage(bot, chatId, cardText.toString());
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (upload.fileId != null && isStaleFileId(cause)) {
+                logger.warn("Telegram отклонил file_id {}: {}", upload.key, cause.getMessage());
+                upload.forget(photoIds);
+                sendCardPhoto(bot, chatId, player, teamName, caption);
                 return;
             }
+            logger.error("Ошибка отправки фото игрока {}: {}", player.getName(), cause.getMessage(), cause);
+            sendMessage(bot, chatId, caption);
+        });
+    }
 
-            logger.info("Путь к файлу: {}", photoFile.getAbsolutePath());
-            if (!photoFile.exists()) {
-                logger.error("Файл фото {} не найден по пути: {}", photoPath, photoFile.getAbsolutePath());
-                sendMessage(bot, chatId, cardText.toString());
-                return;
+    // Что отправить для карточки: file_id, если такая карточка уже загружалась, иначе изображение
+    // из кэша карточек; если карточку не нарисовать — фото из пака
+    private static CardUpload cardUpload(CardSender bot, Player player, String teamName, PhotoPack.Photo photo) {
+        PhotoIdCache photoIds = bot.getPhotoIds();
+        String cardKey = CardImageCache.fileIdKey(player);
+        String fingerprint = CardRenderer.fingerprint(player, teamName, photo);
+        String fileId = photoIds.fileId(cardKey, fingerprint);
+        if (fileId != null) {
+            return new CardUpload(cardKey, fingerprint, fileId, null, null);
+        }
+        try {
+            byte[] image = bot.getCardImages().get(player, teamName, photo);
+            return new CardUpload(cardKey, fingerprint, null, () -> new ByteArrayInputStream(image), "card_" + player.getId() + ".jpg");
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Не удалось нарисовать карточку игрока {}, отправляется фото: {}", player.getId(), e.getMessage());
+            return new CardUpload(photo.getName(), photo.getContentHash(),
+                    photoIds.fileId(photo.getName(), photo.getContentHash()), photo::openStream, photo.getName());
+        }
+    }
+
+    // Устаревший или чужой file_id Telegram отклоняет ошибкой 400 с описанием "wrong file identifier"
+    // (или "wrong remote file identifier"); другие ошибки 400 повторной загрузкой не исправить
+    static boolean isStaleFileId(Throwable error) {
+        if (!(error instanceof TelegramApiRequestException request)
+                || request.getErrorCode() == null || request.getErrorCode() != 400) {
+            return false;
+        }
+        String description = request.getApiResponse() != null ? request.getApiResponse() : request.getMessage();
+        if (description == null) {
+            return false;
+        }
+        description = description.toLowerCase(Locale.ROOT);
+        return description.contains("wrong file identifier") || description.contains("wrong remote file identifier");
+    }
+
+    // Изображение карточки для отправки: по file_id или загрузкой из потока
+    private static final class CardUpload {
+        final String key;
+        final String contentHash;
+        final String fileId;
+        final Supplier<InputStream> stream;
+        final String name;
+
+        CardUpload(String key, String contentHash, String fileId, Supplier<InputStream> stream, String name) {
+            this.key = key;
+            this.contentHash = contentHash;
+            this.fileId = fileId;
+            this.stream = stream;
+            this.name = name;
+        }
+
+        // Каждый вызов открывает поток заново
+        InputFile inputFile() {
+            return fileId != null ? new InputFile(fileId) : new InputFile(stream.get(), name);
+        }
+
+        // Каждый вызов открывает поток заново
+        InputMediaPhoto media(String caption) {
+            InputMediaPhoto media = new InputMediaPhoto();
+            if (fileId != null) {
+                media.setMedia(fileId);
+            } else {
+                media.setMedia(stream.get(), name);
             }
+            media.setCaption(caption);
+            media.setParseMode("HTML");
+            return media;
+        }
 
-            photoMessage.setPhoto(new InputFile(photoFile));
-            photoMessage.setCaption(cardText.toString());
-            photoMessage.setParseMode("HTML");
+        // Запоминает file_id из ответа на загрузку
+        void remember(PhotoIdCache photoIds, Message sent) {
+            if (fileId == null) {
+                photoIds.remember(key, contentHash, sent);
+            }
+        }
 
-            try {
-                bot.execute(photoMessage);
-            } catch (Exception e) {
-                logger.error("Ошибка отправки фото игрока {}: {}", player.getName(), e.getMessage(), e);
-                sendMessage(bot, chatId, cardText.toString());
+        void forget(PhotoIdCache photoIds) {
+            if (fileId != null) {
+                photoIds.forget(key, fileId);
             }
-        } catch (SQLException e) {
-            logger.error("Ошибка при отправке карточки игрока: {}", e.getMessage(), e);
-            sendMessage(bot, chatId, "Произошла ошибка при отправке карточки игрока.");
         }
     }
 
@@ -172,10 +286,8 @@ public class Utils {
                 return;
             }
 
-            Timestamp lastSpin = db.getLastSpin(userId);
-            long currentTime = System.currentTimeMillis();
-            if (lastSpin != null && (currentTime - lastSpin.getTime()) < SPIN_COOLDOWN) {
-                long remainingTime = SPIN_COOLDOWN - (currentTime - lastSpin.getTime());
+            long remainingTime = bot.getCooldowns().getSpin().remaining(userId, SPIN_COOLDOWN);
+            if (remainingTime > 0) {
                 sendMessage(bot, chatId, "Следующий спин будет доступен через " + formatTime(remainingTime) + ".");
                 return;
             }
@@ -197,6 +309,7 @@ public class Utils {
             }
 
             db.updateLastSpin(userId);
+            bot.getCooldowns().getSpin().start(userId, chatId, SPIN_COOLDOWN);
             db.incrementGiftPackClaims(userId);
 
             String teamName = db.getTeamName(player.getTeamId());
@@ -215,18 +328,7 @@ public class Utils {
                 cardText.append("\n<b>Реплика, карточка у вас уже есть, получите доллары: +").append(dollarsAwarded).append(" 💵</b>");
             }
 
-            SendPhoto photoMessage = new SendPhoto();
-            photoMessage.setChatId(chatId);
-            photoMessage.setPhoto(new InputFile(new File(player.getPhoto())));
-            photoMessage.setCaption(cardText.toString());
-            photoMessage.setParseMode("HTML");
-
-            try {
-                bot.execute(photoMessage);
-            } catch (Exception e) {
-                logger.error("Ошибка отправки фото игрока {}: {}", player.getName(), e.getMessage(), e);
-                sendMessage(bot, chatId, cardText.toString());
-            }
+            sendCardPhoto(bot, chatId, player, teamName, cardText.toString());
         } catch (SQLException e) {
             logger.error("Ошибка при получении карточки игрока для пользователя {}: {}", userId, e.getMessage(), e);
             sendMessage(bot, chatId, "Произошла ошибка при получении карточки игрока.");
@@ -265,6 +367,29 @@ public class Utils {
         return keyboard;
     }
 
+    // Кнопки листания списка друзей; курсор страницы передаётся в callback data
+    public static List<InlineKeyboardButton> createFriendsPaginationRow(Page<Friend> friends, long userId) {
+        List<InlineKeyboardButton> row = new ArrayList<>();
+        if (friends.isEmpty()) {
+            return row;
+        }
+        if (friends.hasPrevious()) {
+            Friend first = friends.first();
+            InlineKeyboardButton prevButton = new InlineKeyboardButton();
+            prevButton.setText("⬅ Назад");
+            prevButton.setCallbackData("friends_list_page_" + PageCursor.before(first.getFriendshipPoints(), first.getUserId()).encode() + "_" + userId);
+            row.add(prevButton);
+        }
+        if (friends.hasNext()) {
+            Friend last = friends.last();
+            InlineKeyboardButton nextButton = new InlineKeyboardButton();
+            nextButton.setText("Вперёд ➡");
+            nextButton.setCallbackData("friends_list_page_" + PageCursor.after(last.getFriendshipPoints(), last.getUserId()).encode() + "_" + userId);
+            row.add(nextButton);
+        }
+        return row;
+    }
+
     // Создание клавиатуры с игроками (с пагинацией)
     public static InlineKeyboardMarkup createPlayerKeyboard(DatabaseManager db, List<Player> players, String prefix, long userId, int page, int pageSize, String position) {
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
@@ -477,8 +602,8 @@ public class Utils {
                 return;
             }
 
-            int userDollars = db.getUserDollars(userId);
-            if (userDollars < pack.getPrice()) {
+            // Баланс проверяется тем же запросом, что и списывается
+            if (db.tryDeductDollars(userId, pack.getPrice()) != UpdateOutcome.APPLIED) {
                 InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
                 List<List<InlineKeyboardButton>> rows = new ArrayList<>();
                 List<InlineKeyboardButton> backRow = new ArrayList<>();
@@ -492,7 +617,6 @@ public class Utils {
                 return;
             }
 
-            db.deductDollars(userId, pack.getPrice());
             db.addPackToUser(userId, packId);
 
             InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
@@ -525,48 +649,22 @@ public class Utils {
             Pack pack = packs.get(0);
             int packId = pack.getId();
 
-            // 3) Подтягиваем полные данные пака
-            Pack fullPack = db.getPackById(packId);
-            if (fullPack == null || fullPack.getId() == 0) {
-                logger.error("Pack not found or invalid: packId={}", packId);
-                Utils.editMessage(bot, chatId, messageId, "Ошибка: Пак не найден.", null);
-                return;
-            }
-
-            // 4) Проверяем, действительно ли пользователь владеет этим паком
-            if (!db.checkUserHasPack(userId, packId)) {
+            // 3) Открываем пак одной транзакцией: списание пака и выдача всех игроков
+            PackOpening opening = db.openPack(userId, packId);
+            if (opening == null) {
                 logger.warn("User {} does not have packId={}", userId, packId);
                 Utils.editMessage(bot, chatId, messageId, "У вас нет этого пака.", null);
                 return;
             }
 
-            // 5) Удаляем связь пака и пользователя
-            db.removePackFromUser(userId, packId);
-
-            // 6) Формируем текст ответа
-            String packName = fullPack.getName() != null ? fullPack.getName() : "Неизвестный пак";
+            // 4) Формируем текст ответа
+            String packName = opening.getPack().getName() != null ? opening.getPack().getName() : "Неизвестный пак";
             StringBuilder text = new StringBuilder("🎉 Вы открыли пак «")
                     .append(packName)
                     .append("»!\nПолученные игроки:\n");
+            appendOpenedPlayers(text, opening);
 
-            for (int i = 0; i < fullPack.getPlayerCount(); i++) {
-                Player player = fullPack.getCategory() != null
-                        ? db.getRandomPlayerByCategory(fullPack.getCategory())
-                        : db.getRandomPlayer();
-
-                if (player != null) {
-                    db.addPlayerToUser(userId, player);
-                    text.append(String.format("- %s (%s, %d)\n",
-                            player.getName(),
-                            player.getPosition(),
-                            player.getRating()
-                    ));
-                } else {
-                    logger.warn("No player received when opening packId={} for userId={}", packId, userId);
-                }
-            }
-
-            // 7) Кнопка «Назад» для возвращения в меню паков
+            // 5) Кнопка «Назад» для возвращения в меню паков
             InlineKeyboardButton backButton = new InlineKeyboardButton();
             backButton.setText("Назад");
             backButton.setCallbackData("packs_my_" + userId);
@@ -574,8 +672,9 @@ public class Utils {
                     List.of(List.of(backButton))
             );
 
-            // 8) Отправляем результат через editMessage
+            // 6) Отправляем результат через editMessage, карточки — альбомами
             Utils.editMessage(bot, chatId, messageId, text.toString(), keyboard);
+            sendPackCards(bot, db, chatId, opening);
 
         } catch (SQLException e) {
             logger.error("Ошибка при открытии пака для пользователя {}: {}", userId, e.getMessage(), e);
@@ -583,6 +682,115 @@ public class Utils {
         }
     }
 
+    // Список выпавших игроков; повторы помечаются
+    static void appendOpenedPlayers(StringBuilder text, PackOpening opening) {
+        List<Player> players = opening.getPlayers();
+        for (int i = 0; i < players.size(); i++) {
+            Player player = players.get(i);
+            text.append(String.format("- %s (%s, %d)%s\n",
+                    player.getName(),
+                    player.getPosition(),
+                    player.getRating(),
+                    opening.isDuplicate(i) ? " — повтор" : ""
+            ));
+        }
+    }
+
+    // Карточки из открытого пака альбомами по MEDIA_GROUP_LIMIT: один запрос вместо запроса на карточку.
+    // Подписи короткие, полный список уже в сообщении об открытии пака
+    static void sendPackCards(TelegramBot bot, DatabaseManager db, long chatId, PackOpening opening) {
+        List<Player> players = opening.getPlayers();
+        List<AlbumCard> cards = new ArrayList<>();
+        for (int i = 0; i < players.size(); i++) {
+            Player player = players.get(i);
+            PhotoPack.Photo photo = bot.getPhotos().get(player.getPhoto());
+            if (photo == null) {
+                logger.warn("Фото {} игрока {} нет в паке фото ({} фото), карточка не попадёт в альбом",
+                        player.getPhoto(), player.getName(), bot.getPhotos().size());
+                continue;
+            }
+            try {
+                String caption = player.getName() + " " + player.getCategory().getEmoji() + (opening.isDuplicate(i) ? " — повтор" : "");
+                cards.add(new AlbumCard(player, db.getTeamName(player.getTeamId()), photo, caption));
+            } catch (SQLException e) {
+                logger.warn("Не удалось получить команду игрока {}: {}", player.getId(), e.getMessage());
+            }
+        }
+        sendAlbums(bot, chatId, cards);
+    }
+
+    static void sendAlbums(CardSender bot, long chatId, List<AlbumCard> cards) {
+        for (int from = 0; from < cards.size(); from += MEDIA_GROUP_LIMIT) {
+            sendAlbum(bot, chatId, cards.subList(from, Math.min(cards.size(), from + MEDIA_GROUP_LIMIT)), true);
+        }
+    }
+
+    // Альбом из одной карточки Telegram не принимает, такая карточка отправляется обычным фото.
+    // Если Telegram отклонил альбом с сохранёнными file_id, они забываются и альбом один раз
+    // отправляется загрузкой изображений
+    private static void sendAlbum(CardSender bot, long chatId, List<AlbumCard> cards, boolean retryStale) {
+        PhotoIdCache photoIds = bot.getPhotoIds();
+        List<CardUpload> uploads = new ArrayList<>(cards.size());
+        for (AlbumCard card : cards) {
+            uploads.add(cardUpload(bot, card.player, card.teamName, card.photo));
+        }
+        CompletableFuture<List<Message>> sent;
+        if (uploads.size() == 1) {
+            CardUpload upload = uploads.get(0);
+            SendPhoto photoMessage = new SendPhoto();
+            photoMessage.setChatId(chatId);
+            photoMessage.setCaption(cards.get(0).caption);
+            photoMessage.setParseMode("HTML");
+            sent = bot.getOutbox().<Message>submit(chatId, OutboundQueue.Priority.NORMAL, () -> {
+                photoMessage.setPhoto(upload.inputFile());
+                return bot.executeAsync(photoMessage);
+            }).thenApply(List::of);
+        } else {
+            SendMediaGroup album = new SendMediaGroup();
+            album.setChatId(chatId);
+            // Медиа собираются на каждую попытку: повтор после 429 читает изображения с начала
+            sent = bot.getOutbox().submit(chatId, OutboundQueue.Priority.NORMAL, () -> {
+                List<InputMedia> medias = new ArrayList<>(uploads.size());
+                for (int i = 0; i < uploads.size(); i++) {
+                    medias.add(uploads.get(i).media(cards.get(i).caption));
+                }
+                album.setMedias(medias);
+                return bot.executeAsync(album);
+            });
+        }
+        sent.whenComplete((messages, e) -> {
+            if (e == null) {
+                // Сообщения альбома идут в порядке медиа
+                for (int i = 0; i < uploads.size() && i < messages.size(); i++) {
+                    uploads.get(i).remember(photoIds, messages.get(i));
+                }
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (retryStale && uploads.stream().anyMatch(upload -> upload.fileId != null) && isStaleFileId(cause)) {
+                logger.warn("Telegram отклонил альбом карточек с сохранёнными file_id: {}", cause.getMessage());
+                uploads.forEach(upload -> upload.forget(photoIds));
+                sendAlbum(bot, chatId, cards, false);
+                return;
+            }
+            logger.error("Ошибка отправки альбома карточек в чат {}: {}", chatId, cause.getMessage(), cause);
+        });
+    }
+
+    // Карточка альбома: всё, чтобы заново решить, загружать изображение или сослаться на file_id
+    static final class AlbumCard {
+        final Player player;
+        final String teamName;
+        final PhotoPack.Photo photo;
+        final String caption;
+
+        AlbumCard(Player player, String teamName, PhotoPack.Photo photo, String caption) {
+            this.player = player;
+            this.teamName = teamName;
+            this.photo = photo;
+            this.caption = caption;
+        }
+    }
 
     // Навигация по инвентарю пользователя
     public static void handleInventoryNavigation(TelegramBot bot, DatabaseManager db, CallbackQuery callbackQuery, int messageId, long userId) {
@@ -1036,6 +1244,10 @@ public class Utils {
             text.append(rank).append(". ").append(user.getUsername()).append(": ").append(user.getPoints()).append(" очков\n");
             rank++;
         }
+        int userRank = db.getUserRank(userId);
+        if (userRank > 0) {
+            text.append("\nВаше место: #").append(userRank);
+        }
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> rows = new ArrayList<>();
         List<InlineKeyboardButton> backRow = new ArrayList<>();
@@ -1052,11 +1264,10 @@ public class Utils {
     public static void handleGiftPack(TelegramBot bot, DatabaseManager db, long chatId, int messageId, long userId) throws SQLException {
         Pack dailyPack = db.getPackById(1); // Предполагаем, что Daily Award Pack имеет ID=1
         if (dailyPack != null && dailyPack.isDaily()) {
-            Timestamp lastGift = db.getLastGift(userId);
-            long currentTime = System.currentTimeMillis();
             long cooldownMillis = dailyPack.getCooldownHours() * 60 * 60 * 1000L;
-            if (lastGift != null && (currentTime - lastGift.getTime()) < cooldownMillis) {
-                long timeLeft = (cooldownMillis - (currentTime - lastGift.getTime())) / 1000;
+            long remaining = bot.getCooldowns().getGift().remaining(userId, cooldownMillis);
+            if (remaining > 0) {
+                long timeLeft = remaining / 1000;
                 String errorMessage = String.format("Подарочный пак доступен через %d:%02d:%02d", timeLeft / 3600, (timeLeft % 3600) / 60, timeLeft % 60);
                 InlineKeyboardMarkup keyboard = createBackKeyboard("packs_menu_" + userId);
                 editMessage(bot, chatId, messageId, errorMessage, keyboard);
@@ -1071,6 +1282,11 @@ public class Utils {
         }
         db.incrementGiftPackClaims(userId);
         db.updateLastGift(userId);
+        if (dailyPack != null && dailyPack.isDaily()) {
+            bot.getCooldowns().getGift().start(userId, chatId, dailyPack.getCooldownHours() * 60 * 60 * 1000L);
+        } else {
+            bot.getCooldowns().getGift().markUsed(userId);
+        }
         db.addPackToUser(userId, 1); // Добавляем Daily Award Pack
         String text = "🎁 Вы получили подарочный пак!";
         InlineKeyboardMarkup keyboard = createBackKeyboard("packs_my_" + userId);
@@ -1121,6 +1337,7 @@ public class Utils {
             db.addPoints(userId, player.getCategory().getPoints());
             db.incrementGiftPackClaims(userId);
             db.updateLastGift(userId);
+            bot.getCooldowns().getGift().markUsed(userId);
         } catch (SQLException e) {
             logger.error("Failed to add player or points to userId {}: {}", userId, e.getMessage(), e);
             editMessage(bot, chatId, messageId, "Ошибка при добавлении игрока в ваш инвентарь.", null);
@@ -1185,18 +1402,21 @@ public class Utils {
         editMessage(bot, chatId, messageId, text, keyboard);
     }
 
-    // Отображение топа кланов с пагинацией
-    public static void handleTopClans(TelegramBot bot, DatabaseManager db, long chatId, int messageId, long userId, int page) {
-        List<Clan> clans;
+    // Отображение топа кланов с пагинацией; cursor == null — первая страница
+    public static void handleTopClans(TelegramBot bot, DatabaseManager db, long chatId, int messageId, long userId, int page, PageCursor cursor) {
+        Page<Clan> clans;
+        if (cursor == null) {
+            page = 1;
+        }
         try {
-            clans = db.getTopClans(page, 5);
+            clans = db.getTopClans(cursor, 5);
         } catch (SQLException e) {
             logger.error("Failed to fetch top clans for page {}: {}", page, e.getMessage(), e);
             editMessage(bot, chatId, messageId, "Ошибка при получении списка кланов.", null);
             return;
         }
 
-        if (clans == null || clans.isEmpty()) {
+        if (clans.isEmpty()) {
             InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
             List<List<InlineKeyboardButton>> rows = new ArrayList<>();
             List<InlineKeyboardButton> backRow = new ArrayList<>();
@@ -1212,7 +1432,7 @@ public class Utils {
 
         StringBuilder text = new StringBuilder("🏆 Топ кланов (Страница " + page + "):\n\n");
         int rank = (page - 1) * 5 + 1;
-        for (Clan clan : clans) {
+        for (Clan clan : clans.getItems()) {
             text.append(rank).append(". ").append(clan.getName()).append(": ").append(clan.getTotalPoints()).append(" очков\n");
             rank++;
         }
@@ -1220,7 +1440,7 @@ public class Utils {
         InlineKeyboardMarkup keyboard = new InlineKeyboardMarkup();
         List<List<InlineKeyboardButton>> rows = new ArrayList<>();
 
-        for (Clan clan : clans) {
+        for (Clan clan : clans.getItems()) {
             InlineKeyboardButton viewButton = new InlineKeyboardButton();
             viewButton.setText("👀 " + clan.getName());
             viewButton.setCallbackData("view_clan_" + clan.getId() + "_" + userId);
@@ -1230,21 +1450,19 @@ public class Utils {
         }
 
         List<InlineKeyboardButton> navRow = new ArrayList<>();
-        if (page > 1) {
+        if (clans.hasPrevious()) {
+            Clan first = clans.first();
             InlineKeyboardButton prevButton = new InlineKeyboardButton();
             prevButton.setText("⬅️ Предыдущая");
-            prevButton.setCallbackData("top_clans_" + (page - 1) + "_" + userId);
+            prevButton.setCallbackData("top_clans_" + (page - 1) + "_" + PageCursor.before(first.getTotalPoints(), first.getId()).encode() + "_" + userId);
             navRow.add(prevButton);
         }
-        try {
-            if (db.getTopClans(page + 1, 5).size() > 0) {
-                InlineKeyboardButton nextButton = new InlineKeyboardButton();
-                nextButton.setText("Следующая ➡️");
-                nextButton.setCallbackData("top_clans_" + (page + 1) + "_" + userId);
-                navRow.add(nextButton);
-            }
-        } catch (SQLException e) {
-            logger.error("Failed to check next page of clans: {}", e.getMessage(), e);
+        if (clans.hasNext()) {
+            Clan last = clans.last();
+            InlineKeyboardButton nextButton = new InlineKeyboardButton();
+            nextButton.setText("Следующая ➡️");
+            nextButton.setCallbackData("top_clans_" + (page + 1) + "_" + PageCursor.after(last.getTotalPoints(), last.getId()).encode() + "_" + userId);
+            navRow.add(nextButton);
         }
         if (!navRow.isEmpty()) {
             rows.add(navRow);
@@ -1469,13 +1687,29 @@ public class Utils {
         editMessage(bot, chatId, messageId, text.toString(), keyboard);
     }
 
-    // Обработка удара в серии пенальти
+    // Обработка удара в серии пенальти. Удар и защиту присылают разные пользователи,
+    // их обновления обрабатываются параллельно, поэтому изменения игры сериализуются по её объекту
     public static void handlePenaltyKick(TelegramBot bot, DatabaseManager db, long chatId, int messageId, long userId, String direction, CallbackQuery callbackQuery) {
         TelegramBot.PenaltyGame currentGame = bot.getCurrentGame();
         if (currentGame == null) {
             sendMessage(bot, chatId, "Игра не найдена. Начните новую серию пенальти.");
             return;
         }
+        synchronized (currentGame) {
+            if (bot.getCurrentGame() != currentGame) {
+                sendMessage(bot, chatId, "Игра не найдена. Начните новую серию пенальти.");
+                return;
+            }
+            applyPenaltyKick(bot, db, chatId, messageId, userId, direction, callbackQuery);
+        }
+    }
+
+    private static void applyPenaltyKick(TelegramBot bot, DatabaseManager db, long chatId, int messageId, long userId, String direction, CallbackQuery callbackQuery) {
+        TelegramBot.PenaltyGame currentGame = bot.getCurrentGame();
+        if (currentGame == null) {
+            sendMessage(bot, chatId, "Игра не найдена. Начните новую серию пенальти.");
+            return;
+        }
 
         long kickerId = currentGame.kicker == 1 ? currentGame.challengerId : currentGame.opponentId;
         long keeperId = currentGame.kicker == 1 ? currentGame.opponentId : currentGame.challengerId;
@@ -1487,11 +1721,11 @@ public class Utils {
             answer.setCallbackQueryId(callbackQuery.getId());
             answer.setText("Сейчас не ваш ход!");
             answer.setShowAlert(true);
-            try {
-                bot.execute(answer);
-            } catch (Exception e) {
-                logger.error("Failed to send alert to user {}: {}", userId, e.getMessage(), e);
-            }
+            bot.getOutbox().execute(userId, answer, OutboundQueue.Priority.HIGH).whenComplete((sent, e) -> {
+                if (e != null) {
+                    logger.error("Failed to send alert to user {}: {}", userId, e.getMessage(), e);
+                }
+            });
             return;
         }
         if (currentGame.currentRound == 2 && userId != keeperId) {
@@ -1499,11 +1733,11 @@ public class Utils {
             answer.setCallbackQueryId(callbackQuery.getId());
             answer.setText("Сейчас не ваш ход!");
             answer.setShowAlert(true);
-            try {
-                bot.execute(answer);
-            } catch (Exception e) {
-                logger.error("Failed to send alert to user {}: {}", userId, e.getMessage(), e);
-            }
+            bot.getOutbox().execute(userId, answer, OutboundQueue.Priority.HIGH).whenComplete((sent, e) -> {
+                if (e != null) {
+                    logger.error("Failed to send alert to user {}: {}", userId, e.getMessage(), e);
+                }
+            });
             return;
         }
 
@@ -1609,7 +1843,8 @@ public class Utils {
 
         if (challengerScore > opponentScore) {
             text.append("🎉 Победитель: ").append(currentGame.challengerUsername).append("!");
-            try (DatabaseManager db = new DatabaseManager()) {
+            DatabaseManager db = bot.getDb();
+            try {
                 db.addPoints(currentGame.challengerId, 10);
                 db.addDollars(currentGame.challengerId, 50);
                 text.append("\nНаграда: +10 очков, +50 долларов");
@@ -1618,7 +1853,8 @@ public class Utils {
             }
         } else if (opponentScore > challengerScore) {
             text.append("🎉 Победитель: ").append(currentGame.opponentUsername).append("!");
-            try (DatabaseManager db = new DatabaseManager()) {
+            DatabaseManager db = bot.getDb();
+            try {
                 db.addPoints(currentGame.opponentId, 10);
                 db.addDollars(currentGame.opponentId, 50);
                 text.append("\nНаграда: +10 очков, +50 долларов");
@@ -2121,11 +2357,12 @@ public class Utils {
                 notification.setChatId(String.valueOf(member.getId()));
                 notification.setText("<b>Уведомление от клана:</b>\n" + message);
                 notification.setParseMode("HTML");
-                try {
-                    bot.execute(notification);
-                } catch (Exception e) {
-                    logger.error("Не удалось отправить уведомление пользователю {}: {}", member.getId(), e.getMessage(), e);
-                }
+                // Рассылка клану не должна задерживать ответы на действия пользователей
+                bot.getOutbox().execute(member.getId(), notification, OutboundQueue.Priority.LOW).whenComplete((sent, e) -> {
+                    if (e != null) {
+                        logger.error("Не удалось отправить уведомление пользователю {}: {}", member.getId(), e.getMessage(), e);
+                    }
+                });
             }
         } catch (SQLException e) {
             logger.error("Ошибка при получении членов клана {}: {}", clanId, e.getMessage(), e);
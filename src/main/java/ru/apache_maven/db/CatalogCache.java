@@ -0,0 +1,309 @@
+package ru.apache_maven.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.apache_maven.model.League;
+import ru.apache_maven.model.Player;
+import ru.apache_maven.model.PlayerCategory;
+import ru.apache_maven.model.Team;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntPredicate;
+
+/**
+ * Кэш справочных данных: лиги, команды, категории и каталог игроков.
+ * Все таблицы читаются целиком в неизменяемый снимок с ключами int; перезагрузка строит
+ * новый снимок и атомарно подменяет ссылку, поэтому читатели никогда не видят данные
+ * наполовину. Экземпляры из кэша разделяются всеми потоками и не должны изменяться.
+ * <p>
+ * Перезагрузка, не изменившая ни одной строки, оставляет прежний снимок и сообщает слушателю
+ * {@code changed = false}, чтобы зависимые кэши сбрасывались только при реальном изменении.
+ */
+public final class CatalogCache implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CatalogCache.class);
+
+    private final DataSource dataSource;
+    private final ReloadListener onReload;
+    private final Object reloadLock = new Object();
+    private volatile Snapshot snapshot;
+    private ScheduledExecutorService reloader;
+
+    /**
+     * @param dataSource источник соединений
+     * @param onReload   действие после каждой успешной перезагрузки (сброс зависимых кэшей)
+     */
+    public CatalogCache(DataSource dataSource, ReloadListener onReload) {
+        this.dataSource = dataSource;
+        this.onReload = onReload;
+    }
+
+    /**
+     * Перечитывает справочники из БД и подменяет текущий снимок.
+     */
+    public void reload() throws SQLException {
+        boolean changed;
+        synchronized (reloadLock) {
+            long start = System.nanoTime();
+            Snapshot loaded = load();
+            Snapshot previous = snapshot;
+            changed = previous == null || !Arrays.equals(previous.fingerprint, loaded.fingerprint);
+            if (changed) {
+                snapshot = loaded;
+                logger.info("Справочники загружены за {} мс: лиг {}, команд {}, категорий {}, игроков {}",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                        loaded.leagueList.size(), loaded.teams.size(), loaded.categoryList.size(), loaded.playerList.size());
+            } else {
+                logger.info("Справочники не изменились, проверка заняла {} мс",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+        onReload.onReload(changed);
+    }
+
+    /**
+     * Запускает периодическую перезагрузку справочников в фоновом потоке.
+     */
+    public synchronized void scheduleReload(long period, TimeUnit unit) {
+        if (reloader != null || period <= 0) {
+            return;
+        }
+        reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "catalog-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(() -> {
+            try {
+                reload();
+            } catch (SQLException | RuntimeException e) {
+                logger.error("Ошибка плановой перезагрузки справочников: {}", e.getMessage(), e);
+            }
+        }, period, period, unit);
+        logger.info("Плановая перезагрузка справочников каждые {} {}", period, unit.toString().toLowerCase());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+        }
+    }
+
+    public List<League> getLeagues() throws SQLException {
+        return current().leagueList;
+    }
+
+    public League getLeague(int leagueId) throws SQLException {
+        return current().leagues.get(leagueId);
+    }
+
+    public Team getTeam(int teamId) throws SQLException {
+        return current().teams.get(teamId);
+    }
+
+    public List<Team> getTeamsByLeague(int leagueId) throws SQLException {
+        List<Team> teams = current().teamsByLeague.get(leagueId);
+        return teams != null ? teams : Collections.emptyList();
+    }
+
+    public List<PlayerCategory> getCategories() throws SQLException {
+        return current().categoryList;
+    }
+
+    public PlayerCategory getCategory(int categoryId) throws SQLException {
+        return current().categories.get(categoryId);
+    }
+
+    public Player getPlayer(int playerId) throws SQLException {
+        return current().players.get(playerId);
+    }
+
+    /**
+     * Проверка наличия игрока в текущем снимке каталога; снимок фиксируется при вызове.
+     */
+    IntPredicate playerExists() throws SQLException {
+        IntObjectMap<Player> players = current().players;
+        return playerId -> players.get(playerId) != null;
+    }
+
+    public List<Player> getPlayers() throws SQLException {
+        return current().playerList;
+    }
+
+    /**
+     * Категория из текущего снимка без обращения к БД; null, если снимок ещё не загружен.
+     */
+    PlayerCategory peekCategory(int categoryId) {
+        Snapshot current = snapshot;
+        return current != null ? current.categories.get(categoryId) : null;
+    }
+
+    private Snapshot current() throws SQLException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (reloadLock) {
+                current = snapshot;
+                if (current == null) {
+                    current = load();
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private Snapshot load() throws SQLException {
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            Fingerprint fingerprint = new Fingerprint();
+            List<League> leagueList = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT id, name FROM leagues ORDER BY id")) {
+                while (rs.next()) {
+                    leagueList.add(new League(rs.getInt("id"), rs.getString("name")));
+                    fingerprint.add("league", rs.getInt("id"), rs.getString("name"));
+                }
+            }
+
+            List<Team> teamList = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT id, name, league_id FROM teams ORDER BY id")) {
+                while (rs.next()) {
+                    teamList.add(new Team(rs.getInt("id"), rs.getString("name"), rs.getInt("league_id")));
+                    fingerprint.add("team", rs.getInt("id"), rs.getString("name"), rs.getInt("league_id"));
+                }
+            }
+
+            List<PlayerCategory> categoryList = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT * FROM player_categories ORDER BY id")) {
+                while (rs.next()) {
+                    categoryList.add(new PlayerCategory(
+                            rs.getInt("id"),
+                            rs.getString("name"),
+                            rs.getInt("weight"),
+                            rs.getInt("points"),
+                            rs.getInt("dollars")
+                    ));
+                    fingerprint.add("category", rs.getInt("id"), rs.getString("name"), rs.getInt("weight"),
+                            rs.getInt("points"), rs.getInt("dollars"));
+                }
+            }
+            IntObjectMap<PlayerCategory> categories = new IntObjectMap<>(categoryList.size());
+            categoryList.forEach(category -> categories.put(category.getId(), category));
+
+            List<Player> playerList = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT id, name, team_id, position, rating, category_id, photo FROM players ORDER BY id")) {
+                while (rs.next()) {
+                    playerList.add(new Player(
+                            rs.getInt("id"),
+                            rs.getString("name"),
+                            rs.getInt("team_id"),
+                            rs.getString("position"),
+                            rs.getInt("rating"),
+                            categories.get(rs.getInt("category_id")),
+                            rs.getString("photo")
+                    ));
+                    fingerprint.add("player", rs.getInt("id"), rs.getString("name"), rs.getInt("team_id"),
+                            rs.getString("position"), rs.getInt("rating"), rs.getInt("category_id"), rs.getString("photo"));
+                }
+            }
+            return new Snapshot(leagueList, teamList, categoryList, categories, playerList, fingerprint.digest());
+        } catch (SQLException e) {
+            logger.error("Ошибка загрузки справочников: {}", e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    private static final class Snapshot {
+        final List<League> leagueList;
+        final IntObjectMap<League> leagues;
+        final IntObjectMap<Team> teams;
+        final IntObjectMap<List<Team>> teamsByLeague;
+        final List<PlayerCategory> categoryList;
+        final IntObjectMap<PlayerCategory> categories;
+        final List<Player> playerList;
+        final IntObjectMap<Player> players;
+        // SHA-256 всех прочитанных строк: равен у снимков с одинаковым содержимым
+        final byte[] fingerprint;
+
+        Snapshot(List<League> leagueList, List<Team> teamList, List<PlayerCategory> categoryList,
+                 IntObjectMap<PlayerCategory> categories, List<Player> playerList, byte[] fingerprint) {
+            this.fingerprint = fingerprint;
+            this.leagueList = Collections.unmodifiableList(leagueList);
+            this.leagues = new IntObjectMap<>(leagueList.size());
+            leagueList.forEach(league -> leagues.put(league.getId(), league));
+
+            this.teams = new IntObjectMap<>(teamList.size());
+            this.teamsByLeague = new IntObjectMap<>(leagueList.size());
+            for (Team team : teamList) {
+                teams.put(team.getId(), team);
+                List<Team> leagueTeams = teamsByLeague.get(team.getLeagueId());
+                if (leagueTeams == null) {
+                    leagueTeams = new ArrayList<>();
+                    teamsByLeague.put(team.getLeagueId(), leagueTeams);
+                }
+                leagueTeams.add(team);
+            }
+            for (League league : leagueList) {
+                List<Team> leagueTeams = teamsByLeague.get(league.getId());
+                if (leagueTeams != null) {
+                    teamsByLeague.put(league.getId(), Collections.unmodifiableList(leagueTeams));
+                }
+            }
+
+            this.categoryList = Collections.unmodifiableList(categoryList);
+            this.categories = categories;
+
+            this.playerList = Collections.unmodifiableList(playerList);
+            this.players = new IntObjectMap<>(playerList.size());
+            playerList.forEach(player -> players.put(player.getId(), player));
+        }
+    }
+
+    @FunctionalInterface
+    public interface ReloadListener {
+        /**
+         * @param changed true, если снимок заменён новым содержимым; false, если справочники
+         *                не изменились и остался прежний снимок
+         */
+        void onReload(boolean changed);
+    }
+
+    // Значения полей разделяются нулевым символом, строки — переводом строки
+    private static final class Fingerprint {
+        private final MessageDigest digest;
+
+        Fingerprint() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 недоступен", e);
+            }
+        }
+
+        void add(Object... values) {
+            for (Object value : values) {
+                digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            digest.update((byte) '\n');
+        }
+
+        byte[] digest() {
+            return digest.digest();
+        }
+    }
+}
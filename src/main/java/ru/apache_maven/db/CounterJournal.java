@@ -0,0 +1,171 @@
+package ru.apache_maven.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Локальный журнал начислений очков и долларов, ещё не записанных в БД.
+ * <p>
+ * Журнал состоит из сегментов {@code counters-<номер>.log} с записями фиксированной длины
+ * (id пользователя, очки, доллары). Запись дописывается до изменения счётчиков в памяти,
+ * поэтому после падения процесса несброшенные начисления восстанавливаются из сегментов,
+ * номер которых больше последнего применённого к БД. Недописанная запись в конце сегмента
+ * отбрасывается.
+ */
+final class CounterJournal implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CounterJournal.class);
+    static final int RECORD_SIZE = 3 * Long.BYTES;
+    private static final String PREFIX = "counters-";
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final boolean fsync;
+    private FileChannel channel;
+    private long segment;
+
+    /**
+     * @param dir   каталог сегментов, создаётся при необходимости
+     * @param fsync сбрасывать ли каждую запись на диск (иначе запись переживает падение процесса, но не ОС)
+     */
+    CounterJournal(Path dir, boolean fsync) throws IOException {
+        this.dir = dir;
+        this.fsync = fsync;
+        Files.createDirectories(dir);
+        long last = 0;
+        for (long existing : listSegments().keySet()) {
+            last = Math.max(last, existing);
+        }
+        open(last + 1);
+    }
+
+    /**
+     * Удаляет сегменты, уже применённые к БД, и суммирует записи остальных закрытых сегментов.
+     * @param appliedSegment номер последнего сегмента, записанного в БД
+     * @return несброшенные начисления: id пользователя → {очки, доллары}
+     */
+    synchronized Map<Long, long[]> recover(long appliedSegment) throws IOException {
+        if (segment <= appliedSegment) {
+            // Каталог журнала потерян или заменён: нумерация продолжается после применённых сегментов
+            channel.close();
+            Files.deleteIfExists(dir.resolve(PREFIX + segment + SUFFIX));
+            open(appliedSegment + 1);
+        }
+        Map<Long, long[]> pending = new HashMap<>();
+        for (Map.Entry<Long, Path> entry : listSegments().entrySet()) {
+            long number = entry.getKey();
+            if (number == segment) {
+                continue;
+            }
+            if (number <= appliedSegment) {
+                Files.deleteIfExists(entry.getValue());
+                continue;
+            }
+            int records = readSegment(entry.getValue(), pending);
+            logger.info("Из журнала {} восстановлено записей: {}", entry.getValue().getFileName(), records);
+        }
+        return pending;
+    }
+
+    /**
+     * Дописывает начисление в текущий сегмент. Можно вызывать из нескольких потоков.
+     */
+    void append(long userId, long points, long dollars) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(userId).putLong(points).putLong(dollars).flip();
+        FileChannel target = currentChannel();
+        while (record.hasRemaining()) {
+            target.write(record);
+        }
+        if (fsync) {
+            target.force(false);
+        }
+    }
+
+    /**
+     * Закрывает текущий сегмент и начинает следующий. Вызывающий код гарантирует,
+     * что параллельных {@link #append} нет.
+     * @return номер закрытого сегмента
+     */
+    synchronized long rotate() throws IOException {
+        long sealed = segment;
+        channel.force(false);
+        channel.close();
+        open(sealed + 1);
+        return sealed;
+    }
+
+    /**
+     * Удаляет сегменты с номером не больше {@code lastApplied}.
+     */
+    synchronized void deleteUpTo(long lastApplied) throws IOException {
+        for (Map.Entry<Long, Path> entry : listSegments().entrySet()) {
+            if (entry.getKey() <= lastApplied && entry.getKey() != segment) {
+                Files.deleteIfExists(entry.getValue());
+            }
+        }
+    }
+
+    synchronized long currentSegment() {
+        return segment;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+    }
+
+    private synchronized FileChannel currentChannel() {
+        return channel;
+    }
+
+    private void open(long number) throws IOException {
+        this.segment = number;
+        this.channel = FileChannel.open(dir.resolve(PREFIX + number + SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Map<Long, Path> listSegments() throws IOException {
+        Map<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    logger.warn("Посторонний файл в каталоге журнала: {}", name);
+                }
+            }
+        }
+        return segments;
+    }
+
+    private static int readSegment(Path file, Map<Long, long[]> pending) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+        int records = 0;
+        while (data.remaining() >= RECORD_SIZE) {
+            long userId = data.getLong();
+            long[] delta = pending.computeIfAbsent(userId, id -> new long[2]);
+            delta[0] += data.getLong();
+            delta[1] += data.getLong();
+            records++;
+        }
+        if (data.hasRemaining()) {
+            logger.warn("Недописанная запись в конце {} отброшена ({} байт)", file.getFileName(), data.remaining());
+        }
+        return records;
+    }
+}
@@ -1,128 +1,339 @@
 package ru.apache_maven.db;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.apache_maven.model.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 
 /**
- * Класс для управления соединением с базой данных и выполнения операций CRUD.
+ * Класс для управления пулом соединений с базой данных и выполнения операций CRUD.
+ * Каждый публичный метод берёт собственное соединение из пула и возвращает его по завершении,
+ * поэтому транзакции разных потоков не пересекаются.
  */
 public class DatabaseManager implements AutoCloseable {
     private static final Logger logger = LoggerFactory.getLogger(DatabaseManager.class);
-    private final Connection connection;
+    private final HikariDataSource dataSource;
+    private final Object samplerLock = new Object();
+    private volatile PlayerSampler playerSampler;
+    private final CatalogCache catalog;
+    private final OwnershipIndex ownership;
+    private final InventoryCache inventories;
+    private final WriteBehindCounters counters;
+    // id зарегистрированных пользователей: повторная регистрация не обращается к БД
+    private final LongHashSet knownUsers = new LongHashSet(1024);
+    // Рейтинг по очкам; пока пользователи не загружены, топ читается из БД
+    private final Leaderboard leaderboard = new Leaderboard();
+    private volatile boolean usersLoaded;
+    // Лоты рынка; пока книга не загружена, витрина читается из БД
+    private final MarketBook market = new MarketBook();
+    private volatile boolean marketLoaded;
 
     private static final String DB_URL = "jdbc:mysql://localhost:3306/flashcards?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true";
     private static final String USER = "root";
     private static final String PASS = "Oryn0basar";
     private static final long SPIN_COOLDOWN = 24 * 60 * 60 * 1000; // 24 часа в миллисекундах
 
+    // Параметры пула, переопределяются системными свойствами (-Ddb.pool.maxSize=20 и т.д.)
+    private static final int DEFAULT_POOL_MAX_SIZE = 10;
+    private static final int DEFAULT_POOL_MIN_IDLE = 2;
+    private static final long DEFAULT_CONNECTION_TIMEOUT_MS = 10_000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 600_000;
+    private static final long DEFAULT_MAX_LIFETIME_MS = 1_800_000;
+    private static final long DEFAULT_LEAK_DETECTION_MS = 30_000;
+    private static final long DEFAULT_CATALOG_RELOAD_MINUTES = 60;
+    // Суммарное число карточек в кэше инвентарей, переопределяется -Ddb.inventory.maxCards
+    private static final long DEFAULT_INVENTORY_MAX_CARDS = 200_000;
+    // Отложенная запись очков и долларов, переопределяется -Ddb.counters.*
+    private static final long DEFAULT_COUNTER_FLUSH_MS = 1_000;
+    private static final int DEFAULT_COUNTER_FLUSH_THRESHOLD = 500;
+    private static final String DEFAULT_COUNTER_JOURNAL_DIR = "counters-journal";
+    // Коды ошибок MySQL для нарушений ограничений
+    private static final int MYSQL_DUPLICATE_KEY = 1062;
+    private static final int MYSQL_NO_REFERENCED_ROW = 1452;
+
+    // Позиции состава; в ai_squads им соответствуют одноимённые колонки в нижнем регистре
+    private static final List<String> SQUAD_POSITIONS = List.of(
+            "GK", "CB1", "CB2", "CB3", "MID1", "MID2", "MID3", "FRW1", "FRW2", "FRW3", "EXTRA");
+    // Суммарные очки клана хранятся в clans.total_points и обновляются вместе с очками участников
+    private static final String CLAN_SELECT = "SELECT c.id, c.name, c.owner_id, c.total_points FROM clans c";
+    // Изменение очков пользователя вместе с суммой его клана, одним запросом
+    private static final String ADD_USER_POINTS_SQL = "UPDATE users u LEFT JOIN clan_members cm ON cm.user_id = u.id LEFT JOIN clans c ON c.id = cm.clan_id " +
+            "SET u.points = u.points + ?, c.total_points = c.total_points + ? WHERE u.id = ?";
+    private static final String PLAYER_SELECT = "SELECT p.*, pc.id as pc_id, pc.name as pc_name, pc.weight as pc_weight, pc.points as pc_points, pc.dollars as pc_dollars FROM players p JOIN player_categories pc ON p.category_id = pc.id";
+
     public DatabaseManager() {
+        this(createPoolConfig(DB_URL, USER, PASS));
+    }
+
+    public DatabaseManager(String dbUrl, String dbUser, String dbPassword) {
+        this(createPoolConfig(withPublicKeyRetrieval(dbUrl), dbUser, dbPassword));
+    }
+
+    public DatabaseManager(HikariConfig config) {
         try {
-            this.connection = DriverManager.getConnection(DB_URL, USER, PASS);
+            this.dataSource = new HikariDataSource(config);
+            this.ownership = new OwnershipIndex(dataSource);
+            this.inventories = new InventoryCache(Long.getLong("db.inventory.maxCards", DEFAULT_INVENTORY_MAX_CARDS));
+            this.catalog = new CatalogCache(dataSource, this::onCatalogReload);
+            this.counters = createCounters();
             initializeDatabase();
-            logger.info("Соединение с базой данных установлено");
-        } catch (SQLException e) {
-            logger.error("Ошибка при создании соединения: {}", e.getMessage(), e);
-            throw new RuntimeException("Не удалось создать соединение", e);
+            startCounters();
+            loadUsers();
+            loadReferenceData();
+            logger.info("Пул соединений с базой данных создан: maxSize={}, connectionTimeout={} мс, leakDetection={} мс",
+                    config.getMaximumPoolSize(), config.getConnectionTimeout(), config.getLeakDetectionThreshold());
+        } catch (RuntimeException e) {
+            logger.error("Ошибка при создании пула соединений: {}", e.getMessage(), e);
+            throw new RuntimeException("Не удалось создать пул соединений", e);
         }
     }
 
-    public DatabaseManager(String dbUrl, String dbUser, String dbPassword) {
-        if (!dbUrl.contains("allowPublicKeyRetrieval=true")) {
-            dbUrl += "&allowPublicKeyRetrieval=true";
-        }
+    private WriteBehindCounters createCounters() {
         try {
-            this.connection = DriverManager.getConnection(dbUrl, dbUser, dbPassword);
-            initializeDatabase();
-            logger.info("Соединение с базой данных установлено (конструктор с параметрами)");
+            CounterJournal journal = new CounterJournal(
+                    Paths.get(System.getProperty("db.counters.journalDir", DEFAULT_COUNTER_JOURNAL_DIR)),
+                    Boolean.parseBoolean(System.getProperty("db.counters.fsync", "true")));
+            return new WriteBehindCounters(dataSource, journal,
+                    Long.getLong("db.counters.flushMs", DEFAULT_COUNTER_FLUSH_MS),
+                    Integer.getInteger("db.counters.flushThreshold", DEFAULT_COUNTER_FLUSH_THRESHOLD));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Не удалось открыть журнал начислений", e);
+        }
+    }
+
+    // Снимок выдачи строится по каталогу; удаление игроков каскадно меняет user_players,
+    // а инвентари ссылаются на объекты прежнего каталога. Если справочники не изменились,
+    // кэши остаются; повторяется только незагруженная книга рынка
+    private void onCatalogReload(boolean changed) {
+        if (changed) {
+            invalidatePlayerSampler();
+            ownership.clear();
+            inventories.clear();
+            loadMarket();
+        } else if (!marketLoaded) {
+            loadMarket();
+        }
+    }
+
+    // Лоты индексируются по признакам игроков из каталога, поэтому книга перестраивается
+    // вместе с ним. При ошибке остаётся прежняя книга или, до первой загрузки, чтение из БД
+    private void loadMarket() {
+        String sql = "SELECT m.id, m.user_id, m.player_id, m.price, u.username FROM market m JOIN users u ON u.id = m.user_id";
+        try {
+            market.reload(() -> {
+                List<MarketBook.Lot> lots = new ArrayList<>();
+                try (Connection conn = dataSource.getConnection();
+                     PreparedStatement pstmt = conn.prepareStatement(sql);
+                     ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        lots.add(marketLot(rs.getLong("id"), rs.getLong("user_id"), rs.getString("username"),
+                                rs.getInt("player_id"), rs.getInt("price")));
+                    }
+                }
+                return lots;
+            });
+            marketLoaded = true;
+            logger.info("Загружено лотов рынка: {}", market.size());
         } catch (SQLException e) {
-            logger.error("Ошибка при создании соединения: {}", e.getMessage(), e);
-            throw new RuntimeException("Не удалось создать соединение", e);
+            logger.warn("Не удалось загрузить лоты рынка: {}", e.getMessage());
         }
     }
 
-    public Connection getConnection() {
-        return connection;
+    private MarketBook.Lot marketLot(long marketId, long sellerId, String sellerUsername, int playerId, int price) throws SQLException {
+        Player player = catalog.getPlayer(playerId);
+        if (player == null) {
+            return new MarketBook.Lot(marketId, sellerId, sellerUsername, playerId, price, 0, null, 0);
+        }
+        int categoryId = player.getCategory() != null ? player.getCategory().getId() : 0;
+        return new MarketBook.Lot(marketId, sellerId, sellerUsername, playerId, price,
+                categoryId, player.getPosition(), player.getRating());
     }
 
-    @Override
-    public void close() throws SQLException {
-        if (connection != null && !connection.isClosed()) {
-            connection.close();
-            logger.info("Соединение с базой данных закрыто");
+    private static long generatedId(PreparedStatement stmt) throws SQLException {
+        try (ResultSet rs = stmt.getGeneratedKeys()) {
+            if (!rs.next()) {
+                throw new SQLException("Не удалось получить ID созданного лота.");
+            }
+            return rs.getLong(1);
         }
     }
 
-    /**
-     * Инициализация таблиц базы данных.
-     */
-    private void initializeDatabase() {
-        try (Statement stmt = connection.createStatement()) {
-            // Таблица лиг
-            stmt.execute("CREATE TABLE IF NOT EXISTS leagues (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL UNIQUE) ENGINE=InnoDB");
-
-            // Таблица команд
-            stmt.execute("CREATE TABLE IF NOT EXISTS teams (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, league_id INT NOT NULL, FOREIGN KEY (league_id) REFERENCES leagues(id) ON DELETE CASCADE, UNIQUE KEY unique_team_in_league (name, league_id)) ENGINE=InnoDB");
-
-            // Таблица категорий игроков
-            stmt.execute("CREATE TABLE IF NOT EXISTS player_categories (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(50) NOT NULL UNIQUE, weight INT NOT NULL CHECK (weight >= 0), points INT NOT NULL CHECK (points >= 0), dollars INT NOT NULL CHECK (dollars >= 0)) ENGINE=InnoDB");
-
-            // Таблица игроков
-            stmt.execute("CREATE TABLE IF NOT EXISTS players (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, team_id INT NOT NULL, position VARCHAR(255) NOT NULL, rating INT NOT NULL CHECK (rating BETWEEN 0 AND 100), category_id INT NOT NULL, photo VARCHAR(255) NOT NULL, FOREIGN KEY (team_id) REFERENCES teams(id) ON DELETE CASCADE, FOREIGN KEY (category_id) REFERENCES player_categories(id) ON DELETE RESTRICT, INDEX idx_team_id (team_id), INDEX idx_category_id (category_id)) ENGINE=InnoDB");
-
-            // Таблица пользователей
-            stmt.execute("CREATE TABLE IF NOT EXISTS users (id BIGINT PRIMARY KEY, username VARCHAR(255) NOT NULL, last_spin TIMESTAMP NULL DEFAULT NULL, points BIGINT DEFAULT 0 CHECK (points >= 0), dollars INT DEFAULT 0 CHECK (dollars >= 0), gift_pack_claims INT DEFAULT 0 CHECK (gift_pack_claims >= 0), favorite_card_id INT DEFAULT NULL, title VARCHAR(255) DEFAULT 'Новичок', last_gift TIMESTAMP NULL DEFAULT NULL, FOREIGN KEY (favorite_card_id) REFERENCES players(id) ON DELETE SET NULL) ENGINE=InnoDB");
-
-            // Связь пользователь-игрок
-            stmt.execute("CREATE TABLE IF NOT EXISTS user_players (user_id BIGINT NOT NULL, player_id INT NOT NULL, PRIMARY KEY (user_id, player_id), FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (player_id) REFERENCES players(id) ON DELETE CASCADE, INDEX idx_user_id (user_id), INDEX idx_player_id (player_id)) ENGINE=InnoDB");
-
-            // Таблица кланов
-            stmt.execute("CREATE TABLE IF NOT EXISTS clans (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL UNIQUE, owner_id BIGINT NOT NULL, FOREIGN KEY (owner_id) REFERENCES users(id) ON DELETE CASCADE) ENGINE=InnoDB");
+    // Имя продавца для нового лота: из рейтинга в памяти, иначе из БД
+    private String sellerName(Connection conn, long userId) throws SQLException {
+        String username = leaderboard.username(userId);
+        if (username != null) {
+            return username;
+        }
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT username FROM users WHERE id = ?")) {
+            pstmt.setLong(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getString("username") : null;
+            }
+        }
+    }
 
-            // Связь клан-пользователь
-            stmt.execute("CREATE TABLE IF NOT EXISTS clan_members (clan_id INT NOT NULL, user_id BIGINT NOT NULL, PRIMARY KEY (clan_id, user_id), FOREIGN KEY (clan_id) REFERENCES clans(id) ON DELETE CASCADE, FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, INDEX idx_clan_id (clan_id), INDEX idx_user_id (user_id)) ENGINE=InnoDB");
+    // Вызываются после фиксации изменения user_players
+    private void cardAdded(long userId, int playerId) {
+        ownership.added(userId, playerId);
+        inventories.invalidate(userId);
+    }
 
-            // Таблица составов пользователей
-            stmt.execute("CREATE TABLE IF NOT EXISTS user_squads (user_id BIGINT NOT NULL, position VARCHAR(10) NOT NULL, player_id INT, PRIMARY KEY (user_id, position), FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (player_id) REFERENCES players(id) ON DELETE SET NULL) ENGINE=InnoDB");
+    private void cardRemoved(long userId, int playerId) {
+        ownership.removed(userId, playerId);
+        inventories.invalidate(userId);
+    }
 
-            // Таблица для футжобов
-            stmt.execute("CREATE TABLE IF NOT EXISTS footjobs (id INT AUTO_INCREMENT PRIMARY KEY, user_id BIGINT NOT NULL, target_user_id BIGINT NOT NULL, timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (target_user_id) REFERENCES users(id) ON DELETE CASCADE) ENGINE=InnoDB");
+    // Без восстановления журнала бот не стартует: начисления прошлого запуска иначе потерялись бы
+    private void startCounters() {
+        try {
+            counters.start();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Не удалось восстановить начисления из журнала", e);
+        }
+    }
 
-            // Таблица паков
-            stmt.execute("CREATE TABLE IF NOT EXISTS packs (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, description TEXT, price INT NOT NULL, player_count INT NOT NULL, category VARCHAR(50), is_daily BOOLEAN DEFAULT FALSE, cooldown_hours INT DEFAULT 0) ENGINE=InnoDB");
+    // Пользователи загружаются потоком для ensureUser и рейтинга. При ошибке каждый из них
+    // один раз пройдёт через upsert в ensureUser, а рейтинг будет читаться из БД
+    private void loadUsers() {
+        String sql = "SELECT id, username, points FROM users";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            pstmt.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    long userId = rs.getLong("id");
+                    knownUsers.add(userId);
+                    leaderboard.put(userId, rs.getString("username"), rs.getLong("points"));
+                }
+            }
+            usersLoaded = true;
+            logger.info("Загружено известных пользователей: {}", knownUsers.size());
+        } catch (SQLException e) {
+            logger.warn("Не удалось загрузить список пользователей при старте: {}", e.getMessage());
+        }
+    }
 
-            // Таблица паков пользователей
-            stmt.execute("CREATE TABLE IF NOT EXISTS user_packs (id INT AUTO_INCREMENT PRIMARY KEY, user_id BIGINT NOT NULL, pack_id INT NOT NULL, quantity INT DEFAULT 1, FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (pack_id) REFERENCES packs(id) ON DELETE CASCADE) ENGINE=InnoDB");
+    // Справочники загружаются заранее; при ошибке они будут подгружены при первом обращении
+    private void loadReferenceData() {
+        try {
+            catalog.reload();
+        } catch (SQLException e) {
+            logger.warn("Не удалось загрузить справочники при старте: {}", e.getMessage());
+        }
+        catalog.scheduleReload(Long.getLong("db.catalog.reloadMinutes", DEFAULT_CATALOG_RELOAD_MINUTES), TimeUnit.MINUTES);
+    }
+
+    /**
+     * Формирует конфигурацию пула. Размер пула, таймауты и порог обнаружения утечек
+     * берутся из системных свойств db.pool.*, иначе используются значения по умолчанию.
+     */
+    public static HikariConfig createPoolConfig(String dbUrl, String dbUser, String dbPassword) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(dbUrl);
+        config.setUsername(dbUser);
+        config.setPassword(dbPassword);
+        config.setPoolName("flashcards-pool");
+        config.setMaximumPoolSize(Integer.getInteger("db.pool.maxSize", DEFAULT_POOL_MAX_SIZE));
+        config.setMinimumIdle(Integer.getInteger("db.pool.minIdle", DEFAULT_POOL_MIN_IDLE));
+        config.setConnectionTimeout(Long.getLong("db.pool.connectionTimeoutMs", DEFAULT_CONNECTION_TIMEOUT_MS));
+        config.setIdleTimeout(Long.getLong("db.pool.idleTimeoutMs", DEFAULT_IDLE_TIMEOUT_MS));
+        config.setMaxLifetime(Long.getLong("db.pool.maxLifetimeMs", DEFAULT_MAX_LIFETIME_MS));
+        config.setLeakDetectionThreshold(Long.getLong("db.pool.leakDetectionMs", DEFAULT_LEAK_DETECTION_MS));
+        config.setAutoCommit(true);
+        // Кэш подготовленных выражений на стороне драйвера MySQL
+        config.addDataSourceProperty("cachePrepStmts", "true");
+        config.addDataSourceProperty("prepStmtCacheSize", "250");
+        config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+        config.addDataSourceProperty("useServerPrepStmts", "true");
+        // Пакеты executeBatch отправляются одним обращением к серверу
+        config.addDataSourceProperty("rewriteBatchedStatements", "true");
+        // UPDATE возвращает число найденных строк: на этом основана проверка существования в updateUser
+        config.addDataSourceProperty("useAffectedRows", "false");
+        return config;
+    }
+
+    private static String withPublicKeyRetrieval(String dbUrl) {
+        if (!dbUrl.contains("allowPublicKeyRetrieval=true")) {
+            dbUrl += (dbUrl.contains("?") ? "&" : "?") + "allowPublicKeyRetrieval=true";
+        }
+        return dbUrl;
+    }
 
-            // Таблица категорий сложности ИИ
-            stmt.execute("CREATE TABLE IF NOT EXISTS ai_difficulty_categories (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(50) NOT NULL UNIQUE, description VARCHAR(255)) ENGINE=InnoDB");
+    /**
+     * Возвращает соединение из пула. Вызывающий код обязан закрыть его (try-with-resources),
+     * чтобы вернуть соединение в пул.
+     */
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
 
-            // Таблица составов ИИ
-            stmt.execute("CREATE TABLE IF NOT EXISTS ai_squads (id INT AUTO_INCREMENT PRIMARY KEY, difficulty_id INT NOT NULL, name VARCHAR(255) NOT NULL, gk INT, cb1 INT, cb2 INT, cb3 INT, mid1 INT, mid2 INT, mid3 INT, frw1 INT, frw2 INT, frw3 INT, extra INT, FOREIGN KEY (difficulty_id) REFERENCES ai_difficulty_categories(id) ON DELETE CASCADE, FOREIGN KEY (gk) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (cb1) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (cb2) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (cb3) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (mid1) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (mid2) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (mid3) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (frw1) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (frw2) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (frw3) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (extra) REFERENCES players(id) ON DELETE SET NULL, UNIQUE KEY unique_squad_name (name, difficulty_id)) ENGINE=InnoDB");
+    /**
+     * Кэш справочников (лиги, команды, категории, игроки).
+     */
+    public CatalogCache getCatalog() {
+        return catalog;
+    }
 
-            // Добавляем начальные категории сложности
-            stmt.execute("INSERT IGNORE INTO ai_difficulty_categories (name, description) VALUES ('easy', 'Лёгкий бот'), ('medium', 'Средний бот'), ('hard', 'Сложный бот')");
+    /**
+     * Принудительная перезагрузка справочников, например после ручного изменения каталога в БД.
+     */
+    public void reloadCatalog() throws SQLException {
+        catalog.reload();
+    }
 
-            // Добавляем индекс для таблицы user_packs
+    @Override
+    public void close() throws SQLException {
+        counters.close();
+        catalog.close();
+        if (dataSource != null && !dataSource.isClosed()) {
+            dataSource.close();
+            logger.info("Пул соединений с базой данных закрыт");
+        }
+    }
 
-            logger.info("Таблицы базы данных успешно инициализированы.");
+    /**
+     * Приведение схемы к текущей версии. При актуальной схеме это один запрос номера версии.
+     */
+    private void initializeDatabase() {
+        try {
+            new SchemaMigrations(dataSource).migrate();
         } catch (SQLException e) {
             logger.error("Ошибка инициализации базы данных: {}", e.getMessage(), e);
             throw new RuntimeException("Не удалось инициализировать базу данных", e);
         }
     }
 
+    /**
+     * Пересчёт суммарных очков кланов по очкам участников, например после ручного изменения
+     * очков в БД. В обычной работе сумма поддерживается инкрементально.
+     */
+    public void recomputeClanTotals() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            SchemaMigrations.recomputeClanTotals(conn);
+        } catch (SQLException e) {
+            logger.error("Ошибка пересчёта очков кланов: {}", e.getMessage(), e);
+            throw e;
+        }
+    }
+
     /**
      * Получение списка категорий сложности ИИ.
      */
     public List<Map<String, String>> getAIDifficultyCategories() throws SQLException {
         List<Map<String, String>> categories = new ArrayList<>();
         String sql = "SELECT name, description FROM ai_difficulty_categories";
-        try (Statement stmt = connection.createStatement();
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
             while (rs.next()) {
                 Map<String, String> category = new HashMap<>();
@@ -139,24 +350,43 @@ public class DatabaseManager implements AutoCloseable {
 
     /**
      * Получение случайного состава ИИ для заданной категории сложности.
+     * Игроки берутся из кэша справочников; отсутствующие в нём догружаются одним запросом.
      */
     public Map<String, Player> getRandomAISquad(String difficulty) throws SQLException {
-        String sql = "SELECT * FROM ai_squads WHERE difficulty_id = (SELECT id FROM ai_difficulty_categories WHERE name = ?) ORDER BY RAND() LIMIT 1";
         Map<String, Player> squad = new HashMap<>();
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, difficulty);
+        int squadId = getPlayerSampler().nextAiSquadId(difficulty, ThreadLocalRandom.current());
+        if (squadId < 0) {
+            logger.warn("Составы для сложности {} не найдены", difficulty);
+            return squad;
+        }
+        String sql = "SELECT * FROM ai_squads WHERE id = ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, squadId);
+            Map<String, Integer> missing = new HashMap<>();
             try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    String[] positions = {"gk", "cb1", "cb2", "cb3", "mid1", "mid2", "mid3", "frw1", "frw2", "frw3", "extra"};
-                    for (String pos : positions) {
-                        int playerId = rs.getInt(pos);
-                        Player player = rs.wasNull() ? null : getPlayerById(playerId);
-                        squad.put(pos.toUpperCase(), player);
+                if (!rs.next()) {
+                    logger.warn("Состав ИИ с ID {} не найден, снимок каталога устарел", squadId);
+                    invalidatePlayerSampler();
+                    return squad;
+                }
+                for (String position : SQUAD_POSITIONS) {
+                    int playerId = rs.getInt(position.toLowerCase());
+                    if (rs.wasNull()) {
+                        squad.put(position, null);
+                        continue;
                     }
-                    logger.info("Выбран состав ИИ: {} для сложности {}", rs.getString("name"), difficulty);
-                } else {
-                    logger.warn("Составы для сложности {} не найдены", difficulty);
+                    Player player = catalog.getPlayer(playerId);
+                    if (player == null) {
+                        missing.put(position, playerId);
+                    }
+                    squad.put(position, player);
                 }
+                logger.info("Выбран состав ИИ: {} для сложности {}", rs.getString("name"), difficulty);
+            }
+            if (!missing.isEmpty()) {
+                Map<Integer, Player> loaded = getPlayersByIds(conn, missing.values());
+                missing.forEach((position, playerId) -> squad.put(position, loaded.get(playerId)));
             }
         } catch (SQLException e) {
             logger.error("Ошибка получения состава ИИ для сложности {}: {}", difficulty, e.getMessage(), e);
@@ -166,112 +396,63 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Получение списка всех категорий игроков.
+     * Получение списка всех категорий игроков (из кэша справочников).
      */
     public List<PlayerCategory> getPlayerCategories() throws SQLException {
-        List<PlayerCategory> categories = new ArrayList<>();
-        String sql = "SELECT * FROM player_categories";
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                categories.add(new PlayerCategory(
-                        rs.getInt("id"),
-                        rs.getString("name"),
-                        rs.getInt("weight"),
-                        rs.getInt("points"),
-                        rs.getInt("dollars")
-                ));
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения категорий игроков: {}", e.getMessage(), e);
-            throw e;
-        }
-        return categories;
+        return new ArrayList<>(catalog.getCategories());
     }
 
     /**
      * Получение категории игрока по ID.
      */
     public PlayerCategory getPlayerCategoryById(int categoryId) throws SQLException {
-        String sql = "SELECT * FROM player_categories WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, categoryId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return new PlayerCategory(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getInt("weight"),
-                            rs.getInt("points"),
-                            rs.getInt("dollars")
-                    );
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения категории игрока по ID {}: {}", categoryId, e.getMessage(), e);
-            throw e;
-        }
-        return null;
+        return catalog.getCategory(categoryId);
     }
 
     /**
      * Получение категории игрока по имени.
      */
     public PlayerCategory getPlayerCategoryByName(String categoryName) throws SQLException {
-        String sql = "SELECT * FROM player_categories WHERE name = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, categoryName);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return new PlayerCategory(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getInt("weight"),
-                            rs.getInt("points"),
-                            rs.getInt("dollars")
-                    );
-                }
+        for (PlayerCategory category : catalog.getCategories()) {
+            if (category.getName().equalsIgnoreCase(categoryName)) {
+                return category;
             }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения категории игрока по имени {}: {}", categoryName, e.getMessage(), e);
-            throw e;
         }
         throw new SQLException("Категория с именем " + categoryName + " не найдена");
     }
 
+    /**
+     * Категория из строки выборки с колонками pc_*: берётся общий экземпляр из кэша,
+     * новый объект создаётся только для категории, которой ещё нет в кэше.
+     */
+    private PlayerCategory categoryFromRow(ResultSet rs) throws SQLException {
+        PlayerCategory category = catalog.peekCategory(rs.getInt("pc_id"));
+        if (category != null) {
+            return category;
+        }
+        return new PlayerCategory(
+                rs.getInt("pc_id"),
+                rs.getString("pc_name"),
+                rs.getInt("pc_weight"),
+                rs.getInt("pc_points"),
+                rs.getInt("pc_dollars")
+        );
+    }
+
     /**
      * Получение списка всех лиг.
      */
     public List<League> getLeagues() throws SQLException {
-        List<League> leagues = new ArrayList<>();
-        String sql = "SELECT * FROM leagues";
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(sql)) {
-            while (rs.next()) {
-                leagues.add(new League(rs.getInt("id"), rs.getString("name")));
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения лиг: {}", e.getMessage(), e);
-            throw e;
-        }
-        return leagues;
+        return new ArrayList<>(catalog.getLeagues());
     }
 
     /**
      * Получение названия лиги по ID.
      */
     public String getLeagueName(int leagueId) throws SQLException {
-        String sql = "SELECT name FROM leagues WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, leagueId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("name");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения названия лиги с ID {}: {}", leagueId, e.getMessage(), e);
-            throw e;
+        League league = catalog.getLeague(leagueId);
+        if (league != null) {
+            return league.getName();
         }
         logger.warn("Лига с ID {} не найдена", leagueId);
         return "Unknown League (ID: " + leagueId + ")";
@@ -281,41 +462,16 @@ public class DatabaseManager implements AutoCloseable {
      * Получение списка команд по ID лиги.
      */
     public List<Team> getTeamsByLeague(int leagueId) throws SQLException {
-        List<Team> teams = new ArrayList<>();
-        String sql = "SELECT * FROM teams WHERE league_id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, leagueId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    teams.add(new Team(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getInt("league_id")
-                    ));
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения команд для лиги {}: {}", leagueId, e.getMessage(), e);
-            throw e;
-        }
-        return teams;
+        return new ArrayList<>(catalog.getTeamsByLeague(leagueId));
     }
 
     /**
      * Получение названия команды по ID.
      */
     public String getTeamName(int teamId) throws SQLException {
-        String sql = "SELECT name FROM teams WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, teamId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString("name");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения названия команды с ID {}: {}", teamId, e.getMessage(), e);
-            throw e;
+        Team team = catalog.getTeam(teamId);
+        if (team != null) {
+            return team.getName();
         }
         logger.warn("Команда с ID {} не найдена", teamId);
         return "Unknown Team (ID: " + teamId + ")";
@@ -325,181 +481,214 @@ public class DatabaseManager implements AutoCloseable {
      * Получение ID лиги команды.
      */
     public int getTeamLeagueId(int teamId) throws SQLException {
-        String sql = "SELECT league_id FROM teams WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, teamId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("league_id");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения ID лиги команды с ID {}: {}", teamId, e.getMessage(), e);
-            throw e;
+        Team team = catalog.getTeam(teamId);
+        if (team != null) {
+            return team.getLeagueId();
         }
         throw new SQLException("Команда с ID " + teamId + " не найдена");
     }
 
     /**
-     * Получение случайного игрока.
+     * Получение случайного игрока с учётом весов категорий.
      */
     public Player getRandomPlayer() throws SQLException {
-        List<PlayerCategory> categories = new ArrayList<>();
-        String sqlCategories = "SELECT * FROM player_categories WHERE weight > 0";
-        try (PreparedStatement stmt = connection.prepareStatement(sqlCategories);
-             ResultSet rs = stmt.executeQuery()) {
-            while (rs.next()) {
-                categories.add(new PlayerCategory(
-                        rs.getInt("id"),
-                        rs.getString("name"),
-                        rs.getInt("weight"),
-                        rs.getInt("points"),
-                        rs.getInt("dollars")
-                ));
-            }
-        }
-
-        if (categories.isEmpty()) {
-            logger.error("Нет категорий игроков с весом > 0");
+        PlayerSampler sampler = getPlayerSampler();
+        int playerId = sampler.nextPlayerId(ThreadLocalRandom.current());
+        if (playerId < 0) {
+            logger.error("Нет категорий игроков с весом > 0 и хотя бы одним игроком");
             return null;
         }
+        Player player = getSampledPlayer(playerId);
+        if (player != null) {
+            logger.info("Выбрана категория: {}", player.getCategory().getName());
+        }
+        return player;
+    }
 
-        int totalWeight = categories.stream().mapToInt(PlayerCategory::getWeight).sum();
-        if (totalWeight <= 0) {
-            logger.error("Общий вес категорий равен 0");
+    /**
+     * Получение случайного игрока по категории (по имени категории).
+     */
+    public Player getRandomPlayerByCategory(String categoryName) throws SQLException {
+        int playerId = getPlayerSampler().nextPlayerId(categoryName, ThreadLocalRandom.current());
+        if (playerId < 0) {
+            logger.warn("Игроки в категории {} не найдены", categoryName);
             return null;
         }
+        return getSampledPlayer(playerId);
+    }
 
-        double randomValue = Math.random() * totalWeight;
-        int cumulativeWeight = 0;
-        PlayerCategory selectedCategory = null;
-
-        for (PlayerCategory category : categories) {
-            cumulativeWeight += category.getWeight();
-            if (randomValue < cumulativeWeight) {
-                selectedCategory = category;
-                break;
-            }
+    private Player getSampledPlayer(int playerId) throws SQLException {
+        Player player = getPlayerById(playerId);
+        if (player == null) {
+            // Игрок удалён после построения снимка — перестроим его при следующей выдаче
+            logger.warn("Игрок с ID {} из снимка каталога не найден", playerId);
+            invalidatePlayerSampler();
         }
+        return player;
+    }
 
-        if (selectedCategory == null) {
-            selectedCategory = categories.get(categories.size() - 1);
-            logger.warn("Не удалось выбрать категорию на основе весов, выбираем последнюю категорию: {}", selectedCategory.getName());
+    /**
+     * Возвращает текущий снимок для случайной выдачи, загружая его при первом обращении.
+     */
+    public PlayerSampler getPlayerSampler() throws SQLException {
+        PlayerSampler sampler = playerSampler;
+        if (sampler == null) {
+            synchronized (samplerLock) {
+                sampler = playerSampler;
+                if (sampler == null) {
+                    sampler = reloadPlayerSampler();
+                }
+            }
         }
+        return sampler;
+    }
 
-        logger.info("Выбрана категория: {}", selectedCategory.getName());
-
-        Player player = getRandomPlayerByCategory(selectedCategory.getName());
-        if (player != null) {
-            return player;
+    /**
+     * Перестраивает снимок категорий, ID игроков и составов ИИ и атомарно подменяет текущий.
+     */
+    public PlayerSampler reloadPlayerSampler() throws SQLException {
+        List<PlayerCategory> categories = getPlayerCategories();
+        Map<Integer, int[]> playerIds = new HashMap<>();
+        Map<String, int[]> aiSquadIds = new HashMap<>();
+        Map<Integer, int[]> buffers = new HashMap<>();
+        Map<Integer, Integer> sizes = new HashMap<>();
+        for (Player player : catalog.getPlayers()) {
+            int categoryId = player.getCategory().getId();
+            int size = sizes.getOrDefault(categoryId, 0);
+            int[] buffer = buffers.computeIfAbsent(categoryId, k -> new int[16]);
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(buffer, size * 2);
+                buffers.put(categoryId, buffer);
+            }
+            buffer[size] = player.getId();
+            sizes.put(categoryId, size + 1);
         }
+        buffers.forEach((categoryId, buffer) -> playerIds.put(categoryId, Arrays.copyOf(buffer, sizes.get(categoryId))));
 
-        for (PlayerCategory fallbackCategory : categories) {
-            if (fallbackCategory.getId() == selectedCategory.getId()) continue;
-            player = getRandomPlayerByCategory(fallbackCategory.getName());
-            if (player != null) {
-                return player;
+        try (Connection conn = dataSource.getConnection()) {
+            Map<String, List<Integer>> squads = new HashMap<>();
+            try (Statement stmt = conn.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT s.id, d.name FROM ai_squads s JOIN ai_difficulty_categories d ON s.difficulty_id = d.id")) {
+                while (rs.next()) {
+                    squads.computeIfAbsent(rs.getString("name"), k -> new ArrayList<>()).add(rs.getInt("id"));
+                }
             }
+            squads.forEach((difficulty, ids) -> aiSquadIds.put(difficulty, ids.stream().mapToInt(Integer::intValue).toArray()));
+        } catch (SQLException e) {
+            logger.error("Ошибка построения снимка для случайной выдачи: {}", e.getMessage(), e);
+            throw e;
         }
 
-        logger.error("Игроки не найдены ни в одной категории");
-        return null;
+        PlayerSampler sampler = new PlayerSampler(categories, playerIds, aiSquadIds);
+        playerSampler = sampler;
+        logger.info("Снимок для случайной выдачи обновлён: категорий {}, составов ИИ {}", categories.size(), aiSquadIds.size());
+        return sampler;
     }
 
     /**
-     * Получение случайного игрока по категории (по имени категории).
+     * Сбрасывает снимок для случайной выдачи; он будет перестроен при следующем обращении.
      */
-    public Player getRandomPlayerByCategory(String categoryName) throws SQLException {
-        String sql = "SELECT p.*, pc.id as pc_id, pc.name as pc_name, pc.weight as pc_weight, pc.points as pc_points, pc.dollars as pc_dollars FROM players p JOIN player_categories pc ON p.category_id = pc.id WHERE pc.name = ? ORDER BY RAND() LIMIT 1";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setString(1, categoryName);
+    public void invalidatePlayerSampler() {
+        playerSampler = null;
+    }
+
+    /**
+     * Получение игрока по ID.
+     */
+    public Player getPlayerById(int playerId) throws SQLException {
+        Player cached = catalog.getPlayer(playerId);
+        if (cached != null) {
+            return cached;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            return getPlayerById(conn, playerId);
+        }
+    }
+
+    private Player getPlayerById(Connection conn, int playerId) throws SQLException {
+        Player cached = catalog.getPlayer(playerId);
+        if (cached != null) {
+            return cached;
+        }
+        String sql = PLAYER_SELECT + " WHERE p.id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, playerId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    PlayerCategory category = new PlayerCategory(
-                            rs.getInt("pc_id"),
-                            rs.getString("pc_name"),
-                            rs.getInt("pc_weight"),
-                            rs.getInt("pc_points"),
-                            rs.getInt("pc_dollars")
-                    );
-                    return new Player(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getInt("team_id"),
-                            rs.getString("position"),
-                            rs.getInt("rating"),
-                            category,
-                            rs.getString("photo")
-                    );
+                    return playerFromRow(rs);
                 }
             }
         } catch (SQLException e) {
-            logger.error("Ошибка при получении случайного игрока из категории {}: {}", categoryName, e.getMessage(), e);
+            logger.error("Ошибка получения игрока по ID {}: {}", playerId, e.getMessage(), e);
             throw e;
         }
         return null;
     }
 
     /**
-     * Получение игрока по ID.
+     * Загрузка нескольких игроков одним запросом.
      */
-    public Player getPlayerById(int playerId) throws SQLException {
-        String sql = "SELECT p.*, pc.id as pc_id, pc.name as pc_name, pc.weight as pc_weight, pc.points as pc_points, pc.dollars as pc_dollars FROM players p JOIN player_categories pc ON p.category_id = pc.id WHERE p.id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, playerId);
+    private Map<Integer, Player> getPlayersByIds(Connection conn, Collection<Integer> playerIds) throws SQLException {
+        Map<Integer, Player> players = new HashMap<>();
+        if (playerIds.isEmpty()) {
+            return players;
+        }
+        String placeholders = String.join(", ", Collections.nCopies(playerIds.size(), "?"));
+        String sql = PLAYER_SELECT + " WHERE p.id IN (" + placeholders + ")";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int index = 1;
+            for (int playerId : playerIds) {
+                pstmt.setInt(index++, playerId);
+            }
             try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    PlayerCategory category = new PlayerCategory(
-                            rs.getInt("pc_id"),
-                            rs.getString("pc_name"),
-                            rs.getInt("pc_weight"),
-                            rs.getInt("pc_points"),
-                            rs.getInt("pc_dollars")
-                    );
-                    return new Player(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getInt("team_id"),
-                            rs.getString("position"),
-                            rs.getInt("rating"),
-                            category,
-                            rs.getString("photo")
-                    );
+                while (rs.next()) {
+                    Player player = playerFromRow(rs);
+                    players.put(player.getId(), player);
                 }
             }
         } catch (SQLException e) {
-            logger.error("Ошибка получения игрока по ID {}: {}", playerId, e.getMessage(), e);
+            logger.error("Ошибка получения игроков по ID {}: {}", playerIds, e.getMessage(), e);
             throw e;
         }
-        return null;
+        return players;
+    }
+
+    /**
+     * Игрок из строки выборки с колонками p.* и pc_*; если игрок есть в кэше справочников, берётся оттуда.
+     */
+    private Player playerFromRow(ResultSet rs) throws SQLException {
+        Player cached = catalog.getPlayer(rs.getInt("id"));
+        if (cached != null) {
+            return cached;
+        }
+        return new Player(
+                rs.getInt("id"),
+                rs.getString("name"),
+                rs.getInt("team_id"),
+                rs.getString("position"),
+                rs.getInt("rating"),
+                categoryFromRow(rs),
+                rs.getString("photo")
+        );
     }
 
     /**
-     * Получение всех игроков пользователя.
+     * Получение всех игроков пользователя по убыванию рейтинга. Список берётся из кэша
+     * инвентарей и не изменяется.
      */
     public List<Player> getUserPlayers(long userId) throws SQLException {
+        return inventories.get(userId, this::loadUserPlayers);
+    }
+
+    private List<Player> loadUserPlayers(long userId) throws SQLException {
         List<Player> players = new ArrayList<>();
-        String sql = "SELECT p.*, pc.id as pc_id, pc.name as pc_name, pc.weight as pc_weight, pc.points as pc_points, pc.dollars as pc_dollars FROM players p JOIN player_categories pc ON p.category_id = pc.id JOIN user_players up ON p.id = up.player_id WHERE up.user_id = ? ORDER BY p.rating DESC";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        String sql = PLAYER_SELECT + " JOIN user_players up ON p.id = up.player_id WHERE up.user_id = ? ORDER BY p.rating DESC";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    PlayerCategory category = new PlayerCategory(
-                            rs.getInt("pc_id"),
-                            rs.getString("pc_name"),
-                            rs.getInt("pc_weight"),
-                            rs.getInt("pc_points"),
-                            rs.getInt("pc_dollars")
-                    );
-                    players.add(new Player(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getInt("team_id"),
-                            rs.getString("position"),
-                            rs.getInt("rating"),
-                            category,
-                            rs.getString("photo")
-                    ));
+                    players.add(playerFromRow(rs));
                 }
             }
         } catch (SQLException e) {
@@ -510,37 +699,14 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Получение игроков пользователя по ID команды.
+     * Получение игроков пользователя по ID команды, в порядке {@link #getUserPlayers}.
      */
     public List<Player> getUserPlayersByTeam(long userId, int teamId) throws SQLException {
         List<Player> players = new ArrayList<>();
-        String sql = "SELECT p.*, pc.id as pc_id, pc.name as pc_name, pc.weight as pc_weight, pc.points as pc_points, pc.dollars as pc_dollars FROM players p JOIN player_categories pc ON p.category_id = pc.id JOIN user_players up ON p.id = up.player_id WHERE up.user_id = ? AND p.team_id = ? ORDER BY p.rating DESC";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setLong(1, userId);
-            pstmt.setInt(2, teamId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    PlayerCategory category = new PlayerCategory(
-                            rs.getInt("pc_id"),
-                            rs.getString("pc_name"),
-                            rs.getInt("pc_weight"),
-                            rs.getInt("pc_points"),
-                            rs.getInt("pc_dollars")
-                    );
-                    players.add(new Player(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getInt("team_id"),
-                            rs.getString("position"),
-                            rs.getInt("rating"),
-                            category,
-                            rs.getString("photo")
-                    ));
-                }
+        for (Player player : getUserPlayers(userId)) {
+            if (player.getTeamId() == teamId) {
+                players.add(player);
             }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения игроков пользователя {} из команды {}: {}", userId, teamId, e.getMessage(), e);
-            throw e;
         }
         return players;
     }
@@ -548,9 +714,9 @@ public class DatabaseManager implements AutoCloseable {
     /**
      * Добавление нового игрока в таблицу players.
      */
-    private int addPlayer(Player player) throws SQLException {
+    private int addPlayer(Connection conn, Player player) throws SQLException {
         String sql = "INSERT INTO players (name, team_id, position, rating, category_id, photo) VALUES (?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
             pstmt.setString(1, player.getName());
             pstmt.setInt(2, player.getTeamId());
             pstmt.setString(3, player.getPosition());
@@ -581,9 +747,9 @@ public class DatabaseManager implements AutoCloseable {
     /**
      * Поиск ID игрока по его данным.
      */
-    private Integer getPlayerId(Player player) throws SQLException {
+    private Integer getPlayerId(Connection conn, Player player) throws SQLException {
         String sql = "SELECT id FROM players WHERE name = ? AND team_id = ? AND position = ? AND rating = ? AND category_id = ? AND photo = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, player.getName());
             pstmt.setInt(2, player.getTeamId());
             pstmt.setString(3, player.getPosition());
@@ -603,47 +769,60 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Получение или создание ID игрока.
-     */
-    private int getOrCreatePlayerId(Player player) throws SQLException {
-        Integer playerId = getPlayerId(player);
-        if (playerId == null) {
-            return addPlayer(player);
-        }
-        return playerId;
-    }
-
-    /**
-     * Добавление игрока пользователю.
+     * Добавление игрока пользователю. Для игрока из каталога это один INSERT: отсутствие
+     * пользователя и повторное получение определяются по ошибке ограничения.
      */
     public void addPlayerToUser(long userId, Player player) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            if (!userExists(userId)) {
-                throw new SQLException("Пользователь с ID " + userId + " не найден");
+        if (player.getId() > 0 && catalog.getPlayer(player.getId()) != null) {
+            try (Connection conn = dataSource.getConnection()) {
+                linkPlayerToUser(conn, userId, player.getId(), player.getName());
             }
-
-            int playerId = getOrCreatePlayerId(player);
-
-            String sql = "INSERT IGNORE INTO user_players (user_id, player_id) VALUES (?, ?)";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setLong(1, userId);
-                pstmt.setInt(2, playerId);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows > 0) {
-                    logger.info("Игрок {} (ID: {}) добавлен пользователю {}", player.getName(), playerId, userId);
-                } else {
-                    logger.info("Игрок {} (ID: {}) уже принадлежит пользователю {}", player.getName(), playerId, userId);
+            return;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Integer existingId = getPlayerId(conn, player);
+                int playerId = existingId != null ? existingId : addPlayer(conn, player);
+                linkPlayerToUser(conn, userId, playerId, player.getName());
+                conn.commit();
+                cardAdded(userId, playerId);
+                if (existingId == null) {
+                    // В каталоге появился новый игрок — снимок для выдачи устарел
+                    invalidatePlayerSampler();
                 }
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
+        }
+    }
 
-            connection.commit();
+    private void linkPlayerToUser(Connection conn, long userId, int playerId, String playerName) throws SQLException {
+        String sql = "INSERT INTO user_players (user_id, player_id) VALUES (?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, userId);
+            pstmt.setInt(2, playerId);
+            pstmt.executeUpdate();
+            logger.info("Игрок {} (ID: {}) добавлен пользователю {}", playerName, playerId, userId);
+            if (conn.getAutoCommit()) {
+                cardAdded(userId, playerId);
+            }
+        } catch (SQLIntegrityConstraintViolationException e) {
+            if (e.getErrorCode() == MYSQL_DUPLICATE_KEY) {
+                logger.info("Игрок {} (ID: {}) уже принадлежит пользователю {}", playerName, playerId, userId);
+                return;
+            }
+            if (e.getErrorCode() == MYSQL_NO_REFERENCED_ROW) {
+                throw new UserNotFoundException(userId);
+            }
+            logger.error("Ошибка при добавлении игрока пользователю {}: {}", userId, e.getMessage(), e);
+            throw e;
         } catch (SQLException e) {
-            connection.rollback();
             logger.error("Ошибка при добавлении игрока пользователю {}: {}", userId, e.getMessage(), e);
             throw e;
-        } finally {
-            connection.setAutoCommit(true);
         }
     }
 
@@ -651,8 +830,17 @@ public class DatabaseManager implements AutoCloseable {
      * Проверка существования пользователя.
      */
     public boolean userExists(long userId) throws SQLException {
+        if (knownUsers.contains(userId)) {
+            return true;
+        }
+        try (Connection conn = dataSource.getConnection()) {
+            return userExists(conn, userId);
+        }
+    }
+
+    private boolean userExists(Connection conn, long userId) throws SQLException {
         String sql = "SELECT 1 FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 return rs.next();
@@ -663,31 +851,123 @@ public class DatabaseManager implements AutoCloseable {
         }
     }
 
+    /**
+     * Чтение колонок пользователя одним запросом: пустой результат означает, что пользователя нет.
+     * @throws UserNotFoundException если пользователя нет
+     */
+    private <T> T readUser(Connection conn, long userId, String columns, RowReader<T> reader) throws SQLException {
+        String sql = "SELECT " + columns + " FROM users WHERE id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new UserNotFoundException(userId);
+                }
+                return reader.read(rs);
+            }
+        } catch (UserNotFoundException e) {
+            throw e;
+        } catch (SQLException e) {
+            logger.error("Ошибка получения {} для пользователя {}: {}", columns, userId, e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    private <T> T readUser(long userId, String columns, RowReader<T> reader) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return readUser(conn, userId, columns, reader);
+        }
+    }
+
+    /**
+     * Изменение строки пользователя одним запросом {@code UPDATE users ... WHERE id = ? [AND условие]}.
+     * Драйвер возвращает число найденных, а не изменённых строк (useAffectedRows=false), поэтому
+     * без условия 0 строк означает, что пользователя нет. С условием отсутствие пользователя
+     * отличается от невыполненного условия вторым запросом — только на этом, редком, пути.
+     */
+    private UpdateOutcome updateUser(Connection conn, long userId, String sql, boolean conditional, StatementBinder binder) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            binder.bind(pstmt);
+            if (pstmt.executeUpdate() > 0) {
+                return UpdateOutcome.APPLIED;
+            }
+        } catch (SQLException e) {
+            logger.error("Ошибка изменения пользователя {} ({}): {}", userId, sql, e.getMessage(), e);
+            throw e;
+        }
+        if (conditional && (knownUsers.contains(userId) || userExists(conn, userId))) {
+            return UpdateOutcome.REJECTED;
+        }
+        return UpdateOutcome.USER_NOT_FOUND;
+    }
+
+    private UpdateOutcome updateUser(long userId, String sql, boolean conditional, StatementBinder binder) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return updateUser(conn, userId, sql, conditional, binder);
+        }
+    }
+
+    // Изменение без условия: единственный неуспешный исход — отсутствие пользователя
+    private void requireUpdated(UpdateOutcome outcome, long userId) throws UserNotFoundException {
+        if (outcome != UpdateOutcome.APPLIED) {
+            throw new UserNotFoundException(userId);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    @FunctionalInterface
+    private interface StatementBinder {
+        void bind(PreparedStatement stmt) throws SQLException;
+    }
+
+    /**
+     * Регистрирует пользователя, если его ещё нет в памяти; известные пользователи обходятся без запроса к БД.
+     */
+    public boolean ensureUser(long userId, String username) throws SQLException {
+        if (knownUsers.contains(userId)) {
+            return false;
+        }
+        addUser(userId, username);
+        return true;
+    }
+
     /**
      * Добавление или обновление пользователя.
      */
     public void addUser(long userId, String username) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            String sql = "INSERT INTO users (id, username, points, dollars, gift_pack_claims, last_spin) VALUES (?, ?, 0, 0, 0, NULL) ON DUPLICATE KEY UPDATE username = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setLong(1, userId);
-                pstmt.setString(2, username);
-                pstmt.setString(3, username);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows > 0) {
-                    logger.info("Добавлен пользователь {}: {}", userId, username);
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                String sql = "INSERT INTO users (id, username, points, dollars, gift_pack_claims, last_spin) VALUES (?, ?, 0, 0, 0, NULL) ON DUPLICATE KEY UPDATE username = ?";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setLong(1, userId);
+                    pstmt.setString(2, username);
+                    pstmt.setString(3, username);
+                    int affectedRows = pstmt.executeUpdate();
+                    if (affectedRows > 0) {
+                        logger.info("Добавлен пользователь {}: {}", userId, username);
+                    } else {
+                        logger.info("Обновлено имя пользователя {}: {}", userId, username);
+                    }
+                }
+                conn.commit();
+                // Раз пользователи загружены, неизвестный пользователь только что создан с нулём очков
+                if (knownUsers.add(userId) && usersLoaded) {
+                    leaderboard.put(userId, username, 0);
                 } else {
-                    logger.info("Обновлено имя пользователя {}: {}", userId, username);
+                    leaderboard.rename(userId, username);
                 }
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Ошибка добавления пользователя {}: {}", userId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
-            connection.commit();
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка добавления пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
         }
     }
 
@@ -695,8 +975,14 @@ public class DatabaseManager implements AutoCloseable {
      * Получение пользователя по ID.
      */
     public User getUserById(long userId) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return counters.readConsistently(() -> readUserById(conn, userId));
+        }
+    }
+
+    private User readUserById(Connection conn, long userId) throws SQLException {
         String sql = "SELECT * FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
@@ -704,7 +990,7 @@ public class DatabaseManager implements AutoCloseable {
                     return new User(
                             rs.getLong("id"),
                             rs.getString("username"),
-                            rs.getLong("points"),
+                            rs.getLong("points") + counters.pendingPoints(userId),
                             rs.wasNull() ? null : favoriteCardId,
                             rs.getString("title")
                     );
@@ -718,232 +1004,150 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Начисление очков пользователю.
+     * Начисление очков пользователю. Положительное начисление записывается в БД отложенно,
+     * но сразу учитывается в {@link #getUserPoints} и {@link #getUserById}; списания сначала сбрасывают его в БД.
+     * @throws UserNotFoundException если пользователя нет
      */
     public void addPoints(long userId, int points) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
+        if (points >= 0) {
             if (!userExists(userId)) {
-                throw new SQLException("Пользователь с ID " + userId + " не найден");
-            }
-
-            String sql = "UPDATE users SET points = points + ? WHERE id = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setInt(1, points);
-                pstmt.setLong(2, userId);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows == 0) {
-                    throw new SQLException("Не удалось начислить очки: пользователь с ID " + userId + " не найден");
-                }
-                logger.info("Начислено {} очков пользователю {}", points, userId);
+                throw new UserNotFoundException(userId);
             }
-            connection.commit();
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка начисления очков пользователю {}: {}", userId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
+            counters.add(userId, points, 0);
+            leaderboard.addPoints(userId, points);
+            logger.info("Начислено {} очков пользователю {}", points, userId);
+            return;
         }
+        // Списание применяется к строке, уже содержащей отложенные начисления
+        counters.flushIfPending(userId);
+        requireUpdated(updateUser(userId, ADD_USER_POINTS_SQL, false, stmt -> {
+            stmt.setInt(1, points);
+            stmt.setInt(2, points);
+            stmt.setLong(3, userId);
+        }), userId);
+        leaderboard.addPoints(userId, points);
+        logger.info("Начислено {} очков пользователю {}", points, userId);
     }
 
     /**
-     * Начисление долларов пользователю.
+     * Начисление долларов пользователю. Положительное начисление записывается в БД отложенно,
+     * но сразу учитывается в {@link #getUserDollars}; списания сначала сбрасывают его в БД.
+     * @throws UserNotFoundException если пользователя нет
      */
     public void addDollars(long userId, int dollars) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
+        if (dollars >= 0) {
             if (!userExists(userId)) {
-                throw new SQLException("Пользователь с ID " + userId + " не найден");
-            }
-
-            String sql = "UPDATE users SET dollars = dollars + ? WHERE id = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setInt(1, dollars);
-                pstmt.setLong(2, userId);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows == 0) {
-                    throw new SQLException("Не удалось начислить доллары: пользователь с ID " + userId + " не найден");
-                }
-                logger.info("Начислено {} долларов пользователю {}", dollars, userId);
+                throw new UserNotFoundException(userId);
             }
-            connection.commit();
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка начисления долларов пользователю {}: {}", userId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
+            counters.add(userId, 0, dollars);
+            logger.info("Начислено {} долларов пользователю {}", dollars, userId);
+            return;
         }
+        counters.flushIfPending(userId);
+        requireUpdated(updateUser(userId, "UPDATE users SET dollars = dollars + ? WHERE id = ?", false, stmt -> {
+            stmt.setInt(1, dollars);
+            stmt.setLong(2, userId);
+        }), userId);
+        logger.info("Начислено {} долларов пользователю {}", dollars, userId);
     }
 
     /**
      * Получение количества долларов пользователя.
      */
     public int getUserDollars(long userId) throws SQLException {
-        if (!userExists(userId)) {
-            throw new SQLException("Пользователь с ID " + userId + " не найден");
+        try (Connection conn = dataSource.getConnection()) {
+            return counters.readConsistently(() -> getUserDollars(conn, userId) + (int) counters.pendingDollars(userId));
         }
-        String sql = "SELECT dollars FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setLong(1, userId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("dollars");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения долларов пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
-        }
-        return 0;
+    }
+
+    private int getUserDollars(Connection conn, long userId) throws SQLException {
+        return readUser(conn, userId, "dollars", rs -> rs.getInt("dollars"));
     }
 
     /**
      * Получение времени последнего спина пользователя.
      */
     public Timestamp getLastSpin(long userId) throws SQLException {
-        if (!userExists(userId)) {
-            throw new SQLException("Пользователь с ID " + userId + " не найден");
-        }
-        String sql = "SELECT last_spin FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setLong(1, userId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getTimestamp("last_spin");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения last_spin для пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
-        }
-        return null;
+        return readUser(userId, "last_spin", rs -> rs.getTimestamp("last_spin"));
     }
 
     /**
      * Обновление времени последнего спина пользователя.
      */
     public void updateLastSpin(long userId) throws SQLException {
-        if (!userExists(userId)) {
-            throw new SQLException("Пользователь с ID " + userId + " не найден");
-        }
-        String sql = "UPDATE users SET last_spin = ? WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            Timestamp now = new Timestamp(System.currentTimeMillis());
-            pstmt.setTimestamp(1, now);
-            pstmt.setLong(2, userId);
-            int affectedRows = pstmt.executeUpdate();
-            if (affectedRows == 0) {
-                throw new SQLException("Не удалось обновить время спина: пользователь с ID " + userId + " не найден");
-            }
-            logger.info("Обновлено время последнего спина для пользователя {}", userId);
-        } catch (SQLException e) {
-            logger.error("Ошибка обновления last_spin для пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
-        }
+        requireUpdated(updateUser(userId, "UPDATE users SET last_spin = ? WHERE id = ?", false, stmt -> {
+            stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+            stmt.setLong(2, userId);
+        }), userId);
+        logger.info("Обновлено время последнего спина для пользователя {}", userId);
     }
 
     /**
      * Получение количества полученных подарочных наборов пользователем.
      */
     public int getGiftPackClaims(long userId) throws SQLException {
-        if (!userExists(userId)) {
-            throw new SQLException("Пользователь с ID " + userId + " не найден");
-        }
-        String sql = "SELECT gift_pack_claims FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setLong(1, userId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getInt("gift_pack_claims");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения gift_pack_claims для пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
-        }
-        return 0;
+        return readUser(userId, "gift_pack_claims", rs -> rs.getInt("gift_pack_claims"));
     }
 
     /**
      * Проверка и сброс счётчика подарочных наборов, если прошло более 24 часов.
+     * Время спина и счётчик читаются одним запросом; сброс — второй запрос, только когда он нужен.
      */
     public int checkAndResetGiftPackClaims(long userId) throws SQLException {
-        Timestamp lastSpin = getLastSpin(userId);
-        long currentTime = System.currentTimeMillis();
-        if (lastSpin != null && (currentTime - lastSpin.getTime()) >= SPIN_COOLDOWN) {
+        long[] state = readUser(userId, "last_spin, gift_pack_claims", rs -> {
+            Timestamp lastSpin = rs.getTimestamp("last_spin");
+            return new long[]{lastSpin != null ? lastSpin.getTime() : -1, rs.getInt("gift_pack_claims")};
+        });
+        long lastSpin = state[0];
+        if (lastSpin >= 0 && (System.currentTimeMillis() - lastSpin) >= SPIN_COOLDOWN) {
             resetGiftPackClaims(userId);
             return 0;
         }
-        return getGiftPackClaims(userId);
+        return (int) state[1];
     }
 
     /**
      * Увеличение счетчика полученных подарочных наборов.
      */
     public void incrementGiftPackClaims(long userId) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            if (!userExists(userId)) {
-                throw new SQLException("Пользователь с ID " + userId + " не найден");
-            }
-
-            String sql = "UPDATE users SET gift_pack_claims = gift_pack_claims + 1 WHERE id = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setLong(1, userId);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows == 0) {
-                    throw new SQLException("Не удалось увеличить gift_pack_claims: пользователь с ID " + userId + " не найден");
-                }
-                logger.info("Увеличено gift_pack_claims для пользователя {}", userId);
-            }
-            connection.commit();
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка увеличения gift_pack_claims для пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
-        }
+        requireUpdated(updateUser(userId, "UPDATE users SET gift_pack_claims = gift_pack_claims + 1 WHERE id = ?", false,
+                stmt -> stmt.setLong(1, userId)), userId);
+        logger.info("Увеличено gift_pack_claims для пользователя {}", userId);
     }
 
     /**
      * Сброс количества полученных подарочных наборов.
      */
     public void resetGiftPackClaims(long userId) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            if (!userExists(userId)) {
-                throw new SQLException("Пользователь с ID " + userId + " не найден");
-            }
+        requireUpdated(updateUser(userId, "UPDATE users SET gift_pack_claims = 0 WHERE id = ?", false,
+                stmt -> stmt.setLong(1, userId)), userId);
+        logger.info("Сброшено gift_pack_claims для пользователя {}", userId);
+    }
 
-            String sql = "UPDATE users SET gift_pack_claims = 0 WHERE id = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setLong(1, userId);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows == 0) {
-                    throw new SQLException("Не удалось сбросить gift_pack_claims: пользователь с ID " + userId + " не найден");
-                }
-                logger.info("Сброшено gift_pack_claims для пользователя {}", userId);
-            }
-            connection.commit();
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка сброса gift_pack_claims для пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
+    /**
+     * Получение топ пользователей по очкам, включая ещё не записанные в БД начисления.
+     * Рейтинг хранится в памяти, поэтому у пользователей заполнены только id, имя и очки.
+     */
+    public List<User> getTopUsersByPoints(int limit) throws SQLException {
+        if (usersLoaded) {
+            return leaderboard.top(limit);
         }
+        return selectTopUsersByPoints(limit);
     }
 
     /**
-     * Получение топ пользователей по очкам.
+     * Место пользователя в рейтинге по очкам начиная с 1, или 0, если рейтинг ещё не загружен
+     * или пользователя в нём нет.
      */
-    public List<User> getTopUsersByPoints(int limit) throws SQLException {
+    public int getUserRank(long userId) {
+        return usersLoaded ? leaderboard.rank(userId) : 0;
+    }
+
+    private List<User> selectTopUsersByPoints(int limit) throws SQLException {
         List<User> users = new ArrayList<>();
         String sql = "SELECT * FROM users ORDER BY points DESC LIMIT ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, limit);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -968,22 +1172,10 @@ public class DatabaseManager implements AutoCloseable {
      * Получение очков пользователя.
      */
     public long getUserPoints(long userId) throws SQLException {
-        if (!userExists(userId)) {
-            throw new SQLException("Пользователь с ID " + userId + " не найден");
-        }
-        String sql = "SELECT points FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setLong(1, userId);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getLong("points");
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения очков пользователя {}: {}", userId, e.getMessage(), e);
-            throw e;
+        try (Connection conn = dataSource.getConnection()) {
+            return counters.readConsistently(() ->
+                    readUser(conn, userId, "points", rs -> rs.getLong("points")) + counters.pendingPoints(userId));
         }
-        return 0;
     }
 
     /**
@@ -991,7 +1183,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public void setFavoriteCard(long userId, int cardId) throws SQLException {
         String sql = "UPDATE users SET favorite_card_id = ? WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, cardId);
             pstmt.setLong(2, userId);
             int affectedRows = pstmt.executeUpdate();
@@ -1010,13 +1203,14 @@ public class DatabaseManager implements AutoCloseable {
      */
     public Player getFavoriteCard(long userId) throws SQLException {
         String sql = "SELECT favorite_card_id FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
                     int cardId = rs.getInt("favorite_card_id");
                     if (!rs.wasNull()) {
-                        return getPlayerById(cardId);
+                        return getPlayerById(conn, cardId);
                     }
                 }
             }
@@ -1032,7 +1226,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public void setTitle(long userId, String title) throws SQLException {
         String sql = "UPDATE users SET title = ? WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, title);
             pstmt.setLong(2, userId);
             int affectedRows = pstmt.executeUpdate();
@@ -1051,7 +1246,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public String getTitle(long userId) throws SQLException {
         String sql = "SELECT title FROM users WHERE id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
@@ -1069,17 +1265,58 @@ public class DatabaseManager implements AutoCloseable {
      * Подсчёт общего количества карточек в игре.
      */
     public int getTotalCardsCount() throws SQLException {
-        String sql = "SELECT COUNT(*) FROM players";
-        try (Statement stmt = connection.createStatement();
+        return catalog.getPlayers().size();
+    }
+
+    /**
+     * Все сохранённые file_id фото игроков.
+     */
+    public List<PhotoFileId> getPhotoFileIds() throws SQLException {
+        List<PhotoFileId> ids = new ArrayList<>();
+        String sql = "SELECT photo, content_hash, file_id FROM photo_file_ids";
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
-            if (rs.next()) {
-                return rs.getInt(1);
+            while (rs.next()) {
+                ids.add(new PhotoFileId(rs.getString("photo"), rs.getString("content_hash"), rs.getString("file_id")));
             }
         } catch (SQLException e) {
-            logger.error("Ошибка подсчёта общего количества карточек: {}", e.getMessage(), e);
+            logger.error("Ошибка получения file_id фото: {}", e.getMessage(), e);
+            throw e;
+        }
+        return ids;
+    }
+
+    /**
+     * Сохранение file_id фото; запись для того же пути заменяется.
+     */
+    public void savePhotoFileId(PhotoFileId id) throws SQLException {
+        String sql = "INSERT INTO photo_file_ids (photo, content_hash, file_id) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE content_hash = VALUES(content_hash), file_id = VALUES(file_id)";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, id.getPhoto());
+            stmt.setString(2, id.getContentHash());
+            stmt.setString(3, id.getFileId());
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Ошибка сохранения file_id фото {}: {}", id.getPhoto(), e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Удаление file_id фото, который Telegram перестал принимать.
+     */
+    public void deletePhotoFileId(String photo) throws SQLException {
+        String sql = "DELETE FROM photo_file_ids WHERE photo = ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, photo);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            logger.error("Ошибка удаления file_id фото {}: {}", photo, e.getMessage(), e);
             throw e;
         }
-        return 0;
     }
 
     /**
@@ -1087,7 +1324,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public void addFootjob(long userId, long targetUserId) throws SQLException {
         String sql = "INSERT INTO footjobs (user_id, target_user_id) VALUES (?, ?)";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             pstmt.setLong(2, targetUserId);
             int affectedRows = pstmt.executeUpdate();
@@ -1106,7 +1344,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public int getTotalFootjobsCount() throws SQLException {
         String sql = "SELECT COUNT(*) FROM footjobs";
-        try (Statement stmt = connection.createStatement();
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement();
              ResultSet rs = stmt.executeQuery(sql)) {
             if (rs.next()) {
                 return rs.getInt(1);
@@ -1119,46 +1358,47 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Получение топ кланов по суммарным очкам участников.
+     * Получение топ кланов по суммарным очкам участников, постранично по курсору (total_points, id).
+     * Выборка идёт по индексу idx_clans_total_points и не зависит от числа участников.
+     * @param cursor курсор страницы; null — первая страница
      */
-    public List<Clan> getTopClans(int page, int limit) throws SQLException {
+    public Page<Clan> getTopClans(PageCursor cursor, int limit) throws SQLException {
         List<Clan> clans = new ArrayList<>();
-        String sql = "SELECT c.id, c.name, c.owner_id, COALESCE(SUM(u.points), 0) as total_points FROM clans c LEFT JOIN clan_members cm ON c.id = cm.clan_id LEFT JOIN users u ON cm.user_id = u.id GROUP BY c.id, c.name, c.owner_id ORDER BY total_points DESC LIMIT ? OFFSET ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-            pstmt.setInt(1, limit);
-            pstmt.setInt(2, (page - 1) * limit);
+        String sql = CLAN_SELECT + " " +
+                (cursor != null ? "WHERE " + cursor.seekCondition("c.total_points", "c.id", true) + " " : "") +
+                "ORDER BY " + PageCursor.orderBy(cursor, "c.total_points", "c.id", true) + " LIMIT ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            int index = cursor != null ? cursor.bind(pstmt, 1) : 1;
+            pstmt.setInt(index, limit + 1);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
-                    clans.add(new Clan(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getLong("owner_id"),
-                            rs.getLong("total_points")
-                    ));
+                    clans.add(clanFromRow(rs));
                 }
             }
         } catch (SQLException e) {
             logger.error("Ошибка получения топ кланов: {}", e.getMessage(), e);
             throw e;
         }
-        return clans;
+        return Page.of(clans, cursor, limit);
     }
 
     /**
      * Получение клана пользователя.
      */
     public Clan getUserClan(long userId) throws SQLException {
-        String sql = "SELECT c.*, COALESCE(SUM(u.points), 0) as total_points FROM clans c JOIN clan_members cm ON c.id = cm.clan_id LEFT JOIN users u ON cm.user_id = u.id WHERE cm.user_id = ? GROUP BY c.id, c.name, c.owner_id";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection()) {
+            return getUserClan(conn, userId);
+        }
+    }
+
+    private Clan getUserClan(Connection conn, long userId) throws SQLException {
+        String sql = CLAN_SELECT + " JOIN clan_members cm ON c.id = cm.clan_id WHERE cm.user_id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    return new Clan(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getLong("owner_id"),
-                            rs.getLong("total_points")
-                    );
+                    return clanFromRow(rs);
                 }
             }
         } catch (SQLException e) {
@@ -1172,17 +1412,18 @@ public class DatabaseManager implements AutoCloseable {
      * Получение клана по ID.
      */
     public Clan getClanById(int clanId) throws SQLException {
-        String sql = "SELECT c.id, c.name, c.owner_id, COALESCE(SUM(u.points), 0) as total_points FROM clans c LEFT JOIN clan_members cm ON c.id = cm.clan_id LEFT JOIN users u ON cm.user_id = u.id WHERE c.id = ? GROUP BY c.id, c.name, c.owner_id";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection()) {
+            return getClanById(conn, clanId);
+        }
+    }
+
+    private Clan getClanById(Connection conn, int clanId) throws SQLException {
+        String sql = CLAN_SELECT + " WHERE c.id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, clanId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    return new Clan(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getLong("owner_id"),
-                            rs.getLong("total_points")
-                    );
+                    return clanFromRow(rs);
                 }
             }
         } catch (SQLException e) {
@@ -1192,21 +1433,21 @@ public class DatabaseManager implements AutoCloseable {
         return null;
     }
 
+    private Clan clanFromRow(ResultSet rs) throws SQLException {
+        return new Clan(rs.getInt("id"), rs.getString("name"), rs.getLong("owner_id"), rs.getLong("total_points"));
+    }
+
     /**
      * Получение клана по имени.
      */
     public Clan getClanByName(String name) throws SQLException {
-        String sql = "SELECT c.id, c.name, c.owner_id, COALESCE(SUM(u.points), 0) as total_points FROM clans c LEFT JOIN clan_members cm ON c.id = cm.clan_id LEFT JOIN users u ON cm.user_id = u.id WHERE c.name = ? GROUP BY c.id, c.name, c.owner_id";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        String sql = CLAN_SELECT + " WHERE c.name = ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setString(1, name);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
-                    return new Clan(
-                            rs.getInt("id"),
-                            rs.getString("name"),
-                            rs.getLong("owner_id"),
-                            rs.getLong("total_points")
-                    );
+                    return clanFromRow(rs);
                 }
             }
         } catch (SQLException e) {
@@ -1222,7 +1463,8 @@ public class DatabaseManager implements AutoCloseable {
     public List<User> getClanMembers(int clanId) throws SQLException {
         List<User> members = new ArrayList<>();
         String sql = "SELECT u.* FROM users u JOIN clan_members cm ON u.id = cm.user_id WHERE cm.clan_id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, clanId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -1247,50 +1489,84 @@ public class DatabaseManager implements AutoCloseable {
      * Присоединение пользователя к клану.
      */
     public void joinClan(long userId, int clanId) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            Clan clan = getClanById(clanId);
-            if (clan == null) {
-                throw new SQLException("Клан с ID " + clanId + " не найден");
-            }
-
-            String checkSql = "SELECT 1 FROM clan_members WHERE clan_id = ? AND user_id = ?";
-            try (PreparedStatement checkPstmt = connection.prepareStatement(checkSql)) {
-                checkPstmt.setInt(1, clanId);
-                checkPstmt.setLong(2, userId);
-                try (ResultSet rs = checkPstmt.executeQuery()) {
-                    if (rs.next()) {
-                        logger.info("Пользователь {} уже состоит в клане {}", userId, clanId);
-                        return;
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Clan clan = getClanById(conn, clanId);
+                if (clan == null) {
+                    throw new SQLException("Клан с ID " + clanId + " не найден");
+                }
+
+                String checkSql = "SELECT 1 FROM clan_members WHERE clan_id = ? AND user_id = ?";
+                try (PreparedStatement checkPstmt = conn.prepareStatement(checkSql)) {
+                    checkPstmt.setInt(1, clanId);
+                    checkPstmt.setLong(2, userId);
+                    try (ResultSet rs = checkPstmt.executeQuery()) {
+                        if (rs.next()) {
+                            logger.info("Пользователь {} уже состоит в клане {}", userId, clanId);
+                            return;
+                        }
                     }
                 }
-            }
 
-            Clan currentClan = getUserClan(userId);
-            if (currentClan != null) {
-                String sql = "DELETE FROM clan_members WHERE user_id = ?";
-                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                    pstmt.setLong(1, userId);
+                long points = lockUserPoints(conn, userId);
+                Clan currentClan = getUserClan(conn, userId);
+                if (currentClan != null) {
+                    String sql = "DELETE FROM clan_members WHERE user_id = ?";
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setLong(1, userId);
+                        pstmt.executeUpdate();
+                        logger.info("Пользователь {} покинул клан {} перед вступлением в новый", userId, currentClan.getId());
+                    }
+                    addClanPoints(conn, currentClan.getId(), -points);
+                }
+
+                String sql = "INSERT INTO clan_members (clan_id, user_id) VALUES (?, ?)";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setInt(1, clanId);
+                    pstmt.setLong(2, userId);
                     pstmt.executeUpdate();
-                    logger.info("Пользователь {} покинул клан {} перед вступлением в новый", userId, currentClan.getId());
                 }
+                addClanPoints(conn, clanId, points);
+
+                conn.commit();
+                logger.info("Пользователь {} присоединился к клану {}", userId, clanId);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Ошибка присоединения пользователя {} к клану {}: {}", userId, clanId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
+        }
+    }
 
-            String sql = "INSERT INTO clan_members (clan_id, user_id) VALUES (?, ?)";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setInt(1, clanId);
-                pstmt.setLong(2, userId);
-                pstmt.executeUpdate();
+    /**
+     * Блокирует строку пользователя до конца транзакции и возвращает его очки в БД.
+     * Строка users блокируется раньше строки clans, как и при начислении очков, поэтому
+     * смена клана и начисление не теряют обновлений суммы. Взаимоблокировка со сбросом
+     * начислений, который уже держит строку клана, возможна: сброс её повторяет, а смена
+     * клана завершается ошибкой без частичных изменений.
+     */
+    private long lockUserPoints(Connection conn, long userId) throws SQLException {
+        String sql = "SELECT points FROM users WHERE id = ? FOR UPDATE";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    throw new UserNotFoundException(userId);
+                }
+                return rs.getLong("points");
             }
+        }
+    }
 
-            connection.commit();
-            logger.info("Пользователь {} присоединился к клану {}", userId, clanId);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка присоединения пользователя {} к клану {}: {}", userId, clanId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
+    private void addClanPoints(Connection conn, int clanId, long delta) throws SQLException {
+        String sql = "UPDATE clans SET total_points = total_points + ? WHERE id = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, delta);
+            pstmt.setInt(2, clanId);
+            pstmt.executeUpdate();
         }
     }
 
@@ -1298,34 +1574,36 @@ public class DatabaseManager implements AutoCloseable {
      * Создание клана.
      */
     public int createClan(String name, long ownerId) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            String sql = "INSERT INTO clans (name, owner_id) VALUES (?, ?)";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-                pstmt.setString(1, name);
-                pstmt.setLong(2, ownerId);
-                int affectedRows = pstmt.executeUpdate();
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                String sql = "INSERT INTO clans (name, owner_id) VALUES (?, ?)";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    pstmt.setString(1, name);
+                    pstmt.setLong(2, ownerId);
+                    int affectedRows = pstmt.executeUpdate();
 
-                if (affectedRows == 0) {
-                    throw new SQLException("Создание клана не удалось, нет затронутых строк.");
-                }
+                    if (affectedRows == 0) {
+                        throw new SQLException("Создание клана не удалось, нет затронутых строк.");
+                    }
 
-                try (ResultSet rs = pstmt.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        int clanId = rs.getInt(1);
-                        logger.info("Создан клан: {} (ID: {})", name, clanId);
-                        return clanId;
-                    } else {
-                        throw new SQLException("Не удалось получить ID созданного клана.");
+                    try (ResultSet rs = pstmt.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            int clanId = rs.getInt(1);
+                            logger.info("Создан клан: {} (ID: {})", name, clanId);
+                            return clanId;
+                        } else {
+                            throw new SQLException("Не удалось получить ID созданного клана.");
+                        }
                     }
                 }
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Ошибка создания клана {}: {}", name, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка создания клана {}: {}", name, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
         }
     }
 
@@ -1333,39 +1611,43 @@ public class DatabaseManager implements AutoCloseable {
      * Покидание клана пользователем.
      */
     public void leaveClan(long id, long userId) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            Clan currentClan = getUserClan(userId);
-            if (currentClan == null) {
-                logger.info("Пользователь {} не состоит в клане", userId);
-                return;
-            }
-
-            if (currentClan.getOwnerId() == userId) {
-                String deleteClanSql = "DELETE FROM clans WHERE id = ?";
-                try (PreparedStatement pstmt = connection.prepareStatement(deleteClanSql)) {
-                    pstmt.setInt(1, currentClan.getId());
-                    pstmt.executeUpdate();
-                    logger.info("Клан {} удалён, так как пользователь {} был его владельцем", currentClan.getId(), userId);
-                }
-            } else {
-                String sql = "DELETE FROM clan_members WHERE user_id = ?";
-                try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                    pstmt.setLong(1, userId);
-                    int affectedRows = pstmt.executeUpdate();
-                    if (affectedRows > 0) {
-                        logger.info("Пользователь {} покинул клан {}", userId, currentClan.getId());
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                long points = lockUserPoints(conn, userId);
+                Clan currentClan = getUserClan(conn, userId);
+                if (currentClan == null) {
+                    logger.info("Пользователь {} не состоит в клане", userId);
+                    return;
+                }
+
+                if (currentClan.getOwnerId() == userId) {
+                    String deleteClanSql = "DELETE FROM clans WHERE id = ?";
+                    try (PreparedStatement pstmt = conn.prepareStatement(deleteClanSql)) {
+                        pstmt.setInt(1, currentClan.getId());
+                        pstmt.executeUpdate();
+                        logger.info("Клан {} удалён, так как пользователь {} был его владельцем", currentClan.getId(), userId);
+                    }
+                } else {
+                    String sql = "DELETE FROM clan_members WHERE user_id = ?";
+                    try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                        pstmt.setLong(1, userId);
+                        int affectedRows = pstmt.executeUpdate();
+                        if (affectedRows > 0) {
+                            logger.info("Пользователь {} покинул клан {}", userId, currentClan.getId());
+                        }
                     }
+                    addClanPoints(conn, currentClan.getId(), -points);
                 }
-            }
 
-            connection.commit();
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка выхода пользователя {} из клана: {}", userId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Ошибка выхода пользователя {} из клана: {}", userId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         }
     }
 
@@ -1373,30 +1655,32 @@ public class DatabaseManager implements AutoCloseable {
      * Удаление клана.
      */
     public void deleteClan(int clanId) throws SQLException {
-        connection.setAutoCommit(false);
-        try {
-            Clan clan = getClanById(clanId);
-            if (clan == null) {
-                throw new SQLException("Клан с ID " + clanId + " не найден");
-            }
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                Clan clan = getClanById(conn, clanId);
+                if (clan == null) {
+                    throw new SQLException("Клан с ID " + clanId + " не найден");
+                }
 
-            String sql = "DELETE FROM clans WHERE id = ?";
-            try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
-                pstmt.setInt(1, clanId);
-                int affectedRows = pstmt.executeUpdate();
-                if (affectedRows == 0) {
-                    throw new SQLException("Не удалось удалить клан: клан с ID " + clanId + " не найден");
+                String sql = "DELETE FROM clans WHERE id = ?";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    pstmt.setInt(1, clanId);
+                    int affectedRows = pstmt.executeUpdate();
+                    if (affectedRows == 0) {
+                        throw new SQLException("Не удалось удалить клан: клан с ID " + clanId + " не найден");
+                    }
+                    logger.info("Клан {} удалён", clanId);
                 }
-                logger.info("Клан {} удалён", clanId);
-            }
 
-            connection.commit();
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Ошибка удаления клана {}: {}", clanId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(true);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Ошибка удаления клана {}: {}", clanId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
         }
     }
 
@@ -1416,7 +1700,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public int getClanMemberCount(int clanId) throws SQLException {
         String sql = "SELECT COUNT(*) FROM clan_members WHERE clan_id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setInt(1, clanId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next()) {
@@ -1431,27 +1716,27 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Получение состава пользователя.
+     * Получение состава пользователя одним запросом: позиции вместе с данными игроков.
      */
     public Map<String, Player> getUserSquad(long userId) throws SQLException {
         Map<String, Player> squad = new HashMap<>();
-        String query = "SELECT position, player_id FROM user_squads WHERE user_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        String query = "SELECT us.position AS squad_position, us.player_id AS squad_player_id, p.*, pc.id as pc_id, pc.name as pc_name, pc.weight as pc_weight, pc.points as pc_points, pc.dollars as pc_dollars " +
+                "FROM user_squads us LEFT JOIN players p ON p.id = us.player_id LEFT JOIN player_categories pc ON p.category_id = pc.id WHERE us.user_id = ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
-                    String position = rs.getString("position");
-                    int playerId = rs.getInt("player_id");
-                    Player player = rs.wasNull() ? null : getPlayerById(playerId);
-                    squad.put(position, player);
+                    String position = rs.getString("squad_position");
+                    rs.getInt("squad_player_id");
+                    squad.put(position, rs.wasNull() ? null : playerFromRow(rs));
                 }
             }
         } catch (SQLException e) {
             logger.error("Ошибка получения состава пользователя {}: {}", userId, e.getMessage(), e);
             throw e;
         }
-        Arrays.asList("GK", "CB1", "CB2", "CB3", "MID1", "MID2", "MID3", "FRW1", "FRW2", "FRW3", "EXTRA")
-                .forEach(pos -> squad.putIfAbsent(pos, null));
+        SQUAD_POSITIONS.forEach(pos -> squad.putIfAbsent(pos, null));
         return squad;
     }
 
@@ -1460,7 +1745,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public void saveUserSquad(long userId, String position, Player player) throws SQLException {
         String query = "INSERT INTO user_squads (user_id, position, player_id) VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setString(2, position);
             if (player != null) {
@@ -1481,19 +1767,18 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Проверка, есть ли у пользователя определённый игрок.
+     * Проверка, есть ли у пользователя определённый игрок. Отвечает индекс владения в памяти;
+     * коллекция пользователя читается из БД только при первом обращении к нему.
      */
     public boolean checkUserHasPlayer(long userId, int playerId) throws SQLException {
-        String query = "SELECT COUNT(*) FROM user_players WHERE user_id = ? AND player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setLong(1, userId);
-            stmt.setInt(2, playerId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt(1) > 0;
-            }
-            return false;
-        }
+        return ownership.contains(userId, playerId);
+    }
+
+    /**
+     * Количество карточек в коллекции пользователя, без загрузки самих игроков.
+     */
+    public int getOwnedPlayerCount(long userId) throws SQLException {
+        return ownership.count(userId);
     }
 
     /**
@@ -1502,7 +1787,8 @@ public class DatabaseManager implements AutoCloseable {
     public List<Pack> getAvailablePacks() throws SQLException {
         List<Pack> packs = new ArrayList<>();
         String query = "SELECT * FROM packs WHERE price > 0";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
                     Pack pack = new Pack();
@@ -1534,7 +1820,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public Pack getPackById(int packId) throws SQLException {
         String query = "SELECT * FROM packs WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, packId);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -1558,6 +1845,7 @@ public class DatabaseManager implements AutoCloseable {
      * Покупка пака пользователем.
      */
     public void buyPack(long userId, int packId) throws SQLException {
+        counters.flushIfPending(userId);
         Pack pack = getPackById(packId);
         if (pack == null) {
             logger.error("Pack not found: packId={}", packId);
@@ -1570,51 +1858,53 @@ public class DatabaseManager implements AutoCloseable {
             throw new SQLException("Неверная цена пака: " + price);
         }
 
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Starting transaction for buying pack: userId={}, packId={}, price={}", userId, packId, price);
-
-            int userDollars = getUserDollars(userId);
-            if (userDollars < price) {
-                logger.warn("Insufficient dollars for userId={}: required={}, available={}", userId, price, userDollars);
-                throw new SQLException("Недостаточно долларов для покупки пака.");
-            }
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Starting transaction for buying pack: userId={}, packId={}, price={}", userId, packId, price);
 
-            String updateDollarsQuery = "UPDATE users SET dollars = dollars - ? WHERE id = ? AND dollars >= ?";
-            try (PreparedStatement stmt = connection.prepareStatement(updateDollarsQuery)) {
-                stmt.setInt(1, price);
-                stmt.setLong(2, userId);
-                stmt.setInt(3, price);
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 0) {
-                    logger.warn("Failed to deduct dollars for userId={}: insufficient funds", userId);
+                int userDollars = getUserDollars(conn, userId);
+                if (userDollars < price) {
+                    logger.warn("Insufficient dollars for userId={}: required={}, available={}", userId, price, userDollars);
                     throw new SQLException("Недостаточно долларов для покупки пака.");
                 }
-            }
 
-            String insertPackQuery = "INSERT INTO user_packs (user_id, pack_id, quantity) VALUES (?, ?, 1) ON DUPLICATE KEY UPDATE quantity = quantity + 1";
-            try (PreparedStatement stmt = connection.prepareStatement(insertPackQuery)) {
-                stmt.setLong(1, userId);
-                stmt.setInt(2, packId);
-                stmt.executeUpdate();
-            }
+                String updateDollarsQuery = "UPDATE users SET dollars = dollars - ? WHERE id = ? AND dollars >= ?";
+                try (PreparedStatement stmt = conn.prepareStatement(updateDollarsQuery)) {
+                    stmt.setInt(1, price);
+                    stmt.setLong(2, userId);
+                    stmt.setInt(3, price);
+                    int rowsAffected = stmt.executeUpdate();
+                    if (rowsAffected == 0) {
+                        logger.warn("Failed to deduct dollars for userId={}: insufficient funds", userId);
+                        throw new SQLException("Недостаточно долларов для покупки пака.");
+                    }
+                }
 
-            connection.commit();
-            logger.info("Successfully bought pack: userId={}, packId={}", userId, packId);
-        } catch (SQLException e) {
-            logger.error("Error during pack purchase: userId={}, packId={}, error={}", userId, packId, e.getMessage(), e);
-            try {
-                connection.rollback();
-            } catch (SQLException rollbackEx) {
-                logger.error("Failed to rollback transaction: userId={}, packId={}, error={}", userId, packId, rollbackEx.getMessage(), rollbackEx);
-            }
-            throw e;
-        } finally {
-            try {
-                connection.setAutoCommit(originalAutoCommit);
+                String insertPackQuery = "INSERT INTO user_packs (user_id, pack_id, quantity) VALUES (?, ?, 1) ON DUPLICATE KEY UPDATE quantity = quantity + 1";
+                try (PreparedStatement stmt = conn.prepareStatement(insertPackQuery)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, packId);
+                    stmt.executeUpdate();
+                }
+
+                conn.commit();
+                logger.info("Successfully bought pack: userId={}, packId={}", userId, packId);
             } catch (SQLException e) {
-                logger.error("Failed to restore autocommit state: {}", e.getMessage(), e);
+                logger.error("Error during pack purchase: userId={}, packId={}, error={}", userId, packId, e.getMessage(), e);
+                try {
+                    conn.rollback();
+                } catch (SQLException rollbackEx) {
+                    logger.error("Failed to rollback transaction: userId={}, packId={}, error={}", userId, packId, rollbackEx.getMessage(), rollbackEx);
+                }
+                throw e;
+            } finally {
+                try {
+                    conn.setAutoCommit(originalAutoCommit);
+                } catch (SQLException e) {
+                    logger.error("Failed to restore autocommit state: {}", e.getMessage(), e);
+                }
             }
         }
     }
@@ -1625,7 +1915,8 @@ public class DatabaseManager implements AutoCloseable {
     public List<Pack> getUserPacks(long userId) throws SQLException {
         List<Pack> packs = new ArrayList<>();
         String sql = "SELECT p.*, up.quantity FROM packs p JOIN user_packs up ON p.id = up.pack_id WHERE up.user_id = ?";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 while (rs.next()) {
@@ -1655,7 +1946,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public void addPackToUser(long userId, int packId) throws SQLException {
         String sql = "INSERT INTO user_packs (user_id, pack_id, quantity) VALUES (?, ?, 1) ON DUPLICATE KEY UPDATE quantity = quantity + 1";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
             stmt.setInt(2, packId);
             int affectedRows = stmt.executeUpdate();
@@ -1673,7 +1965,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public void removePackFromUser(long userId, int packId) throws SQLException {
         String sql = "DELETE FROM user_packs WHERE user_id = ? AND pack_id = ? LIMIT 1";
-        try (PreparedStatement pstmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
             pstmt.setLong(1, userId);
             pstmt.setInt(2, packId);
             int affectedRows = pstmt.executeUpdate();
@@ -1691,7 +1984,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public boolean checkUserHasPack(long userId, int packId) throws SQLException {
         String sql = "SELECT COUNT(*) FROM user_packs WHERE user_id = ? AND pack_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
             stmt.setInt(2, packId);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -1711,7 +2005,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public Timestamp getLastGift(long userId) throws SQLException {
         String query = "SELECT last_gift FROM users WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -1730,7 +2025,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public int getUserPackQuantity(long userId, int packId) throws SQLException {
         String query = "SELECT quantity FROM user_packs WHERE user_id = ? AND pack_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setInt(2, packId);
             ResultSet rs = stmt.executeQuery();
@@ -1752,63 +2048,166 @@ public class DatabaseManager implements AutoCloseable {
      * @throws SQLException если пак не найден, количество уже 0 или произошла ошибка базы данных
      */
     public void decrementUserPackQuantity(long userId, int packId) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Starting transaction to decrement pack quantity: userId={}, packId={}", userId, packId);
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Starting transaction to decrement pack quantity: userId={}, packId={}", userId, packId);
 
-            // Уменьшаем количество паков
-            String updateQuery = "UPDATE user_packs SET quantity = quantity - 1 WHERE user_id = ? AND pack_id = ? AND quantity > 0";
-            int rowsAffected;
-            try (PreparedStatement stmt = connection.prepareStatement(updateQuery)) {
-                stmt.setLong(1, userId);
-                stmt.setInt(2, packId);
-                rowsAffected = stmt.executeUpdate();
-            }
+                // Уменьшаем количество паков
+                String updateQuery = "UPDATE user_packs SET quantity = quantity - 1 WHERE user_id = ? AND pack_id = ? AND quantity > 0";
+                int rowsAffected;
+                try (PreparedStatement stmt = conn.prepareStatement(updateQuery)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, packId);
+                    rowsAffected = stmt.executeUpdate();
+                }
 
-            if (rowsAffected == 0) {
-                logger.warn("No pack found to decrement: userId={}, packId={}", userId, packId);
-                throw new SQLException("Пак не найден или его количество уже равно 0 для userId=" + userId + ", packId=" + packId);
-            }
-
-            // Проверяем, стало ли количество паков равным 0, и удаляем запись, если это так
-            String checkQuantityQuery = "SELECT quantity FROM user_packs WHERE user_id = ? AND pack_id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(checkQuantityQuery)) {
-                stmt.setLong(1, userId);
-                stmt.setInt(2, packId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next() && rs.getInt("quantity") == 0) {
-                        String deleteQuery = "DELETE FROM user_packs WHERE user_id = ? AND pack_id = ?";
-                        try (PreparedStatement deleteStmt = connection.prepareStatement(deleteQuery)) {
-                            deleteStmt.setLong(1, userId);
-                            deleteStmt.setInt(2, packId);
-                            deleteStmt.executeUpdate();
-                            logger.info("Removed pack entry as quantity reached 0: userId={}, packId={}", userId, packId);
+                if (rowsAffected == 0) {
+                    logger.warn("No pack found to decrement: userId={}, packId={}", userId, packId);
+                    throw new SQLException("Пак не найден или его количество уже равно 0 для userId=" + userId + ", packId=" + packId);
+                }
+
+                // Проверяем, стало ли количество паков равным 0, и удаляем запись, если это так
+                String checkQuantityQuery = "SELECT quantity FROM user_packs WHERE user_id = ? AND pack_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(checkQuantityQuery)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, packId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next() && rs.getInt("quantity") == 0) {
+                            String deleteQuery = "DELETE FROM user_packs WHERE user_id = ? AND pack_id = ?";
+                            try (PreparedStatement deleteStmt = conn.prepareStatement(deleteQuery)) {
+                                deleteStmt.setLong(1, userId);
+                                deleteStmt.setInt(2, packId);
+                                deleteStmt.executeUpdate();
+                                logger.info("Removed pack entry as quantity reached 0: userId={}, packId={}", userId, packId);
+                            }
                         }
                     }
                 }
+
+                // Фиксируем транзакцию
+                conn.commit();
+                logger.info("Successfully decremented pack quantity: userId={}, packId={}", userId, packId);
+            } catch (SQLException e) {
+                // Откатываем транзакцию в случае ошибки
+                try {
+                    conn.rollback();
+                    logger.error("Rolled back transaction due to error: userId={}, packId={}, error={}", userId, packId, e.getMessage(), e);
+                } catch (SQLException rollbackEx) {
+                    logger.error("Failed to rollback transaction: userId={}, packId={}, error={}", userId, packId, rollbackEx.getMessage(), rollbackEx);
+                }
+                throw e;
+            } finally {
+                // Восстанавливаем исходное состояние автокоммита
+                try {
+                    conn.setAutoCommit(originalAutoCommit);
+                } catch (SQLException e) {
+                    logger.error("Failed to restore autocommit state: {}", e.getMessage(), e);
+                }
             }
+        }
+    }
 
-            // Фиксируем транзакцию
-            connection.commit();
-            logger.info("Successfully decremented pack quantity: userId={}, packId={}", userId, packId);
-        } catch (SQLException e) {
-            // Откатываем транзакцию в случае ошибки
-            try {
-                connection.rollback();
-                logger.error("Rolled back transaction due to error: userId={}, packId={}, error={}", userId, packId, e.getMessage(), e);
-            } catch (SQLException rollbackEx) {
-                logger.error("Failed to rollback transaction: userId={}, packId={}, error={}", userId, packId, rollbackEx.getMessage(), rollbackEx);
+    /**
+     * Открытие пака одной транзакцией: все игроки выбираются заранее из снимка каталога,
+     * повторы определяются по индексу владения в памяти ещё до транзакции, затем списывается
+     * один пак, новые игроки добавляются одним пакетом INSERT и транзакция фиксируется один раз.
+     *
+     * @return выпавшие игроки с признаками повтора или null, если пака нет или у пользователя его нет
+     */
+    public PackOpening openPack(long userId, int packId) throws SQLException {
+        Pack pack = getPackById(packId);
+        if (pack == null || pack.getId() == 0) {
+            logger.error("Pack not found: packId={}", packId);
+            return null;
+        }
+        List<Player> drawn = drawPackPlayers(pack);
+        // До начала транзакции: холодная загрузка коллекции берёт своё соединение из пула
+        Set<Integer> owned = new HashSet<>();
+        for (Player player : drawn) {
+            if (ownership.contains(userId, player.getId())) {
+                owned.add(player.getId());
             }
-            throw e;
-        } finally {
-            // Восстанавливаем исходное состояние автокоммита
+        }
+
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
             try {
-                connection.setAutoCommit(originalAutoCommit);
+                if (!takeOnePack(conn, userId, packId)) {
+                    conn.rollback();
+                    logger.warn("No pack found to open: userId={}, packId={}", userId, packId);
+                    return null;
+                }
+                boolean[] duplicates = new boolean[drawn.size()];
+                String sql = "INSERT INTO user_players (user_id, player_id) VALUES (?, ?) ON DUPLICATE KEY UPDATE player_id = player_id";
+                try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                    for (int i = 0; i < drawn.size(); i++) {
+                        int playerId = drawn.get(i).getId();
+                        duplicates[i] = !owned.add(playerId);
+                        if (!duplicates[i]) {
+                            pstmt.setLong(1, userId);
+                            pstmt.setInt(2, playerId);
+                            pstmt.addBatch();
+                        }
+                    }
+                    pstmt.executeBatch();
+                }
+                conn.commit();
+                for (int i = 0; i < drawn.size(); i++) {
+                    if (!duplicates[i]) {
+                        cardAdded(userId, drawn.get(i).getId());
+                    }
+                }
+                logger.info("Пользователь {} открыл пак {}: игроков {}", userId, packId, drawn.size());
+                return new PackOpening(pack, drawn, duplicates);
+            } catch (SQLIntegrityConstraintViolationException e) {
+                conn.rollback();
+                if (e.getErrorCode() == MYSQL_NO_REFERENCED_ROW) {
+                    throw new UserNotFoundException(userId);
+                }
+                logger.error("Ошибка открытия пака {} пользователем {}: {}", packId, userId, e.getMessage(), e);
+                throw e;
             } catch (SQLException e) {
-                logger.error("Failed to restore autocommit state: {}", e.getMessage(), e);
+                conn.rollback();
+                logger.error("Ошибка открытия пака {} пользователем {}: {}", packId, userId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private List<Player> drawPackPlayers(Pack pack) throws SQLException {
+        List<Player> drawn = new ArrayList<>(pack.getPlayerCount());
+        for (int i = 0; i < pack.getPlayerCount(); i++) {
+            Player player = pack.getCategory() != null ? getRandomPlayerByCategory(pack.getCategory()) : getRandomPlayer();
+            if (player != null) {
+                drawn.add(player);
+            } else {
+                logger.warn("No player drawn for packId={}", pack.getId());
+            }
+        }
+        return drawn;
+    }
+
+    // Списывает один пак; строка с нулевым количеством удаляется тем же соединением
+    private boolean takeOnePack(Connection conn, long userId, int packId) throws SQLException {
+        String updateSql = "UPDATE user_packs SET quantity = quantity - 1 WHERE user_id = ? AND pack_id = ? AND quantity > 0 ORDER BY id LIMIT 1";
+        try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+            pstmt.setLong(1, userId);
+            pstmt.setInt(2, packId);
+            if (pstmt.executeUpdate() == 0) {
+                return false;
             }
         }
+        String deleteSql = "DELETE FROM user_packs WHERE user_id = ? AND pack_id = ? AND quantity = 0";
+        try (PreparedStatement pstmt = conn.prepareStatement(deleteSql)) {
+            pstmt.setLong(1, userId);
+            pstmt.setInt(2, packId);
+            pstmt.executeUpdate();
+        }
+        return true;
     }
 
     /**
@@ -1818,60 +2217,32 @@ public class DatabaseManager implements AutoCloseable {
      * @throws SQLException Если недостаточно долларов или произошла ошибка базы данных
      */
     public void deductDollars(long userId, int amount) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Starting transaction to deduct dollars: userId={}, amount={}", userId, amount);
-
-            // Проверяем текущий баланс
-            String checkQuery = "SELECT dollars FROM users WHERE id = ? FOR UPDATE";
-            int currentDollars;
-            try (PreparedStatement stmt = connection.prepareStatement(checkQuery)) {
-                stmt.setLong(1, userId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (!rs.next()) {
-                        logger.warn("User not found: userId={}", userId);
-                        throw new SQLException("Пользователь с ID " + userId + " не найден");
-                    }
-                    currentDollars = rs.getInt("dollars");
-                }
-            }
-
-            // Проверяем, достаточно ли долларов
-            if (currentDollars < amount) {
-                logger.warn("Insufficient dollars: userId={}, currentDollars={}, required={}", userId, currentDollars, amount);
-                throw new SQLException("Недостаточно долларов для списания: текущий баланс " + currentDollars + ", требуется " + amount);
-            }
-
-            // Вычитаем доллары
-            String updateQuery = "UPDATE users SET dollars = dollars - ? WHERE id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(updateQuery)) {
-                stmt.setInt(1, amount);
-                stmt.setLong(2, userId);
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 0) {
-                    logger.warn("Failed to deduct dollars: userId={}, amount={}", userId, amount);
-                    throw new SQLException("Не удалось списать доллары для пользователя с ID " + userId);
-                }
-            }
+        UpdateOutcome outcome = tryDeductDollars(userId, amount);
+        if (outcome == UpdateOutcome.USER_NOT_FOUND) {
+            throw new UserNotFoundException(userId);
+        }
+        if (outcome == UpdateOutcome.REJECTED) {
+            int currentDollars = getUserDollars(userId);
+            logger.warn("Insufficient dollars: userId={}, currentDollars={}, required={}", userId, currentDollars, amount);
+            throw new SQLException("Недостаточно долларов для списания: текущий баланс " + currentDollars + ", требуется " + amount);
+        }
+    }
 
-            connection.commit();
+    /**
+     * Списывает доллары одним условным запросом, если баланса хватает.
+     * @return {@link UpdateOutcome#REJECTED}, если долларов недостаточно
+     */
+    public UpdateOutcome tryDeductDollars(long userId, int amount) throws SQLException {
+        counters.flushIfPending(userId);
+        UpdateOutcome outcome = updateUser(userId, "UPDATE users SET dollars = dollars - ? WHERE id = ? AND dollars >= ?", true, stmt -> {
+            stmt.setInt(1, amount);
+            stmt.setLong(2, userId);
+            stmt.setInt(3, amount);
+        });
+        if (outcome == UpdateOutcome.APPLIED) {
             logger.info("Successfully deducted {} dollars from userId={}", amount, userId);
-        } catch (SQLException e) {
-            try {
-                connection.rollback();
-                logger.error("Rolled back transaction due to error: userId={}, amount={}, error={}", userId, amount, e.getMessage(), e);
-            } catch (SQLException rollbackEx) {
-                logger.error("Failed to rollback transaction: userId={}, amount={}, error={}", userId, amount, rollbackEx.getMessage(), rollbackEx);
-            }
-            throw e;
-        } finally {
-            try {
-                connection.setAutoCommit(originalAutoCommit);
-            } catch (SQLException e) {
-                logger.error("Failed to restore autocommit state: {}", e.getMessage(), e);
-            }
         }
+        return outcome;
     }
 
     /**
@@ -1880,190 +2251,208 @@ public class DatabaseManager implements AutoCloseable {
      * @throws SQLException Если пользователь не найден или произошла ошибка базы данных
      */
     public void updateLastGift(long userId) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Starting transaction to update last gift timestamp: userId={}", userId);
-
-            // Обновляем поле last_gift
-            String updateQuery = "UPDATE users SET last_gift = ? WHERE id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(updateQuery)) {
-                stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
-                stmt.setLong(2, userId);
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 0) {
-                    logger.warn("User not found for updating last gift: userId={}", userId);
-                    throw new SQLException("Пользователь с ID " + userId + " не найден");
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Starting transaction to update last gift timestamp: userId={}", userId);
+
+                // Обновляем поле last_gift
+                String updateQuery = "UPDATE users SET last_gift = ? WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(updateQuery)) {
+                    stmt.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+                    stmt.setLong(2, userId);
+                    int rowsAffected = stmt.executeUpdate();
+                    if (rowsAffected == 0) {
+                        logger.warn("User not found for updating last gift: userId={}", userId);
+                        throw new SQLException("Пользователь с ID " + userId + " не найден");
+                    }
                 }
-            }
 
-            connection.commit();
-            logger.info("Successfully updated last gift timestamp for userId={}", userId);
-        } catch (SQLException e) {
-            try {
-                connection.rollback();
-                logger.error("Rolled back transaction due to error: userId={}, error={}", userId, e.getMessage(), e);
-            } catch (SQLException rollbackEx) {
-                logger.error("Failed to rollback transaction: userId={}, error={}", userId, rollbackEx.getMessage(), rollbackEx);
-            }
-            throw e;
-        } finally {
-            try {
-                connection.setAutoCommit(originalAutoCommit);
+                conn.commit();
+                logger.info("Successfully updated last gift timestamp for userId={}", userId);
             } catch (SQLException e) {
-                logger.error("Failed to restore autocommit state: {}", e.getMessage(), e);
+                try {
+                    conn.rollback();
+                    logger.error("Rolled back transaction due to error: userId={}, error={}", userId, e.getMessage(), e);
+                } catch (SQLException rollbackEx) {
+                    logger.error("Failed to rollback transaction: userId={}, error={}", userId, rollbackEx.getMessage(), rollbackEx);
+                }
+                throw e;
+            } finally {
+                try {
+                    conn.setAutoCommit(originalAutoCommit);
+                } catch (SQLException e) {
+                    logger.error("Failed to restore autocommit state: {}", e.getMessage(), e);
+                }
             }
         }
     }
     // Методы дружбы
     public void sendFriendRequest(long senderId, String targetUsername) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Sending friend request: senderId={}, targetUsername={}", senderId, targetUsername);
-
-            String findUserQuery = "SELECT id FROM users WHERE username = ?";
-            long targetId;
-            try (PreparedStatement stmt = connection.prepareStatement(findUserQuery)) {
-                stmt.setString(1, targetUsername);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (!rs.next()) {
-                        logger.warn("Target user not found: username={}", targetUsername);
-                        throw new SQLException("Пользователь с именем " + targetUsername + " не найден");
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Sending friend request: senderId={}, targetUsername={}", senderId, targetUsername);
+
+                String findUserQuery = "SELECT id FROM users WHERE username = ?";
+                long targetId;
+                try (PreparedStatement stmt = conn.prepareStatement(findUserQuery)) {
+                    stmt.setString(1, targetUsername);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            logger.warn("Target user not found: username={}", targetUsername);
+                            throw new SQLException("Пользователь с именем " + targetUsername + " не найден");
+                        }
+                        targetId = rs.getLong("id");
                     }
-                    targetId = rs.getLong("id");
                 }
-            }
 
-            if (senderId == targetId) {
-                logger.warn("User attempted to add themselves as friend: userId={}", senderId);
-                throw new SQLException("Нельзя добавить себя в друзья");
-            }
+                if (senderId == targetId) {
+                    logger.warn("User attempted to add themselves as friend: userId={}", senderId);
+                    throw new SQLException("Нельзя добавить себя в друзья");
+                }
 
-            String checkQuery = "SELECT id FROM friends WHERE (user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(checkQuery)) {
-                long minId = Math.min(senderId, targetId);
-                long maxId = Math.max(senderId, targetId);
-                stmt.setLong(1, minId);
-                stmt.setLong(2, maxId);
-                stmt.setLong(3, maxId);
-                stmt.setLong(4, minId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        logger.warn("Friendship or request already exists: senderId={}, targetId={}", senderId, targetId);
-                        throw new SQLException("Запрос на дружбу уже отправлен или вы уже друзья");
+                String checkQuery = "SELECT id FROM friends WHERE (user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(checkQuery)) {
+                    long minId = Math.min(senderId, targetId);
+                    long maxId = Math.max(senderId, targetId);
+                    stmt.setLong(1, minId);
+                    stmt.setLong(2, maxId);
+                    stmt.setLong(3, maxId);
+                    stmt.setLong(4, minId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            logger.warn("Friendship or request already exists: senderId={}, targetId={}", senderId, targetId);
+                            throw new SQLException("Запрос на дружбу уже отправлен или вы уже друзья");
+                        }
                     }
                 }
-            }
 
-            String insertQuery = "INSERT INTO friends (user_id_1, user_id_2, status) VALUES (?, ?, 'pending')";
-            try (PreparedStatement stmt = connection.prepareStatement(insertQuery)) {
-                stmt.setLong(1, Math.min(senderId, targetId));
-                stmt.setLong(2, Math.max(senderId, targetId));
-                stmt.executeUpdate();
-            }
+                String insertQuery = "INSERT INTO friends (user_id_1, user_id_2, status) VALUES (?, ?, 'pending')";
+                try (PreparedStatement stmt = conn.prepareStatement(insertQuery)) {
+                    stmt.setLong(1, Math.min(senderId, targetId));
+                    stmt.setLong(2, Math.max(senderId, targetId));
+                    stmt.executeUpdate();
+                }
 
-            connection.commit();
-            logger.info("Friend request sent: senderId={}, targetId={}", senderId, targetId);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Failed to send friend request: senderId={}, targetUsername={}, error={}", senderId, targetUsername, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(originalAutoCommit);
+                conn.commit();
+                logger.info("Friend request sent: senderId={}, targetId={}", senderId, targetId);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to send friend request: senderId={}, targetUsername={}, error={}", senderId, targetUsername, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
     public void acceptFriendRequest(long userId, long friendId) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Accepting friend request: userId={}, friendId={}", userId, friendId);
-
-            String updateQuery = "UPDATE friends SET status = 'accepted' WHERE (user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(updateQuery)) {
-                long minId = Math.min(userId, friendId);
-                long maxId = Math.max(userId, friendId);
-                stmt.setLong(1, minId);
-                stmt.setLong(2, maxId);
-                stmt.setLong(3, maxId);
-                stmt.setLong(4, minId);
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 0) {
-                    logger.warn("No pending request found: userId={}, friendId={}", userId, friendId);
-                    throw new SQLException("Запрос на дружбу не найден");
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Accepting friend request: userId={}, friendId={}", userId, friendId);
+
+                String updateQuery = "UPDATE friends SET status = 'accepted' WHERE (user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(updateQuery)) {
+                    long minId = Math.min(userId, friendId);
+                    long maxId = Math.max(userId, friendId);
+                    stmt.setLong(1, minId);
+                    stmt.setLong(2, maxId);
+                    stmt.setLong(3, maxId);
+                    stmt.setLong(4, minId);
+                    int rowsAffected = stmt.executeUpdate();
+                    if (rowsAffected == 0) {
+                        logger.warn("No pending request found: userId={}, friendId={}", userId, friendId);
+                        throw new SQLException("Запрос на дружбу не найден");
+                    }
                 }
-            }
 
-            connection.commit();
-            logger.info("Friend request accepted: userId={}, friendId={}", userId, friendId);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Failed to accept friend request: userId={}, friendId={}, error={}", userId, friendId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(originalAutoCommit);
+                conn.commit();
+                logger.info("Friend request accepted: userId={}, friendId={}", userId, friendId);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to accept friend request: userId={}, friendId={}, error={}", userId, friendId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
     public void rejectFriendRequest(long userId, long friendId) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Rejecting friend request: userId={}, friendId={}", userId, friendId);
-
-            String deleteQuery = "DELETE FROM friends WHERE (user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-                long minId = Math.min(userId, friendId);
-                long maxId = Math.max(userId, friendId);
-                stmt.setLong(1, minId);
-                stmt.setLong(2, maxId);
-                stmt.setLong(3, maxId);
-                stmt.setLong(4, minId);
-                int rowsAffected = stmt.executeUpdate();
-                if (rowsAffected == 0) {
-                    logger.warn("No pending request found: userId={}, friendId={}", userId, friendId);
-                    throw new SQLException("Запрос на дружбу не найден");
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Rejecting friend request: userId={}, friendId={}", userId, friendId);
+
+                String deleteQuery = "DELETE FROM friends WHERE (user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteQuery)) {
+                    long minId = Math.min(userId, friendId);
+                    long maxId = Math.max(userId, friendId);
+                    stmt.setLong(1, minId);
+                    stmt.setLong(2, maxId);
+                    stmt.setLong(3, maxId);
+                    stmt.setLong(4, minId);
+                    int rowsAffected = stmt.executeUpdate();
+                    if (rowsAffected == 0) {
+                        logger.warn("No pending request found: userId={}, friendId={}", userId, friendId);
+                        throw new SQLException("Запрос на дружбу не найден");
+                    }
                 }
-            }
 
-            connection.commit();
-            logger.info("Friend request rejected: userId={}, friendId={}", userId, friendId);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Failed to reject friend request: userId={}, friendId={}, error={}", userId, friendId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(originalAutoCommit);
+                conn.commit();
+                logger.info("Friend request rejected: userId={}, friendId={}", userId, friendId);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to reject friend request: userId={}, friendId={}, error={}", userId, friendId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
-    public List<Friend> getFriendsList(long userId, int page, int pageSize) throws SQLException {
+    /**
+     * Получение друзей пользователя по убыванию очков дружбы, постранично по курсору (friendship_points, id друга).
+     * @param cursor курсор страницы; null — первая страница
+     */
+    public Page<Friend> getFriendsList(long userId, PageCursor cursor, int pageSize) throws SQLException {
         List<Friend> friends = new ArrayList<>();
         String query = "SELECT u.id, u.username, f.friendship_points " +
                 "FROM friends f " +
-                "JOIN users u ON (u.id = f.user_id_1 OR u.id = f.user_id_2) " +
-                "WHERE f.status = 'accepted' AND (f.user_id_1 = ? OR f.user_id_2 = ?) AND u.id != ? " +
-                "ORDER BY f.friendship_points DESC " +
-                "LIMIT ? OFFSET ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                "JOIN users u ON u.id = CASE WHEN f.user_id_1 = ? THEN f.user_id_2 ELSE f.user_id_1 END " +
+                "WHERE f.status = 'accepted' AND (f.user_id_1 = ? OR f.user_id_2 = ?) " +
+                (cursor != null ? "AND " + cursor.seekCondition("f.friendship_points", "u.id", true) + " " : "") +
+                "ORDER BY " + PageCursor.orderBy(cursor, "f.friendship_points", "u.id", true) + " " +
+                "LIMIT ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setLong(2, userId);
             stmt.setLong(3, userId);
-            stmt.setInt(4, pageSize);
-            stmt.setInt(5, page * pageSize);
+            int index = cursor != null ? cursor.bind(stmt, 4) : 4;
+            stmt.setInt(index, pageSize + 1);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
                     friends.add(new Friend(rs.getLong("id"), rs.getString("username"), rs.getInt("friendship_points")));
                 }
             }
+        } catch (SQLException e) {
+            logger.error("Ошибка получения списка друзей пользователя {}: {}", userId, e.getMessage(), e);
+            throw e;
         }
-        return friends;
+        return Page.of(friends, cursor, pageSize);
     }
 
     public int getFriendsCount(long userId) throws SQLException {
         String query = "SELECT COUNT(*) FROM friends WHERE status = 'accepted' AND (user_id_1 = ? OR user_id_2 = ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setLong(2, userId);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -2075,18 +2464,20 @@ public class DatabaseManager implements AutoCloseable {
         }
     }
 
-    public List<Friend> getTopFriendsByPoints(long userId, int page, int pageSize) throws SQLException {
-        return getFriendsList(userId, page, pageSize);
-    }
-
     // Методы подарков
     public boolean canGiftPlayer(long userId, int playerId) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return canGiftPlayer(conn, userId, playerId);
+        }
+    }
+
+    private boolean canGiftPlayer(Connection conn, long userId, int playerId) throws SQLException {
         String query = "SELECT gift_lock_until, pc.name " +
                 "FROM user_players up " +
                 "JOIN players p ON up.player_id = p.id " +
                 "JOIN player_categories pc ON p.category_id = pc.id " +
                 "WHERE up.user_id = ? AND up.player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setInt(2, playerId);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -2106,280 +2497,308 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     public void giftPlayer(long fromUserId, long toUserId, int playerId) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Processing gift: fromUserId={}, toUserId={}, playerId={}", fromUserId, toUserId, playerId);
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Processing gift: fromUserId={}, toUserId={}, playerId={}", fromUserId, toUserId, playerId);
 
-            if (!canGiftPlayer(fromUserId, playerId)) {
-                throw new SQLException("Карточка недоступна для подарка");
-            }
+                if (!canGiftPlayer(conn, fromUserId, playerId)) {
+                    throw new SQLException("Карточка недоступна для подарка");
+                }
 
-            String categoryQuery = "SELECT pc.name FROM players p JOIN player_categories pc ON p.category_id = pc.id WHERE p.id = ?";
-            String category;
-            try (PreparedStatement stmt = connection.prepareStatement(categoryQuery)) {
-                stmt.setInt(1, playerId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (!rs.next()) {
-                        throw new SQLException("Игрок не найден");
+                String categoryQuery = "SELECT pc.name FROM players p JOIN player_categories pc ON p.category_id = pc.id WHERE p.id = ?";
+                String category;
+                try (PreparedStatement stmt = conn.prepareStatement(categoryQuery)) {
+                    stmt.setInt(1, playerId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Игрок не найден");
+                        }
+                        category = rs.getString("name");
                     }
-                    category = rs.getString("name");
                 }
-            }
 
-            String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-                stmt.setLong(1, fromUserId);
-                stmt.setInt(2, playerId);
-                if (stmt.executeUpdate() == 0) {
-                    throw new SQLException("Карточка не найдена в коллекции отправителя");
+                String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteQuery)) {
+                    stmt.setLong(1, fromUserId);
+                    stmt.setInt(2, playerId);
+                    if (stmt.executeUpdate() == 0) {
+                        throw new SQLException("Карточка не найдена в коллекции отправителя");
+                    }
                 }
-            }
-
-            String insertQuery = "INSERT INTO user_players (user_id, player_id, gift_lock_until) VALUES (?, ?, ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(insertQuery)) {
-                stmt.setLong(1, toUserId);
-                stmt.setInt(2, playerId);
-                stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis() + 3 * 24 * 60 * 60 * 1000));
-                stmt.executeUpdate();
-            }
 
-            String historyQuery = "INSERT INTO gift_history (player_id, from_user_id, to_user_id) VALUES (?, ?, ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(historyQuery)) {
-                stmt.setInt(1, playerId);
-                stmt.setLong(2, fromUserId);
-                stmt.setLong(3, toUserId);
-                stmt.executeUpdate();
-            }
+                String insertQuery = "INSERT INTO user_players (user_id, player_id, gift_lock_until) VALUES (?, ?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertQuery)) {
+                    stmt.setLong(1, toUserId);
+                    stmt.setInt(2, playerId);
+                    stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis() + 3 * 24 * 60 * 60 * 1000));
+                    stmt.executeUpdate();
+                }
 
-            int points = switch (category) {
-                case "Gold" -> 500;
-                case "Diamond" -> 750;
-                case "Legend" -> 1000;
-                case "Goat" -> 1500;
-                case "TOTY" -> 2000;
-                default -> 0;
-            };
-            if (points > 0) {
-                String pointsQuery = "UPDATE friends SET friendship_points = friendship_points + ? " +
-                        "WHERE status = 'accepted' AND ((user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?))";
-                try (PreparedStatement stmt = connection.prepareStatement(pointsQuery)) {
-                    long minId = Math.min(fromUserId, toUserId);
-                    long maxId = Math.max(fromUserId, toUserId);
-                    stmt.setInt(1, points);
-                    stmt.setLong(2, minId);
-                    stmt.setLong(3, maxId);
-                    stmt.setLong(4, maxId);
-                    stmt.setLong(5, minId);
+                String historyQuery = "INSERT INTO gift_history (player_id, from_user_id, to_user_id) VALUES (?, ?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(historyQuery)) {
+                    stmt.setInt(1, playerId);
+                    stmt.setLong(2, fromUserId);
+                    stmt.setLong(3, toUserId);
                     stmt.executeUpdate();
                 }
-            }
 
-            connection.commit();
-            logger.info("Gift processed: fromUserId={}, toUserId={}, playerId={}, points={}", fromUserId, toUserId, playerId, points);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Failed to process gift: fromUserId={}, toUserId={}, playerId={}, error={}", fromUserId, toUserId, playerId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(originalAutoCommit);
+                int points = switch (category) {
+                    case "Gold" -> 500;
+                    case "Diamond" -> 750;
+                    case "Legend" -> 1000;
+                    case "Goat" -> 1500;
+                    case "TOTY" -> 2000;
+                    default -> 0;
+                };
+                if (points > 0) {
+                    String pointsQuery = "UPDATE friends SET friendship_points = friendship_points + ? " +
+                            "WHERE status = 'accepted' AND ((user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?))";
+                    try (PreparedStatement stmt = conn.prepareStatement(pointsQuery)) {
+                        long minId = Math.min(fromUserId, toUserId);
+                        long maxId = Math.max(fromUserId, toUserId);
+                        stmt.setInt(1, points);
+                        stmt.setLong(2, minId);
+                        stmt.setLong(3, maxId);
+                        stmt.setLong(4, maxId);
+                        stmt.setLong(5, minId);
+                        stmt.executeUpdate();
+                    }
+                }
+
+                conn.commit();
+                cardRemoved(fromUserId, playerId);
+                cardAdded(toUserId, playerId);
+                logger.info("Gift processed: fromUserId={}, toUserId={}, playerId={}, points={}", fromUserId, toUserId, playerId, points);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to process gift: fromUserId={}, toUserId={}, playerId={}, error={}", fromUserId, toUserId, playerId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
     // Методы рынка
     public void createTrade(long userId, int playerId, int price) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Creating trade: userId={}, playerId={}, price={}", userId, playerId, price);
-
-            String checkQuery = "SELECT gift_lock_until FROM user_players WHERE user_id = ? AND player_id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(checkQuery)) {
-                stmt.setLong(1, userId);
-                stmt.setInt(2, playerId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (!rs.next()) {
-                        logger.warn("Player not found in user's collection: userId={}, playerId={}", userId, playerId);
-                        throw new SQLException("Карточка не найдена в вашей коллекции");
-                    }
-                    Timestamp lockUntil = rs.getTimestamp("gift_lock_until");
-                    if (lockUntil != null && lockUntil.after(new Timestamp(System.currentTimeMillis()))) {
-                        logger.warn("Player is locked for trade: userId={}, playerId={}", userId, playerId);
-                        throw new SQLException("Карточка заблокирована для трейда");
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Creating trade: userId={}, playerId={}, price={}", userId, playerId, price);
+
+                String checkQuery = "SELECT gift_lock_until FROM user_players WHERE user_id = ? AND player_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(checkQuery)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, playerId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            logger.warn("Player not found in user's collection: userId={}, playerId={}", userId, playerId);
+                            throw new SQLException("Карточка не найдена в вашей коллекции");
+                        }
+                        Timestamp lockUntil = rs.getTimestamp("gift_lock_until");
+                        if (lockUntil != null && lockUntil.after(new Timestamp(System.currentTimeMillis()))) {
+                            logger.warn("Player is locked for trade: userId={}, playerId={}", userId, playerId);
+                            throw new SQLException("Карточка заблокирована для трейда");
+                        }
                     }
                 }
-            }
 
-            String marketCheckQuery = "SELECT id FROM market WHERE player_id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(marketCheckQuery)) {
-                stmt.setInt(1, playerId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        logger.warn("Player already on market: playerId={}", playerId);
-                        throw new SQLException("Карточка уже выставлена на рынок");
+                String marketCheckQuery = "SELECT id FROM market WHERE player_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(marketCheckQuery)) {
+                    stmt.setInt(1, playerId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            logger.warn("Player already on market: playerId={}", playerId);
+                            throw new SQLException("Карточка уже выставлена на рынок");
+                        }
                     }
                 }
-            }
 
-            String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-                stmt.setLong(1, userId);
-                stmt.setInt(2, playerId);
-                stmt.executeUpdate();
-            }
+                String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteQuery)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, playerId);
+                    stmt.executeUpdate();
+                }
 
-            String insertQuery = "INSERT INTO market (user_id, player_id, price, created_at) VALUES (?, ?, ?, NOW())";
-            try (PreparedStatement stmt = connection.prepareStatement(insertQuery)) {
-                stmt.setLong(1, userId);
-                stmt.setInt(2, playerId);
-                stmt.setInt(3, price);
-                stmt.executeUpdate();
-            }
+                String insertQuery = "INSERT INTO market (user_id, player_id, price, created_at) VALUES (?, ?, ?, NOW())";
+                long marketId;
+                try (PreparedStatement stmt = conn.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, playerId);
+                    stmt.setInt(3, price);
+                    stmt.executeUpdate();
+                    marketId = generatedId(stmt);
+                }
+                String sellerUsername = sellerName(conn, userId);
 
-            connection.commit();
-            logger.info("Trade created: userId={}, playerId={}, price={}", userId, playerId, price);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Failed to create trade: userId={}, playerId={}, price={}, error={}", userId, playerId, price, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(originalAutoCommit);
+                conn.commit();
+                cardRemoved(userId, playerId);
+                market.put(marketLot(marketId, userId, sellerUsername, playerId, price));
+                logger.info("Trade created: userId={}, playerId={}, price={}", userId, playerId, price);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to create trade: userId={}, playerId={}, price={}, error={}", userId, playerId, price, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
     public void buyFromMarket(long buyerId, long marketId) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Processing market purchase: buyerId={}, marketId={}", buyerId, marketId);
-
-            String marketQuery = "SELECT user_id, player_id, price FROM market WHERE id = ? FOR UPDATE";
-            long sellerId;
-            int playerId;
-            int price;
-            try (PreparedStatement stmt = connection.prepareStatement(marketQuery)) {
-                stmt.setLong(1, marketId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (!rs.next()) {
-                        logger.warn("Market item not found: marketId={}", marketId);
-                        throw new SQLException("Карточка не найдена на рынке");
+        counters.flushIfPending(buyerId);
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Processing market purchase: buyerId={}, marketId={}", buyerId, marketId);
+
+                String marketQuery = "SELECT user_id, player_id, price FROM market WHERE id = ? FOR UPDATE";
+                long sellerId;
+                int playerId;
+                int price;
+                try (PreparedStatement stmt = conn.prepareStatement(marketQuery)) {
+                    stmt.setLong(1, marketId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            logger.warn("Market item not found: marketId={}", marketId);
+                            throw new SQLException("Карточка не найдена на рынке");
+                        }
+                        sellerId = rs.getLong("user_id");
+                        playerId = rs.getInt("player_id");
+                        price = rs.getInt("price");
                     }
-                    sellerId = rs.getLong("user_id");
-                    playerId = rs.getInt("player_id");
-                    price = rs.getInt("price");
                 }
-            }
 
-            if (buyerId == sellerId) {
-                logger.warn("User attempted to buy own item: buyerId={}, marketId={}", buyerId, marketId);
-                throw new SQLException("Нельзя купить свою собственную карточку");
-            }
+                if (buyerId == sellerId) {
+                    logger.warn("User attempted to buy own item: buyerId={}, marketId={}", buyerId, marketId);
+                    throw new SQLException("Нельзя купить свою собственную карточку");
+                }
 
-            String balanceQuery = "SELECT dollars FROM users WHERE id = ? FOR UPDATE";
-            int buyerDollars;
-            try (PreparedStatement stmt = connection.prepareStatement(balanceQuery)) {
-                stmt.setLong(1, buyerId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (!rs.next()) {
-                        throw new SQLException("Покупатель не найден");
+                String balanceQuery = "SELECT dollars FROM users WHERE id = ? FOR UPDATE";
+                int buyerDollars;
+                try (PreparedStatement stmt = conn.prepareStatement(balanceQuery)) {
+                    stmt.setLong(1, buyerId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new SQLException("Покупатель не найден");
+                        }
+                        buyerDollars = rs.getInt("dollars");
                     }
-                    buyerDollars = rs.getInt("dollars");
                 }
-            }
-            if (buyerDollars < price) {
-                logger.warn("Insufficient dollars: buyerId={}, dollars={}, required={}", buyerId, buyerDollars, price);
-                throw new SQLException("Недостаточно долларов для покупки");
-            }
+                if (buyerDollars < price) {
+                    logger.warn("Insufficient dollars: buyerId={}, dollars={}, required={}", buyerId, buyerDollars, price);
+                    throw new SQLException("Недостаточно долларов для покупки");
+                }
 
-            String deductQuery = "UPDATE users SET dollars = dollars - ? WHERE id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(deductQuery)) {
-                stmt.setInt(1, price);
-                stmt.setLong(2, buyerId);
-                stmt.executeUpdate();
-            }
+                String deductQuery = "UPDATE users SET dollars = dollars - ? WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deductQuery)) {
+                    stmt.setInt(1, price);
+                    stmt.setLong(2, buyerId);
+                    stmt.executeUpdate();
+                }
 
-            String creditQuery = "UPDATE users SET dollars = dollars + ? WHERE id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(creditQuery)) {
-                stmt.setInt(1, price);
-                stmt.setLong(2, sellerId);
-                stmt.executeUpdate();
-            }
+                String creditQuery = "UPDATE users SET dollars = dollars + ? WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(creditQuery)) {
+                    stmt.setInt(1, price);
+                    stmt.setLong(2, sellerId);
+                    stmt.executeUpdate();
+                }
 
-            String insertPlayerQuery = "INSERT INTO user_players (user_id, player_id) VALUES (?, ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(insertPlayerQuery)) {
-                stmt.setLong(1, buyerId);
-                stmt.setInt(2, playerId);
-                stmt.executeUpdate();
-            }
+                String insertPlayerQuery = "INSERT INTO user_players (user_id, player_id) VALUES (?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertPlayerQuery)) {
+                    stmt.setLong(1, buyerId);
+                    stmt.setInt(2, playerId);
+                    stmt.executeUpdate();
+                }
 
-            String deleteMarketQuery = "DELETE FROM market WHERE id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(deleteMarketQuery)) {
-                stmt.setLong(1, marketId);
-                stmt.executeUpdate();
-            }
+                String deleteMarketQuery = "DELETE FROM market WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteMarketQuery)) {
+                    stmt.setLong(1, marketId);
+                    stmt.executeUpdate();
+                }
 
-            connection.commit();
-            logger.info("Market purchase completed: buyerId={}, marketId={}, playerId={}, price={}", buyerId, marketId, playerId, price);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Failed to process market purchase: buyerId={}, marketId={}, error={}", buyerId, marketId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(originalAutoCommit);
+                conn.commit();
+                cardAdded(buyerId, playerId);
+                market.remove(marketId);
+                logger.info("Market purchase completed: buyerId={}, marketId={}, playerId={}, price={}", buyerId, marketId, playerId, price);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to process market purchase: buyerId={}, marketId={}, error={}", buyerId, marketId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
 
     public void removePlayerFromMarket(long marketId) throws SQLException {
-        boolean originalAutoCommit = connection.getAutoCommit();
-        try {
-            connection.setAutoCommit(false);
-            logger.info("Removing player from market: marketId={}", marketId);
-
-            String marketQuery = "SELECT user_id, player_id FROM market WHERE id = ?";
-            long userId;
-            int playerId;
-            try (PreparedStatement stmt = connection.prepareStatement(marketQuery)) {
-                stmt.setLong(1, marketId);
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (!rs.next()) {
-                        logger.warn("Market item not found: marketId={}", marketId);
-                        throw new SQLException("Карточка не найдена на рынке");
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                logger.info("Removing player from market: marketId={}", marketId);
+
+                String marketQuery = "SELECT user_id, player_id FROM market WHERE id = ? FOR UPDATE";
+                long userId;
+                int playerId;
+                try (PreparedStatement stmt = conn.prepareStatement(marketQuery)) {
+                    stmt.setLong(1, marketId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            logger.warn("Market item not found: marketId={}", marketId);
+                            throw new SQLException("Карточка не найдена на рынке");
+                        }
+                        userId = rs.getLong("user_id");
+                        playerId = rs.getInt("player_id");
                     }
-                    userId = rs.getLong("user_id");
-                    playerId = rs.getInt("player_id");
                 }
-            }
 
-            String insertQuery = "INSERT INTO user_players (user_id, player_id) VALUES (?, ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(insertQuery)) {
-                stmt.setLong(1, userId);
-                stmt.setInt(2, playerId);
-                stmt.executeUpdate();
-            }
+                String insertQuery = "INSERT INTO user_players (user_id, player_id) VALUES (?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertQuery)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, playerId);
+                    stmt.executeUpdate();
+                }
 
-            String deleteQuery = "DELETE FROM market WHERE id = ?";
-            try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-                stmt.setLong(1, marketId);
-                stmt.executeUpdate();
-            }
+                String deleteQuery = "DELETE FROM market WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteQuery)) {
+                    stmt.setLong(1, marketId);
+                    stmt.executeUpdate();
+                }
 
-            connection.commit();
-            logger.info("Player removed from market: marketId={}, userId={}, playerId={}", marketId, userId, playerId);
-        } catch (SQLException e) {
-            connection.rollback();
-            logger.error("Failed to remove player from market: marketId={}, error={}", marketId, e.getMessage(), e);
-            throw e;
-        } finally {
-            connection.setAutoCommit(originalAutoCommit);
+                conn.commit();
+                cardAdded(userId, playerId);
+                market.remove(marketId);
+                logger.info("Player removed from market: marketId={}, userId={}, playerId={}", marketId, userId, playerId);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to remove player from market: marketId={}, error={}", marketId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
     public List<MarketEntry> getUserMarketSales(long userId) throws SQLException {
+        if (marketLoaded) {
+            List<MarketEntry> entries = new ArrayList<>();
+            for (MarketBook.Lot lot : market.bySeller(userId)) {
+                entries.add(marketEntry(lot));
+            }
+            return entries;
+        }
         String sql = "SELECT m.id, m.user_id, m.player_id, m.price, u.username " +
                 "FROM market m JOIN users u ON m.user_id = u.id WHERE m.user_id = ?";
         List<MarketEntry> entries = new ArrayList<>();
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, userId);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
@@ -2396,10 +2815,21 @@ public class DatabaseManager implements AutoCloseable {
         return entries;
     }
 
+    private MarketEntry marketEntry(MarketBook.Lot lot) {
+        String sellerUsername = leaderboard.username(lot.sellerId);
+        return new MarketEntry((int) lot.marketId, lot.sellerId,
+                sellerUsername != null ? sellerUsername : lot.sellerUsername, lot.playerId, lot.price);
+    }
+
     public MarketEntry getMarketEntry(long marketId) throws SQLException {
+        if (marketLoaded) {
+            MarketBook.Lot lot = market.get(marketId);
+            return lot != null ? marketEntry(lot) : null;
+        }
         String sql = "SELECT m.id, m.user_id, m.player_id, m.price, u.username " +
                 "FROM market m JOIN users u ON m.user_id = u.id WHERE m.id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setLong(1, marketId);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -2417,8 +2847,12 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     public boolean isPlayerOnMarket(int playerId) throws SQLException {
+        if (marketLoaded) {
+            return market.containsPlayer(playerId);
+        }
         String sql = "SELECT COUNT(*) FROM market WHERE player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, playerId);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -2429,34 +2863,6 @@ public class DatabaseManager implements AutoCloseable {
         return false;
     }
 
-    public List<User> getUserFriends(long userId, int page, int pageSize) throws SQLException {
-        List<User> friends = new ArrayList<>();
-        String query = "SELECT u.id, u.username, u.points, u.favorite_card_id, u.title " +
-                "FROM friends f " +
-                "JOIN users u ON u.id = CASE WHEN f.user_id_1 = ? THEN f.user_id_2 ELSE f.user_id_1 END " +
-                "WHERE (f.user_id_1 = ? OR f.user_id_2 = ?) AND f.status = 'accepted' " +
-                "LIMIT ? OFFSET ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setLong(1, userId);
-            stmt.setLong(2, userId);
-            stmt.setLong(3, userId);
-            stmt.setInt(4, pageSize);
-            stmt.setInt(5, (page - 1) * pageSize);
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                User friend = new User(
-                        rs.getLong("id"),
-                        rs.getString("username"),
-                        rs.getLong("points"),
-                        rs.getInt("favorite_card_id") != 0 ? rs.getInt("favorite_card_id") : null,
-                        rs.getString("title")
-                );
-                friends.add(friend);
-            }
-        }
-        return friends;
-    }
-
     /**
      * Проверяет, являются ли два пользователя друзьями.
      * @param userId1 ID первого пользователя
@@ -2464,9 +2870,15 @@ public class DatabaseManager implements AutoCloseable {
      * @return true, если друзья
      */
     public boolean areFriends(long userId1, long userId2) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            return areFriends(conn, userId1, userId2);
+        }
+    }
+
+    private boolean areFriends(Connection conn, long userId1, long userId2) throws SQLException {
         String query = "SELECT 1 FROM friends WHERE status = 'accepted' AND " +
                 "((user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?))";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId1);
             stmt.setLong(2, userId2);
             stmt.setLong(3, userId2);
@@ -2482,29 +2894,31 @@ public class DatabaseManager implements AutoCloseable {
      * @param userId2 ID получателя
      */
     public void addFriend(long userId1, long userId2) throws SQLException {
-        if (userId1 == userId2) {
-            throw new SQLException("Нельзя добавить себя в друзья");
-        }
-        // Гарантируем, что user_id_1 < user_id_2
-        long smallerId = Math.min(userId1, userId2);
-        long largerId = Math.max(userId1, userId2);
+        try (Connection conn = dataSource.getConnection()) {
+            if (userId1 == userId2) {
+                throw new SQLException("Нельзя добавить себя в друзья");
+            }
+            // Гарантируем, что user_id_1 < user_id_2
+            long smallerId = Math.min(userId1, userId2);
+            long largerId = Math.max(userId1, userId2);
 
-        // Проверяем, не существует ли уже запрос или дружба
-        String checkQuery = "SELECT COUNT(*) FROM friends WHERE user_id_1 = ? AND user_id_2 = ?";
-        try (PreparedStatement checkStmt = connection.prepareStatement(checkQuery)) {
-            checkStmt.setLong(1, smallerId);
-            checkStmt.setLong(2, largerId);
-            ResultSet rs = checkStmt.executeQuery();
-            if (rs.next() && rs.getInt(1) > 0) {
-                throw new SQLException("Запрос на дружбу уже отправлен или дружба существует");
+            // Проверяем, не существует ли уже запрос или дружба
+            String checkQuery = "SELECT COUNT(*) FROM friends WHERE user_id_1 = ? AND user_id_2 = ?";
+            try (PreparedStatement checkStmt = conn.prepareStatement(checkQuery)) {
+                checkStmt.setLong(1, smallerId);
+                checkStmt.setLong(2, largerId);
+                ResultSet rs = checkStmt.executeQuery();
+                if (rs.next() && rs.getInt(1) > 0) {
+                    throw new SQLException("Запрос на дружбу уже отправлен или дружба существует");
+                }
             }
-        }
 
-        String query = "INSERT INTO friends (user_id_1, user_id_2, status) VALUES (?, ?, 'pending')";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setLong(1, smallerId);
-            stmt.setLong(2, largerId);
-            stmt.executeUpdate();
+            String query = "INSERT INTO friends (user_id_1, user_id_2, status) VALUES (?, ?, 'pending')";
+            try (PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setLong(1, smallerId);
+                stmt.setLong(2, largerId);
+                stmt.executeUpdate();
+            }
         }
     }
     /**
@@ -2519,7 +2933,8 @@ public class DatabaseManager implements AutoCloseable {
 
         String query = "UPDATE friends SET status = 'accepted', last_points_update = CURRENT_TIMESTAMP " +
                 "WHERE user_id_1 = ? AND user_id_2 = ? AND status = 'pending'";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, smallerId);
             stmt.setLong(2, largerId);
             int rowsAffected = stmt.executeUpdate();
@@ -2537,7 +2952,8 @@ public class DatabaseManager implements AutoCloseable {
     public void removeFriend(long userId1, long userId2) throws SQLException {
         String query = "DELETE FROM friends WHERE " +
                 "(user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId1);
             stmt.setLong(2, userId2);
             stmt.setLong(3, userId2);
@@ -2555,7 +2971,8 @@ public class DatabaseManager implements AutoCloseable {
                 "last_points_update = CURRENT_TIMESTAMP " +
                 "WHERE (user_id_1 = ? OR user_id_2 = ?) AND status = 'accepted' " +
                 "AND DATE(last_points_update) < CURDATE()";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setLong(2, userId);
             stmt.executeUpdate();
@@ -2569,6 +2986,12 @@ public class DatabaseManager implements AutoCloseable {
      * @param category Категория карточки
      */
     public void addGiftFriendshipPoints(long userId1, long userId2, String category) throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            addGiftFriendshipPoints(conn, userId1, userId2, category);
+        }
+    }
+
+    private void addGiftFriendshipPoints(Connection conn, long userId1, long userId2, String category) throws SQLException {
         int points = switch (category) {
             case "Gold" -> 500;
             case "Diamond" -> 750;
@@ -2581,7 +3004,7 @@ public class DatabaseManager implements AutoCloseable {
                 "last_points_update = CURRENT_TIMESTAMP " +
                 "WHERE ((user_id_1 = ? AND user_id_2 = ?) OR (user_id_1 = ? AND user_id_2 = ?)) " +
                 "AND status = 'accepted'";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setInt(1, points);
             stmt.setLong(2, userId1);
             stmt.setLong(3, userId2);
@@ -2594,153 +3017,270 @@ public class DatabaseManager implements AutoCloseable {
     // --- Методы для глобального рынка ---
 
     /**
-     * Получает список игроков на рынке с пагинацией.
-     * @param page Номер страницы
+     * Получает страницу витрины рынка по возрастанию цены.
+     * @see #searchMarket
+     */
+    public Page<MarketListing> getMarketListings(long viewerId, PageCursor cursor, int pageSize) throws SQLException {
+        return searchMarket(viewerId, MarketFilter.ALL, cursor, pageSize);
+    }
+
+    /**
+     * Получает страницу витрины рынка с фильтром по категории, позиции, рейтингу и цене.
+     * Лоты берутся из книги рынка в памяти, а до её загрузки — одним запросом к БД.
+     * Признак наличия игрока у просматривающего пользователя берётся из индекса владения.
+     * Лоты упорядочены по цене (направление задаёт фильтр), затем по id; страницы листаются
+     * курсором (price, id).
+     * @param viewerId ID пользователя, который просматривает рынок
+     * @param filter Фильтр и направление сортировки
+     * @param cursor Курсор страницы; null — первая страница
      * @param pageSize Количество записей на странице
-     * @return Список игроков на рынке
+     * @return Страница строк витрины
      */
-    public List<MarketEntry> getMarketPlayers(int page, int pageSize) throws SQLException {
-        List<MarketEntry> marketEntries = new ArrayList<>();
-        String query = "SELECT m.id, m.user_id, u.username, m.player_id, m.price " +
+    public Page<MarketListing> searchMarket(long viewerId, MarketFilter filter, PageCursor cursor, int pageSize) throws SQLException {
+        if (!marketLoaded) {
+            return selectMarketListings(viewerId, filter, cursor, pageSize);
+        }
+        List<MarketListing> listings = new ArrayList<>();
+        // Лоты игроков, которых нет в каталоге, отсеиваются внутри выборки, как JOIN players в SQL:
+        // иначе страница вернулась бы короче и с неверным признаком следующей
+        for (MarketBook.Lot lot : market.find(filter, cursor, pageSize + 1, catalog.playerExists())) {
+            Player player = getPlayerById(lot.playerId);
+            if (player == null) {
+                continue;
+            }
+            String sellerUsername = leaderboard.username(lot.sellerId);
+            listings.add(new MarketListing(
+                    lot.marketId,
+                    lot.sellerId,
+                    sellerUsername != null ? sellerUsername : lot.sellerUsername,
+                    lot.price,
+                    player,
+                    ownership.contains(viewerId, player.getId())
+            ));
+        }
+        return Page.of(listings, cursor, pageSize);
+    }
+
+    private Page<MarketListing> selectMarketListings(long viewerId, MarketFilter filter, PageCursor cursor, int pageSize) throws SQLException {
+        List<MarketListing> listings = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
+        if (filter.getCategoryId() != 0) {
+            conditions.add("p.category_id = ?");
+        }
+        if (filter.getPosition() != null) {
+            conditions.add("p.position = ?");
+        }
+        if (filter.getRatingBand() >= 0) {
+            conditions.add("p.rating BETWEEN ? AND ?");
+        }
+        if (filter.getMaxPrice() > 0) {
+            conditions.add("m.price <= ?");
+        }
+        if (cursor != null) {
+            conditions.add(cursor.seekCondition("m.price", "m.id", filter.isDescending()));
+        }
+        String query = "SELECT m.id AS market_id, m.user_id AS seller_id, u.username AS seller_username, m.price AS market_price, " +
+                "p.*, pc.id as pc_id, pc.name as pc_name, pc.weight as pc_weight, pc.points as pc_points, pc.dollars as pc_dollars " +
                 "FROM market m " +
                 "JOIN users u ON u.id = m.user_id " +
-                "LIMIT ? OFFSET ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setInt(1, pageSize);
-            stmt.setInt(2, (page - 1) * pageSize);
-            ResultSet rs = stmt.executeQuery();
-            while (rs.next()) {
-                MarketEntry entry = new MarketEntry(
-                        (int) rs.getLong("id"), // Приведение long к int
-                        rs.getLong("user_id"),
-                        rs.getString("username"),
-                        rs.getInt("player_id"),
-                        rs.getInt("price")
-                );
-                marketEntries.add(entry);
+                "JOIN players p ON p.id = m.player_id " +
+                "JOIN player_categories pc ON pc.id = p.category_id " +
+                (conditions.isEmpty() ? "" : "WHERE " + String.join(" AND ", conditions) + " ") +
+                "ORDER BY " + PageCursor.orderBy(cursor, "m.price", "m.id", filter.isDescending()) + " " +
+                "LIMIT ?";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
+            int index = 1;
+            if (filter.getCategoryId() != 0) {
+                stmt.setInt(index++, filter.getCategoryId());
+            }
+            if (filter.getPosition() != null) {
+                stmt.setString(index++, filter.getPosition());
+            }
+            if (filter.getRatingBand() >= 0) {
+                stmt.setInt(index++, filter.getRatingBand() * 10);
+                stmt.setInt(index++, filter.getRatingBand() * 10 + 9);
+            }
+            if (filter.getMaxPrice() > 0) {
+                stmt.setInt(index++, filter.getMaxPrice());
+            }
+            if (cursor != null) {
+                index = cursor.bind(stmt, index);
+            }
+            stmt.setInt(index, pageSize + 1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Player player = playerFromRow(rs);
+                    listings.add(new MarketListing(
+                            rs.getLong("market_id"),
+                            rs.getLong("seller_id"),
+                            rs.getString("seller_username"),
+                            rs.getInt("market_price"),
+                            player,
+                            ownership.contains(viewerId, player.getId())
+                    ));
+                }
             }
+        } catch (SQLException e) {
+            logger.error("Ошибка получения витрины рынка (фильтр {}, курсор {}): {}", filter, cursor, e.getMessage(), e);
+            throw e;
         }
-        return marketEntries;
+        return Page.of(listings, cursor, pageSize);
     }
 
     /**
-     * Добавляет игрока на рынок.
+     * Добавляет игрока на рынок одной транзакцией; кэши рынка и владения меняются после фиксации.
      * @param userId ID пользователя
      * @param playerId ID игрока
      * @param price Цена
      * @throws SQLException если превышен лимит продаж (10) или категория неподходящая
      */
     public void addPlayerToMarket(long userId, int playerId, int price) throws SQLException {
-        // Проверка лимита продаж
-        String countQuery = "SELECT COUNT(*) FROM market WHERE user_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(countQuery)) {
-            stmt.setLong(1, userId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next() && rs.getInt(1) >= 10) {
-                throw new SQLException("Превышен лимит продаж (10 игроков)");
-            }
-        }
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                // Строка продавца блокируется: параллельные выставления не обойдут лимит продаж
+                String lockQuery = "SELECT id FROM users WHERE id = ? FOR UPDATE";
+                try (PreparedStatement stmt = conn.prepareStatement(lockQuery)) {
+                    stmt.setLong(1, userId);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (!rs.next()) {
+                            throw new UserNotFoundException(userId);
+                        }
+                    }
+                }
 
-        // Проверка категории игрока
-        String categoryQuery = "SELECT pc.name FROM players p JOIN player_categories pc ON pc.id = p.category_id WHERE p.id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(categoryQuery)) {
-            stmt.setInt(1, playerId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next() || !List.of("Gold", "Diamond", "Legend", "GOAT", "TOTY").contains(rs.getString("name"))) {
-                throw new SQLException("Игрок не подходит для продажи (требуется Gold или выше)");
-            }
-        }
+                // Проверка лимита продаж
+                String countQuery = "SELECT COUNT(*) FROM market WHERE user_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(countQuery)) {
+                    stmt.setLong(1, userId);
+                    ResultSet rs = stmt.executeQuery();
+                    if (rs.next() && rs.getInt(1) >= 10) {
+                        throw new SQLException("Превышен лимит продаж (10 игроков)");
+                    }
+                }
 
-        // Проверка владения игроком
-        String ownershipQuery = "SELECT 1 FROM user_players WHERE user_id = ? AND player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(ownershipQuery)) {
-            stmt.setLong(1, userId);
-            stmt.setInt(2, playerId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                throw new SQLException("Игрок не находится в вашем инвентаре");
-            }
-        }
+                // Проверка категории игрока
+                String categoryQuery = "SELECT pc.name FROM players p JOIN player_categories pc ON pc.id = p.category_id WHERE p.id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(categoryQuery)) {
+                    stmt.setInt(1, playerId);
+                    ResultSet rs = stmt.executeQuery();
+                    if (!rs.next() || !List.of("Gold", "Diamond", "Legend", "GOAT", "TOTY").contains(rs.getString("name"))) {
+                        throw new SQLException("Игрок не подходит для продажи (требуется Gold или выше)");
+                    }
+                }
 
-        // Добавление на рынок
-        String insertQuery = "INSERT INTO market (user_id, player_id, price) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(insertQuery)) {
-            stmt.setLong(1, userId);
-            stmt.setInt(2, playerId);
-            stmt.setInt(3, price);
-            stmt.executeUpdate();
-        }
+                // Удаление игрока из инвентаря: заодно проверяет владение
+                String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteQuery)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, playerId);
+                    if (stmt.executeUpdate() == 0) {
+                        throw new SQLException("Игрок не находится в вашем инвентаре");
+                    }
+                }
 
-        // Удаление игрока из инвентаря
-        String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-            stmt.setLong(1, userId);
-            stmt.setInt(2, playerId);
-            stmt.executeUpdate();
+                // Добавление на рынок
+                String insertQuery = "INSERT INTO market (user_id, player_id, price) VALUES (?, ?, ?)";
+                long marketId;
+                try (PreparedStatement stmt = conn.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setLong(1, userId);
+                    stmt.setInt(2, playerId);
+                    stmt.setInt(3, price);
+                    stmt.executeUpdate();
+                    marketId = generatedId(stmt);
+                }
+                String sellerUsername = sellerName(conn, userId);
+
+                conn.commit();
+                // Кэши меняются только после фиксации: при ошибке они остаются согласованы с таблицами
+                cardRemoved(userId, playerId);
+                market.put(marketLot(marketId, userId, sellerUsername, playerId, price));
+                logger.info("Player listed on market: userId={}, playerId={}, price={}, marketId={}", userId, playerId, price, marketId);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to list player on market: userId={}, playerId={}, error={}", userId, playerId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
     /**
-     * Покупает игрока с рынка.
+     * Покупает игрока с рынка. Лот и баланс покупателя блокируются до конца транзакции,
+     * поэтому один лот не оплачивают двое покупателей.
      * @param buyerId ID покупателя
      * @param marketId ID записи на рынке
      */
     public void buyPlayerFromMarket(long buyerId, long marketId) throws SQLException {
-        // Получение данных о продаже
-        String selectQuery = "SELECT m.user_id, m.player_id, m.price " +
-                "FROM market m WHERE m.id = ?";
-        long sellerId;
-        int playerId, price;
-        try (PreparedStatement stmt = connection.prepareStatement(selectQuery)) {
-            stmt.setLong(1, marketId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                throw new SQLException("Игрок не найден на рынке");
-            }
-            sellerId = rs.getLong("user_id");
-            playerId = rs.getInt("player_id");
-            price = rs.getInt("price");
-        }
+        counters.flushIfPending(buyerId);
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                // Получение данных о продаже
+                String selectQuery = "SELECT m.user_id, m.player_id, m.price " +
+                        "FROM market m WHERE m.id = ? FOR UPDATE";
+                long sellerId;
+                int playerId, price;
+                try (PreparedStatement stmt = conn.prepareStatement(selectQuery)) {
+                    stmt.setLong(1, marketId);
+                    ResultSet rs = stmt.executeQuery();
+                    if (!rs.next()) {
+                        throw new SQLException("Игрок не найден на рынке");
+                    }
+                    sellerId = rs.getLong("user_id");
+                    playerId = rs.getInt("player_id");
+                    price = rs.getInt("price");
+                }
 
-        // Проверка баланса покупателя
-        String balanceQuery = "SELECT dollars FROM users WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(balanceQuery)) {
-            stmt.setLong(1, buyerId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next() || rs.getInt("dollars") < price) {
-                throw new SQLException("Недостаточно долларов");
-            }
-        }
+                // Списание с проверкой баланса одним запросом
+                String updateBuyerQuery = "UPDATE users SET dollars = dollars - ? WHERE id = ? AND dollars >= ?";
+                try (PreparedStatement stmt = conn.prepareStatement(updateBuyerQuery)) {
+                    stmt.setInt(1, price);
+                    stmt.setLong(2, buyerId);
+                    stmt.setInt(3, price);
+                    if (stmt.executeUpdate() == 0) {
+                        throw new SQLException("Недостаточно долларов");
+                    }
+                }
 
-        // Обновление баланса покупателя
-        String updateBuyerQuery = "UPDATE users SET dollars = dollars - ? WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(updateBuyerQuery)) {
-            stmt.setInt(1, price);
-            stmt.setLong(2, buyerId);
-            stmt.executeUpdate();
-        }
+                // Обновление баланса продавца
+                String updateSellerQuery = "UPDATE users SET dollars = dollars + ? WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(updateSellerQuery)) {
+                    stmt.setInt(1, price);
+                    stmt.setLong(2, sellerId);
+                    stmt.executeUpdate();
+                }
 
-        // Обновление баланса продавца
-        String updateSellerQuery = "UPDATE users SET dollars = dollars + ? WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(updateSellerQuery)) {
-            stmt.setInt(1, price);
-            stmt.setLong(2, sellerId);
-            stmt.executeUpdate();
-        }
+                // Добавление игрока покупателю
+                String insertPlayerQuery = "INSERT INTO user_players (user_id, player_id, gift_lock_until) VALUES (?, ?, NULL)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertPlayerQuery)) {
+                    stmt.setLong(1, buyerId);
+                    stmt.setInt(2, playerId);
+                    stmt.executeUpdate();
+                }
 
-        // Добавление игрока покупателю
-        String insertPlayerQuery = "INSERT INTO user_players (user_id, player_id, gift_lock_until) VALUES (?, ?, NULL)";
-        try (PreparedStatement stmt = connection.prepareStatement(insertPlayerQuery)) {
-            stmt.setLong(1, buyerId);
-            stmt.setInt(2, playerId);
-            stmt.executeUpdate();
-        }
+                // Удаление с рынка
+                String deleteQuery = "DELETE FROM market WHERE id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteQuery)) {
+                    stmt.setLong(1, marketId);
+                    stmt.executeUpdate();
+                }
 
-        // Удаление с рынка
-        String deleteQuery = "DELETE FROM market WHERE id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-            stmt.setLong(1, marketId);
-            stmt.executeUpdate();
+                conn.commit();
+                cardAdded(buyerId, playerId);
+                market.remove(marketId);
+                logger.info("Market purchase completed: buyerId={}, marketId={}, playerId={}, price={}", buyerId, marketId, playerId, price);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to process market purchase: buyerId={}, marketId={}, error={}", buyerId, marketId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
         }
     }
 
@@ -2754,7 +3294,8 @@ public class DatabaseManager implements AutoCloseable {
      */
     public boolean isPlayerInSquad(long userId, int playerId) throws SQLException {
         String query = "SELECT 1 FROM user_squads WHERE user_id = ? AND player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setInt(2, playerId);
             ResultSet rs = stmt.executeQuery();
@@ -2771,7 +3312,8 @@ public class DatabaseManager implements AutoCloseable {
     public void updateSquadPosition(long userId, String position, int playerId) throws SQLException {
         String query = "INSERT INTO user_squads (user_id, player_id, position) " +
                 "VALUES (?, ?, ?) ON DUPLICATE KEY UPDATE position = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, userId);
             stmt.setInt(2, playerId);
             stmt.setString(3, position);
@@ -2781,70 +3323,89 @@ public class DatabaseManager implements AutoCloseable {
     }
 
     /**
-     * Отправляет подарок (передача карточки другу).
+     * Отправляет подарок (передача карточки другу) одной транзакцией.
      * @param senderId ID отправителя
      * @param receiverId ID получателя
      * @param playerId ID игрока
      */
     public void sendGift(long senderId, long receiverId, int playerId) throws SQLException {
-        // Проверка дружбы
-        if (!areFriends(senderId, receiverId)) {
-            throw new SQLException("Пользователи не являются друзьями");
-        }
+        try (Connection conn = dataSource.getConnection()) {
+            boolean originalAutoCommit = conn.getAutoCommit();
+            try {
+                conn.setAutoCommit(false);
+                // Проверка дружбы
+                if (!areFriends(conn, senderId, receiverId)) {
+                    throw new SQLException("Пользователи не являются друзьями");
+                }
+
+                // Проверка категории игрока
+                String categoryQuery = "SELECT pc.name FROM players p JOIN player_categories pc ON pc.id = p.category_id WHERE p.id = ?";
+                String category;
+                try (PreparedStatement stmt = conn.prepareStatement(categoryQuery)) {
+                    stmt.setInt(1, playerId);
+                    ResultSet rs = stmt.executeQuery();
+                    if (!rs.next() || !List.of("Gold", "Diamond", "Legend", "GOAT", "TOTY").contains(rs.getString("name"))) {
+                        throw new SQLException("Подарок возможен только для карточек Gold и выше");
+                    }
+                    category = rs.getString("name");
+                }
 
-        // Проверка категории игрока
-        String categoryQuery = "SELECT pc.name FROM players p JOIN player_categories pc ON pc.id = p.category_id WHERE p.id = ?";
-        String category;
-        try (PreparedStatement stmt = connection.prepareStatement(categoryQuery)) {
-            stmt.setInt(1, playerId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next() || !List.of("Gold", "Diamond", "Legend", "GOAT", "TOTY").contains(rs.getString("name"))) {
-                throw new SQLException("Подарок возможен только для карточек Gold и выше");
-            }
-            category = rs.getString("name");
-        }
+                // Проверка владения игроком; строка блокируется до конца передачи
+                String ownershipQuery = "SELECT gift_lock_until FROM user_players WHERE user_id = ? AND player_id = ? FOR UPDATE";
+                try (PreparedStatement stmt = conn.prepareStatement(ownershipQuery)) {
+                    stmt.setLong(1, senderId);
+                    stmt.setInt(2, playerId);
+                    ResultSet rs = stmt.executeQuery();
+                    if (!rs.next()) {
+                        throw new SQLException("Игрок не находится в вашем инвентаре");
+                    }
+                    Timestamp lockUntil = rs.getTimestamp("gift_lock_until");
+                    if (lockUntil != null && lockUntil.after(new Timestamp(System.currentTimeMillis()))) {
+                        throw new SQLException("Карточка заблокирована для подарка");
+                    }
+                }
 
-        // Проверка владения игроком
-        String ownershipQuery = "SELECT gift_lock_until FROM user_players WHERE user_id = ? AND player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(ownershipQuery)) {
-            stmt.setLong(1, senderId);
-            stmt.setInt(2, playerId);
-            ResultSet rs = stmt.executeQuery();
-            if (!rs.next()) {
-                throw new SQLException("Игрок не находится в вашем инвентаре");
-            }
-            Timestamp lockUntil = rs.getTimestamp("gift_lock_until");
-            if (lockUntil != null && lockUntil.after(new Timestamp(System.currentTimeMillis()))) {
-                throw new SQLException("Карточка заблокирована для подарка");
-            }
-        }
+                // Удаление игрока у отправителя
+                String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
+                try (PreparedStatement stmt = conn.prepareStatement(deleteQuery)) {
+                    stmt.setLong(1, senderId);
+                    stmt.setInt(2, playerId);
+                    stmt.executeUpdate();
+                }
 
-        // Удаление игрока у отправителя
-        String deleteQuery = "DELETE FROM user_players WHERE user_id = ? AND player_id = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(deleteQuery)) {
-            stmt.setLong(1, senderId);
-            stmt.setInt(2, playerId);
-            stmt.executeUpdate();
-        }
+                // Добавление игрока получателю с блокировкой на 3 дня
+                String insertQuery = "INSERT INTO user_players (user_id, player_id, gift_lock_until) VALUES (?, ?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(insertQuery)) {
+                    stmt.setLong(1, receiverId);
+                    stmt.setInt(2, playerId);
+                    stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis() + 3 * 24 * 60 * 60 * 1000)); // 3 дня
+                    stmt.executeUpdate();
+                }
 
-        // Добавление игрока получателю с блокировкой на 3 дня
-        String insertQuery = "INSERT INTO user_players (user_id, player_id, gift_lock_until) VALUES (?, ?, ?)";
-        try (PreparedStatement stmt = connection.prepareStatement(insertQuery)) {
-            stmt.setLong(1, receiverId);
-            stmt.setInt(2, playerId);
-            stmt.setTimestamp(3, new Timestamp(System.currentTimeMillis() + 3 * 24 * 60 * 60 * 1000)); // 3 дня
-            stmt.executeUpdate();
-        }
+                // Начисление очков дружбы
+                addGiftFriendshipPoints(conn, senderId, receiverId, category);
 
-        // Начисление очков дружбы
-        addGiftFriendshipPoints(senderId, receiverId, category);
+                conn.commit();
+                // Индекс владения и инвентари меняются только после фиксации, как при открытии пака
+                cardRemoved(senderId, playerId);
+                cardAdded(receiverId, playerId);
+                logger.info("Gift sent: senderId={}, receiverId={}, playerId={}", senderId, receiverId, playerId);
+            } catch (SQLException e) {
+                conn.rollback();
+                logger.error("Failed to send gift: senderId={}, receiverId={}, playerId={}, error={}", senderId, receiverId, playerId, e.getMessage(), e);
+                throw e;
+            } finally {
+                conn.setAutoCommit(originalAutoCommit);
+            }
+        }
     }
 
     public boolean hasPendingFriendRequest(long userId1, long userId2) throws SQLException {
         long smallerId = Math.min(userId1, userId2);
         long largerId = Math.max(userId1, userId2);
         String query = "SELECT COUNT(*) FROM friends WHERE user_id_1 = ? AND user_id_2 = ? AND status = 'pending'";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, Math.min(userId2, userId1));
             stmt.setLong(2, Math.max(userId2, userId1));
             ResultSet rs = stmt.executeQuery();
@@ -2859,7 +3420,8 @@ public class DatabaseManager implements AutoCloseable {
         long smallerId = Math.min(userId1, userId2);
         long largerId = Math.max(userId1, userId2);
         String query = "SELECT COUNT(*) FROM friends WHERE user_id_1 = ? AND user_id_2 = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(query)) {
             stmt.setLong(1, smallerId);
             stmt.setLong(2, largerId);
             ResultSet rs = stmt.executeQuery();
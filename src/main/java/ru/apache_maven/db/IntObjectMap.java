@@ -0,0 +1,90 @@
+package ru.apache_maven.db;
+
+/**
+ * Компактная хеш-таблица с ключами int (открытая адресация, линейное пробирование).
+ * Не боксирует ключи; предназначена для справочников, которые заполняются один раз
+ * и затем только читаются, поэтому удаление не поддерживается.
+ */
+final class IntObjectMap<V> {
+    private static final int EMPTY = 0;
+
+    private int[] keys;
+    private Object[] values;
+    private boolean hasZeroKey;
+    private Object zeroValue;
+    private int size;
+    private int mask;
+
+    IntObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    void put(int key, V value) {
+        if (key == EMPTY) {
+            if (!hasZeroKey) {
+                size++;
+            }
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            resize();
+        }
+        int slot = indexOf(key);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int key) {
+        if (key == EMPTY) {
+            return hasZeroKey ? (V) zeroValue : null;
+        }
+        int slot = indexOf(key);
+        return keys[slot] == EMPTY ? null : (V) values[slot];
+    }
+
+    boolean containsKey(int key) {
+        return key == EMPTY ? hasZeroKey : keys[indexOf(key)] != EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Слот с ключом или первый свободный слот в цепочке пробирования
+    private int indexOf(int key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[oldValues.length * 2];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = indexOf(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,107 @@
+package ru.apache_maven.db;
+
+import ru.apache_maven.model.Player;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Кэш инвентарей активных пользователей: неизменяемый список карточек, уже отсортированный
+ * по рейтингу, чтобы листание страниц не перечитывало user_players. Объём ограничен суммарным
+ * числом карточек во всех списках; при превышении вытесняются давно не читанные пользователи.
+ * <p>
+ * Код, меняющий user_players, сбрасывает запись пользователя через {@link #invalidate} после
+ * фиксации транзакции. Загрузка идёт без блокировки кэша: перед чтением из БД в кэш кладётся
+ * пустая запись, и результат сохраняется, только если её не сбросили за время чтения.
+ */
+final class InventoryCache {
+    private final long maxCards;
+    // Порядок доступа: первым идёт давно не читанный пользователь
+    private final LinkedHashMap<Long, Slot> slots = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedCards;
+
+    InventoryCache(long maxCards) {
+        this.maxCards = maxCards;
+    }
+
+    List<Player> get(long userId, Loader loader) throws SQLException {
+        Slot slot;
+        synchronized (this) {
+            slot = slots.get(userId);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(userId, slot);
+            } else if (slot.players != null) {
+                return slot.players;
+            }
+        }
+        List<Player> players;
+        try {
+            players = Collections.unmodifiableList(loader.load(userId));
+        } catch (SQLException | RuntimeException e) {
+            synchronized (this) {
+                if (slots.get(userId) == slot && slot.players == null) {
+                    slots.remove(userId);
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            if (slots.get(userId) == slot && slot.players == null) {
+                slot.players = players;
+                cachedCards += players.size();
+                evict();
+            }
+        }
+        return players;
+    }
+
+    synchronized void invalidate(long userId) {
+        Slot slot = slots.remove(userId);
+        if (slot != null && slot.players != null) {
+            cachedCards -= slot.players.size();
+        }
+    }
+
+    /**
+     * Сбрасывает все инвентари, например после перезагрузки каталога.
+     */
+    synchronized void clear() {
+        slots.clear();
+        cachedCards = 0;
+    }
+
+    synchronized long cachedCards() {
+        return cachedCards;
+    }
+
+    synchronized int size() {
+        return slots.size();
+    }
+
+    // Последний прочитанный пользователь остаётся, даже если один превышает лимит
+    private void evict() {
+        Iterator<Map.Entry<Long, Slot>> it = slots.entrySet().iterator();
+        while (cachedCards > maxCards && slots.size() > 1 && it.hasNext()) {
+            Slot slot = it.next().getValue();
+            if (slot.players != null) {
+                cachedCards -= slot.players.size();
+                it.remove();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface Loader {
+        List<Player> load(long userId) throws SQLException;
+    }
+
+    private static final class Slot {
+        // null, пока список загружается
+        List<Player> players;
+    }
+}
@@ -0,0 +1,200 @@
+package ru.apache_maven.db;
+
+import ru.apache_maven.model.User;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Рейтинг пользователей по очкам в памяти: индексируемый skip list, упорядоченный по убыванию
+ * очков (при равенстве — по возрастанию id). Каждая ссылка хранит длину пропускаемого участка,
+ * поэтому место пользователя и первые N мест находятся за O(log n) без обращения к БД.
+ * Изменение очков — удаление узла и вставка нового, тоже O(log n).
+ */
+final class Leaderboard {
+    private static final int MAX_LEVEL = 32;
+
+    private final Node head = new Node(0, Long.MAX_VALUE, null, MAX_LEVEL);
+    private final Map<Long, Node> nodes = new HashMap<>();
+    private int level = 1;
+    private int size;
+
+    /**
+     * Добавляет пользователя или заменяет его имя и очки.
+     */
+    synchronized void put(long userId, String username, long points) {
+        Node existing = nodes.get(userId);
+        if (existing != null) {
+            if (existing.points == points) {
+                existing.username = username;
+                return;
+            }
+            unlink(existing);
+        }
+        nodes.put(userId, insert(userId, username, points));
+    }
+
+    /**
+     * Меняет очки пользователя на {@code delta}. Неизвестные пользователи пропускаются.
+     */
+    synchronized void addPoints(long userId, long delta) {
+        Node existing = nodes.get(userId);
+        if (existing == null || delta == 0) {
+            return;
+        }
+        unlink(existing);
+        nodes.put(userId, insert(userId, existing.username, existing.points + delta));
+    }
+
+    /**
+     * Меняет имя пользователя, не трогая его место.
+     */
+    synchronized void rename(long userId, String username) {
+        Node existing = nodes.get(userId);
+        if (existing != null) {
+            existing.username = username;
+        }
+    }
+
+    /**
+     * Первые {@code limit} мест: id, имя и очки пользователя.
+     */
+    synchronized List<User> top(int limit) {
+        List<User> users = new ArrayList<>(Math.min(limit, size));
+        for (Node x = head.next[0]; x != null && users.size() < limit; x = x.next[0]) {
+            users.add(new User(x.userId, x.username, x.points));
+        }
+        return users;
+    }
+
+    /**
+     * Место пользователя начиная с 1, или 0, если пользователя нет в рейтинге.
+     */
+    synchronized int rank(long userId) {
+        Node node = nodes.get(userId);
+        if (node == null) {
+            return 0;
+        }
+        int rank = 0;
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && !after(x.next[i], node.points, node.userId)) {
+                rank += x.span[i];
+                x = x.next[i];
+            }
+            if (x == node) {
+                return rank;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Имя пользователя или null, если пользователя нет в рейтинге.
+     */
+    synchronized String username(long userId) {
+        Node node = nodes.get(userId);
+        return node != null ? node.username : null;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private Node insert(long userId, String username, long points) {
+        Node[] update = new Node[MAX_LEVEL];
+        int[] rank = new int[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            rank[i] = i == level - 1 ? 0 : rank[i + 1];
+            while (x.next[i] != null && before(x.next[i], points, userId)) {
+                rank[i] += x.span[i];
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        int nodeLevel = randomLevel();
+        if (nodeLevel > level) {
+            for (int i = level; i < nodeLevel; i++) {
+                rank[i] = 0;
+                update[i] = head;
+                head.span[i] = size;
+            }
+            level = nodeLevel;
+        }
+        Node node = new Node(userId, points, username, nodeLevel);
+        for (int i = 0; i < nodeLevel; i++) {
+            node.next[i] = update[i].next[i];
+            update[i].next[i] = node;
+            node.span[i] = update[i].span[i] - (rank[0] - rank[i]);
+            update[i].span[i] = rank[0] - rank[i] + 1;
+        }
+        for (int i = nodeLevel; i < level; i++) {
+            update[i].span[i]++;
+        }
+        size++;
+        return node;
+    }
+
+    private void unlink(Node node) {
+        Node[] update = new Node[MAX_LEVEL];
+        Node x = head;
+        for (int i = level - 1; i >= 0; i--) {
+            while (x.next[i] != null && before(x.next[i], node.points, node.userId)) {
+                x = x.next[i];
+            }
+            update[i] = x;
+        }
+        for (int i = 0; i < level; i++) {
+            if (update[i].next[i] == node) {
+                update[i].span[i] += node.span[i] - 1;
+                update[i].next[i] = node.next[i];
+            } else {
+                update[i].span[i]--;
+            }
+        }
+        while (level > 1 && head.next[level - 1] == null) {
+            level--;
+        }
+        size--;
+        nodes.remove(node.userId);
+    }
+
+    // Узел стоит в рейтинге раньше позиции (points, userId)
+    private static boolean before(Node node, long points, long userId) {
+        return node.points > points || (node.points == points && node.userId < userId);
+    }
+
+    private static boolean after(Node node, long points, long userId) {
+        return node.points < points || (node.points == points && node.userId > userId);
+    }
+
+    // Уровень с вероятностью 1/4 на каждый следующий, как в Redis
+    private static int randomLevel() {
+        int nodeLevel = 1;
+        while (nodeLevel < MAX_LEVEL && ThreadLocalRandom.current().nextInt(4) == 0) {
+            nodeLevel++;
+        }
+        return nodeLevel;
+    }
+
+    private static final class Node {
+        final long userId;
+        final long points;
+        String username;
+        final Node[] next;
+        // Число узлов нижнего уровня, которые пропускает ссылка next[i]
+        final int[] span;
+
+        Node(long userId, long points, String username, int level) {
+            this.userId = userId;
+            this.points = points;
+            this.username = username;
+            this.next = new Node[level];
+            this.span = new int[level];
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ru.apache_maven.db;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Множество ключей long (открытая адресация, линейное пробирование) без боксинга.
+ * Добавление сериализовано, проверка принадлежности идёт без блокировок: читатель,
+ * застав таблицу во время добавления, может не увидеть добавляемый ключ, но ранее
+ * добавленные ключи видит всегда. Удаление не поддерживается.
+ */
+final class LongHashSet {
+    private static final long EMPTY = 0;
+
+    private volatile AtomicLongArray keys;
+    private volatile boolean hasZeroKey;
+    private int size;
+
+    LongHashSet(int expectedSize) {
+        keys = new AtomicLongArray(Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1);
+    }
+
+    boolean contains(long key) {
+        if (key == EMPTY) {
+            return hasZeroKey;
+        }
+        AtomicLongArray table = keys;
+        int mask = table.length() - 1;
+        int slot = mix(key) & mask;
+        long current;
+        while ((current = table.get(slot)) != EMPTY) {
+            if (current == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return true, если ключа ещё не было
+     */
+    synchronized boolean add(long key) {
+        if (key == EMPTY) {
+            if (hasZeroKey) {
+                return false;
+            }
+            hasZeroKey = true;
+            size++;
+            return true;
+        }
+        if ((size + 1) * 2 > keys.length()) {
+            keys = rehash(keys, keys.length() * 2);
+        }
+        if (!insert(keys, key)) {
+            return false;
+        }
+        size++;
+        return true;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    // Новая таблица публикуется только после копирования всех ключей
+    private static AtomicLongArray rehash(AtomicLongArray old, int capacity) {
+        AtomicLongArray table = new AtomicLongArray(capacity);
+        for (int i = 0; i < old.length(); i++) {
+            long key = old.get(i);
+            if (key != EMPTY) {
+                insert(table, key);
+            }
+        }
+        return table;
+    }
+
+    private static boolean insert(AtomicLongArray table, long key) {
+        int mask = table.length() - 1;
+        int slot = mix(key) & mask;
+        long current;
+        while ((current = table.get(slot)) != EMPTY) {
+            if (current == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table.set(slot, key);
+        return true;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
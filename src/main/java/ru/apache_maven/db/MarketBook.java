@@ -0,0 +1,224 @@
+package ru.apache_maven.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Книга лотов рынка в памяти. Все лоты и отдельно лоты каждой категории, позиции и десятка
+ * рейтинга лежат в множествах, упорядоченных по цене (при равенстве — по id лота). Поиск
+ * по фильтру берёт самое маленькое из множеств, заданных фильтром, встаёт на позицию курсора
+ * и цены, и проверяет остальные условия только у просмотренных лотов.
+ * <p>
+ * Код, меняющий таблицу market, сообщает об изменении через {@link #put}/{@link #remove}
+ * после фиксации. Оба вызова идемпотентны, а {@link #reload} держит блокировку книги на время
+ * чтения таблицы, поэтому изменение, пришедшее во время перезагрузки, применяется к новой книге.
+ */
+final class MarketBook {
+    private static final Comparator<Lot> BY_PRICE = Comparator.<Lot>comparingInt(lot -> lot.price)
+            .thenComparingLong(lot -> lot.marketId);
+
+    private final NavigableSet<Lot> all = new TreeSet<>(BY_PRICE);
+    private final Map<Long, Lot> lots = new HashMap<>();
+    private final Map<Integer, NavigableSet<Lot>> byCategory = new HashMap<>();
+    private final Map<String, NavigableSet<Lot>> byPosition = new HashMap<>();
+    private final Map<Integer, NavigableSet<Lot>> byRatingBand = new HashMap<>();
+    private final Map<Long, NavigableSet<Lot>> bySeller = new HashMap<>();
+    private final Map<Integer, Integer> playerCounts = new HashMap<>();
+
+    /**
+     * Перечитывает все лоты; изменения ждут окончания загрузки.
+     */
+    synchronized void reload(Loader loader) throws SQLException {
+        List<Lot> loaded = loader.load();
+        all.clear();
+        lots.clear();
+        byCategory.clear();
+        byPosition.clear();
+        byRatingBand.clear();
+        bySeller.clear();
+        playerCounts.clear();
+        for (Lot lot : loaded) {
+            put(lot);
+        }
+    }
+
+    /**
+     * Добавляет лот или заменяет лот с тем же id.
+     */
+    synchronized void put(Lot lot) {
+        remove(lot.marketId);
+        lots.put(lot.marketId, lot);
+        all.add(lot);
+        facet(byCategory, lot.categoryId).add(lot);
+        if (lot.position != null) {
+            facet(byPosition, lot.position).add(lot);
+        }
+        facet(byRatingBand, MarketFilter.ratingBand(lot.rating)).add(lot);
+        facet(bySeller, lot.sellerId).add(lot);
+        playerCounts.merge(lot.playerId, 1, Integer::sum);
+    }
+
+    /**
+     * @return снятый лот или null, если его не было
+     */
+    synchronized Lot remove(long marketId) {
+        Lot lot = lots.remove(marketId);
+        if (lot == null) {
+            return null;
+        }
+        all.remove(lot);
+        unfacet(byCategory, lot.categoryId, lot);
+        if (lot.position != null) {
+            unfacet(byPosition, lot.position, lot);
+        }
+        unfacet(byRatingBand, MarketFilter.ratingBand(lot.rating), lot);
+        unfacet(bySeller, lot.sellerId, lot);
+        playerCounts.computeIfPresent(lot.playerId, (id, count) -> count > 1 ? count - 1 : null);
+        return lot;
+    }
+
+    synchronized Lot get(long marketId) {
+        return lots.get(marketId);
+    }
+
+    synchronized boolean containsPlayer(int playerId) {
+        return playerCounts.containsKey(playerId);
+    }
+
+    /**
+     * Лоты продавца по возрастанию цены.
+     */
+    synchronized List<Lot> bySeller(long sellerId) {
+        NavigableSet<Lot> set = bySeller.get(sellerId);
+        return set == null ? new ArrayList<>() : new ArrayList<>(set);
+    }
+
+    /**
+     * До {@code limit} лотов, подходящих под фильтр, начиная с позиции курсора. Для курсора
+     * назад лоты возвращаются в обратном порядке, как выборка по {@link PageCursor#orderBy}.
+     */
+    List<Lot> find(MarketFilter filter, PageCursor cursor, int limit) {
+        return find(filter, cursor, limit, playerId -> true);
+    }
+
+    /**
+     * То же, но лоты игроков, не прошедших {@code available}, пропускаются до подсчёта {@code limit},
+     * поэтому страница не укорачивается.
+     */
+    synchronized List<Lot> find(MarketFilter filter, PageCursor cursor, int limit, IntPredicate available) {
+        NavigableSet<Lot> source = all;
+        if (filter.getCategoryId() != 0) {
+            source = smaller(source, byCategory.get(filter.getCategoryId()));
+        }
+        if (filter.getPosition() != null) {
+            source = smaller(source, byPosition.get(filter.getPosition()));
+        }
+        if (filter.getRatingBand() >= 0) {
+            source = smaller(source, byRatingBand.get(filter.getRatingBand()));
+        }
+        List<Lot> result = new ArrayList<>(Math.min(limit, 64));
+        if (source == null) {
+            return result;
+        }
+        // Границы считаются заранее: представление TreeSet не принимает ключи вне своего диапазона
+        boolean reverse = filter.isDescending() != (cursor != null && cursor.isBackward());
+        Lot low = null;
+        Lot high = filter.getMaxPrice() > 0 ? probe(filter.getMaxPrice(), Long.MAX_VALUE) : null;
+        boolean highInclusive = true;
+        if (cursor != null) {
+            Lot from = probe(cursor.getKey(), cursor.getId());
+            if (!reverse) {
+                low = from;
+            } else if (high == null || BY_PRICE.compare(from, high) <= 0) {
+                high = from;
+                highInclusive = false;
+            }
+        }
+        if (low != null && high != null) {
+            if (BY_PRICE.compare(low, high) > 0) {
+                return result;
+            }
+            source = source.subSet(low, false, high, highInclusive);
+        } else if (low != null) {
+            source = source.tailSet(low, false);
+        } else if (high != null) {
+            source = source.headSet(high, highInclusive);
+        }
+        for (Lot lot : reverse ? source.descendingSet() : source) {
+            if (result.size() == limit) {
+                break;
+            }
+            if (filter.matches(lot.categoryId, lot.position, lot.rating, lot.price) && available.test(lot.playerId)) {
+                result.add(lot);
+            }
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return lots.size();
+    }
+
+    // null означает пустую грань: под фильтр не подходит ни один лот
+    private static NavigableSet<Lot> smaller(NavigableSet<Lot> current, NavigableSet<Lot> candidate) {
+        if (current == null || candidate == null) {
+            return null;
+        }
+        return candidate.size() < current.size() ? candidate : current;
+    }
+
+    private static <K> NavigableSet<Lot> facet(Map<K, NavigableSet<Lot>> index, K key) {
+        return index.computeIfAbsent(key, k -> new TreeSet<>(BY_PRICE));
+    }
+
+    private static <K> void unfacet(Map<K, NavigableSet<Lot>> index, K key, Lot lot) {
+        NavigableSet<Lot> set = index.get(key);
+        if (set != null && set.remove(lot) && set.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    // Граница поиска: лот с заданными ценой и id, цена из курсора приводится к диапазону int
+    private static Lot probe(long price, long marketId) {
+        int clamped = (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, price));
+        return new Lot(marketId, 0, null, 0, clamped, 0, null, 0);
+    }
+
+    @FunctionalInterface
+    interface Loader {
+        List<Lot> load() throws SQLException;
+    }
+
+    /**
+     * Лот рынка вместе с признаками игрока, по которым он индексируется.
+     */
+    static final class Lot {
+        final long marketId;
+        final long sellerId;
+        final String sellerUsername;
+        final int playerId;
+        final int price;
+        final int categoryId;
+        final String position;
+        final int rating;
+
+        Lot(long marketId, long sellerId, String sellerUsername, int playerId, int price,
+            int categoryId, String position, int rating) {
+            this.marketId = marketId;
+            this.sellerId = sellerId;
+            this.sellerUsername = sellerUsername;
+            this.playerId = playerId;
+            this.price = price;
+            this.categoryId = categoryId;
+            this.position = position;
+            this.rating = rating;
+        }
+    }
+}
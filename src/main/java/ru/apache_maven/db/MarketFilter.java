@@ -0,0 +1,156 @@
+package ru.apache_maven.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Фильтр витрины рынка: категория, позиция, диапазон рейтинга (десятки: 80–89 и т.д.),
+ * верхняя граница цены и направление сортировки по цене. Неизменяемый.
+ * <p>
+ * Кодируется в одну часть callback data: условия через точку — {@code c<категория>},
+ * {@code p<позиция>}, {@code r<десяток рейтинга>}, {@code m<макс. цена>}, {@code d} для
+ * сортировки по убыванию цены; фильтр без условий кодируется как {@code all}.
+ */
+public final class MarketFilter {
+    public static final MarketFilter ALL = new MarketFilter(0, null, -1, 0, false);
+
+    private static final String EMPTY = "all";
+
+    private final int categoryId;
+    private final String position;
+    private final int ratingBand;
+    private final int maxPrice;
+    private final boolean descending;
+
+    private MarketFilter(int categoryId, String position, int ratingBand, int maxPrice, boolean descending) {
+        this.categoryId = categoryId;
+        this.position = position;
+        this.ratingBand = ratingBand;
+        this.maxPrice = maxPrice;
+        this.descending = descending;
+    }
+
+    /**
+     * Десяток рейтинга, по которому фильтруется витрина: 87 → 8.
+     */
+    public static int ratingBand(int rating) {
+        return Math.max(0, rating) / 10;
+    }
+
+    public MarketFilter withCategory(int categoryId) {
+        return new MarketFilter(categoryId, position, ratingBand, maxPrice, descending);
+    }
+
+    public MarketFilter withPosition(String position) {
+        return new MarketFilter(categoryId, position, ratingBand, maxPrice, descending);
+    }
+
+    public MarketFilter withRatingBand(int ratingBand) {
+        return new MarketFilter(categoryId, position, ratingBand, maxPrice, descending);
+    }
+
+    public MarketFilter withMaxPrice(int maxPrice) {
+        return new MarketFilter(categoryId, position, ratingBand, maxPrice, descending);
+    }
+
+    public MarketFilter withDescending(boolean descending) {
+        return new MarketFilter(categoryId, position, ratingBand, maxPrice, descending);
+    }
+
+    /**
+     * @return ID категории или 0, если категория не задана
+     */
+    public int getCategoryId() {
+        return categoryId;
+    }
+
+    /**
+     * @return позиция или null, если позиция не задана
+     */
+    public String getPosition() {
+        return position;
+    }
+
+    /**
+     * @return десяток рейтинга или -1, если диапазон не задан
+     */
+    public int getRatingBand() {
+        return ratingBand;
+    }
+
+    /**
+     * @return максимальная цена или 0, если граница не задана
+     */
+    public int getMaxPrice() {
+        return maxPrice;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * @return true, если задано хотя бы одно условие отбора (направление сортировки не считается)
+     */
+    public boolean hasConditions() {
+        return categoryId != 0 || position != null || ratingBand >= 0 || maxPrice > 0;
+    }
+
+    boolean matches(int categoryId, String position, int rating, int price) {
+        return (this.categoryId == 0 || this.categoryId == categoryId)
+                && (this.position == null || this.position.equals(position))
+                && (ratingBand < 0 || ratingBand == ratingBand(rating))
+                && (maxPrice <= 0 || price <= maxPrice);
+    }
+
+    public String encode() {
+        List<String> tokens = new ArrayList<>();
+        if (categoryId != 0) {
+            tokens.add("c" + categoryId);
+        }
+        if (position != null) {
+            tokens.add("p" + position);
+        }
+        if (ratingBand >= 0) {
+            tokens.add("r" + ratingBand);
+        }
+        if (maxPrice > 0) {
+            tokens.add("m" + maxPrice);
+        }
+        if (descending) {
+            tokens.add("d");
+        }
+        return tokens.isEmpty() ? EMPTY : String.join(".", tokens);
+    }
+
+    /**
+     * Разбирает фильтр, закодированный {@link #encode}.
+     * @throws IllegalArgumentException если формат неверный
+     */
+    public static MarketFilter decode(String encoded) {
+        MarketFilter filter = ALL;
+        if (EMPTY.equals(encoded)) {
+            return filter;
+        }
+        for (String token : encoded.split("\\.")) {
+            if (token.isEmpty()) {
+                throw new IllegalArgumentException("Пустое условие фильтра: " + encoded);
+            }
+            String value = token.substring(1);
+            switch (token.charAt(0)) {
+                case 'c' -> filter = filter.withCategory(Integer.parseInt(value));
+                case 'p' -> filter = filter.withPosition(value);
+                case 'r' -> filter = filter.withRatingBand(Integer.parseInt(value));
+                case 'm' -> filter = filter.withMaxPrice(Integer.parseInt(value));
+                case 'd' -> filter = filter.withDescending(true);
+                default -> throw new IllegalArgumentException("Неизвестное условие фильтра: " + token);
+            }
+        }
+        return filter;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
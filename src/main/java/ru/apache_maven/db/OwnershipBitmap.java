@@ -0,0 +1,219 @@
+package ru.apache_maven.db;
+
+import java.util.Arrays;
+
+/**
+ * Сжатое множество неотрицательных int в духе Roaring bitmap: старшие 16 бит значения
+ * выбирают контейнер, младшие 16 бит хранятся в нём. Разреженный контейнер — отсортированный
+ * массив char (2 байта на значение), плотный — битовая карта на 65536 бит (8 КБ).
+ * Контейнер переключается между видами на пороге 4096 значений, где оба занимают 8 КБ.
+ * <p>
+ * Не потокобезопасен: синхронизацию обеспечивает вызывающий код.
+ */
+final class OwnershipBitmap {
+    static final int ARRAY_LIMIT = 4096;
+
+    private char[] highs = new char[0];
+    private Container[] containers = new Container[0];
+    private int cardinality;
+
+    boolean add(int value) {
+        checkValue(value);
+        char high = (char) (value >>> 16);
+        int index = Arrays.binarySearch(highs, high);
+        if (index < 0) {
+            index = -index - 1;
+            highs = insert(highs, index, high);
+            containers = insert(containers, index, new ArrayContainer());
+        }
+        int before = containers[index].cardinality();
+        containers[index] = containers[index].add((char) value);
+        if (containers[index].cardinality() == before) {
+            return false;
+        }
+        cardinality++;
+        return true;
+    }
+
+    boolean remove(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(highs, (char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        int before = containers[index].cardinality();
+        containers[index] = containers[index].remove((char) value);
+        if (containers[index].cardinality() == before) {
+            return false;
+        }
+        cardinality--;
+        if (containers[index].cardinality() == 0) {
+            highs = delete(highs, index);
+            containers = delete(containers, index);
+        }
+        return true;
+    }
+
+    boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(highs, (char) (value >>> 16));
+        return index >= 0 && containers[index].contains((char) value);
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    private static void checkValue(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Отрицательное значение: " + value);
+        }
+    }
+
+    private static char[] insert(char[] array, int index, char value) {
+        char[] result = new char[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static Container[] insert(Container[] array, int index, Container value) {
+        Container[] result = new Container[array.length + 1];
+        System.arraycopy(array, 0, result, 0, index);
+        result[index] = value;
+        System.arraycopy(array, index, result, index + 1, array.length - index);
+        return result;
+    }
+
+    private static char[] delete(char[] array, int index) {
+        char[] result = new char[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    private static Container[] delete(Container[] array, int index) {
+        Container[] result = new Container[array.length - 1];
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    // Изменяющие операции возвращают контейнер, который должен занять место текущего
+    private interface Container {
+        Container add(char low);
+
+        Container remove(char low);
+
+        boolean contains(char low);
+
+        int cardinality();
+    }
+
+    private static final class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int size;
+
+        @Override
+        public Container add(char low) {
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index >= 0) {
+                return this;
+            }
+            if (size == ARRAY_LIMIT) {
+                return toBitmap().add(low);
+            }
+            index = -index - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, size * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = low;
+            size++;
+            return this;
+        }
+
+        @Override
+        public Container remove(char low) {
+            int index = Arrays.binarySearch(values, 0, size, low);
+            if (index >= 0) {
+                System.arraycopy(values, index + 1, values, index, size - index - 1);
+                size--;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, size, low) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return size;
+        }
+
+        private BitmapContainer toBitmap() {
+            BitmapContainer bitmap = new BitmapContainer();
+            for (int i = 0; i < size; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private final long[] words = new long[1 << 10];
+        private int cardinality;
+
+        @Override
+        public Container add(char low) {
+            long mask = 1L << low;
+            if ((words[low >>> 6] & mask) == 0) {
+                words[low >>> 6] |= mask;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        public Container remove(char low) {
+            long mask = 1L << low;
+            if ((words[low >>> 6] & mask) != 0) {
+                words[low >>> 6] &= ~mask;
+                cardinality--;
+                if (cardinality <= ARRAY_LIMIT) {
+                    return toArray();
+                }
+            }
+            return this;
+        }
+
+        @Override
+        public boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        private ArrayContainer toArray() {
+            ArrayContainer array = new ArrayContainer();
+            for (int word = 0; word < words.length; word++) {
+                long bits = words[word];
+                while (bits != 0) {
+                    array.add((char) (word * 64 + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+            }
+            return array;
+        }
+    }
+}
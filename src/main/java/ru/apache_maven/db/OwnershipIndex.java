@@ -0,0 +1,114 @@
+package ru.apache_maven.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Индекс владения карточками: для каждого пользователя — {@link OwnershipBitmap} его игроков.
+ * Битовая карта загружается из user_players при первом обращении к пользователю, дальше
+ * проверки владения и подсчёты идут без SQL.
+ * <p>
+ * Код, меняющий user_players, сообщает об изменении через {@link #added}/{@link #removed}
+ * после фиксации транзакции. Загрузка и изменения одного пользователя идут под блокировкой
+ * его записи, поэтому изменение, пришедшее во время загрузки, применяется к уже загруженной
+ * карте и не теряется.
+ */
+final class OwnershipIndex {
+    private static final Logger logger = LoggerFactory.getLogger(OwnershipIndex.class);
+
+    private final DataSource dataSource;
+    private final ConcurrentHashMap<Long, Entry> users = new ConcurrentHashMap<>();
+
+    OwnershipIndex(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    boolean contains(long userId, int playerId) throws SQLException {
+        Entry entry = loaded(userId);
+        synchronized (entry) {
+            return entry.bitmap.contains(playerId);
+        }
+    }
+
+    int count(long userId) throws SQLException {
+        Entry entry = loaded(userId);
+        synchronized (entry) {
+            return entry.bitmap.cardinality();
+        }
+    }
+
+    void added(long userId, int playerId) {
+        Entry entry = users.get(userId);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.bitmap != null) {
+                    entry.bitmap.add(playerId);
+                }
+            }
+        }
+    }
+
+    void removed(long userId, int playerId) {
+        Entry entry = users.get(userId);
+        if (entry != null) {
+            synchronized (entry) {
+                if (entry.bitmap != null) {
+                    entry.bitmap.remove(playerId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Сбрасывает все карты, например после перезагрузки каталога: удалённые игроки
+     * каскадно исчезают из user_players без уведомления индекса.
+     */
+    void clear() {
+        users.clear();
+    }
+
+    private Entry loaded(long userId) throws SQLException {
+        Entry entry = users.computeIfAbsent(userId, id -> new Entry());
+        synchronized (entry) {
+            if (entry.bitmap == null) {
+                try {
+                    entry.bitmap = load(userId);
+                } catch (SQLException e) {
+                    users.remove(userId, entry);
+                    throw e;
+                }
+            }
+        }
+        return entry;
+    }
+
+    private OwnershipBitmap load(long userId) throws SQLException {
+        String sql = "SELECT player_id FROM user_players WHERE user_id = ?";
+        OwnershipBitmap bitmap = new OwnershipBitmap();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setLong(1, userId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    bitmap.add(rs.getInt("player_id"));
+                }
+            }
+        } catch (SQLException e) {
+            logger.error("Ошибка загрузки коллекции пользователя {}: {}", userId, e.getMessage(), e);
+            throw e;
+        }
+        return bitmap;
+    }
+
+    private static final class Entry {
+        // null, пока карта не загружена
+        OwnershipBitmap bitmap;
+    }
+}
@@ -0,0 +1,35 @@
+package ru.apache_maven.db;
+
+import ru.apache_maven.model.Pack;
+import ru.apache_maven.model.Player;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Результат открытия пака: выпавшие игроки в порядке выдачи и признак повтора для каждого.
+ * Повтор — игрок, который уже был у пользователя или выпал раньше в этом же паке.
+ */
+public final class PackOpening {
+    private final Pack pack;
+    private final List<Player> players;
+    private final boolean[] duplicates;
+
+    PackOpening(Pack pack, List<Player> players, boolean[] duplicates) {
+        this.pack = pack;
+        this.players = Collections.unmodifiableList(players);
+        this.duplicates = duplicates;
+    }
+
+    public Pack getPack() {
+        return pack;
+    }
+
+    public List<Player> getPlayers() {
+        return players;
+    }
+
+    public boolean isDuplicate(int index) {
+        return duplicates[index];
+    }
+}
@@ -0,0 +1,58 @@
+package ru.apache_maven.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Страница keyset-пагинации: строки в порядке выдачи и признаки наличия соседних страниц.
+ */
+public final class Page<T> {
+    private final List<T> items;
+    private final boolean hasPrevious;
+    private final boolean hasNext;
+
+    private Page(List<T> items, boolean hasPrevious, boolean hasNext) {
+        this.items = Collections.unmodifiableList(items);
+        this.hasPrevious = hasPrevious;
+        this.hasNext = hasNext;
+    }
+
+    /**
+     * Собирает страницу из выборки с LIMIT pageSize + 1, сделанной по курсору.
+     * Лишняя строка означает, что в направлении курсора есть ещё страница.
+     */
+    static <T> Page<T> of(List<T> rows, PageCursor cursor, int pageSize) {
+        boolean more = rows.size() > pageSize;
+        List<T> items = new ArrayList<>(more ? rows.subList(0, pageSize) : rows);
+        if (cursor != null && cursor.isBackward()) {
+            Collections.reverse(items);
+            return new Page<>(items, more, true);
+        }
+        return new Page<>(items, cursor != null, more);
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public boolean isEmpty() {
+        return items.isEmpty();
+    }
+
+    public T first() {
+        return items.get(0);
+    }
+
+    public T last() {
+        return items.get(items.size() - 1);
+    }
+
+    public boolean hasPrevious() {
+        return hasPrevious;
+    }
+
+    public boolean hasNext() {
+        return hasNext;
+    }
+}
@@ -0,0 +1,110 @@
+package ru.apache_maven.db;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Курсор keyset-пагинации: пара (ключ сортировки, id) граничной строки и направление.
+ * Вместо OFFSET запрос продолжается с позиции курсора, поэтому стоимость страницы не
+ * зависит от её номера, а вставки между запросами не сдвигают выдачу.
+ * <p>
+ * Курсор кодируется в callback data как {@code n_<ключ>_<id>} (следующая страница)
+ * или {@code p_<ключ>_<id>} (предыдущая).
+ */
+public final class PageCursor {
+    private static final String NEXT = "n";
+    private static final String PREVIOUS = "p";
+
+    private final long key;
+    private final long id;
+    private final boolean backward;
+
+    private PageCursor(long key, long id, boolean backward) {
+        this.key = key;
+        this.id = id;
+        this.backward = backward;
+    }
+
+    /**
+     * Курсор на страницу после строки с указанными ключом и id.
+     */
+    public static PageCursor after(long key, long id) {
+        return new PageCursor(key, id, false);
+    }
+
+    /**
+     * Курсор на страницу перед строкой с указанными ключом и id.
+     */
+    public static PageCursor before(long key, long id) {
+        return new PageCursor(key, id, true);
+    }
+
+    public String encode() {
+        return (backward ? PREVIOUS : NEXT) + "_" + key + "_" + id;
+    }
+
+    /**
+     * Разбирает курсор из частей callback data, начиная с позиции {@code from}.
+     * @throws IllegalArgumentException если формат неверный
+     */
+    public static PageCursor decode(String[] parts, int from) {
+        if (parts.length < from + 3) {
+            throw new IllegalArgumentException("Курсор страницы не найден");
+        }
+        boolean backward;
+        if (PREVIOUS.equals(parts[from])) {
+            backward = true;
+        } else if (NEXT.equals(parts[from])) {
+            backward = false;
+        } else {
+            throw new IllegalArgumentException("Неизвестное направление курсора: " + parts[from]);
+        }
+        return new PageCursor(Long.parseLong(parts[from + 1]), Long.parseLong(parts[from + 2]), backward);
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isBackward() {
+        return backward;
+    }
+
+    /**
+     * Условие продолжения выборки с позиции курсора. Параметры привязываются через {@link #bind}.
+     * @param descending порядок выдачи страниц (по убыванию ключа и id или по возрастанию)
+     */
+    String seekCondition(String keyColumn, String idColumn, boolean descending) {
+        // Назад листаем в обратном порядке, затем переворачиваем результат
+        String op = descending != backward ? "<" : ">";
+        return "(" + keyColumn + " " + op + " ? OR (" + keyColumn + " = ? AND " + idColumn + " " + op + " ?))";
+    }
+
+    /**
+     * Порядок сортировки выборки; для курсора назад он обратный порядку выдачи.
+     */
+    static String orderBy(PageCursor cursor, String keyColumn, String idColumn, boolean descending) {
+        boolean reverse = cursor != null && cursor.backward;
+        String direction = descending != reverse ? "DESC" : "ASC";
+        return keyColumn + " " + direction + ", " + idColumn + " " + direction;
+    }
+
+    /**
+     * Привязывает параметры условия {@link #seekCondition}; возвращает следующий свободный индекс.
+     */
+    int bind(PreparedStatement stmt, int index) throws SQLException {
+        stmt.setLong(index++, key);
+        stmt.setLong(index++, key);
+        stmt.setLong(index++, id);
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,35 @@
+package ru.apache_maven.db;
+
+/**
+ * Идентификатор файла Telegram, полученный при первой загрузке изображения карточки или фото игрока.
+ * Действителен, пока содержимое совпадает с {@link #getContentHash()}.
+ */
+public final class PhotoFileId {
+    private final String photo;
+    private final String contentHash;
+    private final String fileId;
+
+    public PhotoFileId(String photo, String contentHash, String fileId) {
+        this.photo = photo;
+        this.contentHash = contentHash;
+        this.fileId = fileId;
+    }
+
+    /**
+     * @return ключ изображения: карточка игрока или имя фото
+     */
+    public String getPhoto() {
+        return photo;
+    }
+
+    /**
+     * @return отпечаток содержимого (SHA-256) в шестнадцатеричном виде
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+}
@@ -0,0 +1,155 @@
+package ru.apache_maven.db;
+
+import ru.apache_maven.model.PlayerCategory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Неизменяемый снимок каталога для случайной выдачи карточек без ORDER BY RAND().
+ * Категория выбирается по весу через alias-таблицу (метод Уолкера/Воуза) за O(1),
+ * игрок внутри категории — по случайному индексу в массиве ID.
+ */
+public final class PlayerSampler {
+    private static final int[] NO_IDS = new int[0];
+
+    // Категории, участвующие во взвешенной выдаче (вес > 0 и есть игроки)
+    private final PlayerCategory[] weightedCategories;
+    private final int[][] weightedPlayerIds;
+    private final double[] probability;
+    private final int[] alias;
+
+    // ID игроков и составов ИИ по имени категории / сложности (ключи в нижнем регистре)
+    private final Map<String, int[]> playerIdsByCategory;
+    private final Map<String, int[]> aiSquadIdsByDifficulty;
+
+    /**
+     * @param categories             все категории игроков
+     * @param playerIdsByCategoryId  ID игроков, сгруппированные по ID категории
+     * @param aiSquadIdsByDifficulty ID составов ИИ, сгруппированные по названию сложности
+     */
+    public PlayerSampler(List<PlayerCategory> categories, Map<Integer, int[]> playerIdsByCategoryId,
+                         Map<String, int[]> aiSquadIdsByDifficulty) {
+        Map<String, int[]> byName = new HashMap<>();
+        List<PlayerCategory> weighted = new ArrayList<>();
+        List<int[]> weightedIds = new ArrayList<>();
+        for (PlayerCategory category : categories) {
+            int[] ids = playerIdsByCategoryId.getOrDefault(category.getId(), NO_IDS);
+            byName.put(key(category.getName()), ids);
+            if (category.getWeight() > 0 && ids.length > 0) {
+                weighted.add(category);
+                weightedIds.add(ids);
+            }
+        }
+        this.playerIdsByCategory = Collections.unmodifiableMap(byName);
+
+        Map<String, int[]> squads = new HashMap<>();
+        aiSquadIdsByDifficulty.forEach((difficulty, ids) -> squads.put(key(difficulty), ids));
+        this.aiSquadIdsByDifficulty = Collections.unmodifiableMap(squads);
+
+        this.weightedCategories = weighted.toArray(new PlayerCategory[0]);
+        this.weightedPlayerIds = weightedIds.toArray(new int[0][]);
+        int n = weightedCategories.length;
+        this.probability = new double[n];
+        this.alias = new int[n];
+        buildAliasTable();
+    }
+
+    private void buildAliasTable() {
+        int n = weightedCategories.length;
+        if (n == 0) {
+            return;
+        }
+        long totalWeight = 0;
+        for (PlayerCategory category : weightedCategories) {
+            totalWeight += category.getWeight();
+        }
+
+        double[] scaled = new double[n];
+        int[] small = new int[n];
+        int[] large = new int[n];
+        int smallSize = 0;
+        int largeSize = 0;
+        for (int i = 0; i < n; i++) {
+            scaled[i] = (double) weightedCategories[i].getWeight() * n / totalWeight;
+            if (scaled[i] < 1.0) {
+                small[smallSize++] = i;
+            } else {
+                large[largeSize++] = i;
+            }
+        }
+
+        while (smallSize > 0 && largeSize > 0) {
+            int less = small[--smallSize];
+            int more = large[--largeSize];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallSize++] = more;
+            } else {
+                large[largeSize++] = more;
+            }
+        }
+        // Остатки из-за погрешности округления получают вероятность 1
+        while (largeSize > 0) {
+            probability[large[--largeSize]] = 1.0;
+        }
+        while (smallSize > 0) {
+            probability[small[--smallSize]] = 1.0;
+        }
+    }
+
+    /**
+     * Случайный ID игрока с учётом весов категорий или -1, если выдавать некого.
+     */
+    public int nextPlayerId(Random random) {
+        int category = nextCategoryIndex(random);
+        if (category < 0) {
+            return -1;
+        }
+        int[] ids = weightedPlayerIds[category];
+        return ids[random.nextInt(ids.length)];
+    }
+
+    /**
+     * Случайный ID игрока из категории или -1, если категория неизвестна или пуста.
+     */
+    public int nextPlayerId(String categoryName, Random random) {
+        if (categoryName == null) {
+            return -1;
+        }
+        int[] ids = playerIdsByCategory.getOrDefault(key(categoryName), NO_IDS);
+        return ids.length == 0 ? -1 : ids[random.nextInt(ids.length)];
+    }
+
+    /**
+     * Случайный ID состава ИИ для сложности или -1, если составов нет.
+     */
+    public int nextAiSquadId(String difficulty, Random random) {
+        if (difficulty == null) {
+            return -1;
+        }
+        int[] ids = aiSquadIdsByDifficulty.getOrDefault(key(difficulty), NO_IDS);
+        return ids.length == 0 ? -1 : ids[random.nextInt(ids.length)];
+    }
+
+    private int nextCategoryIndex(Random random) {
+        int n = weightedCategories.length;
+        if (n == 0) {
+            return -1;
+        }
+        int column = random.nextInt(n);
+        return random.nextDouble() < probability[column] ? column : alias[column];
+    }
+
+    // MySQL сравнивает имена без учёта регистра, повторяем это поведение
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+}
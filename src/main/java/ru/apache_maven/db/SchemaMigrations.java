@@ -0,0 +1,284 @@
+package ru.apache_maven.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/**
+ * Версионированные миграции схемы. Применённые версии записываются в таблицу schema_version,
+ * поэтому при актуальной схеме запуск стоит одного запроса {@code MAX(version)}.
+ * <p>
+ * Новые изменения схемы добавляются в конец {@link #MIGRATIONS} со следующим номером;
+ * уже выпущенные миграции не меняются. DDL в MySQL не откатывается транзакцией, поэтому
+ * каждый шаг написан идемпотентно (IF NOT EXISTS, {@link #ensureIndex}, {@link #ensureColumn})
+ * и прерванная миграция безопасно повторяется при следующем запуске. Несколько процессов
+ * не применяют миграции одновременно: применение идёт под именованной блокировкой MySQL.
+ */
+final class SchemaMigrations {
+    private static final Logger logger = LoggerFactory.getLogger(SchemaMigrations.class);
+    private static final String LOCK_NAME = "flashcards_schema_migration";
+    private static final int LOCK_TIMEOUT_SECONDS = 60;
+    private static final int MYSQL_NO_SUCH_TABLE = 1146;
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "Базовая схема", SchemaMigrations::createBaseSchema),
+            new Migration(2, "Индексы для горячих запросов", SchemaMigrations::addHotPathIndexes),
+            new Migration(3, "Идентификаторы фото в Telegram", SchemaMigrations::createPhotoFileIds)
+    );
+
+    private final DataSource dataSource;
+
+    SchemaMigrations(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Применяет недостающие миграции по порядку.
+     */
+    void migrate() throws SQLException {
+        try (Connection conn = dataSource.getConnection()) {
+            int current = currentVersion(conn);
+            if (current >= latestVersion()) {
+                logger.info("Схема базы данных актуальна, версия {}", current);
+                return;
+            }
+            acquireLock(conn);
+            try {
+                createVersionTable(conn);
+                // Пока ждали блокировку, миграции мог применить другой процесс
+                current = currentVersion(conn);
+                for (Migration migration : MIGRATIONS) {
+                    if (migration.version > current) {
+                        apply(conn, migration);
+                    }
+                }
+            } finally {
+                releaseLock(conn);
+            }
+        }
+    }
+
+    static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    private static void apply(Connection conn, Migration migration) throws SQLException {
+        long start = System.nanoTime();
+        try (Statement stmt = conn.createStatement()) {
+            migration.step.apply(conn, stmt);
+        }
+        String sql = "INSERT INTO schema_version (version, description) VALUES (?, ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setInt(1, migration.version);
+            pstmt.setString(2, migration.description);
+            pstmt.executeUpdate();
+        }
+        logger.info("Применена миграция схемы {} ({}) за {} мс", migration.version, migration.description,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static int currentVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(version) AS version FROM schema_version")) {
+            return rs.next() ? rs.getInt("version") : 0;
+        } catch (SQLException e) {
+            if (e.getErrorCode() == MYSQL_NO_SUCH_TABLE) {
+                return 0;
+            }
+            throw e;
+        }
+    }
+
+    private static void createVersionTable(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version INT PRIMARY KEY, description VARCHAR(255) NOT NULL, applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP) ENGINE=InnoDB");
+        }
+    }
+
+    private static void acquireLock(Connection conn) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT GET_LOCK(?, ?) AS acquired")) {
+            pstmt.setString(1, LOCK_NAME);
+            pstmt.setInt(2, LOCK_TIMEOUT_SECONDS);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next() || rs.getInt("acquired") != 1) {
+                    throw new SQLException("Не удалось получить блокировку миграций схемы за " + LOCK_TIMEOUT_SECONDS + " с");
+                }
+            }
+        }
+    }
+
+    private static void releaseLock(Connection conn) {
+        try (PreparedStatement pstmt = conn.prepareStatement("SELECT RELEASE_LOCK(?)")) {
+            pstmt.setString(1, LOCK_NAME);
+            pstmt.executeQuery().close();
+        } catch (SQLException e) {
+            logger.warn("Не удалось снять блокировку миграций схемы: {}", e.getMessage());
+        }
+    }
+
+    // Версия 1: схема, которую раньше создавал каждый запуск, включая индексы постраничного
+    // вывода и суммарные очки кланов. Для баз, созданных до миграций, все шаги — пустые операции
+    private static void createBaseSchema(Connection conn, Statement stmt) throws SQLException {
+        // Таблица лиг
+        stmt.execute("CREATE TABLE IF NOT EXISTS leagues (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL UNIQUE) ENGINE=InnoDB");
+
+        // Таблица команд
+        stmt.execute("CREATE TABLE IF NOT EXISTS teams (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, league_id INT NOT NULL, FOREIGN KEY (league_id) REFERENCES leagues(id) ON DELETE CASCADE, UNIQUE KEY unique_team_in_league (name, league_id)) ENGINE=InnoDB");
+
+        // Таблица категорий игроков
+        stmt.execute("CREATE TABLE IF NOT EXISTS player_categories (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(50) NOT NULL UNIQUE, weight INT NOT NULL CHECK (weight >= 0), points INT NOT NULL CHECK (points >= 0), dollars INT NOT NULL CHECK (dollars >= 0)) ENGINE=InnoDB");
+
+        // Таблица игроков
+        stmt.execute("CREATE TABLE IF NOT EXISTS players (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, team_id INT NOT NULL, position VARCHAR(255) NOT NULL, rating INT NOT NULL CHECK (rating BETWEEN 0 AND 100), category_id INT NOT NULL, photo VARCHAR(255) NOT NULL, FOREIGN KEY (team_id) REFERENCES teams(id) ON DELETE CASCADE, FOREIGN KEY (category_id) REFERENCES player_categories(id) ON DELETE RESTRICT, INDEX idx_team_id (team_id), INDEX idx_category_id (category_id)) ENGINE=InnoDB");
+
+        // Таблица пользователей
+        stmt.execute("CREATE TABLE IF NOT EXISTS users (id BIGINT PRIMARY KEY, username VARCHAR(255) NOT NULL, last_spin TIMESTAMP NULL DEFAULT NULL, points BIGINT DEFAULT 0 CHECK (points >= 0), dollars INT DEFAULT 0 CHECK (dollars >= 0), gift_pack_claims INT DEFAULT 0 CHECK (gift_pack_claims >= 0), favorite_card_id INT DEFAULT NULL, title VARCHAR(255) DEFAULT 'Новичок', last_gift TIMESTAMP NULL DEFAULT NULL, FOREIGN KEY (favorite_card_id) REFERENCES players(id) ON DELETE SET NULL) ENGINE=InnoDB");
+
+        // Связь пользователь-игрок
+        stmt.execute("CREATE TABLE IF NOT EXISTS user_players (user_id BIGINT NOT NULL, player_id INT NOT NULL, PRIMARY KEY (user_id, player_id), FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (player_id) REFERENCES players(id) ON DELETE CASCADE, INDEX idx_user_id (user_id), INDEX idx_player_id (player_id)) ENGINE=InnoDB");
+
+        // Лоты рынка
+        stmt.execute("CREATE TABLE IF NOT EXISTS market (id INT AUTO_INCREMENT PRIMARY KEY, user_id BIGINT NOT NULL, player_id INT NOT NULL, price INT NOT NULL CHECK (price > 0), created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (player_id) REFERENCES players(id) ON DELETE CASCADE) ENGINE=InnoDB");
+
+        // Дружба: заявка (pending) и принятая дружба (accepted) с очками дружбы
+        stmt.execute("CREATE TABLE IF NOT EXISTS friends (id INT AUTO_INCREMENT PRIMARY KEY, user_id_1 BIGINT NOT NULL, user_id_2 BIGINT NOT NULL, status ENUM('pending', 'accepted') NOT NULL DEFAULT 'pending', friendship_points INT NOT NULL DEFAULT 0, last_points_update TIMESTAMP NULL DEFAULT NULL, FOREIGN KEY (user_id_1) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (user_id_2) REFERENCES users(id) ON DELETE CASCADE) ENGINE=InnoDB");
+
+        // Таблица кланов
+        stmt.execute("CREATE TABLE IF NOT EXISTS clans (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL UNIQUE, owner_id BIGINT NOT NULL, total_points BIGINT NOT NULL DEFAULT 0, FOREIGN KEY (owner_id) REFERENCES users(id) ON DELETE CASCADE) ENGINE=InnoDB");
+
+        // Связь клан-пользователь
+        stmt.execute("CREATE TABLE IF NOT EXISTS clan_members (clan_id INT NOT NULL, user_id BIGINT NOT NULL, PRIMARY KEY (clan_id, user_id), FOREIGN KEY (clan_id) REFERENCES clans(id) ON DELETE CASCADE, FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, INDEX idx_clan_id (clan_id), INDEX idx_user_id (user_id)) ENGINE=InnoDB");
+
+        // Таблица составов пользователей
+        stmt.execute("CREATE TABLE IF NOT EXISTS user_squads (user_id BIGINT NOT NULL, position VARCHAR(10) NOT NULL, player_id INT, PRIMARY KEY (user_id, position), FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (player_id) REFERENCES players(id) ON DELETE SET NULL) ENGINE=InnoDB");
+
+        // Таблица для футжобов
+        stmt.execute("CREATE TABLE IF NOT EXISTS footjobs (id INT AUTO_INCREMENT PRIMARY KEY, user_id BIGINT NOT NULL, target_user_id BIGINT NOT NULL, timestamp TIMESTAMP DEFAULT CURRENT_TIMESTAMP, FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (target_user_id) REFERENCES users(id) ON DELETE CASCADE) ENGINE=InnoDB");
+
+        // Таблица паков
+        stmt.execute("CREATE TABLE IF NOT EXISTS packs (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255) NOT NULL, description TEXT, price INT NOT NULL, player_count INT NOT NULL, category VARCHAR(50), is_daily BOOLEAN DEFAULT FALSE, cooldown_hours INT DEFAULT 0) ENGINE=InnoDB");
+
+        // Таблица паков пользователей
+        stmt.execute("CREATE TABLE IF NOT EXISTS user_packs (id INT AUTO_INCREMENT PRIMARY KEY, user_id BIGINT NOT NULL, pack_id INT NOT NULL, quantity INT DEFAULT 1, FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE, FOREIGN KEY (pack_id) REFERENCES packs(id) ON DELETE CASCADE) ENGINE=InnoDB");
+
+        // Таблица категорий сложности ИИ
+        stmt.execute("CREATE TABLE IF NOT EXISTS ai_difficulty_categories (id INT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(50) NOT NULL UNIQUE, description VARCHAR(255)) ENGINE=InnoDB");
+
+        // Номер последнего сегмента журнала начислений, записанного в users
+        stmt.execute("CREATE TABLE IF NOT EXISTS counter_journal (id TINYINT PRIMARY KEY, applied_segment BIGINT NOT NULL) ENGINE=InnoDB");
+
+        // Таблица составов ИИ
+        stmt.execute("CREATE TABLE IF NOT EXISTS ai_squads (id INT AUTO_INCREMENT PRIMARY KEY, difficulty_id INT NOT NULL, name VARCHAR(255) NOT NULL, gk INT, cb1 INT, cb2 INT, cb3 INT, mid1 INT, mid2 INT, mid3 INT, frw1 INT, frw2 INT, frw3 INT, extra INT, FOREIGN KEY (difficulty_id) REFERENCES ai_difficulty_categories(id) ON DELETE CASCADE, FOREIGN KEY (gk) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (cb1) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (cb2) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (cb3) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (mid1) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (mid2) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (mid3) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (frw1) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (frw2) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (frw3) REFERENCES players(id) ON DELETE SET NULL, FOREIGN KEY (extra) REFERENCES players(id) ON DELETE SET NULL, UNIQUE KEY unique_squad_name (name, difficulty_id)) ENGINE=InnoDB");
+
+        // Добавляем начальные категории сложности
+        stmt.execute("INSERT IGNORE INTO ai_difficulty_categories (name, description) VALUES ('easy', 'Лёгкий бот'), ('medium', 'Средний бот'), ('hard', 'Сложный бот')");
+
+        // Индексы для постраничного вывода по курсору
+        ensureIndex(conn, "market", "idx_market_price_id", "price, id");
+        ensureIndex(conn, "friends", "idx_friends_user1_points", "user_id_1, status, friendship_points");
+        ensureIndex(conn, "friends", "idx_friends_user2_points", "user_id_2, status, friendship_points");
+
+        // Суммарные очки кланов: колонка для баз, созданных до её появления, и первичный расчёт
+        ensureColumn(conn, "clans", "total_points", "BIGINT NOT NULL DEFAULT 0");
+        ensureIndex(conn, "clans", "idx_clans_total_points", "total_points, id");
+        recomputeClanTotals(conn);
+    }
+
+    // Версия 2: индексы под условия, которые раньше читали таблицы целиком
+    private static void addHotPathIndexes(Connection conn, Statement stmt) throws SQLException {
+        // Рейтинг по очкам, когда он читается из БД
+        ensureIndex(conn, "users", "idx_users_points", "points, id");
+        // Лоты пользователя и лоты по игроку
+        ensureIndex(conn, "market", "idx_market_user_id", "user_id");
+        ensureIndex(conn, "market", "idx_market_player_id", "player_id");
+        // Поиск дружбы по паре пользователей и статусу
+        ensureIndex(conn, "friends", "idx_friends_pair_status", "user_id_1, user_id_2, status");
+    }
+
+    // Версия 3: file_id загруженных в Telegram фото игроков, по пути фото и хэшу содержимого
+    private static void createPhotoFileIds(Connection conn, Statement stmt) throws SQLException {
+        stmt.execute("CREATE TABLE IF NOT EXISTS photo_file_ids (photo VARCHAR(255) PRIMARY KEY, content_hash CHAR(64) NOT NULL, file_id VARCHAR(255) NOT NULL, updated_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP) ENGINE=InnoDB");
+    }
+
+    /**
+     * Пересчитывает clans.total_points по очкам участников.
+     */
+    static void recomputeClanTotals(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            int clans = stmt.executeUpdate("UPDATE clans c SET c.total_points = (SELECT COALESCE(SUM(u.points), 0) FROM clan_members cm JOIN users u ON u.id = cm.user_id WHERE cm.clan_id = c.id)");
+            logger.info("Пересчитаны очки кланов: {}", clans);
+        }
+    }
+
+    /**
+     * Создаёт индекс, если его ещё нет. Отсутствие таблицы — ошибка миграции: версия не
+     * записывается как применённая и шаг повторится при следующем запуске.
+     */
+    static void ensureIndex(Connection conn, String table, String indexName, String columns) throws SQLException {
+        String sql = "SELECT (SELECT COUNT(*) FROM information_schema.tables WHERE table_schema = DATABASE() AND table_name = ?), " +
+                "(SELECT COUNT(*) FROM information_schema.statistics WHERE table_schema = DATABASE() AND table_name = ? AND index_name = ?)";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, table);
+            pstmt.setString(3, indexName);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                rs.next();
+                if (rs.getInt(1) == 0) {
+                    logger.error("Таблица {} не найдена, индекс {} не создан", table, indexName);
+                    throw new SQLException("Таблица " + table + " не найдена, индекс " + indexName + " не создан");
+                }
+                if (rs.getInt(2) > 0) {
+                    return;
+                }
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX " + indexName + " ON " + table + " (" + columns + ")");
+            logger.info("Создан индекс {} на {} ({})", indexName, table, columns);
+        }
+    }
+
+    /**
+     * Добавляет колонку, если её ещё нет.
+     */
+    static void ensureColumn(Connection conn, String table, String column, String definition) throws SQLException {
+        String sql = "SELECT COUNT(*) FROM information_schema.columns WHERE table_schema = DATABASE() AND table_name = ? AND column_name = ?";
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            pstmt.setString(1, table);
+            pstmt.setString(2, column);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (rs.next() && rs.getInt(1) > 0) {
+                    return;
+                }
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+            logger.info("Добавлена колонка {}.{}", table, column);
+        }
+    }
+
+    @FunctionalInterface
+    private interface MigrationStep {
+        void apply(Connection conn, Statement stmt) throws SQLException;
+    }
+
+    private static final class Migration {
+        final int version;
+        final String description;
+        final MigrationStep step;
+
+        Migration(int version, String description, MigrationStep step) {
+            this.version = version;
+            this.description = description;
+            this.step = step;
+        }
+    }
+}
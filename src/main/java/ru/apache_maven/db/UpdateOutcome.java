@@ -0,0 +1,13 @@
+package ru.apache_maven.db;
+
+/**
+ * Итог изменения строки пользователя одним запросом.
+ */
+public enum UpdateOutcome {
+    /** Строка найдена и изменена. */
+    APPLIED,
+    /** Пользователя нет. */
+    USER_NOT_FOUND,
+    /** Пользователь есть, но условие изменения не выполнено (например, не хватает долларов). */
+    REJECTED
+}
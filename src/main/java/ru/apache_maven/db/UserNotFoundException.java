@@ -0,0 +1,22 @@
+package ru.apache_maven.db;
+
+import java.sql.SQLException;
+
+/**
+ * Запрос не нашёл строку пользователя. Выбрасывается операциями, которые проверяют
+ * существование пользователя тем же запросом, что и читают или изменяют его данные.
+ */
+public class UserNotFoundException extends SQLException {
+    private static final long serialVersionUID = 1L;
+
+    private final long userId;
+
+    public UserNotFoundException(long userId) {
+        super("Пользователь с ID " + userId + " не найден");
+        this.userId = userId;
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+}
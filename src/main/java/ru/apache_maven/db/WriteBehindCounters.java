@@ -0,0 +1,349 @@
+package ru.apache_maven.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Отложенная запись начислений очков и долларов. Начисления складываются в памяти
+ * по пользователям и записываются в БД одной транзакцией с пакетом UPDATE (вместе
+ * с суммой очков клана пользователя) — по таймеру
+ * или когда накопилось много пользователей. Каждое начисление сначала попадает
+ * в {@link CounterJournal}, поэтому падение процесса между сбросами ничего не теряет.
+ * <p>
+ * Номер последнего применённого сегмента журнала хранится в таблице counter_journal и
+ * обновляется в той же транзакции, что и баланс, — повторного применения при
+ * восстановлении не бывает.
+ * <p>
+ * Строки пакета записываются по порядку (клан, пользователь), чтобы параллельные сбросы
+ * и смена клана реже ждали друг друга по кругу. Полностью взаимоблокировку со сменой клана
+ * это не исключает: транзакцию, которую MySQL откатил как жертву взаимоблокировки,
+ * сброс повторяет.
+ */
+final class WriteBehindCounters implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(WriteBehindCounters.class);
+    private static final Map<Long, long[]> NONE = Map.of();
+    private static final int MYSQL_DEADLOCK = 1213;
+    private static final int MAX_DEADLOCK_ATTEMPTS = 3;
+    private static final int CLAN_LOOKUP_CHUNK = 500;
+
+    private final DataSource dataSource;
+    private final CounterJournal journal;
+    private final long flushIntervalMs;
+    private final int flushThreshold;
+    private final ScheduledExecutorService flusher;
+    // Начисления дописываются под общей блокировкой, смена сегмента — под эксклюзивной
+    private final ReadWriteLock rotation = new ReentrantReadWriteLock();
+    // Чтение баланса (строка БД + несброшенное) идёт под общей блокировкой, commit сброса
+    // вместе с очисткой unflushed — под эксклюзивной, чтобы записанный пакет не учитывался дважды
+    private final ReadWriteLock publication = new ReentrantReadWriteLock();
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private volatile Map<Long, Delta> current = new ConcurrentHashMap<>();
+    // Снятые для записи в БД, но ещё не записанные начисления (в т.ч. после неудачного сброса)
+    private volatile Map<Long, long[]> unflushed = NONE;
+
+    WriteBehindCounters(DataSource dataSource, CounterJournal journal, long flushIntervalMs, int flushThreshold) {
+        this.dataSource = dataSource;
+        this.journal = journal;
+        this.flushIntervalMs = flushIntervalMs;
+        this.flushThreshold = flushThreshold;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "counters-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Восстанавливает несброшенные начисления из журнала, записывает их в БД
+     * и запускает периодический сброс.
+     */
+    void start() throws SQLException {
+        Map<Long, long[]> recovered;
+        try {
+            recovered = journal.recover(readAppliedSegment());
+        } catch (IOException e) {
+            throw new SQLException("Не удалось прочитать журнал начислений: " + e.getMessage(), e);
+        }
+        if (!recovered.isEmpty()) {
+            logger.info("Восстановлены несброшенные начисления для {} пользователей", recovered.size());
+            unflushed = recovered;
+            flush();
+        }
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Добавляет начисление. Суммы должны быть неотрицательными.
+     */
+    void add(long userId, long points, long dollars) throws SQLException {
+        rotation.readLock().lock();
+        try {
+            journal.append(userId, points, dollars);
+            Delta delta = current.computeIfAbsent(userId, id -> new Delta());
+            delta.points.add(points);
+            delta.dollars.add(dollars);
+        } catch (IOException e) {
+            logger.error("Ошибка записи в журнал начислений для пользователя {}: {}", userId, e.getMessage(), e);
+            throw new SQLException("Не удалось сохранить начисление: " + e.getMessage(), e);
+        } finally {
+            rotation.readLock().unlock();
+        }
+        if (current.size() >= flushThreshold && flushRequested.compareAndSet(false, true)) {
+            try {
+                flusher.execute(this::flushQuietly);
+            } catch (RejectedExecutionException e) {
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    /**
+     * Выполняет чтение баланса из БД так, чтобы сброс не зафиксировался между чтением строки
+     * и {@link #pendingPoints}/{@link #pendingDollars}. Соединение берётся до вызова, чтобы
+     * не ждать пула под блокировкой; внутри нельзя вызывать {@link #flush}.
+     */
+    <T> T readConsistently(BalanceRead<T> read) throws SQLException {
+        publication.readLock().lock();
+        try {
+            return read.read();
+        } finally {
+            publication.readLock().unlock();
+        }
+    }
+
+    /**
+     * Несброшенные очки пользователя.
+     */
+    long pendingPoints(long userId) {
+        return pending(userId, 0);
+    }
+
+    /**
+     * Несброшенные доллары пользователя.
+     */
+    long pendingDollars(long userId) {
+        return pending(userId, 1);
+    }
+
+    private long pending(long userId, int column) {
+        // Под общей блокировкой ротации: перенос current в unflushed не виден наполовину
+        rotation.readLock().lock();
+        try {
+            Delta delta = current.get(userId);
+            long[] taken = unflushed.get(userId);
+            long live = delta == null ? 0 : column == 0 ? delta.points.sum() : delta.dollars.sum();
+            return live + (taken != null ? taken[column] : 0);
+        } finally {
+            rotation.readLock().unlock();
+        }
+    }
+
+    /**
+     * Сбрасывает начисления, если у пользователя они есть. Вызывается перед списаниями,
+     * чтобы проверка баланса в транзакции видела все начисления.
+     */
+    void flushIfPending(long userId) throws SQLException {
+        if (current.containsKey(userId) || unflushed.containsKey(userId)) {
+            flush();
+        }
+    }
+
+    /**
+     * Записывает все накопленные начисления в БД. При ошибке они остаются в памяти и журнале
+     * и будут записаны следующим сбросом.
+     */
+    void flush() throws SQLException {
+        synchronized (flushLock) {
+            flushRequested.set(false);
+            Map<Long, long[]> batch;
+            long sealed;
+            rotation.writeLock().lock();
+            try {
+                if (current.isEmpty() && unflushed.isEmpty()) {
+                    return;
+                }
+                sealed = journal.rotate();
+                batch = new HashMap<>();
+                unflushed.forEach((userId, delta) -> batch.put(userId, delta.clone()));
+                for (Map.Entry<Long, Delta> entry : current.entrySet()) {
+                    long[] sum = batch.computeIfAbsent(entry.getKey(), id -> new long[2]);
+                    sum[0] += entry.getValue().points.sum();
+                    sum[1] += entry.getValue().dollars.sum();
+                }
+                unflushed = batch;
+                current = new ConcurrentHashMap<>();
+            } catch (IOException e) {
+                throw new SQLException("Не удалось закрыть сегмент журнала начислений: " + e.getMessage(), e);
+            } finally {
+                rotation.writeLock().unlock();
+            }
+
+            apply(batch, sealed);
+            try {
+                journal.deleteUpTo(sealed);
+            } catch (IOException e) {
+                logger.warn("Не удалось удалить применённые сегменты журнала: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        try {
+            flush();
+        } catch (SQLException e) {
+            logger.error("Начисления не записаны в БД при остановке, останутся в журнале: {}", e.getMessage());
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            logger.warn("Ошибка закрытия журнала начислений: {}", e.getMessage());
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            logger.error("Ошибка сброса начислений в БД: {}", e.getMessage(), e);
+        }
+    }
+
+    private void apply(Map<Long, long[]> batch, long sealedSegment) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                applyOnce(batch, sealedSegment);
+                return;
+            } catch (SQLException e) {
+                if (e.getErrorCode() != MYSQL_DEADLOCK || attempt >= MAX_DEADLOCK_ATTEMPTS) {
+                    logger.error("Ошибка записи начислений в БД: {}", e.getMessage(), e);
+                    throw e;
+                }
+                logger.warn("Взаимоблокировка при записи начислений, повтор {} из {}", attempt, MAX_DEADLOCK_ATTEMPTS - 1);
+            }
+        }
+    }
+
+    private void applyOnce(Map<Long, long[]> batch, long sealedSegment) throws SQLException {
+        // Очки прибавляются и к сумме клана пользователя (clans.total_points)
+        String updateSql = "UPDATE users u LEFT JOIN clan_members cm ON cm.user_id = u.id LEFT JOIN clans c ON c.id = cm.clan_id " +
+                "SET u.points = u.points + ?, u.dollars = u.dollars + ?, c.total_points = c.total_points + ? WHERE u.id = ?";
+        String stateSql = "INSERT INTO counter_journal (id, applied_segment) VALUES (1, ?) ON DUPLICATE KEY UPDATE applied_segment = VALUES(applied_segment)";
+        try (Connection conn = dataSource.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                List<Long> userIds = lockOrder(conn, batch.keySet());
+                try (PreparedStatement pstmt = conn.prepareStatement(updateSql)) {
+                    for (Long userId : userIds) {
+                        long[] delta = batch.get(userId);
+                        pstmt.setLong(1, delta[0]);
+                        pstmt.setLong(2, delta[1]);
+                        pstmt.setLong(3, delta[0]);
+                        pstmt.setLong(4, userId);
+                        pstmt.addBatch();
+                    }
+                    int[] counts = pstmt.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] == 0) {
+                            logger.warn("Начисление пропущено: пользователь с ID {} не найден", userIds.get(i));
+                        }
+                    }
+                }
+                try (PreparedStatement pstmt = conn.prepareStatement(stateSql)) {
+                    pstmt.setLong(1, sealedSegment);
+                    pstmt.executeUpdate();
+                }
+                publication.writeLock().lock();
+                try {
+                    conn.commit();
+                    unflushed = NONE;
+                } finally {
+                    publication.writeLock().unlock();
+                }
+                logger.debug("Записаны начисления для {} пользователей, сегмент журнала {}", userIds.size(), sealedSegment);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Пользователи пакета в порядке записи: по клану (без клана — первыми), затем по id.
+     * Членство читается без блокировок: если оно успело измениться, страдает только порядок.
+     */
+    private static List<Long> lockOrder(Connection conn, Collection<Long> users) throws SQLException {
+        List<Long> userIds = new ArrayList<>(users);
+        Map<Long, Integer> clans = new HashMap<>();
+        for (int from = 0; from < userIds.size(); from += CLAN_LOOKUP_CHUNK) {
+            List<Long> chunk = userIds.subList(from, Math.min(userIds.size(), from + CLAN_LOOKUP_CHUNK));
+            String sql = "SELECT user_id, clan_id FROM clan_members WHERE user_id IN ("
+                    + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")";
+            try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstmt.setLong(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        clans.put(rs.getLong("user_id"), rs.getInt("clan_id"));
+                    }
+                }
+            }
+        }
+        userIds.sort(Comparator.<Long>comparingInt(userId -> clans.getOrDefault(userId, 0))
+                .thenComparingLong(userId -> userId));
+        return userIds;
+    }
+
+    private long readAppliedSegment() throws SQLException {
+        String sql = "SELECT applied_segment FROM counter_journal WHERE id = 1";
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement pstmt = conn.prepareStatement(sql);
+             ResultSet rs = pstmt.executeQuery()) {
+            return rs.next() ? rs.getLong("applied_segment") : 0;
+        } catch (SQLException e) {
+            logger.error("Ошибка чтения состояния журнала начислений: {}", e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Чтение баланса из БД для {@link #readConsistently}.
+     */
+    interface BalanceRead<T> {
+        T read() throws SQLException;
+    }
+
+    private static final class Delta {
+        final LongAdder points = new LongAdder();
+        final LongAdder dollars = new LongAdder();
+    }
+}
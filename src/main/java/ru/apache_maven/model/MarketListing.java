@@ -0,0 +1,23 @@
+package ru.apache_maven.model;
+
+/**
+ * Строка витрины рынка, готовая к отображению: лот, игрок с категорией и признак того,
+ * что у просматривающего пользователя этот игрок уже есть.
+ */
+public class MarketListing {
+    public final long marketId;
+    public final long sellerId;
+    public final String sellerUsername;
+    public final int price;
+    public final Player player;
+    public final boolean ownedByViewer;
+
+    public MarketListing(long marketId, long sellerId, String sellerUsername, int price, Player player, boolean ownedByViewer) {
+        this.marketId = marketId;
+        this.sellerId = sellerId;
+        this.sellerUsername = sellerUsername;
+        this.price = price;
+        this.player = player;
+        this.ownedByViewer = ownedByViewer;
+    }
+}
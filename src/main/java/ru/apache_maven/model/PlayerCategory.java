@@ -1,24 +1,15 @@
 package ru.apache_maven.model;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import ru.apache_maven.db.DatabaseManager;
-
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-
-public class PlayerCategory {
-    // Добавляем поле logger
-    private static final Logger logger = LoggerFactory.getLogger(PlayerCategory.class);
-
-    private int id;
-    private String name;
-    private int weight;
-    private int points;
-    private int dollars; // Поле для хранения долларов
-
-    public PlayerCategory() {}
+/**
+ * Категория игрока (справочник). Неизменяема: экземпляры загружаются один раз
+ * в DatabaseManager и разделяются всеми карточками.
+ */
+public final class PlayerCategory {
+    private final int id;
+    private final String name;
+    private final int weight;
+    private final int points;
+    private final int dollars; // Награда в долларах за повторную карточку
 
     public PlayerCategory(int id, String name, int weight, int points, int dollars) {
         this.id = id;
@@ -33,12 +24,7 @@ public class PlayerCategory {
     public String getName() { return name; }
     public int getWeight() { return weight; }
     public int getPoints() { return points; }
-
-    // Сеттеры
-    public void setId(int id) { this.id = id; }
-    public void setName(String name) { this.name = name; }
-    public void setWeight(int weight) { this.weight = weight; }
-    public void setPoints(int points) { this.points = points; }
+    public int getDollars() { return dollars; }
 
     // Метод для получения эмодзи категории
     public String getEmoji() {
@@ -72,31 +58,8 @@ public class PlayerCategory {
                 ", name='" + name + '\'' +
                 ", weight=" + weight +
                 ", points=" + points +
+                ", dollars=" + dollars +
                 '}';
     }
 
-    public int getDollars() {
-        try (DatabaseManager db = new DatabaseManager()) {
-            String sql = "SELECT dollars FROM player_categories WHERE id = ?";
-            try (PreparedStatement pstmt = db.getConnection().prepareStatement(sql)) {
-                pstmt.setInt(1, this.id);
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    if (rs.next()) {
-                        return rs.getInt("dollars");
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            logger.error("Ошибка получения долларов для категории с ID {}: {}", id, e.getMessage(), e);
-        }
-        return 0;
-    }
-
-    public int getDollarsFromDb() {
-        return dollars;
-    }
-
-    public void setDollars(int dollars) {
-        this.dollars = dollars;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,210 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.telegram.telegrambots.meta.api.methods.send.SendMediaGroup;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
+import org.telegram.telegrambots.meta.api.objects.media.InputMedia;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+import ru.apache_maven.db.PhotoFileId;
+import ru.apache_maven.model.Player;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Отправка карточек открытого пака альбомами через поддельного отправителя.
+ */
+public class CardAlbumTest {
+    private static final long CHAT = 5L;
+    private static final String TEAM = "Inter Miami";
+
+    @TempDir
+    Path dir;
+
+    private PhotoPack.Photo photo;
+    private FakeSender sender;
+
+    @BeforeEach
+    void start() throws Exception {
+        Path photos = Files.createDirectories(dir.resolve("photos"));
+        Files.write(photos.resolve("card.png"), new byte[]{1, 2, 3});
+        Path pack = dir.resolve("photos.pack");
+        PhotoPack.write(photos, pack);
+        photo = PhotoPack.open(pack).get("card.png");
+    }
+
+    @AfterEach
+    void stop() {
+        if (sender != null) {
+            sender.outbox.close();
+        }
+    }
+
+    @Test
+    public void elevenCardsAreOneAlbumAndOnePhoto() throws Exception {
+        sender = new FakeSender(List.of());
+        List<Utils.AlbumCard> cards = cards(11);
+
+        Utils.sendAlbums(sender, CHAT, cards);
+
+        // Все отправленные карточки запомнены: ответы обработаны
+        await(() -> sender.saved.size() == 11);
+        assertEquals(1, sender.albums.size());
+        assertEquals(10, sender.albums.get(0).getMedias().size());
+        assertEquals(1, sender.photos.size());
+        assertEquals("Player 11", sender.photos.get(0).getCaption());
+    }
+
+    @Test
+    public void staleFileIdsAreForgottenAndAlbumRetriedOnce() throws Exception {
+        List<Utils.AlbumCard> cards = cards(2);
+        List<PhotoFileId> stored = new ArrayList<>();
+        for (Utils.AlbumCard card : cards) {
+            stored.add(new PhotoFileId(CardImageCache.fileIdKey(card.player),
+                    CardRenderer.fingerprint(card.player, TEAM, photo), "stale-" + card.player.getId()));
+        }
+        sender = new FakeSender(stored);
+        sender.failures.add(badRequest("Bad Request: wrong file identifier/HTTP URL specified"));
+
+        Utils.sendAlbums(sender, CHAT, cards);
+
+        await(() -> sender.saved.size() == 2);
+        assertEquals(2, sender.albums.size());
+        for (InputMedia media : sender.albums.get(0).getMedias()) {
+            assertFalse(media.isNewMedia(), "первая попытка ссылается на file_id");
+        }
+        for (InputMedia media : sender.albums.get(1).getMedias()) {
+            assertTrue(media.isNewMedia(), "повтор загружает изображения");
+        }
+        assertEquals(2, sender.deleted.size());
+    }
+
+    @Test
+    public void onlyWrongFileIdentifierCountsAsStale() {
+        assertTrue(Utils.isStaleFileId(badRequest("Bad Request: wrong file identifier/HTTP URL specified")));
+        assertTrue(Utils.isStaleFileId(badRequest("Bad Request: wrong remote file identifier specified: Wrong padding")));
+        assertFalse(Utils.isStaleFileId(badRequest("Bad Request: message caption is too long")));
+        assertFalse(Utils.isStaleFileId(new IllegalStateException("wrong file identifier")));
+    }
+
+    private List<Utils.AlbumCard> cards(int count) {
+        List<Utils.AlbumCard> cards = new ArrayList<>();
+        for (int id = 1; id <= count; id++) {
+            Player player = new Player(id, "Player " + id, 1, "ST", 80, null, "card.png");
+            cards.add(new Utils.AlbumCard(player, TEAM, photo, player.getName()));
+        }
+        return cards;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "не дождались отправки");
+            Thread.sleep(10);
+        }
+    }
+
+    private static TelegramApiRequestException badRequest(String description) {
+        return new TelegramApiRequestException(description) {
+            @Override
+            public Integer getErrorCode() {
+                return 400;
+            }
+
+            @Override
+            public String getApiResponse() {
+                return description;
+            }
+        };
+    }
+
+    private static Message sent(String fileId) {
+        PhotoSize size = new PhotoSize();
+        size.setFileId(fileId);
+        size.setWidth(600);
+        size.setHeight(840);
+        Message message = new Message();
+        message.setPhoto(List.of(size));
+        return message;
+    }
+
+    // Отправитель без Telegram: запоминает запросы, альбомы по очереди завершаются ошибками из failures
+    private static final class FakeSender implements CardSender {
+        final OutboundQueue outbox = new OutboundQueue(null, 1000, 1000, 100, 100);
+        final List<SendMediaGroup> albums = new CopyOnWriteArrayList<>();
+        final List<SendPhoto> photos = new CopyOnWriteArrayList<>();
+        final List<Throwable> failures = new CopyOnWriteArrayList<>();
+        final List<PhotoFileId> saved = new CopyOnWriteArrayList<>();
+        final List<String> deleted = new CopyOnWriteArrayList<>();
+        final PhotoIdCache photoIds;
+        final CardImageCache cardImages = new CardImageCache(1 << 20, (player, teamName, photo) -> new byte[]{9});
+
+        FakeSender(List<PhotoFileId> stored) {
+            photoIds = new PhotoIdCache(new PhotoIdCache.Store() {
+                @Override
+                public List<PhotoFileId> load() {
+                    return stored;
+                }
+
+                @Override
+                public void save(PhotoFileId id) {
+                    saved.add(id);
+                }
+
+                @Override
+                public void delete(String photo) {
+                    deleted.add(photo);
+                }
+            });
+        }
+
+        @Override
+        public OutboundQueue getOutbox() {
+            return outbox;
+        }
+
+        @Override
+        public PhotoIdCache getPhotoIds() {
+            return photoIds;
+        }
+
+        @Override
+        public CardImageCache getCardImages() {
+            return cardImages;
+        }
+
+        @Override
+        public CompletableFuture<Message> executeAsync(SendPhoto sendPhoto) {
+            photos.add(sendPhoto);
+            return CompletableFuture.completedFuture(sent("photo-" + photos.size()));
+        }
+
+        @Override
+        public CompletableFuture<List<Message>> executeAsync(SendMediaGroup sendMediaGroup) {
+            albums.add(sendMediaGroup);
+            if (!failures.isEmpty()) {
+                return CompletableFuture.failedFuture(failures.remove(0));
+            }
+            List<Message> messages = new ArrayList<>();
+            for (int i = 0; i < sendMediaGroup.getMedias().size(); i++) {
+                messages.add(sent("album-" + albums.size() + "-" + i));
+            }
+            return CompletableFuture.completedFuture(messages);
+        }
+    }
+}
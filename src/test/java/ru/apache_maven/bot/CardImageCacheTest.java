@@ -0,0 +1,92 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.apache_maven.model.Player;
+import ru.apache_maven.model.PlayerCategory;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class CardImageCacheTest {
+    private static final PlayerCategory GOLD = new PlayerCategory(1, "Gold", 25, 250, 10);
+    private static final PlayerCategory LEGEND = new PlayerCategory(2, "Legend", 1, 2500, 100);
+
+    @Test
+    public void evictsLeastRecentlySentCardsByBytes(@TempDir Path dir) throws Exception {
+        PhotoPack photos = pack(dir, false);
+        PhotoPack.Photo photo = photos.get("p.png");
+        AtomicInteger renders = new AtomicInteger();
+        CardImageCache cache = new CardImageCache(250, (player, team, ignored) -> {
+            renders.incrementAndGet();
+            return new byte[player.getId()];
+        });
+
+        byte[] first = cache.get(player(100, GOLD), "A", photo);
+        cache.get(player(120, GOLD), "A", photo);
+        assertSame(first, cache.get(player(100, GOLD), "A", photo));
+        assertEquals(2, renders.get());
+
+        // 100 + 120 + 50 > 250: вытесняется карточка 120, отправленная раньше карточки 100
+        cache.get(player(50, GOLD), "A", photo);
+        assertEquals(150, cache.cachedBytes());
+        cache.get(player(100, GOLD), "A", photo);
+        assertEquals(3, renders.get());
+
+        // Изменилось содержимое карточки — она рисуется заново
+        Player renamed = player(100, GOLD);
+        renamed.setRating(99);
+        cache.get(renamed, "A", photo);
+        assertEquals(4, renders.get());
+        cache.get(renamed, "B", photo);
+        assertEquals(5, renders.get());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void prerendersCatalogIntoDecodableCards(@TempDir Path dir) throws Exception {
+        PhotoPack photos = pack(dir, true);
+        CardImageCache cache = new CardImageCache(64L * 1024 * 1024, CardRenderer::render);
+        List<Player> players = new ArrayList<>();
+        for (int id = 1; id <= 6; id++) {
+            players.add(player(id, id % 2 == 0 ? GOLD : LEGEND));
+        }
+
+        assertEquals(6, cache.prerender(players, player -> "Team " + player.getTeamId(), photos, 3).get(30, TimeUnit.SECONDS));
+        assertEquals(6, cache.size());
+
+        byte[] card = cache.get(players.get(0), "Team 1", photos.get("p.png"));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(card));
+        assertNotNull(image);
+        assertEquals(CardRenderer.WIDTH, image.getWidth());
+        assertEquals(CardRenderer.HEIGHT, image.getHeight());
+    }
+
+    private static Player player(int id, PlayerCategory category) {
+        return new Player(id, "Player " + id, id, "MID", 80, category, "p.png");
+    }
+
+    private static PhotoPack pack(Path dir, boolean realImage) throws Exception {
+        Path photos = Files.createDirectories(dir.resolve("photos"));
+        if (realImage) {
+            BufferedImage image = new BufferedImage(300, 400, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(10, 10, Color.RED.getRGB());
+            ImageIO.write(image, "png", photos.resolve("p.png").toFile());
+        } else {
+            Files.write(photos.resolve("p.png"), new byte[]{1, 2, 3});
+        }
+        return PhotoPack.openOrBuild(dir.resolve("photos.pack"), photos);
+    }
+}
@@ -0,0 +1,80 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void firesInDeadlineOrderAcrossSeveralRounds() throws InterruptedException {
+        // 8 ячеек по 10 мс: задержки 150 и 250 мс требуют нескольких оборотов колеса
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 8)) {
+            List<Integer> fired = new CopyOnWriteArrayList<>();
+            CountDownLatch done = new CountDownLatch(3);
+            long started = System.nanoTime();
+            timer.schedule(() -> { fired.add(250); done.countDown(); }, 250, TimeUnit.MILLISECONDS);
+            timer.schedule(() -> { fired.add(20); done.countDown(); }, 20, TimeUnit.MILLISECONDS);
+            timer.schedule(() -> { fired.add(150); done.countDown(); }, 150, TimeUnit.MILLISECONDS);
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 250);
+            assertEquals(List.of(20, 150, 250), fired);
+            assertEquals(0, timer.pendingTimeouts());
+        }
+    }
+
+    @Test
+    public void cancelledTimeoutNeverFires() throws InterruptedException {
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 10, TimeUnit.MILLISECONDS, 8)) {
+            AtomicInteger fired = new AtomicInteger();
+            CountDownLatch marker = new CountDownLatch(1);
+            HashedWheelTimer.Timeout cancelled = timer.schedule(fired::incrementAndGet, 50, TimeUnit.MILLISECONDS);
+            timer.schedule(marker::countDown, 100, TimeUnit.MILLISECONDS);
+
+            assertTrue(cancelled.cancel());
+            assertFalse(cancelled.cancel());
+            assertTrue(marker.await(5, TimeUnit.SECONDS));
+            assertEquals(0, fired.get());
+            assertTrue(cancelled.isCancelled());
+            assertFalse(cancelled.isExpired());
+        }
+    }
+
+    @Test
+    public void manyTimeoutsFromSeveralThreads() throws InterruptedException {
+        int threads = 4;
+        int perThread = 2_000;
+        try (HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 16)) {
+            CountDownLatch done = new CountDownLatch(threads * perThread / 2);
+            AtomicInteger firedCancelled = new AtomicInteger();
+            Thread[] producers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                producers[t] = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        if (i % 2 == 0) {
+                            timer.schedule(done::countDown, i % 100, TimeUnit.MILLISECONDS);
+                        } else {
+                            timer.schedule(firedCancelled::incrementAndGet, 200, TimeUnit.MILLISECONDS).cancel();
+                        }
+                    }
+                });
+                producers[t].start();
+            }
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(0, firedCancelled.get());
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class KeyedSerialExecutorTest {
+
+    @Test
+    public void keyKeepsRunningAfterRejectedSubmit() {
+        AtomicBoolean reject = new AtomicBoolean(true);
+        Executor workers = task -> {
+            if (reject.get()) {
+                throw new RejectedExecutionException("остановлен");
+            }
+            task.run();
+        };
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(workers, 8);
+        List<Integer> ran = new ArrayList<>();
+
+        // Отклонённая очередь выполняется в вызывающем потоке и освобождает ключ
+        executor.execute(1, () -> ran.add(1));
+        assertEquals(List.of(1), ran);
+        assertEquals(0, executor.activeKeys());
+
+        reject.set(false);
+        executor.execute(1, () -> ran.add(2));
+        assertEquals(List.of(1, 2), ran);
+        assertEquals(0, executor.activeKeys());
+    }
+}
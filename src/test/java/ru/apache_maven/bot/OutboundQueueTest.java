@@ -0,0 +1,79 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.ResponseParameters;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void keepsChatOrderAndChatRate() throws Exception {
+        // 20 запросов в секунду на чат без всплеска: 10 запросов займут не меньше ~450 мс
+        OutboundQueue queue = new OutboundQueue(null, 1000, 20, 1, 100);
+        List<Integer> order = new ArrayList<>();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        long started = System.nanoTime();
+        try {
+            for (int i = 0; i < 10; i++) {
+                int n = i;
+                futures.add(queue.submit(1, OutboundQueue.Priority.NORMAL, () -> {
+                    synchronized (order) {
+                        order.add(n);
+                    }
+                    return CompletableFuture.completedFuture(n);
+                }));
+            }
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        } finally {
+            queue.close();
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        assertEquals(List.of(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), order);
+        assertTrue(elapsedMs >= 400, "слишком быстро: " + elapsedMs + " мс");
+        assertEquals(10, queue.getSentCount());
+        assertEquals(0, queue.getQueueDepth());
+    }
+
+    @Test
+    public void retriesAfterTooManyRequests() throws Exception {
+        OutboundQueue queue = new OutboundQueue(null, 1000, 1000, 10, 100);
+        AtomicInteger attempts = new AtomicInteger();
+        long started = System.nanoTime();
+        try {
+            CompletableFuture<String> result = queue.submit(7, OutboundQueue.Priority.HIGH, () -> {
+                if (attempts.incrementAndGet() == 1) {
+                    return CompletableFuture.failedFuture(tooManyRequests(1));
+                }
+                return CompletableFuture.completedFuture("ok");
+            });
+            assertEquals("ok", result.get(5, TimeUnit.SECONDS));
+        } finally {
+            queue.close();
+        }
+        assertEquals(2, attempts.get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 900);
+    }
+
+    private static TelegramApiRequestException tooManyRequests(int retryAfter) {
+        return new TelegramApiRequestException("Too Many Requests") {
+            @Override
+            public Integer getErrorCode() {
+                return 429;
+            }
+
+            @Override
+            public ResponseParameters getParameters() {
+                return new ResponseParameters(null, retryAfter);
+            }
+        };
+    }
+}
@@ -0,0 +1,96 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
+import ru.apache_maven.db.PhotoFileId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PhotoIdCacheTest {
+
+    @Test
+    public void fileIdRequiresSameContent() {
+        RecordingStore store = new RecordingStore(new PhotoFileId("messi", "hash-1", "file-1"));
+        PhotoIdCache cache = new PhotoIdCache(store);
+
+        assertEquals("file-1", cache.fileId("messi", "hash-1"));
+        assertNull(cache.fileId("messi", "hash-2"));
+        assertNull(cache.fileId("rodri", "hash-1"));
+    }
+
+    @Test
+    public void remembersLargestSizeOnce() {
+        RecordingStore store = new RecordingStore();
+        PhotoIdCache cache = new PhotoIdCache(store);
+        Message sent = sent(size("small", 90, 90), size("large", 800, 1120), size("medium", 320, 448));
+
+        cache.remember("messi", "hash-1", sent);
+        assertEquals("large", cache.fileId("messi", "hash-1"));
+        assertEquals(1, store.saved.size());
+
+        // Тот же file_id для того же содержимого повторно не записывается
+        cache.remember("messi", "hash-1", sent);
+        assertEquals(1, store.saved.size());
+        cache.remember("messi", "hash-2", sent);
+        assertEquals(2, store.saved.size());
+    }
+
+    @Test
+    public void forgetsOnlyRejectedFileId() {
+        RecordingStore store = new RecordingStore(new PhotoFileId("messi", "hash-1", "file-2"));
+        PhotoIdCache cache = new PhotoIdCache(store);
+
+        // Отклонённый старый file_id не стирает уже перезаписанный новый
+        cache.forget("messi", "file-1");
+        assertEquals("file-2", cache.fileId("messi", "hash-1"));
+        assertEquals(List.of(), store.deleted);
+
+        cache.forget("messi", "file-2");
+        assertNull(cache.fileId("messi", "hash-1"));
+        assertEquals(List.of("messi"), store.deleted);
+    }
+
+    private static Message sent(PhotoSize... sizes) {
+        Message message = new Message();
+        message.setPhoto(List.of(sizes));
+        return message;
+    }
+
+    private static PhotoSize size(String fileId, int width, int height) {
+        PhotoSize size = new PhotoSize();
+        size.setFileId(fileId);
+        size.setWidth(width);
+        size.setHeight(height);
+        return size;
+    }
+
+    private static final class RecordingStore implements PhotoIdCache.Store {
+        final List<PhotoFileId> initial;
+        final List<PhotoFileId> saved = new ArrayList<>();
+        final List<String> deleted = new ArrayList<>();
+
+        RecordingStore(PhotoFileId... initial) {
+            this.initial = List.of(initial);
+        }
+
+        @Override
+        public List<PhotoFileId> load() {
+            return initial;
+        }
+
+        @Override
+        public void save(PhotoFileId id) {
+            saved.add(id);
+        }
+
+        @Override
+        public void delete(String photo) {
+            deleted.add(photo);
+        }
+    }
+}
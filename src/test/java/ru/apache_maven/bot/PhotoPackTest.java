@@ -0,0 +1,107 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class PhotoPackTest {
+
+    @Test
+    public void servesPackedPhotosByName(@TempDir Path dir) throws Exception {
+        Path photos = Files.createDirectories(dir.resolve("photos"));
+        byte[] messi = bytes(70_000, 1);
+        byte[] rodri = bytes(5, 2);
+        Files.write(photos.resolve("Messi.png"), messi);
+        Files.write(photos.resolve("rodri.png"), rodri);
+        Files.write(Files.createDirectories(photos.resolve("toty")).resolve("Mbappe.jpg"), bytes(3, 3));
+
+        Path packFile = dir.resolve("photos.pack");
+        assertEquals(3, PhotoPack.write(photos, packFile));
+        PhotoPack pack = PhotoPack.open(packFile);
+
+        assertEquals(3, pack.size());
+        PhotoPack.Photo photo = pack.get("Messi.png");
+        assertArrayEquals(messi, read(photo.openStream()));
+        // Поток каждый раз читает с начала, срезы не влияют друг на друга
+        ByteBuffer slice = photo.slice();
+        slice.position(slice.limit());
+        assertArrayEquals(messi, read(photo.openStream()));
+        assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(messi)), photo.getContentHash());
+
+        assertArrayEquals(rodri, read(pack.get("resources/photos/rodri.png").openStream()));
+        assertEquals(3, pack.get("toty/Mbappe.jpg").getLength());
+        assertNull(pack.get("Neymar.png"));
+    }
+
+    @Test
+    public void rebuildsStalePackAndRejectsGarbage(@TempDir Path dir) throws Exception {
+        Path photos = Files.createDirectories(dir.resolve("photos"));
+        Files.write(photos.resolve("a.png"), bytes(10, 1));
+        Path packFile = dir.resolve("photos.pack");
+        String before = PhotoPack.openOrBuild(packFile, photos).get("a.png").getContentHash();
+
+        Path changed = photos.resolve("a.png");
+        Files.write(changed, bytes(10, 9));
+        Files.setLastModifiedTime(changed, java.nio.file.attribute.FileTime.fromMillis(
+                Files.getLastModifiedTime(packFile).toMillis() + 1000));
+        assertNotEquals(before, PhotoPack.openOrBuild(packFile, photos).get("a.png").getContentHash());
+
+        Path garbage = dir.resolve("garbage.pack");
+        Files.write(garbage, bytes(64, 4));
+        assertThrows(IOException.class, () -> PhotoPack.open(garbage));
+        assertThrows(IOException.class, () -> PhotoPack.open(dir.resolve("missing.pack")));
+    }
+
+    @Test
+    public void opensPackFromClasspathAndFallsBackToImages(@TempDir Path dir) throws Exception {
+        Path classes = dir.resolve("classes");
+        Path photos = Files.createDirectories(classes.resolve("resources/photos"));
+        byte[] messi = bytes(100, 1);
+        byte[] rodri = bytes(50, 2);
+        Files.write(photos.resolve("Messi.png"), messi);
+        PhotoPack.write(photos, classes.resolve("resources/photos.pack"));
+        // Изображение, добавленное после сборки пака, отдаётся из classpath
+        Files.write(photos.resolve("rodri.png"), rodri);
+
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classes.toUri().toURL()}, null)) {
+            PhotoPack pack = PhotoPack.openResource(loader, "resources/photos.pack")
+                    .withClasspathFallback(loader, "resources/photos");
+            assertEquals(1, pack.size());
+            assertArrayEquals(messi, read(pack.get("Messi.png").openStream()));
+            assertArrayEquals(rodri, read(pack.get("resources/photos/rodri.png").openStream()));
+            assertEquals(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(rodri)),
+                    pack.get("rodri.png").getContentHash());
+            assertNull(pack.get("Neymar.png"));
+            assertNull(PhotoPack.openResource(loader, "resources/missing.pack"));
+        }
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package ru.apache_maven.bot;
+
+import org.junit.jupiter.api.Test;
+import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.Update;
+import org.telegram.telegrambots.meta.api.objects.User;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UpdateDispatcherTest {
+
+    @Test
+    public void keepsPerUserOrderWhileRunningUsersInParallel() throws InterruptedException {
+        int users = 8;
+        int perUser = 200;
+        CountDownLatch done = new CountDownLatch(users * perUser);
+        Map<Long, List<Integer>> seen = new ConcurrentHashMap<>();
+
+        UpdateDispatcher dispatcher = new UpdateDispatcher(update -> {
+            long userId = update.getMessage().getFrom().getId();
+            List<Integer> order = seen.computeIfAbsent(userId, k -> new ArrayList<>());
+            synchronized (order) {
+                order.add(update.getUpdateId());
+            }
+            done.countDown();
+        }, 4, 64);
+        try {
+            for (int i = 0; i < perUser; i++) {
+                for (long user = 1; user <= users; user++) {
+                    dispatcher.dispatch(update(user, i));
+                }
+            }
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            dispatcher.close();
+        }
+        assertEquals(users * perUser, dispatcher.getProcessedCount());
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        for (List<Integer> order : seen.values()) {
+            for (int i = 0; i < perUser; i++) {
+                assertEquals(i, order.get(i));
+            }
+        }
+    }
+
+    private static Update update(long userId, int sequence) {
+        User from = new User();
+        from.setId(userId);
+        Message message = new Message();
+        message.setFrom(from);
+        Update update = new Update();
+        update.setUpdateId(sequence);
+        update.setMessage(message);
+        return update;
+    }
+}
@@ -0,0 +1,24 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class CatalogCacheTest {
+
+    @Test
+    public void reportsUnchangedReloads() throws Exception {
+        List<Boolean> reloads = new ArrayList<>();
+        CatalogCache catalog = new CatalogCache(new FakeUsersDataSource().dataSource(), reloads::add);
+
+        catalog.reload();
+        catalog.reload();
+        catalog.reload();
+
+        // Первая загрузка заменяет снимок, следующие с тем же содержимым — нет
+        assertEquals(List.of(true, false, false), reloads);
+    }
+}
@@ -0,0 +1,107 @@
+package ru.apache_maven.db;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Согласованность отложенных начислений с синхронными изменениями строк в БД.
+ */
+public class CounterConsistencyTest {
+    private static final long USER = 42L;
+    private static final long OWNER = 1L;
+    private static final int FIRST_CLAN = 1;
+    private static final int SECOND_CLAN = 2;
+    private static final int MYSQL_DEADLOCK = 1213;
+
+    @TempDir
+    Path journalDir;
+
+    private FakeUsersDataSource fake;
+    private DatabaseManager db;
+
+    @BeforeEach
+    void start() {
+        System.setProperty("db.counters.journalDir", journalDir.toString());
+        // Сброс только явный: таймер не должен записать начисления раньше списания
+        System.setProperty("db.counters.flushMs", "3600000");
+        fake = new FakeUsersDataSource();
+        fake.putUser(USER, Map.of("dollars", 300, "points", 1_000L));
+        fake.putUser(OWNER, Map.of("dollars", 0, "points", 0L));
+        fake.putClan(FIRST_CLAN, "first", OWNER);
+        fake.putClan(SECOND_CLAN, "second", OWNER);
+        HikariConfig config = new HikariConfig();
+        config.setDataSource(fake.dataSource());
+        config.setMaximumPoolSize(2);
+        config.setMinimumIdle(1);
+        db = new DatabaseManager(config);
+    }
+
+    @AfterEach
+    void stop() throws SQLException {
+        db.close();
+        System.clearProperty("db.counters.journalDir");
+        System.clearProperty("db.counters.flushMs");
+    }
+
+    @Test
+    public void deductionsApplyPendingAccrualsFirst() throws SQLException {
+        db.addDollars(USER, 50);
+        db.addPoints(USER, 100);
+        assertEquals(300, fake.column(USER, "dollars"));
+
+        db.addDollars(USER, -30);
+        assertEquals(320, fake.column(USER, "dollars"));
+        assertEquals(1_100L, fake.column(USER, "points"));
+
+        db.addPoints(USER, 20);
+        db.addPoints(USER, -40);
+        assertEquals(1_080L, fake.column(USER, "points"));
+        assertEquals(320, db.getUserDollars(USER));
+        assertEquals(1_080L, db.getUserPoints(USER));
+    }
+
+    @Test
+    public void accrualsToUnknownUserAreRejected() {
+        assertThrows(UserNotFoundException.class, () -> db.addPoints(999L, 10));
+        assertThrows(UserNotFoundException.class, () -> db.addDollars(999L, 10));
+    }
+
+    @Test
+    public void clanTotalFollowsMemberPoints() throws SQLException {
+        db.joinClan(USER, FIRST_CLAN);
+        assertClanTotals();
+
+        // Отложенное начисление попадает в клан, в котором пользователь состоит на момент сброса
+        db.addPoints(USER, 100);
+        db.joinClan(USER, SECOND_CLAN);
+        assertClanTotals();
+
+        // Сброс, выбранный жертвой взаимоблокировки, повторяется
+        fake.failNextBatch(MYSQL_DEADLOCK);
+        db.addPoints(USER, -50);
+        assertEquals(1_050L, fake.column(USER, "points"));
+        assertEquals(1_050L, fake.clanTotal(SECOND_CLAN));
+        assertClanTotals();
+
+        db.addPoints(USER, 30);
+        db.leaveClan(SECOND_CLAN, USER);
+        db.addDollars(USER, -1);
+        assertEquals(1_080L, fake.column(USER, "points"));
+        assertClanTotals();
+    }
+
+    private void assertClanTotals() {
+        assertEquals(fake.memberPoints(FIRST_CLAN), fake.clanTotal(FIRST_CLAN), "total_points первого клана");
+        assertEquals(fake.memberPoints(SECOND_CLAN), fake.clanTotal(SECOND_CLAN), "total_points второго клана");
+    }
+}
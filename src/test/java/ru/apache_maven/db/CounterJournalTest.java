@@ -0,0 +1,83 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CounterJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void recoversOnlySegmentsNotYetApplied() throws IOException {
+        try (CounterJournal journal = new CounterJournal(dir, false)) {
+            journal.append(1, 100, 0);
+            long applied = journal.rotate();
+            journal.append(1, 50, 10);
+            journal.append(2, 0, 5);
+            journal.rotate();
+            journal.append(1, 7, 7);
+            // Процесс «падает»: последний сегмент тоже должен восстановиться
+            assertEquals(applied + 2, journal.currentSegment());
+        }
+
+        try (CounterJournal journal = new CounterJournal(dir, false)) {
+            Map<Long, long[]> pending = journal.recover(1);
+            assertEquals(2, pending.size());
+            assertArrayEquals(new long[]{57, 17}, pending.get(1L));
+            assertArrayEquals(new long[]{0, 5}, pending.get(2L));
+            assertFalse(Files.exists(dir.resolve("counters-1.log")));
+        }
+    }
+
+    @Test
+    public void dropsTornRecordAtSegmentEnd() throws IOException {
+        try (CounterJournal journal = new CounterJournal(dir, false)) {
+            journal.append(3, 20, 1);
+        }
+        Files.write(dir.resolve("counters-1.log"), new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        try (CounterJournal journal = new CounterJournal(dir, false)) {
+            Map<Long, long[]> pending = journal.recover(0);
+            assertArrayEquals(new long[]{20, 1}, pending.get(3L));
+        }
+    }
+
+    @Test
+    public void deleteUpToKeepsLaterAndCurrentSegments() throws IOException {
+        try (CounterJournal journal = new CounterJournal(dir, false)) {
+            journal.append(1, 1, 0);
+            long first = journal.rotate();
+            journal.append(1, 1, 0);
+            long second = journal.rotate();
+            journal.deleteUpTo(first);
+
+            assertFalse(Files.exists(dir.resolve("counters-" + first + ".log")));
+            assertTrue(Files.exists(dir.resolve("counters-" + second + ".log")));
+            assertTrue(Files.exists(dir.resolve("counters-" + journal.currentSegment() + ".log")));
+        }
+    }
+
+    @Test
+    public void continuesNumberingAfterAppliedSegmentWhenDirectoryWasLost() throws IOException {
+        try (CounterJournal journal = new CounterJournal(dir, false)) {
+            assertTrue(journal.recover(41).isEmpty());
+            assertEquals(42, journal.currentSegment());
+            journal.append(9, 1, 1);
+        }
+        try (CounterJournal journal = new CounterJournal(dir, false)) {
+            assertArrayEquals(new long[]{1, 1}, journal.recover(41).get(9L));
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package ru.apache_maven.db;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DataSource без сервера БД для тестов, считающих запросы. Понимает только обращения
+ * к строке пользователя ({@code SELECT ... FROM users WHERE id = ?} и {@code UPDATE users ...
+ * WHERE id = ? [AND dollars >= ?]}); начисления очков и долларов применяются к строке.
+ * Кланы поддерживаются настолько, насколько нужно вступлению, выходу и сумме очков клана.
+ * На остальные запросы (создание схемы, справочники) отвечает пустым результатом.
+ */
+final class FakeUsersDataSource {
+    private final Map<Long, Map<String, Object>> users = new ConcurrentHashMap<>();
+    private final Map<Integer, Map<String, Object>> clans = new ConcurrentHashMap<>();
+    private final Map<Long, Integer> members = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> failBatches = new ConcurrentHashMap<>();
+
+    void putUser(long id, Map<String, Object> columns) {
+        users.put(id, new HashMap<>(columns));
+    }
+
+    Object column(long id, String column) {
+        return users.get(id).get(column);
+    }
+
+    void putClan(int id, String name, long ownerId) {
+        clans.put(id, new HashMap<>(Map.of("id", id, "name", name, "owner_id", ownerId, "total_points", 0L)));
+    }
+
+    long clanTotal(int clanId) {
+        return (Long) clans.get(clanId).get("total_points");
+    }
+
+    long memberPoints(int clanId) {
+        long sum = 0;
+        for (Map.Entry<Long, Integer> member : members.entrySet()) {
+            if (member.getValue() == clanId) {
+                sum += ((Number) users.get(member.getKey()).get("points")).longValue();
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Следующий executeBatch завершится ошибкой с этим кодом, ничего не применив.
+     */
+    void failNextBatch(int errorCode) {
+        failBatches.put(0, errorCode);
+    }
+
+    DataSource dataSource() {
+        return proxy(DataSource.class, (p, method, args) -> {
+            if (method.getName().equals("getConnection")) {
+                return connection();
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    private Connection connection() {
+        boolean[] autoCommit = {true};
+        return proxy(Connection.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return statement((String) args[0]);
+                case "createStatement":
+                    return statement(null);
+                case "getAutoCommit":
+                    return autoCommit[0];
+                case "setAutoCommit":
+                    autoCommit[0] = (Boolean) args[0];
+                    return null;
+                case "isValid":
+                    return true;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private PreparedStatement statement(String preparedSql) {
+        Map<Integer, Object> params = new HashMap<>();
+        List<Map<Integer, Object>> batch = new ArrayList<>();
+        return proxy(PreparedStatement.class, (p, method, args) -> {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                params.put((Integer) args[0], args[1]);
+                return null;
+            }
+            String sql = preparedSql != null ? preparedSql : args != null && args.length > 0 ? (String) args[0] : "";
+            switch (name) {
+                case "executeQuery":
+                    return resultSet(query(sql, params));
+                case "executeUpdate":
+                    return update(sql, params);
+                case "addBatch":
+                    batch.add(new HashMap<>(params));
+                    return null;
+                case "clearBatch":
+                    batch.clear();
+                    return null;
+                case "executeBatch":
+                    Integer failure = failBatches.remove(0);
+                    if (failure != null) {
+                        batch.clear();
+                        throw new SQLException("Deadlock found when trying to get lock", "40001", failure);
+                    }
+                    int[] counts = new int[batch.size()];
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] = update(sql, batch.get(i));
+                    }
+                    batch.clear();
+                    return counts;
+                case "execute":
+                    return false;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private List<Map<String, Object>> query(String sql, Map<Integer, Object> params) {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        if (sql.startsWith("SELECT GET_LOCK")) {
+            rows.add(Map.of("acquired", 1));
+        } else if (sql.startsWith("SELECT (SELECT COUNT(*) FROM information_schema.tables")) {
+            // Таблица и индекс уже есть: миграции не создают индексы
+            rows.add(Map.of("1", 1, "2", 1));
+        } else if (sql.startsWith("SELECT id, username, points FROM users")) {
+            users.forEach((id, columns) -> {
+                Map<String, Object> row = new HashMap<>(columns);
+                row.put("id", id);
+                rows.add(row);
+            });
+        } else if (sql.startsWith("SELECT user_id, clan_id FROM clan_members WHERE user_id IN")) {
+            for (Object userId : params.values()) {
+                Integer clanId = members.get((Long) userId);
+                if (clanId != null) {
+                    rows.add(Map.of("user_id", userId, "clan_id", clanId));
+                }
+            }
+        } else if (sql.startsWith("SELECT 1 FROM clan_members WHERE clan_id = ? AND user_id = ?")) {
+            Integer clanId = members.get(userId(params));
+            if (clanId != null && clanId == number(params, 1)) {
+                rows.add(Map.of());
+            }
+        } else if (sql.startsWith("SELECT c.id") && sql.endsWith("WHERE cm.user_id = ?")) {
+            Integer clanId = members.get(userId(params));
+            if (clanId != null) {
+                rows.add(clans.get(clanId));
+            }
+        } else if (sql.startsWith("SELECT c.id") && sql.endsWith("WHERE c.id = ?")) {
+            Map<String, Object> clan = clans.get(((Number) params.get(1)).intValue());
+            if (clan != null) {
+                rows.add(clan);
+            }
+        } else if (sql.startsWith("SELECT") && sql.contains(" FROM users WHERE id = ?")) {
+            Map<String, Object> row = users.get(userId(params));
+            if (row != null) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private int update(String sql, Map<Integer, Object> params) {
+        if (sql.startsWith("INSERT INTO clan_members")) {
+            members.put(userId(params), ((Number) params.get(1)).intValue());
+            return 1;
+        }
+        if (sql.startsWith("DELETE FROM clan_members WHERE user_id = ?")) {
+            return members.remove(userId(params)) != null ? 1 : 0;
+        }
+        if (sql.startsWith("UPDATE clans SET total_points = total_points + ? WHERE id = ?")) {
+            Map<String, Object> clan = clans.get(((Number) params.get(2)).intValue());
+            if (clan == null) {
+                return 0;
+            }
+            add(clan, "total_points", number(params, 1));
+            return 1;
+        }
+        if (!sql.startsWith("UPDATE users ")) {
+            return 0;
+        }
+        // Начисления: id пользователя — последний параметр, перед ним суммы
+        if (sql.contains("u.dollars = u.dollars + ?")) {
+            return applyDelta(lastParam(params), number(params, 1), number(params, 2));
+        }
+        if (sql.contains("u.points = u.points + ?")) {
+            return applyDelta(lastParam(params), number(params, 1), 0);
+        }
+        if (sql.startsWith("UPDATE users SET dollars = dollars + ? WHERE id = ?")) {
+            return applyDelta(lastParam(params), 0, number(params, 1));
+        }
+        Map<String, Object> row = users.get(userId(params));
+        if (row == null) {
+            return 0;
+        }
+        if (sql.endsWith("AND dollars >= ?")) {
+            int required = (Integer) params.get(params.size());
+            return ((Number) row.get("dollars")).intValue() >= required ? 1 : 0;
+        }
+        return 1;
+    }
+
+    private int applyDelta(long userId, long points, long dollars) {
+        Map<String, Object> row = users.get(userId);
+        if (row == null) {
+            return 0;
+        }
+        add(row, "points", points);
+        add(row, "dollars", dollars);
+        Integer clanId = members.get(userId);
+        if (clanId != null) {
+            add(clans.get(clanId), "total_points", points);
+        }
+        return 1;
+    }
+
+    // Сохраняет тип значения столбца: getInt и getLong возвращают его без преобразования
+    private static void add(Map<String, Object> row, String column, long delta) {
+        Object value = row.get(column);
+        if (value instanceof Integer) {
+            row.put(column, (int) ((Integer) value + delta));
+        } else {
+            row.put(column, (value != null ? ((Number) value).longValue() : 0L) + delta);
+        }
+    }
+
+    private static long number(Map<Integer, Object> params, int index) {
+        return ((Number) params.get(index)).longValue();
+    }
+
+    private static long lastParam(Map<Integer, Object> params) {
+        return number(params, params.size());
+    }
+
+    // id пользователя — единственный параметр, привязанный через setLong
+    private static long userId(Map<Integer, Object> params) {
+        for (Object value : params.values()) {
+            if (value instanceof Long) {
+                return (Long) value;
+            }
+        }
+        return -1;
+    }
+
+    private ResultSet resultSet(List<Map<String, Object>> rows) {
+        int[] cursor = {-1};
+        Object[] last = new Object[1];
+        return proxy(ResultSet.class, (p, method, args) -> {
+            switch (method.getName()) {
+                case "next":
+                    return ++cursor[0] < rows.size();
+                case "wasNull":
+                    return last[0] == null;
+                case "close":
+                    return null;
+                default:
+                    if (method.getName().startsWith("get") && args != null && args.length == 1 && args[0] instanceof String) {
+                        last[0] = rows.get(cursor[0]).get(args[0]);
+                        return last[0] != null ? last[0] : defaultValue(method.getReturnType());
+                    }
+                    // Колонки без имени читаются по номеру: в строке они хранятся под ключами "1", "2", ...
+                    if (method.getName().startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+                        last[0] = rows.get(cursor[0]).get(String.valueOf(args[0]));
+                        return last[0] != null ? last[0] : defaultValue(method.getReturnType());
+                    }
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0.0;
+        }
+        if (type == float.class) {
+            return 0.0f;
+        }
+        if (type == short.class) {
+            return (short) 0;
+        }
+        if (type == byte.class) {
+            return (byte) 0;
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
@@ -0,0 +1,28 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class IntObjectMapTest {
+
+    @Test
+    public void storesKeysAcrossResizesIncludingZero() {
+        IntObjectMap<String> map = new IntObjectMap<>(2);
+        for (int i = -500; i <= 500; i++) {
+            map.put(i, "v" + i);
+        }
+        map.put(7, "seven");
+
+        assertEquals(1001, map.size());
+        assertEquals("v0", map.get(0));
+        assertEquals("v-500", map.get(-500));
+        assertEquals("seven", map.get(7));
+        assertTrue(map.containsKey(500));
+        assertFalse(map.containsKey(501));
+        assertNull(map.get(Integer.MAX_VALUE));
+    }
+}
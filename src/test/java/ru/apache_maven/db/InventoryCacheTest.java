@@ -0,0 +1,72 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+import ru.apache_maven.model.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class InventoryCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyReadUsersByCardCount() throws Exception {
+        InventoryCache cache = new InventoryCache(10);
+        AtomicInteger loads = new AtomicInteger();
+        InventoryCache.Loader loader = userId -> {
+            loads.incrementAndGet();
+            return cards((int) userId);
+        };
+
+        List<Player> first = cache.get(4, loader);
+        cache.get(5, loader);
+        assertSame(first, cache.get(4, loader));
+        assertEquals(2, loads.get());
+        assertEquals(9, cache.cachedCards());
+
+        // 4 + 5 + 3 > 10: вытесняется пользователь 5, прочитанный раньше пользователя 4
+        cache.get(3, loader);
+        assertEquals(7, cache.cachedCards());
+        cache.get(4, loader);
+        assertEquals(3, loads.get());
+        cache.get(5, loader);
+        assertEquals(4, loads.get());
+
+        // Список больше лимита всё равно остаётся в кэше, вытесняя остальные
+        cache.get(20, loader);
+        assertEquals(1, cache.size());
+        assertEquals(20, cache.cachedCards());
+    }
+
+    @Test
+    public void dropsListLoadedAcrossInvalidation() throws Exception {
+        InventoryCache cache = new InventoryCache(100);
+        AtomicInteger loads = new AtomicInteger();
+
+        List<Player> stale = cache.get(1, userId -> {
+            loads.incrementAndGet();
+            cache.invalidate(userId);
+            return cards(2);
+        });
+        assertEquals(2, stale.size());
+        assertEquals(0, cache.size());
+
+        cache.get(1, userId -> {
+            loads.incrementAndGet();
+            return cards(3);
+        });
+        assertEquals(3, cache.get(1, userId -> cards(0)).size());
+        assertEquals(2, loads.get());
+    }
+
+    private static List<Player> cards(int count) {
+        List<Player> players = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            players.add(new Player(i + 1, "p" + i, 1, "GK", 90 - i, null, null));
+        }
+        return players;
+    }
+}
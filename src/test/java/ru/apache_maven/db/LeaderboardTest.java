@@ -0,0 +1,61 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+import ru.apache_maven.model.User;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LeaderboardTest {
+
+    @Test
+    public void ordersByPointsThenIdAndReportsRanks() {
+        Leaderboard board = new Leaderboard();
+        board.put(3, "c", 50);
+        board.put(1, "a", 100);
+        board.put(2, "b", 50);
+        board.addPoints(2, 60);
+        board.rename(3, "c2");
+
+        List<User> top = board.top(10);
+        assertEquals(List.of(2L, 1L, 3L), top.stream().map(User::getId).toList());
+        assertEquals(110, top.get(0).getPoints());
+        assertEquals("c2", top.get(2).getUsername());
+        assertEquals(1, board.rank(2));
+        assertEquals(3, board.rank(3));
+        assertEquals(0, board.rank(99));
+    }
+
+    @Test
+    public void matchesFullSortUnderRandomUpdates() {
+        Leaderboard board = new Leaderboard();
+        Map<Long, Long> points = new HashMap<>();
+        Random random = new Random(7);
+        for (int step = 0; step < 20_000; step++) {
+            long userId = random.nextInt(500);
+            if (!points.containsKey(userId) || random.nextInt(5) == 0) {
+                long value = random.nextInt(1_000);
+                points.put(userId, value);
+                board.put(userId, "u" + userId, value);
+            } else {
+                long delta = random.nextInt(200) - 50;
+                points.merge(userId, delta, Long::sum);
+                board.addPoints(userId, delta);
+            }
+        }
+
+        List<Long> expected = new ArrayList<>(points.keySet());
+        expected.sort(Comparator.<Long>comparingLong(points::get).reversed().thenComparingLong(id -> id));
+        assertEquals(expected.size(), board.size());
+        assertEquals(expected.subList(0, 10), board.top(10).stream().map(User::getId).toList());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(i + 1, board.rank(expected.get(i)));
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongHashSetTest {
+
+    @Test
+    public void keepsKeysAcrossResizesIncludingZero() {
+        LongHashSet set = new LongHashSet(2);
+        for (long id = -500; id <= 500; id++) {
+            assertTrue(set.add(id * 7_000_000_000L));
+        }
+        assertFalse(set.add(0));
+        assertFalse(set.add(7_000_000_000L));
+
+        assertEquals(1001, set.size());
+        assertTrue(set.contains(0));
+        assertTrue(set.contains(-3_500_000_000_000L));
+        assertFalse(set.contains(1));
+        assertFalse(set.contains(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void readersNeverLoseKeysAddedBeforeThem() throws InterruptedException {
+        LongHashSet set = new LongHashSet(4);
+        int total = 50_000;
+        AtomicInteger lost = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            for (long id = 1; id <= total; id++) {
+                set.add(id);
+            }
+        });
+        Thread reader = new Thread(() -> {
+            while (set.size() < total) {
+                // Ключи 1..size() уже добавлены и должны быть видны даже во время расширения таблицы
+                int seen = set.size();
+                for (long id = Math.max(1, seen - 100); id <= seen; id++) {
+                    if (!set.contains(id)) {
+                        lost.incrementAndGet();
+                    }
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        writer.join();
+        reader.join();
+
+        assertEquals(0, lost.get());
+        assertEquals(total, set.size());
+    }
+}
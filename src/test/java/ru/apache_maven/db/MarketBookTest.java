@@ -0,0 +1,106 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MarketBookTest {
+    private static final String[] POSITIONS = {"GK", "CB", "MID", "FRW"};
+
+    @Test
+    public void pagesThroughFiltersLikeFullScan() throws Exception {
+        Random random = new Random(5);
+        List<MarketBook.Lot> lots = new ArrayList<>();
+        for (int id = 1; id <= 2_000; id++) {
+            lots.add(new MarketBook.Lot(id, random.nextInt(50), "u", random.nextInt(500) + 1,
+                    random.nextInt(200) * 25, random.nextInt(5) + 1, POSITIONS[random.nextInt(4)], 60 + random.nextInt(40)));
+        }
+        MarketBook book = new MarketBook();
+        book.reload(() -> lots);
+
+        List<MarketFilter> filters = List.of(
+                MarketFilter.ALL,
+                MarketFilter.ALL.withDescending(true),
+                MarketFilter.ALL.withCategory(3).withPosition("CB"),
+                MarketFilter.ALL.withMaxPrice(1000).withRatingBand(8),
+                MarketFilter.ALL.withCategory(2).withMaxPrice(2500).withDescending(true),
+                MarketFilter.ALL.withCategory(9));
+        for (MarketFilter filter : filters) {
+            Comparator<MarketBook.Lot> order = Comparator.<MarketBook.Lot>comparingInt(lot -> lot.price)
+                    .thenComparingLong(lot -> lot.marketId);
+            List<MarketBook.Lot> expected = lots.stream()
+                    .filter(lot -> filter.matches(lot.categoryId, lot.position, lot.rating, lot.price))
+                    .sorted(filter.isDescending() ? order.reversed() : order)
+                    .toList();
+
+            List<MarketBook.Lot> forward = new ArrayList<>();
+            PageCursor cursor = null;
+            List<MarketBook.Lot> page;
+            do {
+                page = book.find(filter, cursor, 7);
+                forward.addAll(page);
+                if (!page.isEmpty()) {
+                    MarketBook.Lot last = page.get(page.size() - 1);
+                    cursor = PageCursor.after(last.price, last.marketId);
+                }
+            } while (page.size() == 7);
+            assertEquals(ids(expected), ids(forward), filter.encode());
+
+            if (expected.size() > 3) {
+                MarketBook.Lot pivot = expected.get(3);
+                List<MarketBook.Lot> back = book.find(filter, PageCursor.before(pivot.price, pivot.marketId), 2);
+                assertEquals(List.of(expected.get(2).marketId, expected.get(1).marketId), ids(back), filter.encode());
+            }
+        }
+    }
+
+    @Test
+    public void keepsIndexesInStepWithPutAndRemove() {
+        MarketBook book = new MarketBook();
+        book.put(new MarketBook.Lot(1, 10, "a", 100, 500, 2, "CB", 85));
+        book.put(new MarketBook.Lot(2, 10, "a", 101, 300, 2, "CB", 81));
+        book.put(new MarketBook.Lot(3, 11, "b", 100, 200, 2, "GK", 90));
+
+        MarketFilter goldCb = MarketFilter.ALL.withCategory(2).withPosition("CB");
+        assertEquals(List.of(2L, 1L), ids(book.find(goldCb, null, 10)));
+        assertEquals(List.of(2L, 1L), ids(book.bySeller(10)));
+
+        // Повторный put заменяет лот: новая цена и новая позиция в индексах
+        book.put(new MarketBook.Lot(2, 10, "a", 101, 900, 2, "CB", 81));
+        assertEquals(List.of(1L, 2L), ids(book.find(goldCb, null, 10)));
+
+        assertEquals(3, book.remove(3).marketId);
+        assertNull(book.remove(3));
+        assertTrue(book.containsPlayer(100));
+        book.remove(1);
+        assertFalse(book.containsPlayer(100));
+        assertTrue(book.find(MarketFilter.ALL.withPosition("GK"), null, 10).isEmpty());
+        assertEquals(1, book.size());
+    }
+
+    @Test
+    public void unavailablePlayersDoNotShortenPage() throws Exception {
+        List<MarketBook.Lot> lots = new ArrayList<>();
+        for (int id = 1; id <= 10; id++) {
+            lots.add(new MarketBook.Lot(id, 1, "u", id, id * 10, 1, "ST", 80));
+        }
+        MarketBook book = new MarketBook();
+        book.reload(() -> lots);
+
+        // Игроков 2 и 3 нет в каталоге: страница из 4 лотов добирается следующими
+        List<MarketBook.Lot> page = book.find(MarketFilter.ALL, null, 4, playerId -> playerId != 2 && playerId != 3);
+        assertEquals(List.of(1L, 4L, 5L, 6L), ids(page));
+    }
+
+    private static List<Long> ids(List<MarketBook.Lot> lots) {
+        return lots.stream().map(lot -> lot.marketId).toList();
+    }
+}
@@ -0,0 +1,59 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OwnershipBitmapTest {
+
+    @Test
+    public void switchesContainersAroundArrayLimit() {
+        OwnershipBitmap bitmap = new OwnershipBitmap();
+        // Один контейнер: после ARRAY_LIMIT значений он становится битовой картой и обратно
+        for (int id = 0; id <= OwnershipBitmap.ARRAY_LIMIT; id++) {
+            assertTrue(bitmap.add(id * 3));
+        }
+        assertFalse(bitmap.add(0));
+        assertEquals(OwnershipBitmap.ARRAY_LIMIT + 1, bitmap.cardinality());
+        assertTrue(bitmap.contains(3 * OwnershipBitmap.ARRAY_LIMIT));
+        assertFalse(bitmap.contains(1));
+
+        assertTrue(bitmap.remove(3));
+        assertTrue(bitmap.remove(6));
+        assertFalse(bitmap.remove(6));
+        assertEquals(OwnershipBitmap.ARRAY_LIMIT - 1, bitmap.cardinality());
+        assertTrue(bitmap.contains(9));
+        assertFalse(bitmap.contains(6));
+    }
+
+    @Test
+    public void matchesHashSetAcrossSeveralContainers() {
+        OwnershipBitmap bitmap = new OwnershipBitmap();
+        Set<Integer> expected = new HashSet<>();
+        Random random = new Random(11);
+        for (int step = 0; step < 100_000; step++) {
+            // Значения в трёх контейнерах: плотном, разреженном и далёком
+            int value = switch (random.nextInt(3)) {
+                case 0 -> random.nextInt(10_000);
+                case 1 -> 70_000 + random.nextInt(200);
+                default -> Integer.MAX_VALUE - random.nextInt(50);
+            };
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(value), bitmap.remove(value));
+            } else {
+                assertEquals(expected.add(value), bitmap.add(value));
+            }
+        }
+        assertEquals(expected.size(), bitmap.cardinality());
+        for (int value = 0; value < 10_000; value++) {
+            assertEquals(expected.contains(value), bitmap.contains(value));
+        }
+        assertFalse(bitmap.contains(-1));
+    }
+}
@@ -0,0 +1,51 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PageCursorTest {
+
+    @Test
+    public void cursorRoundTripsThroughCallbackData() {
+        String data = "trade_market_page_" + PageCursor.before(1500, 42).encode() + "_777";
+        PageCursor cursor = PageCursor.decode(data.split("_"), 3);
+
+        assertTrue(cursor.isBackward());
+        assertEquals(1500, cursor.getKey());
+        assertEquals(42, cursor.getId());
+        assertThrows(IllegalArgumentException.class, () -> PageCursor.decode("trade_market_page_x_1_2_777".split("_"), 3));
+    }
+
+    @Test
+    public void seekConditionFollowsDirection() {
+        assertEquals("(m.price > ? OR (m.price = ? AND m.id > ?))",
+                PageCursor.after(10, 1).seekCondition("m.price", "m.id", false));
+        assertEquals("(m.price < ? OR (m.price = ? AND m.id < ?))",
+                PageCursor.before(10, 1).seekCondition("m.price", "m.id", false));
+        assertEquals("p DESC, id DESC", PageCursor.orderBy(null, "p", "id", true));
+        assertEquals("p ASC, id ASC", PageCursor.orderBy(PageCursor.before(5, 5), "p", "id", true));
+    }
+
+    @Test
+    public void pageTrimsLookaheadRowAndRestoresOrderWhenGoingBack() {
+        Page<Integer> first = Page.of(List.of(1, 2, 3), null, 2);
+        assertEquals(List.of(1, 2), first.getItems());
+        assertFalse(first.hasPrevious());
+        assertTrue(first.hasNext());
+
+        Page<Integer> back = Page.of(List.of(4, 3, 2), PageCursor.before(5, 5), 2);
+        assertEquals(List.of(3, 4), back.getItems());
+        assertTrue(back.hasPrevious());
+        assertTrue(back.hasNext());
+
+        Page<Integer> last = Page.of(List.of(7), PageCursor.after(6, 6), 2);
+        assertTrue(last.hasPrevious());
+        assertFalse(last.hasNext());
+    }
+}
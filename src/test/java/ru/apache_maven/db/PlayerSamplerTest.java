@@ -0,0 +1,45 @@
+package ru.apache_maven.db;
+
+import org.junit.jupiter.api.Test;
+import ru.apache_maven.model.PlayerCategory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PlayerSamplerTest {
+
+    @Test
+    public void drawsFollowCategoryWeightsAndSkipEmptyCategories() {
+        List<PlayerCategory> categories = List.of(
+                new PlayerCategory(1, "Bronze", 70, 10, 5),
+                new PlayerCategory(2, "Gold", 30, 50, 25),
+                new PlayerCategory(3, "GOAT", 50, 500, 250),
+                new PlayerCategory(4, "Season", 0, 0, 0));
+        Map<Integer, int[]> ids = Map.of(
+                1, new int[]{101, 102},
+                2, new int[]{201},
+                4, new int[]{401});
+        PlayerSampler sampler = new PlayerSampler(categories, ids, Map.of("easy", new int[]{7}));
+
+        Random random = new Random(42);
+        int bronze = 0;
+        int draws = 100_000;
+        for (int i = 0; i < draws; i++) {
+            int id = sampler.nextPlayerId(random);
+            assertTrue(id == 101 || id == 102 || id == 201, "unexpected id " + id);
+            if (id < 200) {
+                bronze++;
+            }
+        }
+        assertEquals(0.7, (double) bronze / draws, 0.01);
+
+        assertEquals(401, sampler.nextPlayerId("season", random));
+        assertEquals(-1, sampler.nextPlayerId("GOAT", random));
+        assertEquals(7, sampler.nextAiSquadId("EASY", random));
+        assertEquals(-1, sampler.nextAiSquadId("hard", random));
+    }
+}
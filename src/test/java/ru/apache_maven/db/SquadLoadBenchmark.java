@@ -0,0 +1,99 @@
+package ru.apache_maven.db;
+
+import com.mysql.cj.jdbc.MysqlDataSource;
+import com.zaxxer.hikari.HikariConfig;
+import ru.apache_maven.model.Player;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Ручной бенчмарк загрузки состава: число запросов к БД и время на один состав
+ * для прежней схемы (позиции + getPlayerById на каждую) и для {@link DatabaseManager#getUserSquad}.
+ * Требует работающий MySQL, поэтому не входит в набор тестов. Запуск:
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;зависимости&gt; \
+ *      -Dbench.db.url=jdbc:mysql://localhost:3306/flashcards -Dbench.db.user=root -Dbench.db.password=... \
+ *      -Dbench.userId=123 ru.apache_maven.db.SquadLoadBenchmark
+ * </pre>
+ */
+public class SquadLoadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String url = System.getProperty("bench.db.url", "jdbc:mysql://localhost:3306/flashcards?useSSL=false&serverTimezone=UTC&allowPublicKeyRetrieval=true");
+        String user = System.getProperty("bench.db.user", "root");
+        String password = System.getProperty("bench.db.password", "");
+        long userId = Long.getLong("bench.userId", 0L);
+        int iterations = Integer.getInteger("bench.iterations", 500);
+
+        MysqlDataSource mysql = new MysqlDataSource();
+        mysql.setUrl(url);
+        mysql.setUser(user);
+        mysql.setPassword(password);
+
+        StatementCounter counter = new StatementCounter();
+        DataSource counted = counter.wrap(mysql);
+        HikariConfig config = DatabaseManager.createPoolConfig(url, user, password);
+        config.setDataSource(counted);
+
+        try (DatabaseManager db = new DatabaseManager(config)) {
+            run("per-position (legacy)", iterations, counter, () -> loadSquadPerPosition(counted, userId));
+            run("getUserSquad", iterations, counter, () -> db.getUserSquad(userId));
+        }
+    }
+
+    private static void run(String name, int iterations, StatementCounter counter, SquadLoader loader) throws SQLException {
+        for (int i = 0; i < Math.min(50, iterations); i++) {
+            loader.load();
+        }
+        counter.reset();
+        long start = System.nanoTime();
+        int loaded = 0;
+        for (int i = 0; i < iterations; i++) {
+            loaded = loader.load().size();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-22s positions=%2d  statements/squad=%5.2f  avg=%8.1f us%n",
+                name, loaded, (double) counter.executed() / iterations, elapsed / 1_000.0 / iterations);
+    }
+
+    // Прежняя реализация: один запрос позиций и по запросу на каждого игрока
+    private static Map<String, Player> loadSquadPerPosition(DataSource dataSource, long userId) throws SQLException {
+        Map<String, Player> squad = new HashMap<>();
+        try (Connection conn = dataSource.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT position, player_id FROM user_squads WHERE user_id = ?")) {
+            stmt.setLong(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String position = rs.getString("position");
+                    int playerId = rs.getInt("player_id");
+                    squad.put(position, rs.wasNull() ? null : loadPlayer(conn, playerId));
+                }
+            }
+        }
+        return squad;
+    }
+
+    private static Player loadPlayer(Connection conn, int playerId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT id, name, team_id, position, rating, photo FROM players WHERE id = ?")) {
+            stmt.setInt(1, playerId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return new Player(rs.getInt("id"), rs.getString("name"), rs.getInt("team_id"),
+                            rs.getString("position"), rs.getInt("rating"), null, rs.getString("photo"));
+                }
+            }
+        }
+        return null;
+    }
+
+    @FunctionalInterface
+    private interface SquadLoader {
+        Map<String, Player> load() throws SQLException;
+    }
+}
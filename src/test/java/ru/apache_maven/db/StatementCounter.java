@@ -0,0 +1,62 @@
+package ru.apache_maven.db;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Обёртка над DataSource для бенчмарков: считает выполненные SQL-запросы (execute*)
+ * и команды управления транзакцией (setAutoCommit, commit, rollback) — и то и другое
+ * обращения к серверу БД.
+ */
+final class StatementCounter {
+    private static final Set<String> TRANSACTION_CONTROL = Set.of("setAutoCommit", "commit", "rollback");
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong transactionControl = new AtomicLong();
+
+    DataSource wrap(DataSource target) {
+        return proxy(DataSource.class, target);
+    }
+
+    long executed() {
+        return executed.get();
+    }
+
+    long transactionControl() {
+        return transactionControl.get();
+    }
+
+    void reset() {
+        executed.set(0);
+        transactionControl.set(0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T proxy(Class<T> type, T target) {
+        InvocationHandler handler = (proxy, method, args) -> {
+            if (method.getName().startsWith("execute") && Statement.class.isAssignableFrom(method.getDeclaringClass())) {
+                executed.incrementAndGet();
+            } else if (method.getDeclaringClass() == Connection.class && TRANSACTION_CONTROL.contains(method.getName())) {
+                transactionControl.incrementAndGet();
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            Class<?> returnType = method.getReturnType();
+            if (result != null && returnType.isInterface()
+                    && (returnType == Connection.class || Statement.class.isAssignableFrom(returnType))) {
+                return proxy((Class<Object>) returnType, result);
+            }
+            return result;
+        };
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+}
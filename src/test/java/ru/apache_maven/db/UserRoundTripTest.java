@@ -0,0 +1,132 @@
+package ru.apache_maven.db;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Регрессионный тест числа обращений к БД на операцию со строкой пользователя:
+ * существование пользователя проверяется тем же запросом, поэтому на основном пути
+ * ровно один запрос и ни одной команды управления транзакцией.
+ */
+public class UserRoundTripTest {
+    private static final long USER = 42L;
+    private static final long MISSING = 7L;
+
+    @TempDir
+    static Path journalDir;
+
+    private static FakeUsersDataSource fake;
+    private static StatementCounter counter;
+    private static DatabaseManager db;
+
+    @BeforeAll
+    static void start() {
+        System.setProperty("db.counters.journalDir", journalDir.toString());
+        fake = new FakeUsersDataSource();
+        putUser();
+        counter = new StatementCounter();
+        HikariConfig config = new HikariConfig();
+        config.setDataSource(counter.wrap(fake.dataSource()));
+        config.setMaximumPoolSize(2);
+        config.setMinimumIdle(1);
+        db = new DatabaseManager(config);
+    }
+
+    @AfterAll
+    static void stop() throws SQLException {
+        db.close();
+        System.clearProperty("db.counters.journalDir");
+    }
+
+    @BeforeEach
+    void resetCounter() {
+        // Списания меняют строку: каждый тест начинает с исходных значений
+        putUser();
+        counter.reset();
+    }
+
+    private static void putUser() {
+        fake.putUser(USER, Map.of(
+                "dollars", 300,
+                "points", 1_000L,
+                "gift_pack_claims", 2,
+                "last_spin", new Timestamp(System.currentTimeMillis())));
+    }
+
+    @Test
+    public void readsAreOneStatement() throws SQLException {
+        assertEquals(300, db.getUserDollars(USER));
+        assertOneRoundTrip();
+        assertEquals(1_000L, db.getUserPoints(USER));
+        assertOneRoundTrip();
+        assertEquals(2, db.getGiftPackClaims(USER));
+        assertOneRoundTrip();
+        db.getLastSpin(USER);
+        assertOneRoundTrip();
+        // Спин был только что: счётчик не сбрасывается, второй запрос не нужен
+        assertEquals(2, db.checkAndResetGiftPackClaims(USER));
+        assertOneRoundTrip();
+    }
+
+    @Test
+    public void mutationsAreOneStatement() throws SQLException {
+        db.updateLastSpin(USER);
+        assertOneRoundTrip();
+        db.incrementGiftPackClaims(USER);
+        assertOneRoundTrip();
+        db.resetGiftPackClaims(USER);
+        assertOneRoundTrip();
+        db.addDollars(USER, -10);
+        assertOneRoundTrip();
+        assertEquals(UpdateOutcome.APPLIED, db.tryDeductDollars(USER, 100));
+        assertOneRoundTrip();
+    }
+
+    @Test
+    public void typedOutcomesForMissingUserAndFailedCondition() throws SQLException {
+        assertThrows(UserNotFoundException.class, () -> db.getUserDollars(MISSING));
+        assertThrows(UserNotFoundException.class, () -> db.updateLastSpin(MISSING));
+        assertEquals(UpdateOutcome.USER_NOT_FOUND, db.tryDeductDollars(MISSING, 1));
+        assertEquals(UpdateOutcome.REJECTED, db.tryDeductDollars(USER, 1_000_000));
+    }
+
+    @Test
+    public void registeringKnownUserIsFree() throws SQLException {
+        // USER загружен из таблицы при старте
+        assertEquals(false, db.ensureUser(USER, "known"));
+        assertEquals(0, counter.executed());
+
+        long newcomer = 1_000_001L;
+        assertEquals(true, db.ensureUser(newcomer, "newcomer"));
+        assertEquals(1, counter.executed());
+        counter.reset();
+        assertEquals(false, db.ensureUser(newcomer, "newcomer"));
+        assertEquals(true, db.userExists(newcomer));
+        assertEquals(0, counter.executed());
+    }
+
+    @Test
+    public void ratingIsServedFromMemory() throws SQLException {
+        assertEquals(USER, db.getTopUsersByPoints(10).get(0).getId());
+        db.getUserRank(USER);
+        assertEquals(0, counter.executed());
+    }
+
+    private static void assertOneRoundTrip() {
+        assertEquals(1, counter.executed(), "запросов на операцию");
+        assertEquals(0, counter.transactionControl(), "команд управления транзакцией на операцию");
+        counter.reset();
+    }
+}
@@ -0,0 +1,42 @@
+package ru.apache_maven.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Модели — простые объекты данных: они не должны обращаться к базе данных.
+ */
+public class ModelIsolationTest {
+    private static final Path MODEL_SOURCES = Paths.get("src/main/java/ru/apache_maven/model");
+
+    @Test
+    public void modelClassesDoNotImportDatabaseCode() throws IOException {
+        List<String> offenders;
+        try (Stream<Path> files = Files.list(MODEL_SOURCES)) {
+            offenders = files
+                    .filter(file -> file.toString().endsWith(".java"))
+                    .filter(ModelIsolationTest::referencesDatabase)
+                    .map(file -> file.getFileName().toString())
+                    .collect(Collectors.toList());
+        }
+        assertTrue(offenders.isEmpty(), "Model classes reach the database: " + offenders);
+    }
+
+    private static boolean referencesDatabase(Path file) {
+        try {
+            String source = Files.readString(file);
+            return source.contains("import java.sql.") || source.contains("ru.apache_maven.db.");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}